@@ -4,7 +4,9 @@ import android.support.annotation.Nullable;
 
 import com.google.common.collect.Lists;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import au.com.codeka.warworlds.client.App;
@@ -13,9 +15,12 @@ import au.com.codeka.warworlds.client.store.StarCursor;
 import au.com.codeka.warworlds.client.store.StarStore;
 import au.com.codeka.warworlds.client.util.eventbus.EventHandler;
 import au.com.codeka.warworlds.common.Log;
+import au.com.codeka.warworlds.common.net.StarDeltas;
 import au.com.codeka.warworlds.common.proto.ModifyStarPacket;
 import au.com.codeka.warworlds.common.proto.Packet;
+import au.com.codeka.warworlds.common.proto.RequestStarsPacket;
 import au.com.codeka.warworlds.common.proto.Star;
+import au.com.codeka.warworlds.common.proto.StarDelta;
 import au.com.codeka.warworlds.common.proto.StarModification;
 import au.com.codeka.warworlds.common.proto.StarUpdatedPacket;
 import au.com.codeka.warworlds.common.sim.StarModifier;
@@ -30,6 +35,9 @@ public class StarManager {
   private final StarStore stars;
   private final StarModifier starModifier;
 
+  /** We apply star updates one at a time, so that deltas are applied to the right version. */
+  private final Object updateLock = new Object();
+
   private StarManager() {
     stars = App.i.getDataStore().stars();
     starModifier = new StarModifier(() -> {
@@ -58,6 +66,10 @@ public class StarManager {
       Star.Builder starBuilder = star.newBuilder();
       starModifier.modifyStar(starBuilder, modification);
 
+      // This isn't the server's version of the star any more, so we can't apply the server's
+      // deltas to it. We'll get the whole star back when the server's made the same change.
+      starBuilder.version(null);
+
       // Save the now-modified star.
       Star newStar = starBuilder.build();
       stars.put(star.id, newStar, EmpireManager.i.getMyEmpire());
@@ -82,13 +94,34 @@ public class StarManager {
       log.info("Stars updating, saving to database.");
       long startTime = System.nanoTime();
       Map<Long, Star> values = new HashMap<>();
-      for (Star star : pkt.stars) {
+      List<Long> missingStarIds = new ArrayList<>();
+      synchronized (updateLock) {
+        for (Star star : pkt.stars) {
+          values.put(star.id, star);
+        }
+        for (StarDelta delta : pkt.star_deltas) {
+          Star base = stars.get(delta.star_id);
+          Star star = base == null ? null : StarDeltas.apply(base, delta);
+          if (star == null) {
+            // We don't have the version this delta is for, we'll need the whole star.
+            missingStarIds.add(delta.star_id);
+          } else {
+            values.put(star.id, star);
+          }
+        }
+        stars.putAll(values, EmpireManager.i.getMyEmpire());
+      }
+      for (Star star : values.values()) {
         App.i.getEventBus().publish(star);
-        values.put(star.id, star);
       }
-      stars.putAll(values, EmpireManager.i.getMyEmpire());
+      if (!missingStarIds.isEmpty()) {
+        App.i.getServer().send(new Packet.Builder()
+            .request_stars(new RequestStarsPacket.Builder().star_ids(missingStarIds).build())
+            .build());
+      }
       long endTime = System.nanoTime();
-      log.info("Updated %d stars in DB in %d ms", pkt.stars.size(), (endTime - startTime) / 1000000L);
+      log.info("Updated %d stars (%d deltas, %d missing) in DB in %d ms", values.size(),
+          pkt.star_deltas.size(), missingStarIds.size(), (endTime - startTime) / 1000000L);
     }
   };
 }
@@ -16,6 +16,7 @@ import au.com.codeka.warworlds.client.game.world.EmpireManager;
 import au.com.codeka.warworlds.common.Log;
 import au.com.codeka.warworlds.common.debug.PacketDebug;
 import au.com.codeka.warworlds.common.net.PacketDecoder;
+import au.com.codeka.warworlds.common.net.PacketDecompressor;
 import au.com.codeka.warworlds.common.net.PacketEncoder;
 import au.com.codeka.warworlds.common.proto.HelloPacket;
 import au.com.codeka.warworlds.common.proto.LoginRequest;
@@ -119,6 +120,8 @@ public class Server {
       send(new Packet.Builder()
           .hello(new HelloPacket.Builder()
               .empire_id(loginResponse.empire.id)
+              .accepted_packet_flags(PacketDecompressor.SUPPORTED_FLAGS)
+              .accepts_star_deltas(true)
               .build())
           .build());
 
@@ -44,7 +44,9 @@ public class PacketDebug {
     if (pkt.star_updated != null) {
       sb.append(" : ");
       sb.append(pkt.star_updated.stars.size());
-      sb.append(" stars");
+      sb.append(" stars, ");
+      sb.append(pkt.star_updated.star_deltas.size());
+      sb.append(" deltas");
     }
 
     return sb.toString();
@@ -0,0 +1,226 @@
+package au.com.codeka.warworlds.common.net;
+
+import com.google.common.base.Objects;
+import com.squareup.wire.Message;
+import com.squareup.wire.WireField;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Makes and merges the "partial" messages that {@link StarDeltas} uses: messages with only the
+ * fields that have changed set, plus a list of the paths to the fields that have been cleared (see
+ * StarDelta in star.proto). This works on any message, by looking at its {@link WireField}s, so
+ * fields that are added to the protos later are diffed without any changes here.
+ */
+class MessageDeltas {
+  private static final Map<Class<?>, FieldInfo[]> fieldInfos = new ConcurrentHashMap<>();
+
+  /**
+   * Makes a partial message with the fields of {@code value} that are different to those of
+   * {@code base}, apart from those with the given tags, and adds the paths of the fields that have
+   * been cleared to {@code clearedFields}.
+   *
+   * @return The partial message, or null if no field has changed (apart from being cleared).
+   */
+  @Nullable
+  @SuppressWarnings("unchecked") // The partial message is built by the builder of M's class.
+  static <M extends Message<M, ?>> M diff(
+      M base, M value, Set<Integer> ignoredTags, List<Integer> clearedFields) {
+    return (M) diff(base, value, ignoredTags, clearedFields, new ArrayList<Integer>());
+  }
+
+  /**
+   * Merges the given partial message and cleared fields (as made by {@link #diff}) into the given
+   * builder.
+   *
+   * @return false if {@code clearedFields} isn't a valid list of paths, in which case the builder
+   *     might have been partly updated.
+   */
+  static boolean merge(
+      Message.Builder<?, ?> builder, @Nullable Message<?, ?> partial, List<Integer> clearedFields) {
+    List<int[]> paths = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < clearedFields.size(); i++) {
+      if (clearedFields.get(i) == 0) {
+        if (i == start) {
+          return false;
+        }
+        int[] path = new int[i - start];
+        for (int j = 0; j < path.length; j++) {
+          path[j] = clearedFields.get(start + j);
+        }
+        paths.add(path);
+        start = i + 1;
+      }
+    }
+    if (start != clearedFields.size()) {
+      return false;
+    }
+
+    merge(builder, partial, paths, 0);
+    return true;
+  }
+
+  @Nullable
+  private static Message<?, ?> diff(Message<?, ?> base, Message<?, ?> value,
+      Set<Integer> ignoredTags, List<Integer> clearedFields, List<Integer> path) {
+    Message.Builder<?, ?> partial = null;
+    for (FieldInfo info : getFieldInfos(value.getClass())) {
+      if (ignoredTags.contains(info.tag)) {
+        continue;
+      }
+      Object baseValue = info.get(base);
+      Object newValue = info.get(value);
+      if (Objects.equal(baseValue, newValue)) {
+        continue;
+      }
+
+      Object partialValue = newValue;
+      if (info.repeated ? ((List<?>) newValue).isEmpty() : newValue == null) {
+        clearedFields.addAll(path);
+        clearedFields.add(info.tag);
+        clearedFields.add(0);
+        continue;
+      } else if (info.message && baseValue != null) {
+        path.add(info.tag);
+        partialValue = diff((Message<?, ?>) baseValue, (Message<?, ?>) newValue,
+            Collections.<Integer>emptySet(), clearedFields, path);
+        path.remove(path.size() - 1);
+        if (partialValue == null) {
+          continue;
+        }
+      }
+
+      if (partial == null) {
+        partial = info.newBuilder();
+      }
+      info.set(partial, partialValue);
+    }
+    return partial == null ? null : partial.build();
+  }
+
+  /** Merges the partial message and paths (from {@code depth} on) into the builder. */
+  private static void merge(
+      Message.Builder<?, ?> builder, @Nullable Message<?, ?> partial, List<int[]> paths,
+      int depth) {
+    for (FieldInfo info : getFieldInfos(builder.getClass().getEnclosingClass())) {
+      boolean cleared = false;
+      List<int[]> subPaths = new ArrayList<>();
+      for (int[] path : paths) {
+        if (path[depth] == info.tag) {
+          if (path.length == depth + 1) {
+            cleared = true;
+          } else {
+            subPaths.add(path);
+          }
+        }
+      }
+
+      Object partialValue = partial == null ? null : info.get(partial);
+      if (cleared) {
+        info.set(builder, info.repeated ? new ArrayList<>() : null);
+      } else if (info.repeated) {
+        if (partialValue != null && !((List<?>) partialValue).isEmpty()) {
+          info.set(builder, new ArrayList<>((List<?>) partialValue));
+        }
+      } else if (info.message && (partialValue != null || !subPaths.isEmpty())) {
+        Message<?, ?> currValue = (Message<?, ?>) info.getFromBuilder(builder);
+        if (currValue == null) {
+          info.set(builder, partialValue);
+        } else {
+          Message.Builder<?, ?> subBuilder = currValue.newBuilder();
+          merge(subBuilder, (Message<?, ?>) partialValue, subPaths, depth + 1);
+          info.set(builder, subBuilder.build());
+        }
+      } else if (partialValue != null) {
+        info.set(builder, partialValue);
+      }
+    }
+  }
+
+  private static FieldInfo[] getFieldInfos(Class<?> cls) {
+    FieldInfo[] infos = fieldInfos.get(cls);
+    if (infos == null) {
+      infos = FieldInfo.forClass(cls);
+      fieldInfos.put(cls, infos);
+    }
+    return infos;
+  }
+
+  /** Details of one of the fields of a message, and the same field in its builder. */
+  private static class FieldInfo {
+    final int tag;
+    final boolean repeated;
+    final boolean message;
+    final Field field;
+    final Field builderField;
+
+    private FieldInfo(Field field, Field builderField) {
+      WireField wireField = field.getAnnotation(WireField.class);
+      this.tag = wireField.tag();
+      this.repeated = wireField.label() == WireField.Label.REPEATED
+          || wireField.label() == WireField.Label.PACKED;
+      this.message = Message.class.isAssignableFrom(field.getType());
+      this.field = field;
+      this.builderField = builderField;
+    }
+
+    static FieldInfo[] forClass(Class<?> cls) {
+      try {
+        Class<?> builderClass = Class.forName(cls.getName() + "$Builder");
+        List<FieldInfo> infos = new ArrayList<>();
+        for (Field field : cls.getFields()) {
+          if (field.isAnnotationPresent(WireField.class)) {
+            infos.add(new FieldInfo(field, builderClass.getField(field.getName())));
+          }
+        }
+        return infos.toArray(new FieldInfo[infos.size()]);
+      } catch (ClassNotFoundException | NoSuchFieldException e) {
+        throw new IllegalArgumentException("Not a Wire message: " + cls, e);
+      }
+    }
+
+    Message.Builder<?, ?> newBuilder() {
+      try {
+        return (Message.Builder<?, ?>)
+            builderField.getDeclaringClass().getDeclaredConstructor().newInstance();
+      } catch (InstantiationException | IllegalAccessException | NoSuchMethodException
+          | InvocationTargetException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    Object get(Message<?, ?> message) {
+      try {
+        return field.get(message);
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    Object getFromBuilder(Message.Builder<?, ?> builder) {
+      try {
+        return builderField.get(builder);
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    void set(Message.Builder<?, ?> builder, Object value) {
+      try {
+        builderField.set(builder, value);
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package au.com.codeka.warworlds.common.net;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the packets of one connection for {@link PacketEncoder}. The {@link Deflater} and
+ * the output buffer are re-used for every packet, and packets smaller than the threshold aren't
+ * compressed at all (it rarely helps, and costs more than sending the extra bytes).
+ *
+ * <p>Each {@link Deflater} holds a few hundred KB of native memory, so we only create it once we
+ * have a packet to compress, and {@link #close} should be called once the connection is closed.
+ * This is not thread-safe: the encoder only uses it while holding its lock.
+ */
+public class PacketCompressor {
+  /**
+   * Packets smaller than this (in bytes) aren't compressed by default. Compressing a small packet
+   * on its own costs about as much as a big one (mostly resetting the deflater), and hardly ever
+   * makes it smaller.
+   */
+  public static final int DEFAULT_THRESHOLD = 256;
+
+  /**
+   * The default threshold for {@link Mode#STREAMING_DEFLATE}. Small packets compress well when
+   * they can refer back to the ones before them, so only the tiniest aren't worth it.
+   */
+  public static final int DEFAULT_STREAMING_THRESHOLD = 64;
+
+  /** The different ways we can compress a packet. */
+  public enum Mode {
+    /** Don't compress anything. */
+    NONE,
+
+    /**
+     * Compress each packet with gzip ({@link PacketFlags#COMPRESSED}). Every version of the game
+     * can decode this.
+     */
+    GZIP,
+
+    /** Compress each packet on its own with raw deflate ({@link PacketFlags#DEFLATED}). */
+    DEFLATE,
+
+    /**
+     * Compress packets as one long deflate stream ({@link PacketFlags#STREAM_DEFLATED}), so that
+     * each packet can refer back to the ones before it. Packets tend to repeat the same structures
+     * (e.g. stars we've sent before), so this compresses much better, but the decoder needs to see
+     * every compressed packet, in order.
+     */
+    STREAMING_DEFLATE
+  }
+
+  /** The header of a gzip stream: no file name, modification time or other flags. */
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0,
+      0, (byte) 0xff};
+
+  /** The size of the gzip trailer: the CRC-32 of the data and its size, as little-endian ints. */
+  private static final int GZIP_TRAILER_SIZE = 8;
+
+  private final Mode mode;
+  private final int level;
+  private final int threshold;
+  private Deflater deflater;
+  private final CRC32 crc = new CRC32();
+
+  private byte[] buffer = new byte[4096];
+  private int length;
+  private int flags;
+
+  public PacketCompressor(Mode mode) {
+    this(mode, Deflater.DEFAULT_COMPRESSION, getDefaultThreshold(mode));
+  }
+
+  /**
+   * Constructs a new {@link PacketCompressor}.
+   *
+   * @param mode How we'll compress packets.
+   * @param level The compression level, from {@link Deflater#BEST_SPEED} to
+   *     {@link Deflater#BEST_COMPRESSION} (or {@link Deflater#DEFAULT_COMPRESSION}).
+   * @param threshold Packets smaller than this many bytes aren't compressed.
+   */
+  public PacketCompressor(Mode mode, int level, int threshold) {
+    this.mode = mode;
+    this.level = level;
+    this.threshold = threshold;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /** Gets the default threshold for the given mode: packets smaller than this aren't compressed. */
+  public static int getDefaultThreshold(Mode mode) {
+    return mode == Mode.STREAMING_DEFLATE ? DEFAULT_STREAMING_THRESHOLD : DEFAULT_THRESHOLD;
+  }
+
+  /**
+   * Compresses the given (encoded) packet. If this returns true, the compressed bytes are the
+   * first {@link #getLength} bytes of {@link #getBuffer}, and should be sent with
+   * {@link #getFlags}. If it returns false, the packet should be sent as-is.
+   */
+  public boolean compress(byte[] bytes) {
+    if (mode == Mode.NONE || bytes.length < threshold) {
+      return false;
+    }
+    if (deflater == null) {
+      deflater = new Deflater(level, true /* nowrap */);
+    }
+
+    switch (mode) {
+      case GZIP:
+        ensureCapacity(GZIP_HEADER.length);
+        System.arraycopy(GZIP_HEADER, 0, buffer, 0, GZIP_HEADER.length);
+        length = GZIP_HEADER.length;
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        deflate(Deflater.NO_FLUSH);
+
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        ensureCapacity(length + GZIP_TRAILER_SIZE);
+        writeIntLe((int) crc.getValue());
+        writeIntLe(bytes.length);
+        flags = PacketFlags.COMPRESSED;
+        break;
+      case DEFLATE:
+        length = 0;
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        deflate(Deflater.NO_FLUSH);
+        flags = PacketFlags.DEFLATED;
+        break;
+      case STREAMING_DEFLATE:
+        // We can't decide not to send this once the deflater's seen it, because the other side
+        // needs to see everything the deflater has (so this always returns true).
+        length = 0;
+        deflater.setInput(bytes);
+        deflate(Deflater.SYNC_FLUSH);
+        flags = PacketFlags.STREAM_DEFLATED;
+        return true;
+      default:
+        throw new IllegalStateException("Unexpected mode: " + mode);
+    }
+    return length < bytes.length;
+  }
+
+  /** Gets the buffer that holds the packet we last compressed. */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  /** Gets the length of the packet we last compressed. */
+  public int getLength() {
+    return length;
+  }
+
+  /** Gets the {@link PacketFlags} for the packet we last compressed. */
+  public int getFlags() {
+    return flags;
+  }
+
+  /** Releases the {@link Deflater}. Don't use this compressor after calling this. */
+  public void close() {
+    if (deflater != null) {
+      deflater.end();
+      deflater = null;
+    }
+  }
+
+  /**
+   * Runs the deflater until it's finished (if we're not flushing) or until it's flushed all of
+   * its input, appending the output to our buffer.
+   */
+  private void deflate(int flush) {
+    while (true) {
+      ensureCapacity(length + 1);
+      int n = deflater.deflate(buffer, length, buffer.length - length, flush);
+      length += n;
+      if (flush == Deflater.NO_FLUSH ? deflater.finished() : length < buffer.length) {
+        return;
+      }
+    }
+  }
+
+  private void writeIntLe(int value) {
+    buffer[length++] = (byte) value;
+    buffer[length++] = (byte) (value >> 8);
+    buffer[length++] = (byte) (value >> 16);
+    buffer[length++] = (byte) (value >> 24);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (buffer.length < capacity) {
+      byte[] newBuffer = new byte[Math.max(capacity, buffer.length * 2)];
+      System.arraycopy(buffer, 0, newBuffer, 0, length);
+      buffer = newBuffer;
+    }
+  }
+}
@@ -10,16 +10,27 @@ import okio.Okio;
 
 /**
  * Decodes a stream of {@link Packet}s, as encoded by {@PacketEncoder}.
+ *
+ * <p>Each packet is framed with a header of {@link #HEADER_SIZE} bytes: the size of the payload
+ * and its {@link PacketFlags}, both as little-endian ints. Code that does its own framing (like
+ * the server's non-blocking sockets) can use {@link #decode} to decode the payload.
  */
 public class PacketDecoder {
   private static final Log log = new Log("PacketDecoder");
 
+  /** The size of the header before each packet: the size of the payload, then the flags. */
+  public static final int HEADER_SIZE = 8;
+
+  /** The biggest (decompressed) packet we'll accept. */
+  private static final int MAX_PACKET_SIZE = 64 * 1024 * 1024;
+
   public interface PacketHandler {
     void onPacket(PacketDecoder decoder, Packet pkt, int encodedSize);
   }
 
   private final BufferedSource source;
   private final Thread thread;
+  private final PacketDecompressor decompressor = new PacketDecompressor(MAX_PACKET_SIZE);
 
   private PacketHandler handler;
 
@@ -34,6 +45,15 @@ public class PacketDecoder {
     this.handler = handler;
   }
 
+  /**
+   * Decodes the payload of a packet that was sent with the given {@link PacketFlags}, using the
+   * given connection's {@link PacketDecompressor}.
+   */
+  public static Packet decode(byte[] bytes, int flags, PacketDecompressor decompressor)
+      throws IOException {
+    return Packet.ADAPTER.decode(decompressor.decompress(bytes, flags));
+  }
+
   private final Runnable readRunnable = new Runnable() {
     @Override
     public void run() {
@@ -41,11 +61,7 @@ public class PacketDecoder {
         while (!source.exhausted()) {
           int size = source.readIntLe();
           int flags = source.readIntLe();
-          byte[] bytes = source.readByteArray(size);
-          if ((flags & PacketFlags.COMPRESSED) != 0) {
-            bytes = GzipHelper.decompress(bytes);
-          }
-          Packet pkt = Packet.ADAPTER.decode(bytes);
+          Packet pkt = decode(source.readByteArray(size), flags, decompressor);
 
           handler.onPacket(PacketDecoder.this, pkt, size);
         }
@@ -0,0 +1,106 @@
+package au.com.codeka.warworlds.common.net;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses the packets of one connection, however {@link PacketCompressor} compressed them.
+ * The {@link Inflater}s are re-used for every packet, and the streaming one keeps its state
+ * between packets (see {@link PacketCompressor.Mode#STREAMING_DEFLATE}).
+ *
+ * <p>This is not thread-safe, and (because of the streaming inflater) it must see every packet of
+ * the connection, in order.
+ */
+public class PacketDecompressor {
+  /** The {@link PacketFlags} that we know how to decompress. */
+  public static final int SUPPORTED_FLAGS =
+      PacketFlags.COMPRESSED | PacketFlags.DEFLATED | PacketFlags.STREAM_DEFLATED;
+
+  /**
+   * The size of the buffer we inflate into. It grows for bigger packets, but those are rare, so
+   * we go back to this size afterwards rather than holding on to (up to) maxSize bytes.
+   */
+  private static final int DEFAULT_BUFFER_SIZE = 4096;
+
+  private final int maxSize;
+  private Inflater inflater;
+  private Inflater streamInflater;
+  private byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+
+  /**
+   * Constructs a new {@link PacketDecompressor}.
+   *
+   * @param maxSize The biggest (decompressed) packet we'll accept, in bytes. Anything bigger and
+   *     we'll assume the other side is misbehaving.
+   */
+  public PacketDecompressor(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /** Decompresses the given packet, which was sent with the given {@link PacketFlags}. */
+  public byte[] decompress(byte[] bytes, int flags) throws IOException {
+    if ((flags & PacketFlags.STREAM_DEFLATED) != 0) {
+      if (streamInflater == null) {
+        streamInflater = new Inflater(true /* nowrap */);
+      }
+      return inflate(streamInflater, bytes);
+    } else if ((flags & PacketFlags.DEFLATED) != 0) {
+      if (inflater == null) {
+        inflater = new Inflater(true /* nowrap */);
+      }
+      inflater.reset();
+      return inflate(inflater, bytes);
+    } else if ((flags & PacketFlags.COMPRESSED) != 0) {
+      byte[] decompressed = GzipHelper.decompress(bytes);
+      if (decompressed == null) {
+        throw new IOException("Error decompressing packet.");
+      }
+      return decompressed;
+    }
+    return bytes;
+  }
+
+  /** Releases the {@link Inflater}s. Don't use this decompressor after calling this. */
+  public void close() {
+    if (inflater != null) {
+      inflater.end();
+      inflater = null;
+    }
+    if (streamInflater != null) {
+      streamInflater.end();
+      streamInflater = null;
+    }
+  }
+
+  private byte[] inflate(Inflater inflater, byte[] bytes) throws IOException {
+    inflater.setInput(bytes);
+    int length = 0;
+    try {
+      while (true) {
+        if (length == buffer.length) {
+          if (buffer.length >= maxSize) {
+            throw new IOException("Decompressed packet is bigger than " + maxSize + " bytes.");
+          }
+          buffer = Arrays.copyOf(buffer, Math.min(maxSize, buffer.length * 2));
+        }
+        int n = inflater.inflate(buffer, length, buffer.length - length);
+        length += n;
+        if (inflater.finished() || (n == 0 && inflater.needsInput())) {
+          break;
+        }
+        if (n == 0 && inflater.needsDictionary()) {
+          throw new IOException("Unexpected dictionary in compressed packet.");
+        }
+      }
+      return Arrays.copyOf(buffer, length);
+    } catch (DataFormatException e) {
+      throw new IOException("Error decompressing packet.", e);
+    } finally {
+      if (buffer.length > DEFAULT_BUFFER_SIZE) {
+        buffer = new byte[DEFAULT_BUFFER_SIZE];
+      }
+    }
+  }
+}
@@ -12,6 +12,10 @@ import okio.Okio;
 
 /**
  * Encodes {@link Packet}s onto a stream so that {@link PacketDecoder} can decode them.
+ *
+ * <p>Packets are compressed by a {@link PacketCompressor}. By default, that's gzip for packets of
+ * {@link PacketCompressor#DEFAULT_THRESHOLD} bytes or more, which anybody can decode. Other modes
+ * should only be used once you know the other side supports them (see {@link #setCompressor}).
  */
 public class PacketEncoder {
   private final static Log log = new Log("PacketEncoder");
@@ -23,6 +27,7 @@ public class PacketEncoder {
   private final BufferedSink sink;
   private final Object lock = new Object();
   @Nullable private PacketHandler handler;
+  private PacketCompressor compressor = new PacketCompressor(PacketCompressor.Mode.GZIP);
 
   public PacketEncoder(OutputStream outs) {
     this(outs, null);
@@ -37,26 +42,45 @@ public class PacketEncoder {
     this.handler = handler;
   }
 
-  public void send(Packet packet) throws IOException {
-    byte[] bytes;
+  /**
+   * Sets the {@link PacketCompressor} we'll use for all packets from now on. The other side's
+   * {@link PacketDecoder} must understand its {@link PacketFlags}.
+   */
+  public void setCompressor(PacketCompressor compressor) {
     synchronized (lock) {
-      int flags = PacketFlags.NONE;
+      this.compressor.close();
+      this.compressor = compressor;
+    }
+  }
 
-      bytes = packet.encode();
-      byte[] compressed = GzipHelper.compress(bytes);
-      if (compressed != null && compressed.length < bytes.length) {
-        flags |= PacketFlags.COMPRESSED;
-        bytes = compressed;
-      }
+  /** Releases the resources of our {@link PacketCompressor}, once we're done sending. */
+  public void close() {
+    synchronized (lock) {
+      compressor.close();
+    }
+  }
 
-      sink.writeIntLe(bytes.length);
-      sink.writeIntLe(flags);
-      sink.write(bytes);
+  public void send(Packet packet) throws IOException {
+    // Encoding doesn't need the lock, only compressing and writing do.
+    byte[] bytes = packet.encode();
+    int size;
+    synchronized (lock) {
+      if (compressor.compress(bytes)) {
+        size = compressor.getLength();
+        sink.writeIntLe(size);
+        sink.writeIntLe(compressor.getFlags());
+        sink.write(compressor.getBuffer(), 0, size);
+      } else {
+        size = bytes.length;
+        sink.writeIntLe(size);
+        sink.writeIntLe(PacketFlags.NONE);
+        sink.write(bytes);
+      }
       sink.emit();
     }
 
     if (handler != null) {
-      handler.onPacket(packet, bytes.length);
+      handler.onPacket(packet, size);
     }
   }
 }
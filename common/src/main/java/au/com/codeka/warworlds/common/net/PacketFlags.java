@@ -5,5 +5,16 @@ package au.com.codeka.warworlds.common.net;
  */
 public class PacketFlags {
   public static final int NONE = 0;
+
+  /** The packet is compressed with gzip. */
   public static final int COMPRESSED = 1;
+
+  /** The packet is compressed, on its own, with raw deflate. */
+  public static final int DEFLATED = 2;
+
+  /**
+   * The packet is the next part of the connection's deflate stream, and can only be decompressed
+   * after all of the STREAM_DEFLATED packets before it.
+   */
+  public static final int STREAM_DEFLATED = 4;
 }
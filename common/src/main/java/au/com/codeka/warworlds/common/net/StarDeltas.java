@@ -0,0 +1,298 @@
+package au.com.codeka.warworlds.common.net;
+
+import com.google.common.base.Objects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import au.com.codeka.warworlds.common.proto.EmpireStorage;
+import au.com.codeka.warworlds.common.proto.EmpireStorageDelta;
+import au.com.codeka.warworlds.common.proto.Fleet;
+import au.com.codeka.warworlds.common.proto.Planet;
+import au.com.codeka.warworlds.common.proto.PlanetDelta;
+import au.com.codeka.warworlds.common.proto.Star;
+import au.com.codeka.warworlds.common.proto.StarDelta;
+
+/**
+ * Makes and applies {@link StarDelta}s: the server makes a delta from the version of a star it
+ * last sent to a client, and the client applies it to its copy of that version.
+ *
+ * <p>The star's own fields, and those of each planet (including the colony), are diffed field by
+ * field (see {@link MessageDeltas}), as are those of each empire store, which are matched by their
+ * empire_id. Fleets are matched by their id, and a changed fleet is sent whole. New stores and
+ * fleets go on the end of the list, so if the server's list ends up in a different order than
+ * that, we can't make a delta and the whole star should be sent instead.
+ */
+public class StarDeltas {
+  /**
+   * The tags of the fields of {@link Star} that aren't in {@link StarDelta#fields}: id, planets,
+   * empire_stores, fleets and version.
+   */
+  private static final Set<Integer> STAR_IGNORED_TAGS =
+      new HashSet<>(Arrays.asList(1, 9, 14, 16, 22));
+
+  /** The tags of the fields of {@link Planet} that aren't in {@link PlanetDelta#fields}: index. */
+  private static final Set<Integer> PLANET_IGNORED_TAGS = Collections.singleton(2);
+
+  /**
+   * The tags of the fields of {@link EmpireStorage} that aren't in
+   * {@link EmpireStorageDelta#fields}: empire_id.
+   */
+  private static final Set<Integer> EMPIRE_STORE_IGNORED_TAGS = Collections.singleton(1);
+
+  /**
+   * Makes a delta that turns {@code base} into {@code star}. Returns null if we can't, or if the
+   * delta wouldn't be any smaller than the star itself, in which case you should just send the
+   * whole star.
+   *
+   * @param base The version of the star that the other side already has.
+   * @param star The new version of the star.
+   */
+  @Nullable
+  public static StarDelta diff(Star base, Star star) {
+    if (base.version == null || star.version == null || !Objects.equal(base.id, star.id)) {
+      return null;
+    }
+
+    List<Integer> clearedFields = new ArrayList<>();
+    Star fields = MessageDeltas.diff(base, star, STAR_IGNORED_TAGS, clearedFields);
+
+    // Planets never come or go, so we only need to find the ones that have changed.
+    if (base.planets.size() != star.planets.size()) {
+      return null;
+    }
+    List<PlanetDelta> planets = new ArrayList<>();
+    for (int i = 0; i < star.planets.size(); i++) {
+      Planet basePlanet = base.planets.get(i);
+      Planet planet = star.planets.get(i);
+      if (planet.index == null || !planet.index.equals(basePlanet.index)) {
+        return null;
+      }
+      if (!planet.equals(basePlanet)) {
+        List<Integer> planetClearedFields = new ArrayList<>();
+        planets.add(new PlanetDelta.Builder()
+            .index(planet.index)
+            .fields(MessageDeltas.diff(
+                basePlanet, planet, PLANET_IGNORED_TAGS, planetClearedFields))
+            .cleared_fields(planetClearedFields)
+            .build());
+      }
+    }
+
+    List<EmpireStorage> changedStores = new ArrayList<>();
+    List<EmpireStorage> changedStoreBases = new ArrayList<>();
+    List<Long> removedEmpireStoreIds = new ArrayList<>();
+    if (!diffList(base.empire_stores, star.empire_stores, EMPIRE_STORE_KEY, changedStores,
+        changedStoreBases, removedEmpireStoreIds)) {
+      return null;
+    }
+    List<EmpireStorageDelta> empireStores = new ArrayList<>();
+    for (int i = 0; i < changedStores.size(); i++) {
+      EmpireStorage store = changedStores.get(i);
+      EmpireStorage baseStore = changedStoreBases.get(i);
+      EmpireStorageDelta.Builder storeDelta = new EmpireStorageDelta.Builder()
+          .empire_id(EMPIRE_STORE_KEY.getKey(store));
+      if (baseStore == null) {
+        storeDelta.fields(store);
+      } else {
+        List<Integer> storeClearedFields = new ArrayList<>();
+        storeDelta.fields(MessageDeltas.diff(
+            baseStore, store, EMPIRE_STORE_IGNORED_TAGS, storeClearedFields));
+        storeDelta.cleared_fields(storeClearedFields);
+      }
+      empireStores.add(storeDelta.build());
+    }
+
+    List<Fleet> fleets = new ArrayList<>();
+    List<Long> removedFleetIds = new ArrayList<>();
+    if (!diffList(base.fleets, star.fleets, FLEET_KEY, fleets, new ArrayList<Fleet>(),
+        removedFleetIds)) {
+      return null;
+    }
+
+    StarDelta delta = new StarDelta.Builder()
+        .star_id(star.id)
+        .base_version(base.version)
+        .version(star.version)
+        .fields(fields)
+        .cleared_fields(clearedFields)
+        .planets(planets)
+        .empire_stores(empireStores)
+        .removed_empire_store_ids(removedEmpireStoreIds)
+        .fleets(fleets)
+        .removed_fleet_ids(removedFleetIds)
+        .build();
+    if (StarDelta.ADAPTER.encodedSize(delta) >= Star.ADAPTER.encodedSize(star)) {
+      return null;
+    }
+    return delta;
+  }
+
+  /**
+   * Applies the given delta to the given star. Returns null if the star isn't the version that the
+   * delta applies to (or the delta doesn't make sense for it), in which case you'll need to get
+   * the whole star again.
+   */
+  @Nullable
+  public static Star apply(Star base, StarDelta delta) {
+    if (base.version == null || !base.version.equals(delta.base_version)
+        || !Objects.equal(base.id, delta.star_id)) {
+      return null;
+    }
+
+    Star.Builder builder = base.newBuilder();
+    if (!MessageDeltas.merge(builder, delta.fields, delta.cleared_fields)) {
+      return null;
+    }
+    builder.version(delta.version);
+
+    for (PlanetDelta planetDelta : delta.planets) {
+      int i = 0;
+      while (i < builder.planets.size()
+          && !Objects.equal(builder.planets.get(i).index, planetDelta.index)) {
+        i++;
+      }
+      if (i == builder.planets.size()) {
+        return null;
+      }
+      Planet.Builder planetBuilder = builder.planets.get(i).newBuilder();
+      if (!MessageDeltas.merge(planetBuilder, planetDelta.fields, planetDelta.cleared_fields)) {
+        return null;
+      }
+      builder.planets.set(i, planetBuilder.build());
+    }
+
+    removeAll(builder.empire_stores, delta.removed_empire_store_ids, EMPIRE_STORE_KEY);
+    Map<Long, Integer> positions = getPositions(builder.empire_stores, EMPIRE_STORE_KEY);
+    for (EmpireStorageDelta storeDelta : delta.empire_stores) {
+      Integer position = positions.get(storeDelta.empire_id);
+      if (position == null) {
+        if (storeDelta.fields == null) {
+          return null;
+        }
+        builder.empire_stores.add(storeDelta.fields);
+      } else {
+        EmpireStorage.Builder storeBuilder = builder.empire_stores.get(position).newBuilder();
+        if (!MessageDeltas.merge(storeBuilder, storeDelta.fields, storeDelta.cleared_fields)) {
+          return null;
+        }
+        builder.empire_stores.set(position, storeBuilder.build());
+      }
+    }
+
+    removeAll(builder.fleets, delta.removed_fleet_ids, FLEET_KEY);
+    positions = getPositions(builder.fleets, FLEET_KEY);
+    for (Fleet fleet : delta.fleets) {
+      Integer position = positions.get(fleet.id);
+      if (position == null) {
+        builder.fleets.add(fleet);
+      } else {
+        builder.fleets.set(position, fleet);
+      }
+    }
+    return builder.build();
+  }
+
+  /** Gets the key we match elements of a list by. */
+  private interface KeyFunction<T> {
+    @Nullable Long getKey(T value);
+  }
+
+  private static final KeyFunction<EmpireStorage> EMPIRE_STORE_KEY =
+      new KeyFunction<EmpireStorage>() {
+        @Override
+        public Long getKey(EmpireStorage empireStore) {
+          // The natives' store doesn't have an empire_id.
+          return empireStore.empire_id == null ? 0L : empireStore.empire_id;
+        }
+      };
+
+  private static final KeyFunction<Fleet> FLEET_KEY = new KeyFunction<Fleet>() {
+    @Override
+    public Long getKey(Fleet fleet) {
+      return fleet.id;
+    }
+  };
+
+  /**
+   * Finds the elements which have been added to or changed in {@code newList} (and the elements of
+   * {@code baseList} they replace, or null if they were added), and the keys of those which have
+   * been removed. Returns false if we can't describe the change like that: there are missing or
+   * duplicate keys, or the added elements aren't at the end of the list.
+   */
+  private static <T> boolean diffList(List<T> baseList, List<T> newList, KeyFunction<T> keyFn,
+      List<T> changed, List<T> changedBases, List<Long> removedKeys) {
+    Map<Long, T> base = new HashMap<>();
+    for (T value : baseList) {
+      Long key = keyFn.getKey(value);
+      if (key == null || base.put(key, value) != null) {
+        return false;
+      }
+    }
+
+    Set<Long> newKeys = new HashSet<>();
+    List<Long> addedKeys = new ArrayList<>();
+    for (T value : newList) {
+      Long key = keyFn.getKey(value);
+      if (key == null || !newKeys.add(key)) {
+        return false;
+      }
+      T baseValue = base.get(key);
+      if (baseValue == null) {
+        addedKeys.add(key);
+        changed.add(value);
+        changedBases.add(null);
+      } else if (!baseValue.equals(value)) {
+        changed.add(value);
+        changedBases.add(baseValue);
+      }
+    }
+
+    // The new list needs to be what's left of the old list, in the same order, followed by
+    // everything that was added.
+    int i = 0;
+    for (T value : baseList) {
+      Long key = keyFn.getKey(value);
+      if (!newKeys.contains(key)) {
+        removedKeys.add(key);
+      } else if (!key.equals(keyFn.getKey(newList.get(i++)))) {
+        return false;
+      }
+    }
+    for (Long key : addedKeys) {
+      if (!key.equals(keyFn.getKey(newList.get(i++)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Removes the elements with the given keys from the given list. */
+  private static <T> void removeAll(List<T> list, List<Long> keys, KeyFunction<T> keyFn) {
+    if (!keys.isEmpty()) {
+      Set<Long> removed = new HashSet<>(keys);
+      for (int i = list.size() - 1; i >= 0; i--) {
+        if (removed.contains(keyFn.getKey(list.get(i)))) {
+          list.remove(i);
+        }
+      }
+    }
+  }
+
+  /** Gets the position of each element of the given list, by key. */
+  private static <T> Map<Long, Integer> getPositions(List<T> list, KeyFunction<T> keyFn) {
+    Map<Long, Integer> positions = new HashMap<>();
+    for (int i = 0; i < list.size(); i++) {
+      positions.put(keyFn.getKey(list.get(i)), i);
+    }
+    return positions;
+  }
+}
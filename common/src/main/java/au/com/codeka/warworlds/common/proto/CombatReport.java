@@ -0,0 +1,335 @@
+// Code generated by Wire protocol buffer compiler, do not edit.
+// Source file: star.proto at 233:1
+package au.com.codeka.warworlds.common.proto;
+
+import com.squareup.wire.FieldEncoding;
+import com.squareup.wire.Message;
+import com.squareup.wire.ProtoAdapter;
+import com.squareup.wire.ProtoReader;
+import com.squareup.wire.ProtoWriter;
+import com.squareup.wire.WireField;
+import com.squareup.wire.internal.Internal;
+import java.io.IOException;
+import java.lang.Float;
+import java.lang.Long;
+import java.lang.Object;
+import java.lang.Override;
+import java.lang.String;
+import java.lang.StringBuilder;
+import java.util.List;
+import okio.ByteString;
+
+/**
+ * A report of the combat at a star. Each round (one minute of combat) is stored compactly, as a
+ * list of attacks: fleet attacker_fleet_ids[i] attacked fleet target_fleet_ids[i] for damage[i].
+ * When fleets are grouped together in combat, the ID of the first fleet in the group is used.
+ */
+public final class CombatReport extends Message<CombatReport, CombatReport.Builder> {
+  public static final ProtoAdapter<CombatReport> ADAPTER = new ProtoAdapter_CombatReport();
+
+  private static final long serialVersionUID = 0L;
+
+  @WireField(
+      tag = 1,
+      adapter = "au.com.codeka.warworlds.common.proto.CombatReport$Round#ADAPTER",
+      label = WireField.Label.REPEATED
+  )
+  public final List<Round> rounds;
+
+  public CombatReport(List<Round> rounds) {
+    this(rounds, ByteString.EMPTY);
+  }
+
+  public CombatReport(List<Round> rounds, ByteString unknownFields) {
+    super(ADAPTER, unknownFields);
+    this.rounds = Internal.immutableCopyOf("rounds", rounds);
+  }
+
+  @Override
+  public Builder newBuilder() {
+    Builder builder = new Builder();
+    builder.rounds = Internal.copyOf("rounds", rounds);
+    builder.addUnknownFields(unknownFields());
+    return builder;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == this) return true;
+    if (!(other instanceof CombatReport)) return false;
+    CombatReport o = (CombatReport) other;
+    return Internal.equals(unknownFields(), o.unknownFields())
+        && Internal.equals(rounds, o.rounds);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = super.hashCode;
+    if (result == 0) {
+      result = unknownFields().hashCode();
+      result = result * 37 + (rounds != null ? rounds.hashCode() : 1);
+      super.hashCode = result;
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    if (rounds != null) builder.append(", rounds=").append(rounds);
+    return builder.replace(0, 2, "CombatReport{").append('}').toString();
+  }
+
+  public static final class Builder extends Message.Builder<CombatReport, Builder> {
+    public List<Round> rounds;
+
+    public Builder() {
+      rounds = Internal.newMutableList();
+    }
+
+    public Builder rounds(List<Round> rounds) {
+      Internal.checkElementsNotNull(rounds);
+      this.rounds = rounds;
+      return this;
+    }
+
+    @Override
+    public CombatReport build() {
+      return new CombatReport(rounds, buildUnknownFields());
+    }
+  }
+
+  public static final class Round extends Message<Round, Round.Builder> {
+    public static final ProtoAdapter<Round> ADAPTER = new ProtoAdapter_Round();
+
+    private static final long serialVersionUID = 0L;
+
+    public static final Long DEFAULT_ROUND_TIME = 0L;
+
+    @WireField(
+        tag = 1,
+        adapter = "com.squareup.wire.ProtoAdapter#INT64"
+    )
+    public final Long round_time;
+
+    @WireField(
+        tag = 2,
+        adapter = "com.squareup.wire.ProtoAdapter#INT64",
+        label = WireField.Label.PACKED
+    )
+    public final List<Long> attacker_fleet_ids;
+
+    @WireField(
+        tag = 3,
+        adapter = "com.squareup.wire.ProtoAdapter#INT64",
+        label = WireField.Label.PACKED
+    )
+    public final List<Long> target_fleet_ids;
+
+    @WireField(
+        tag = 4,
+        adapter = "com.squareup.wire.ProtoAdapter#FLOAT",
+        label = WireField.Label.PACKED
+    )
+    public final List<Float> damage;
+
+    public Round(Long round_time, List<Long> attacker_fleet_ids, List<Long> target_fleet_ids, List<Float> damage) {
+      this(round_time, attacker_fleet_ids, target_fleet_ids, damage, ByteString.EMPTY);
+    }
+
+    public Round(Long round_time, List<Long> attacker_fleet_ids, List<Long> target_fleet_ids, List<Float> damage, ByteString unknownFields) {
+      super(ADAPTER, unknownFields);
+      this.round_time = round_time;
+      this.attacker_fleet_ids = Internal.immutableCopyOf("attacker_fleet_ids", attacker_fleet_ids);
+      this.target_fleet_ids = Internal.immutableCopyOf("target_fleet_ids", target_fleet_ids);
+      this.damage = Internal.immutableCopyOf("damage", damage);
+    }
+
+    @Override
+    public Builder newBuilder() {
+      Builder builder = new Builder();
+      builder.round_time = round_time;
+      builder.attacker_fleet_ids = Internal.copyOf("attacker_fleet_ids", attacker_fleet_ids);
+      builder.target_fleet_ids = Internal.copyOf("target_fleet_ids", target_fleet_ids);
+      builder.damage = Internal.copyOf("damage", damage);
+      builder.addUnknownFields(unknownFields());
+      return builder;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other == this) return true;
+      if (!(other instanceof Round)) return false;
+      Round o = (Round) other;
+      return Internal.equals(unknownFields(), o.unknownFields())
+          && Internal.equals(round_time, o.round_time)
+          && Internal.equals(attacker_fleet_ids, o.attacker_fleet_ids)
+          && Internal.equals(target_fleet_ids, o.target_fleet_ids)
+          && Internal.equals(damage, o.damage);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = super.hashCode;
+      if (result == 0) {
+        result = unknownFields().hashCode();
+        result = result * 37 + (round_time != null ? round_time.hashCode() : 0);
+        result = result * 37 + (attacker_fleet_ids != null ? attacker_fleet_ids.hashCode() : 1);
+        result = result * 37 + (target_fleet_ids != null ? target_fleet_ids.hashCode() : 1);
+        result = result * 37 + (damage != null ? damage.hashCode() : 1);
+        super.hashCode = result;
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder();
+      if (round_time != null) builder.append(", round_time=").append(round_time);
+      if (attacker_fleet_ids != null) builder.append(", attacker_fleet_ids=").append(attacker_fleet_ids);
+      if (target_fleet_ids != null) builder.append(", target_fleet_ids=").append(target_fleet_ids);
+      if (damage != null) builder.append(", damage=").append(damage);
+      return builder.replace(0, 2, "Round{").append('}').toString();
+    }
+
+    public static final class Builder extends Message.Builder<Round, Builder> {
+      public Long round_time;
+
+      public List<Long> attacker_fleet_ids;
+
+      public List<Long> target_fleet_ids;
+
+      public List<Float> damage;
+
+      public Builder() {
+        attacker_fleet_ids = Internal.newMutableList();
+        target_fleet_ids = Internal.newMutableList();
+        damage = Internal.newMutableList();
+      }
+
+      public Builder round_time(Long round_time) {
+        this.round_time = round_time;
+        return this;
+      }
+
+      public Builder attacker_fleet_ids(List<Long> attacker_fleet_ids) {
+        Internal.checkElementsNotNull(attacker_fleet_ids);
+        this.attacker_fleet_ids = attacker_fleet_ids;
+        return this;
+      }
+
+      public Builder target_fleet_ids(List<Long> target_fleet_ids) {
+        Internal.checkElementsNotNull(target_fleet_ids);
+        this.target_fleet_ids = target_fleet_ids;
+        return this;
+      }
+
+      public Builder damage(List<Float> damage) {
+        Internal.checkElementsNotNull(damage);
+        this.damage = damage;
+        return this;
+      }
+
+      @Override
+      public Round build() {
+        return new Round(round_time, attacker_fleet_ids, target_fleet_ids, damage, buildUnknownFields());
+      }
+    }
+
+    private static final class ProtoAdapter_Round extends ProtoAdapter<Round> {
+      ProtoAdapter_Round() {
+        super(FieldEncoding.LENGTH_DELIMITED, Round.class);
+      }
+
+      @Override
+      public int encodedSize(Round value) {
+        return (value.round_time != null ? ProtoAdapter.INT64.encodedSizeWithTag(1, value.round_time) : 0)
+            + ProtoAdapter.INT64.asPacked().encodedSizeWithTag(2, value.attacker_fleet_ids)
+            + ProtoAdapter.INT64.asPacked().encodedSizeWithTag(3, value.target_fleet_ids)
+            + ProtoAdapter.FLOAT.asPacked().encodedSizeWithTag(4, value.damage)
+            + value.unknownFields().size();
+      }
+
+      @Override
+      public void encode(ProtoWriter writer, Round value) throws IOException {
+        if (value.round_time != null) ProtoAdapter.INT64.encodeWithTag(writer, 1, value.round_time);
+        if (value.attacker_fleet_ids != null) ProtoAdapter.INT64.asPacked().encodeWithTag(writer, 2, value.attacker_fleet_ids);
+        if (value.target_fleet_ids != null) ProtoAdapter.INT64.asPacked().encodeWithTag(writer, 3, value.target_fleet_ids);
+        if (value.damage != null) ProtoAdapter.FLOAT.asPacked().encodeWithTag(writer, 4, value.damage);
+        writer.writeBytes(value.unknownFields());
+      }
+
+      @Override
+      public Round decode(ProtoReader reader) throws IOException {
+        Builder builder = new Builder();
+        long token = reader.beginMessage();
+        for (int tag; (tag = reader.nextTag()) != -1;) {
+          switch (tag) {
+            case 1: builder.round_time(ProtoAdapter.INT64.decode(reader)); break;
+            case 2: builder.attacker_fleet_ids.add(ProtoAdapter.INT64.decode(reader)); break;
+            case 3: builder.target_fleet_ids.add(ProtoAdapter.INT64.decode(reader)); break;
+            case 4: builder.damage.add(ProtoAdapter.FLOAT.decode(reader)); break;
+            default: {
+              FieldEncoding fieldEncoding = reader.peekFieldEncoding();
+              Object value = fieldEncoding.rawProtoAdapter().decode(reader);
+              builder.addUnknownField(tag, fieldEncoding, value);
+            }
+          }
+        }
+        reader.endMessage(token);
+        return builder.build();
+      }
+
+      @Override
+      public Round redact(Round value) {
+        Builder builder = value.newBuilder();
+        builder.clearUnknownFields();
+        return builder.build();
+      }
+    }
+  }
+
+  private static final class ProtoAdapter_CombatReport extends ProtoAdapter<CombatReport> {
+    ProtoAdapter_CombatReport() {
+      super(FieldEncoding.LENGTH_DELIMITED, CombatReport.class);
+    }
+
+    @Override
+    public int encodedSize(CombatReport value) {
+      return Round.ADAPTER.asRepeated().encodedSizeWithTag(1, value.rounds)
+          + value.unknownFields().size();
+    }
+
+    @Override
+    public void encode(ProtoWriter writer, CombatReport value) throws IOException {
+      if (value.rounds != null) Round.ADAPTER.asRepeated().encodeWithTag(writer, 1, value.rounds);
+      writer.writeBytes(value.unknownFields());
+    }
+
+    @Override
+    public CombatReport decode(ProtoReader reader) throws IOException {
+      Builder builder = new Builder();
+      long token = reader.beginMessage();
+      for (int tag; (tag = reader.nextTag()) != -1;) {
+        switch (tag) {
+          case 1: builder.rounds.add(Round.ADAPTER.decode(reader)); break;
+          default: {
+            FieldEncoding fieldEncoding = reader.peekFieldEncoding();
+            Object value = fieldEncoding.rawProtoAdapter().decode(reader);
+            builder.addUnknownField(tag, fieldEncoding, value);
+          }
+        }
+      }
+      reader.endMessage(token);
+      return builder.build();
+    }
+
+    @Override
+    public CombatReport redact(CombatReport value) {
+      Builder builder = value.newBuilder();
+      Internal.redactElements(builder.rounds, Round.ADAPTER);
+      builder.clearUnknownFields();
+      return builder.build();
+    }
+  }
+}
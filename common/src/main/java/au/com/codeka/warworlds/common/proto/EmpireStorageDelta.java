@@ -0,0 +1,203 @@
+// Code generated by Wire protocol buffer compiler, do not edit.
+// Source file: star.proto at 161:1
+package au.com.codeka.warworlds.common.proto;
+
+import com.squareup.wire.FieldEncoding;
+import com.squareup.wire.Message;
+import com.squareup.wire.ProtoAdapter;
+import com.squareup.wire.ProtoReader;
+import com.squareup.wire.ProtoWriter;
+import com.squareup.wire.WireField;
+import com.squareup.wire.internal.Internal;
+import java.io.IOException;
+import java.lang.Integer;
+import java.lang.Long;
+import java.lang.Object;
+import java.lang.Override;
+import java.lang.String;
+import java.lang.StringBuilder;
+import java.util.List;
+import okio.ByteString;
+
+/**
+ * The changes to a single empire store in a StarDelta.
+ */
+public final class EmpireStorageDelta extends Message<EmpireStorageDelta, EmpireStorageDelta.Builder> {
+  public static final ProtoAdapter<EmpireStorageDelta> ADAPTER = new ProtoAdapter_EmpireStorageDelta();
+
+  private static final long serialVersionUID = 0L;
+
+  public static final Long DEFAULT_EMPIRE_ID = 0L;
+
+  /**
+   * The empire_id of the store that's changed (0 for the natives' store).
+   */
+  @WireField(
+      tag = 1,
+      adapter = "com.squareup.wire.ProtoAdapter#INT64"
+  )
+  public final Long empire_id;
+
+  /**
+   * The store's fields that have changed, and the ones that have been cleared. If the star didn't
+   * have a store for this empire before, this is the whole of the new store, which goes on the end
+   * of the star's empire_stores.
+   */
+  @WireField(
+      tag = 2,
+      adapter = "au.com.codeka.warworlds.common.proto.EmpireStorage#ADAPTER"
+  )
+  public final EmpireStorage fields;
+
+  @WireField(
+      tag = 3,
+      adapter = "com.squareup.wire.ProtoAdapter#INT32",
+      label = WireField.Label.PACKED
+  )
+  public final List<Integer> cleared_fields;
+
+  public EmpireStorageDelta(Long empire_id, EmpireStorage fields, List<Integer> cleared_fields) {
+    this(empire_id, fields, cleared_fields, ByteString.EMPTY);
+  }
+
+  public EmpireStorageDelta(Long empire_id, EmpireStorage fields, List<Integer> cleared_fields, ByteString unknownFields) {
+    super(ADAPTER, unknownFields);
+    this.empire_id = empire_id;
+    this.fields = fields;
+    this.cleared_fields = Internal.immutableCopyOf("cleared_fields", cleared_fields);
+  }
+
+  @Override
+  public Builder newBuilder() {
+    Builder builder = new Builder();
+    builder.empire_id = empire_id;
+    builder.fields = fields;
+    builder.cleared_fields = Internal.copyOf("cleared_fields", cleared_fields);
+    builder.addUnknownFields(unknownFields());
+    return builder;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == this) return true;
+    if (!(other instanceof EmpireStorageDelta)) return false;
+    EmpireStorageDelta o = (EmpireStorageDelta) other;
+    return Internal.equals(unknownFields(), o.unknownFields())
+        && Internal.equals(empire_id, o.empire_id)
+        && Internal.equals(fields, o.fields)
+        && Internal.equals(cleared_fields, o.cleared_fields);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = super.hashCode;
+    if (result == 0) {
+      result = unknownFields().hashCode();
+      result = result * 37 + (empire_id != null ? empire_id.hashCode() : 0);
+      result = result * 37 + (fields != null ? fields.hashCode() : 0);
+      result = result * 37 + (cleared_fields != null ? cleared_fields.hashCode() : 1);
+      super.hashCode = result;
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    if (empire_id != null) builder.append(", empire_id=").append(empire_id);
+    if (fields != null) builder.append(", fields=").append(fields);
+    if (cleared_fields != null) builder.append(", cleared_fields=").append(cleared_fields);
+    return builder.replace(0, 2, "EmpireStorageDelta{").append('}').toString();
+  }
+
+  public static final class Builder extends Message.Builder<EmpireStorageDelta, Builder> {
+    public Long empire_id;
+
+    public EmpireStorage fields;
+
+    public List<Integer> cleared_fields;
+
+    public Builder() {
+      cleared_fields = Internal.newMutableList();
+    }
+
+    /**
+     * The empire_id of the store that's changed (0 for the natives' store).
+     */
+    public Builder empire_id(Long empire_id) {
+      this.empire_id = empire_id;
+      return this;
+    }
+
+    /**
+     * The store's fields that have changed, and the ones that have been cleared. If the star didn't
+     * have a store for this empire before, this is the whole of the new store, which goes on the end
+     * of the star's empire_stores.
+     */
+    public Builder fields(EmpireStorage fields) {
+      this.fields = fields;
+      return this;
+    }
+
+    public Builder cleared_fields(List<Integer> cleared_fields) {
+      Internal.checkElementsNotNull(cleared_fields);
+      this.cleared_fields = cleared_fields;
+      return this;
+    }
+
+    @Override
+    public EmpireStorageDelta build() {
+      return new EmpireStorageDelta(empire_id, fields, cleared_fields, buildUnknownFields());
+    }
+  }
+
+  private static final class ProtoAdapter_EmpireStorageDelta extends ProtoAdapter<EmpireStorageDelta> {
+    ProtoAdapter_EmpireStorageDelta() {
+      super(FieldEncoding.LENGTH_DELIMITED, EmpireStorageDelta.class);
+    }
+
+    @Override
+    public int encodedSize(EmpireStorageDelta value) {
+      return (value.empire_id != null ? ProtoAdapter.INT64.encodedSizeWithTag(1, value.empire_id) : 0)
+          + (value.fields != null ? EmpireStorage.ADAPTER.encodedSizeWithTag(2, value.fields) : 0)
+          + ProtoAdapter.INT32.asPacked().encodedSizeWithTag(3, value.cleared_fields)
+          + value.unknownFields().size();
+    }
+
+    @Override
+    public void encode(ProtoWriter writer, EmpireStorageDelta value) throws IOException {
+      if (value.empire_id != null) ProtoAdapter.INT64.encodeWithTag(writer, 1, value.empire_id);
+      if (value.fields != null) EmpireStorage.ADAPTER.encodeWithTag(writer, 2, value.fields);
+      if (value.cleared_fields != null) ProtoAdapter.INT32.asPacked().encodeWithTag(writer, 3, value.cleared_fields);
+      writer.writeBytes(value.unknownFields());
+    }
+
+    @Override
+    public EmpireStorageDelta decode(ProtoReader reader) throws IOException {
+      Builder builder = new Builder();
+      long token = reader.beginMessage();
+      for (int tag; (tag = reader.nextTag()) != -1;) {
+        switch (tag) {
+          case 1: builder.empire_id(ProtoAdapter.INT64.decode(reader)); break;
+          case 2: builder.fields(EmpireStorage.ADAPTER.decode(reader)); break;
+          case 3: builder.cleared_fields.add(ProtoAdapter.INT32.decode(reader)); break;
+          default: {
+            FieldEncoding fieldEncoding = reader.peekFieldEncoding();
+            Object value = fieldEncoding.rawProtoAdapter().decode(reader);
+            builder.addUnknownField(tag, fieldEncoding, value);
+          }
+        }
+      }
+      reader.endMessage(token);
+      return builder.build();
+    }
+
+    @Override
+    public EmpireStorageDelta redact(EmpireStorageDelta value) {
+      Builder builder = value.newBuilder();
+      if (builder.fields != null) builder.fields = EmpireStorage.ADAPTER.redact(builder.fields);
+      builder.clearUnknownFields();
+      return builder.build();
+    }
+  }
+}
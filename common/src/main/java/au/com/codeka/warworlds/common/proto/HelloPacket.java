@@ -1,5 +1,5 @@
 // Code generated by Wire protocol buffer compiler, do not edit.
-// Source file: packets.proto at 16:1
+// Source file: packets.proto at 17:1
 package au.com.codeka.warworlds.common.proto;
 
 import com.squareup.wire.FieldEncoding;
@@ -10,6 +10,8 @@ import com.squareup.wire.ProtoWriter;
 import com.squareup.wire.WireField;
 import com.squareup.wire.internal.Internal;
 import java.io.IOException;
+import java.lang.Boolean;
+import java.lang.Integer;
 import java.lang.Long;
 import java.lang.Object;
 import java.lang.Override;
@@ -27,6 +29,10 @@ public final class HelloPacket extends Message<HelloPacket, HelloPacket.Builder>
 
   public static final Long DEFAULT_EMPIRE_ID = 0L;
 
+  public static final Integer DEFAULT_ACCEPTED_PACKET_FLAGS = 0;
+
+  public static final Boolean DEFAULT_ACCEPTS_STAR_DELTAS = false;
+
   /**
    * The ID of the empire you're connecting as. You should already know this from the response to
    * the login request.
@@ -37,19 +43,43 @@ public final class HelloPacket extends Message<HelloPacket, HelloPacket.Builder>
   )
   public final Long empire_id;
 
-  public HelloPacket(Long empire_id) {
-    this(empire_id, ByteString.EMPTY);
+  /**
+   * The PacketFlags that the client knows how to decode. We won't send the client packets with any
+   * other flags. If this isn't set (e.g. by an older client), we'll only use COMPRESSED.
+   */
+  @WireField(
+      tag = 2,
+      adapter = "com.squareup.wire.ProtoAdapter#INT32"
+  )
+  public final Integer accepted_packet_flags;
+
+  /**
+   * If true, the client can apply StarDeltas, so we'll send those instead of whole stars where we
+   * can. Otherwise, we only send whole stars.
+   */
+  @WireField(
+      tag = 3,
+      adapter = "com.squareup.wire.ProtoAdapter#BOOL"
+  )
+  public final Boolean accepts_star_deltas;
+
+  public HelloPacket(Long empire_id, Integer accepted_packet_flags, Boolean accepts_star_deltas) {
+    this(empire_id, accepted_packet_flags, accepts_star_deltas, ByteString.EMPTY);
   }
 
-  public HelloPacket(Long empire_id, ByteString unknownFields) {
+  public HelloPacket(Long empire_id, Integer accepted_packet_flags, Boolean accepts_star_deltas, ByteString unknownFields) {
     super(ADAPTER, unknownFields);
     this.empire_id = empire_id;
+    this.accepted_packet_flags = accepted_packet_flags;
+    this.accepts_star_deltas = accepts_star_deltas;
   }
 
   @Override
   public Builder newBuilder() {
     Builder builder = new Builder();
     builder.empire_id = empire_id;
+    builder.accepted_packet_flags = accepted_packet_flags;
+    builder.accepts_star_deltas = accepts_star_deltas;
     builder.addUnknownFields(unknownFields());
     return builder;
   }
@@ -60,7 +90,9 @@ public final class HelloPacket extends Message<HelloPacket, HelloPacket.Builder>
     if (!(other instanceof HelloPacket)) return false;
     HelloPacket o = (HelloPacket) other;
     return Internal.equals(unknownFields(), o.unknownFields())
-        && Internal.equals(empire_id, o.empire_id);
+        && Internal.equals(empire_id, o.empire_id)
+        && Internal.equals(accepted_packet_flags, o.accepted_packet_flags)
+        && Internal.equals(accepts_star_deltas, o.accepts_star_deltas);
   }
 
   @Override
@@ -69,6 +101,8 @@ public final class HelloPacket extends Message<HelloPacket, HelloPacket.Builder>
     if (result == 0) {
       result = unknownFields().hashCode();
       result = result * 37 + (empire_id != null ? empire_id.hashCode() : 0);
+      result = result * 37 + (accepted_packet_flags != null ? accepted_packet_flags.hashCode() : 0);
+      result = result * 37 + (accepts_star_deltas != null ? accepts_star_deltas.hashCode() : 0);
       super.hashCode = result;
     }
     return result;
@@ -78,12 +112,18 @@ public final class HelloPacket extends Message<HelloPacket, HelloPacket.Builder>
   public String toString() {
     StringBuilder builder = new StringBuilder();
     if (empire_id != null) builder.append(", empire_id=").append(empire_id);
+    if (accepted_packet_flags != null) builder.append(", accepted_packet_flags=").append(accepted_packet_flags);
+    if (accepts_star_deltas != null) builder.append(", accepts_star_deltas=").append(accepts_star_deltas);
     return builder.replace(0, 2, "HelloPacket{").append('}').toString();
   }
 
   public static final class Builder extends Message.Builder<HelloPacket, Builder> {
     public Long empire_id;
 
+    public Integer accepted_packet_flags;
+
+    public Boolean accepts_star_deltas;
+
     public Builder() {
     }
 
@@ -96,9 +136,27 @@ public final class HelloPacket extends Message<HelloPacket, HelloPacket.Builder>
       return this;
     }
 
+    /**
+     * The PacketFlags that the client knows how to decode. We won't send the client packets with any
+     * other flags. If this isn't set (e.g. by an older client), we'll only use COMPRESSED.
+     */
+    public Builder accepted_packet_flags(Integer accepted_packet_flags) {
+      this.accepted_packet_flags = accepted_packet_flags;
+      return this;
+    }
+
+    /**
+     * If true, the client can apply StarDeltas, so we'll send those instead of whole stars where we
+     * can. Otherwise, we only send whole stars.
+     */
+    public Builder accepts_star_deltas(Boolean accepts_star_deltas) {
+      this.accepts_star_deltas = accepts_star_deltas;
+      return this;
+    }
+
     @Override
     public HelloPacket build() {
-      return new HelloPacket(empire_id, buildUnknownFields());
+      return new HelloPacket(empire_id, accepted_packet_flags, accepts_star_deltas, buildUnknownFields());
     }
   }
 
@@ -110,12 +168,16 @@ public final class HelloPacket extends Message<HelloPacket, HelloPacket.Builder>
     @Override
     public int encodedSize(HelloPacket value) {
       return (value.empire_id != null ? ProtoAdapter.INT64.encodedSizeWithTag(1, value.empire_id) : 0)
+          + (value.accepted_packet_flags != null ? ProtoAdapter.INT32.encodedSizeWithTag(2, value.accepted_packet_flags) : 0)
+          + (value.accepts_star_deltas != null ? ProtoAdapter.BOOL.encodedSizeWithTag(3, value.accepts_star_deltas) : 0)
           + value.unknownFields().size();
     }
 
     @Override
     public void encode(ProtoWriter writer, HelloPacket value) throws IOException {
       if (value.empire_id != null) ProtoAdapter.INT64.encodeWithTag(writer, 1, value.empire_id);
+      if (value.accepted_packet_flags != null) ProtoAdapter.INT32.encodeWithTag(writer, 2, value.accepted_packet_flags);
+      if (value.accepts_star_deltas != null) ProtoAdapter.BOOL.encodeWithTag(writer, 3, value.accepts_star_deltas);
       writer.writeBytes(value.unknownFields());
     }
 
@@ -126,6 +188,8 @@ public final class HelloPacket extends Message<HelloPacket, HelloPacket.Builder>
       for (int tag; (tag = reader.nextTag()) != -1;) {
         switch (tag) {
           case 1: builder.empire_id(ProtoAdapter.INT64.decode(reader)); break;
+          case 2: builder.accepted_packet_flags(ProtoAdapter.INT32.decode(reader)); break;
+          case 3: builder.accepts_star_deltas(ProtoAdapter.BOOL.decode(reader)); break;
           default: {
             FieldEncoding fieldEncoding = reader.peekFieldEncoding();
             Object value = fieldEncoding.rawProtoAdapter().decode(reader);
@@ -1,5 +1,5 @@
 // Code generated by Wire protocol buffer compiler, do not edit.
-// Source file: packets.proto at 40:1
+// Source file: packets.proto at 52:1
 package au.com.codeka.warworlds.common.proto;
 
 import com.squareup.wire.FieldEncoding;
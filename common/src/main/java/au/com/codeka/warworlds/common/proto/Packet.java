@@ -48,16 +48,23 @@ public final class Packet extends Message<Packet, Packet.Builder> {
   )
   public final ModifyStarPacket modify_star;
 
-  public Packet(HelloPacket hello, WatchSectorsPacket watch_sectors, StarUpdatedPacket star_updated, ModifyStarPacket modify_star) {
-    this(hello, watch_sectors, star_updated, modify_star, ByteString.EMPTY);
+  @WireField(
+      tag = 5,
+      adapter = "au.com.codeka.warworlds.common.proto.RequestStarsPacket#ADAPTER"
+  )
+  public final RequestStarsPacket request_stars;
+
+  public Packet(HelloPacket hello, WatchSectorsPacket watch_sectors, StarUpdatedPacket star_updated, ModifyStarPacket modify_star, RequestStarsPacket request_stars) {
+    this(hello, watch_sectors, star_updated, modify_star, request_stars, ByteString.EMPTY);
   }
 
-  public Packet(HelloPacket hello, WatchSectorsPacket watch_sectors, StarUpdatedPacket star_updated, ModifyStarPacket modify_star, ByteString unknownFields) {
+  public Packet(HelloPacket hello, WatchSectorsPacket watch_sectors, StarUpdatedPacket star_updated, ModifyStarPacket modify_star, RequestStarsPacket request_stars, ByteString unknownFields) {
     super(ADAPTER, unknownFields);
     this.hello = hello;
     this.watch_sectors = watch_sectors;
     this.star_updated = star_updated;
     this.modify_star = modify_star;
+    this.request_stars = request_stars;
   }
 
   @Override
@@ -67,6 +74,7 @@ public final class Packet extends Message<Packet, Packet.Builder> {
     builder.watch_sectors = watch_sectors;
     builder.star_updated = star_updated;
     builder.modify_star = modify_star;
+    builder.request_stars = request_stars;
     builder.addUnknownFields(unknownFields());
     return builder;
   }
@@ -80,7 +88,8 @@ public final class Packet extends Message<Packet, Packet.Builder> {
         && Internal.equals(hello, o.hello)
         && Internal.equals(watch_sectors, o.watch_sectors)
         && Internal.equals(star_updated, o.star_updated)
-        && Internal.equals(modify_star, o.modify_star);
+        && Internal.equals(modify_star, o.modify_star)
+        && Internal.equals(request_stars, o.request_stars);
   }
 
   @Override
@@ -92,6 +101,7 @@ public final class Packet extends Message<Packet, Packet.Builder> {
       result = result * 37 + (watch_sectors != null ? watch_sectors.hashCode() : 0);
       result = result * 37 + (star_updated != null ? star_updated.hashCode() : 0);
       result = result * 37 + (modify_star != null ? modify_star.hashCode() : 0);
+      result = result * 37 + (request_stars != null ? request_stars.hashCode() : 0);
       super.hashCode = result;
     }
     return result;
@@ -104,6 +114,7 @@ public final class Packet extends Message<Packet, Packet.Builder> {
     if (watch_sectors != null) builder.append(", watch_sectors=").append(watch_sectors);
     if (star_updated != null) builder.append(", star_updated=").append(star_updated);
     if (modify_star != null) builder.append(", modify_star=").append(modify_star);
+    if (request_stars != null) builder.append(", request_stars=").append(request_stars);
     return builder.replace(0, 2, "Packet{").append('}').toString();
   }
 
@@ -116,6 +127,8 @@ public final class Packet extends Message<Packet, Packet.Builder> {
 
     public ModifyStarPacket modify_star;
 
+    public RequestStarsPacket request_stars;
+
     public Builder() {
     }
 
@@ -139,9 +152,14 @@ public final class Packet extends Message<Packet, Packet.Builder> {
       return this;
     }
 
+    public Builder request_stars(RequestStarsPacket request_stars) {
+      this.request_stars = request_stars;
+      return this;
+    }
+
     @Override
     public Packet build() {
-      return new Packet(hello, watch_sectors, star_updated, modify_star, buildUnknownFields());
+      return new Packet(hello, watch_sectors, star_updated, modify_star, request_stars, buildUnknownFields());
     }
   }
 
@@ -156,6 +174,7 @@ public final class Packet extends Message<Packet, Packet.Builder> {
           + (value.watch_sectors != null ? WatchSectorsPacket.ADAPTER.encodedSizeWithTag(2, value.watch_sectors) : 0)
           + (value.star_updated != null ? StarUpdatedPacket.ADAPTER.encodedSizeWithTag(3, value.star_updated) : 0)
           + (value.modify_star != null ? ModifyStarPacket.ADAPTER.encodedSizeWithTag(4, value.modify_star) : 0)
+          + (value.request_stars != null ? RequestStarsPacket.ADAPTER.encodedSizeWithTag(5, value.request_stars) : 0)
           + value.unknownFields().size();
     }
 
@@ -165,6 +184,7 @@ public final class Packet extends Message<Packet, Packet.Builder> {
       if (value.watch_sectors != null) WatchSectorsPacket.ADAPTER.encodeWithTag(writer, 2, value.watch_sectors);
       if (value.star_updated != null) StarUpdatedPacket.ADAPTER.encodeWithTag(writer, 3, value.star_updated);
       if (value.modify_star != null) ModifyStarPacket.ADAPTER.encodeWithTag(writer, 4, value.modify_star);
+      if (value.request_stars != null) RequestStarsPacket.ADAPTER.encodeWithTag(writer, 5, value.request_stars);
       writer.writeBytes(value.unknownFields());
     }
 
@@ -178,6 +198,7 @@ public final class Packet extends Message<Packet, Packet.Builder> {
           case 2: builder.watch_sectors(WatchSectorsPacket.ADAPTER.decode(reader)); break;
           case 3: builder.star_updated(StarUpdatedPacket.ADAPTER.decode(reader)); break;
           case 4: builder.modify_star(ModifyStarPacket.ADAPTER.decode(reader)); break;
+          case 5: builder.request_stars(RequestStarsPacket.ADAPTER.decode(reader)); break;
           default: {
             FieldEncoding fieldEncoding = reader.peekFieldEncoding();
             Object value = fieldEncoding.rawProtoAdapter().decode(reader);
@@ -196,6 +217,7 @@ public final class Packet extends Message<Packet, Packet.Builder> {
       if (builder.watch_sectors != null) builder.watch_sectors = WatchSectorsPacket.ADAPTER.redact(builder.watch_sectors);
       if (builder.star_updated != null) builder.star_updated = StarUpdatedPacket.ADAPTER.redact(builder.star_updated);
       if (builder.modify_star != null) builder.modify_star = ModifyStarPacket.ADAPTER.redact(builder.modify_star);
+      if (builder.request_stars != null) builder.request_stars = RequestStarsPacket.ADAPTER.redact(builder.request_stars);
       builder.clearUnknownFields();
       return builder.build();
     }
@@ -1,5 +1,5 @@
 // Code generated by Wire protocol buffer compiler, do not edit.
-// Source file: star.proto at 108:1
+// Source file: star.proto at 174:1
 package au.com.codeka.warworlds.common.proto;
 
 import com.squareup.wire.FieldEncoding;
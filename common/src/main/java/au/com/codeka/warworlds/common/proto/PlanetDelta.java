@@ -0,0 +1,198 @@
+// Code generated by Wire protocol buffer compiler, do not edit.
+// Source file: star.proto at 151:1
+package au.com.codeka.warworlds.common.proto;
+
+import com.squareup.wire.FieldEncoding;
+import com.squareup.wire.Message;
+import com.squareup.wire.ProtoAdapter;
+import com.squareup.wire.ProtoReader;
+import com.squareup.wire.ProtoWriter;
+import com.squareup.wire.WireField;
+import com.squareup.wire.internal.Internal;
+import java.io.IOException;
+import java.lang.Integer;
+import java.lang.Object;
+import java.lang.Override;
+import java.lang.String;
+import java.lang.StringBuilder;
+import java.util.List;
+import okio.ByteString;
+
+/**
+ * The changes to a single planet in a StarDelta.
+ */
+public final class PlanetDelta extends Message<PlanetDelta, PlanetDelta.Builder> {
+  public static final ProtoAdapter<PlanetDelta> ADAPTER = new ProtoAdapter_PlanetDelta();
+
+  private static final long serialVersionUID = 0L;
+
+  public static final Integer DEFAULT_INDEX = 0;
+
+  /**
+   * The index of the planet that's changed.
+   */
+  @WireField(
+      tag = 1,
+      adapter = "com.squareup.wire.ProtoAdapter#INT32"
+  )
+  public final Integer index;
+
+  /**
+   * The planet's fields that have changed, and the ones that have been cleared.
+   */
+  @WireField(
+      tag = 2,
+      adapter = "au.com.codeka.warworlds.common.proto.Planet#ADAPTER"
+  )
+  public final Planet fields;
+
+  @WireField(
+      tag = 3,
+      adapter = "com.squareup.wire.ProtoAdapter#INT32",
+      label = WireField.Label.PACKED
+  )
+  public final List<Integer> cleared_fields;
+
+  public PlanetDelta(Integer index, Planet fields, List<Integer> cleared_fields) {
+    this(index, fields, cleared_fields, ByteString.EMPTY);
+  }
+
+  public PlanetDelta(Integer index, Planet fields, List<Integer> cleared_fields, ByteString unknownFields) {
+    super(ADAPTER, unknownFields);
+    this.index = index;
+    this.fields = fields;
+    this.cleared_fields = Internal.immutableCopyOf("cleared_fields", cleared_fields);
+  }
+
+  @Override
+  public Builder newBuilder() {
+    Builder builder = new Builder();
+    builder.index = index;
+    builder.fields = fields;
+    builder.cleared_fields = Internal.copyOf("cleared_fields", cleared_fields);
+    builder.addUnknownFields(unknownFields());
+    return builder;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == this) return true;
+    if (!(other instanceof PlanetDelta)) return false;
+    PlanetDelta o = (PlanetDelta) other;
+    return Internal.equals(unknownFields(), o.unknownFields())
+        && Internal.equals(index, o.index)
+        && Internal.equals(fields, o.fields)
+        && Internal.equals(cleared_fields, o.cleared_fields);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = super.hashCode;
+    if (result == 0) {
+      result = unknownFields().hashCode();
+      result = result * 37 + (index != null ? index.hashCode() : 0);
+      result = result * 37 + (fields != null ? fields.hashCode() : 0);
+      result = result * 37 + (cleared_fields != null ? cleared_fields.hashCode() : 1);
+      super.hashCode = result;
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    if (index != null) builder.append(", index=").append(index);
+    if (fields != null) builder.append(", fields=").append(fields);
+    if (cleared_fields != null) builder.append(", cleared_fields=").append(cleared_fields);
+    return builder.replace(0, 2, "PlanetDelta{").append('}').toString();
+  }
+
+  public static final class Builder extends Message.Builder<PlanetDelta, Builder> {
+    public Integer index;
+
+    public Planet fields;
+
+    public List<Integer> cleared_fields;
+
+    public Builder() {
+      cleared_fields = Internal.newMutableList();
+    }
+
+    /**
+     * The index of the planet that's changed.
+     */
+    public Builder index(Integer index) {
+      this.index = index;
+      return this;
+    }
+
+    /**
+     * The planet's fields that have changed, and the ones that have been cleared.
+     */
+    public Builder fields(Planet fields) {
+      this.fields = fields;
+      return this;
+    }
+
+    public Builder cleared_fields(List<Integer> cleared_fields) {
+      Internal.checkElementsNotNull(cleared_fields);
+      this.cleared_fields = cleared_fields;
+      return this;
+    }
+
+    @Override
+    public PlanetDelta build() {
+      return new PlanetDelta(index, fields, cleared_fields, buildUnknownFields());
+    }
+  }
+
+  private static final class ProtoAdapter_PlanetDelta extends ProtoAdapter<PlanetDelta> {
+    ProtoAdapter_PlanetDelta() {
+      super(FieldEncoding.LENGTH_DELIMITED, PlanetDelta.class);
+    }
+
+    @Override
+    public int encodedSize(PlanetDelta value) {
+      return (value.index != null ? ProtoAdapter.INT32.encodedSizeWithTag(1, value.index) : 0)
+          + (value.fields != null ? Planet.ADAPTER.encodedSizeWithTag(2, value.fields) : 0)
+          + ProtoAdapter.INT32.asPacked().encodedSizeWithTag(3, value.cleared_fields)
+          + value.unknownFields().size();
+    }
+
+    @Override
+    public void encode(ProtoWriter writer, PlanetDelta value) throws IOException {
+      if (value.index != null) ProtoAdapter.INT32.encodeWithTag(writer, 1, value.index);
+      if (value.fields != null) Planet.ADAPTER.encodeWithTag(writer, 2, value.fields);
+      if (value.cleared_fields != null) ProtoAdapter.INT32.asPacked().encodeWithTag(writer, 3, value.cleared_fields);
+      writer.writeBytes(value.unknownFields());
+    }
+
+    @Override
+    public PlanetDelta decode(ProtoReader reader) throws IOException {
+      Builder builder = new Builder();
+      long token = reader.beginMessage();
+      for (int tag; (tag = reader.nextTag()) != -1;) {
+        switch (tag) {
+          case 1: builder.index(ProtoAdapter.INT32.decode(reader)); break;
+          case 2: builder.fields(Planet.ADAPTER.decode(reader)); break;
+          case 3: builder.cleared_fields.add(ProtoAdapter.INT32.decode(reader)); break;
+          default: {
+            FieldEncoding fieldEncoding = reader.peekFieldEncoding();
+            Object value = fieldEncoding.rawProtoAdapter().decode(reader);
+            builder.addUnknownField(tag, fieldEncoding, value);
+          }
+        }
+      }
+      reader.endMessage(token);
+      return builder.build();
+    }
+
+    @Override
+    public PlanetDelta redact(PlanetDelta value) {
+      Builder builder = value.newBuilder();
+      if (builder.fields != null) builder.fields = Planet.ADAPTER.redact(builder.fields);
+      builder.clearUnknownFields();
+      return builder.build();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+// Code generated by Wire protocol buffer compiler, do not edit.
+// Source file: packets.proto at 60:1
+package au.com.codeka.warworlds.common.proto;
+
+import com.squareup.wire.FieldEncoding;
+import com.squareup.wire.Message;
+import com.squareup.wire.ProtoAdapter;
+import com.squareup.wire.ProtoReader;
+import com.squareup.wire.ProtoWriter;
+import com.squareup.wire.WireField;
+import com.squareup.wire.internal.Internal;
+import java.io.IOException;
+import java.lang.Long;
+import java.lang.Object;
+import java.lang.Override;
+import java.lang.String;
+import java.lang.StringBuilder;
+import java.util.List;
+import okio.ByteString;
+
+/**
+ * Sent from the client when it wants the whole of some stars, usually because it got a StarDelta
+ * for a version of the star that it doesn't have. The server will send the stars in a
+ * StarUpdatedPacket, as long as you're watching them.
+ */
+public final class RequestStarsPacket extends Message<RequestStarsPacket, RequestStarsPacket.Builder> {
+  public static final ProtoAdapter<RequestStarsPacket> ADAPTER = new ProtoAdapter_RequestStarsPacket();
+
+  private static final long serialVersionUID = 0L;
+
+  @WireField(
+      tag = 1,
+      adapter = "com.squareup.wire.ProtoAdapter#INT64",
+      label = WireField.Label.PACKED
+  )
+  public final List<Long> star_ids;
+
+  public RequestStarsPacket(List<Long> star_ids) {
+    this(star_ids, ByteString.EMPTY);
+  }
+
+  public RequestStarsPacket(List<Long> star_ids, ByteString unknownFields) {
+    super(ADAPTER, unknownFields);
+    this.star_ids = Internal.immutableCopyOf("star_ids", star_ids);
+  }
+
+  @Override
+  public Builder newBuilder() {
+    Builder builder = new Builder();
+    builder.star_ids = Internal.copyOf("star_ids", star_ids);
+    builder.addUnknownFields(unknownFields());
+    return builder;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == this) return true;
+    if (!(other instanceof RequestStarsPacket)) return false;
+    RequestStarsPacket o = (RequestStarsPacket) other;
+    return Internal.equals(unknownFields(), o.unknownFields())
+        && Internal.equals(star_ids, o.star_ids);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = super.hashCode;
+    if (result == 0) {
+      result = unknownFields().hashCode();
+      result = result * 37 + (star_ids != null ? star_ids.hashCode() : 1);
+      super.hashCode = result;
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    if (star_ids != null) builder.append(", star_ids=").append(star_ids);
+    return builder.replace(0, 2, "RequestStarsPacket{").append('}').toString();
+  }
+
+  public static final class Builder extends Message.Builder<RequestStarsPacket, Builder> {
+    public List<Long> star_ids;
+
+    public Builder() {
+      star_ids = Internal.newMutableList();
+    }
+
+    public Builder star_ids(List<Long> star_ids) {
+      Internal.checkElementsNotNull(star_ids);
+      this.star_ids = star_ids;
+      return this;
+    }
+
+    @Override
+    public RequestStarsPacket build() {
+      return new RequestStarsPacket(star_ids, buildUnknownFields());
+    }
+  }
+
+  private static final class ProtoAdapter_RequestStarsPacket extends ProtoAdapter<RequestStarsPacket> {
+    ProtoAdapter_RequestStarsPacket() {
+      super(FieldEncoding.LENGTH_DELIMITED, RequestStarsPacket.class);
+    }
+
+    @Override
+    public int encodedSize(RequestStarsPacket value) {
+      return ProtoAdapter.INT64.asPacked().encodedSizeWithTag(1, value.star_ids)
+          + value.unknownFields().size();
+    }
+
+    @Override
+    public void encode(ProtoWriter writer, RequestStarsPacket value) throws IOException {
+      if (value.star_ids != null) ProtoAdapter.INT64.asPacked().encodeWithTag(writer, 1, value.star_ids);
+      writer.writeBytes(value.unknownFields());
+    }
+
+    @Override
+    public RequestStarsPacket decode(ProtoReader reader) throws IOException {
+      Builder builder = new Builder();
+      long token = reader.beginMessage();
+      for (int tag; (tag = reader.nextTag()) != -1;) {
+        switch (tag) {
+          case 1: builder.star_ids.add(ProtoAdapter.INT64.decode(reader)); break;
+          default: {
+            FieldEncoding fieldEncoding = reader.peekFieldEncoding();
+            Object value = fieldEncoding.rawProtoAdapter().decode(reader);
+            builder.addUnknownField(tag, fieldEncoding, value);
+          }
+        }
+      }
+      reader.endMessage(token);
+      return builder.build();
+    }
+
+    @Override
+    public RequestStarsPacket redact(RequestStarsPacket value) {
+      Builder builder = value.newBuilder();
+      builder.clearUnknownFields();
+      return builder.build();
+    }
+  }
+}
@@ -52,6 +52,8 @@ public final class Star extends Message<Star, Star.Builder> {
 
   public static final Long DEFAULT_NEXT_SIMULATION = 0L;
 
+  public static final Long DEFAULT_VERSION = 0L;
+
   /**
    * the identifier of the star, unique throughout the universe.
    */
@@ -184,11 +186,31 @@ public final class Star extends Message<Star, Star.Builder> {
   )
   public final Wormhole wormhole;
 
-  public Star(Long id, Long sector_x, Long sector_y, String name, CLASSIFICATION classification, Integer size, Integer offset_x, Integer offset_y, List<Planet> planets, List<EmpireStorage> empire_stores, List<Fleet> fleets, Long time_emptied, Long last_simulation, Long next_simulation, Wormhole wormhole) {
-    this(id, sector_x, sector_y, name, classification, size, offset_x, offset_y, planets, empire_stores, fleets, time_emptied, last_simulation, next_simulation, wormhole, ByteString.EMPTY);
+  /**
+   * The combat that has happened at this star (and that we predict will happen), if any.
+   */
+  @WireField(
+      tag = 21,
+      adapter = "au.com.codeka.warworlds.common.proto.CombatReport#ADAPTER"
+  )
+  public final CombatReport combat_report;
+
+  /**
+   * Incremented by the server every time the star changes, so that we can send a StarDelta from
+   * one version to another instead of the whole star. Not set on stars that haven't changed since
+   * we started versioning them.
+   */
+  @WireField(
+      tag = 22,
+      adapter = "com.squareup.wire.ProtoAdapter#INT64"
+  )
+  public final Long version;
+
+  public Star(Long id, Long sector_x, Long sector_y, String name, CLASSIFICATION classification, Integer size, Integer offset_x, Integer offset_y, List<Planet> planets, List<EmpireStorage> empire_stores, List<Fleet> fleets, Long time_emptied, Long last_simulation, Long next_simulation, Wormhole wormhole, CombatReport combat_report, Long version) {
+    this(id, sector_x, sector_y, name, classification, size, offset_x, offset_y, planets, empire_stores, fleets, time_emptied, last_simulation, next_simulation, wormhole, combat_report, version, ByteString.EMPTY);
   }
 
-  public Star(Long id, Long sector_x, Long sector_y, String name, CLASSIFICATION classification, Integer size, Integer offset_x, Integer offset_y, List<Planet> planets, List<EmpireStorage> empire_stores, List<Fleet> fleets, Long time_emptied, Long last_simulation, Long next_simulation, Wormhole wormhole, ByteString unknownFields) {
+  public Star(Long id, Long sector_x, Long sector_y, String name, CLASSIFICATION classification, Integer size, Integer offset_x, Integer offset_y, List<Planet> planets, List<EmpireStorage> empire_stores, List<Fleet> fleets, Long time_emptied, Long last_simulation, Long next_simulation, Wormhole wormhole, CombatReport combat_report, Long version, ByteString unknownFields) {
     super(ADAPTER, unknownFields);
     this.id = id;
     this.sector_x = sector_x;
@@ -205,6 +227,8 @@ public final class Star extends Message<Star, Star.Builder> {
     this.last_simulation = last_simulation;
     this.next_simulation = next_simulation;
     this.wormhole = wormhole;
+    this.combat_report = combat_report;
+    this.version = version;
   }
 
   @Override
@@ -225,6 +249,8 @@ public final class Star extends Message<Star, Star.Builder> {
     builder.last_simulation = last_simulation;
     builder.next_simulation = next_simulation;
     builder.wormhole = wormhole;
+    builder.combat_report = combat_report;
+    builder.version = version;
     builder.addUnknownFields(unknownFields());
     return builder;
   }
@@ -249,7 +275,9 @@ public final class Star extends Message<Star, Star.Builder> {
         && Internal.equals(time_emptied, o.time_emptied)
         && Internal.equals(last_simulation, o.last_simulation)
         && Internal.equals(next_simulation, o.next_simulation)
-        && Internal.equals(wormhole, o.wormhole);
+        && Internal.equals(wormhole, o.wormhole)
+        && Internal.equals(combat_report, o.combat_report)
+        && Internal.equals(version, o.version);
   }
 
   @Override
@@ -272,6 +300,8 @@ public final class Star extends Message<Star, Star.Builder> {
       result = result * 37 + (last_simulation != null ? last_simulation.hashCode() : 0);
       result = result * 37 + (next_simulation != null ? next_simulation.hashCode() : 0);
       result = result * 37 + (wormhole != null ? wormhole.hashCode() : 0);
+      result = result * 37 + (combat_report != null ? combat_report.hashCode() : 0);
+      result = result * 37 + (version != null ? version.hashCode() : 0);
       super.hashCode = result;
     }
     return result;
@@ -295,6 +325,8 @@ public final class Star extends Message<Star, Star.Builder> {
     if (last_simulation != null) builder.append(", last_simulation=").append(last_simulation);
     if (next_simulation != null) builder.append(", next_simulation=").append(next_simulation);
     if (wormhole != null) builder.append(", wormhole=").append(wormhole);
+    if (combat_report != null) builder.append(", combat_report=").append(combat_report);
+    if (version != null) builder.append(", version=").append(version);
     return builder.replace(0, 2, "Star{").append('}').toString();
   }
 
@@ -329,6 +361,10 @@ public final class Star extends Message<Star, Star.Builder> {
 
     public Wormhole wormhole;
 
+    public CombatReport combat_report;
+
+    public Long version;
+
     public Builder() {
       planets = Internal.newMutableList();
       empire_stores = Internal.newMutableList();
@@ -452,9 +488,27 @@ public final class Star extends Message<Star, Star.Builder> {
       return this;
     }
 
+    /**
+     * The combat that has happened at this star (and that we predict will happen), if any.
+     */
+    public Builder combat_report(CombatReport combat_report) {
+      this.combat_report = combat_report;
+      return this;
+    }
+
+    /**
+     * Incremented by the server every time the star changes, so that we can send a StarDelta from
+     * one version to another instead of the whole star. Not set on stars that haven't changed since
+     * we started versioning them.
+     */
+    public Builder version(Long version) {
+      this.version = version;
+      return this;
+    }
+
     @Override
     public Star build() {
-      return new Star(id, sector_x, sector_y, name, classification, size, offset_x, offset_y, planets, empire_stores, fleets, time_emptied, last_simulation, next_simulation, wormhole, buildUnknownFields());
+      return new Star(id, sector_x, sector_y, name, classification, size, offset_x, offset_y, planets, empire_stores, fleets, time_emptied, last_simulation, next_simulation, wormhole, combat_report, version, buildUnknownFields());
     }
   }
 
@@ -726,6 +780,8 @@ public final class Star extends Message<Star, Star.Builder> {
           + (value.last_simulation != null ? ProtoAdapter.INT64.encodedSizeWithTag(18, value.last_simulation) : 0)
           + (value.next_simulation != null ? ProtoAdapter.INT64.encodedSizeWithTag(19, value.next_simulation) : 0)
           + (value.wormhole != null ? Wormhole.ADAPTER.encodedSizeWithTag(20, value.wormhole) : 0)
+          + (value.combat_report != null ? CombatReport.ADAPTER.encodedSizeWithTag(21, value.combat_report) : 0)
+          + (value.version != null ? ProtoAdapter.INT64.encodedSizeWithTag(22, value.version) : 0)
           + value.unknownFields().size();
     }
 
@@ -746,6 +802,8 @@ public final class Star extends Message<Star, Star.Builder> {
       if (value.last_simulation != null) ProtoAdapter.INT64.encodeWithTag(writer, 18, value.last_simulation);
       if (value.next_simulation != null) ProtoAdapter.INT64.encodeWithTag(writer, 19, value.next_simulation);
       if (value.wormhole != null) Wormhole.ADAPTER.encodeWithTag(writer, 20, value.wormhole);
+      if (value.combat_report != null) CombatReport.ADAPTER.encodeWithTag(writer, 21, value.combat_report);
+      if (value.version != null) ProtoAdapter.INT64.encodeWithTag(writer, 22, value.version);
       writer.writeBytes(value.unknownFields());
     }
 
@@ -777,6 +835,8 @@ public final class Star extends Message<Star, Star.Builder> {
           case 18: builder.last_simulation(ProtoAdapter.INT64.decode(reader)); break;
           case 19: builder.next_simulation(ProtoAdapter.INT64.decode(reader)); break;
           case 20: builder.wormhole(Wormhole.ADAPTER.decode(reader)); break;
+          case 21: builder.combat_report(CombatReport.ADAPTER.decode(reader)); break;
+          case 22: builder.version(ProtoAdapter.INT64.decode(reader)); break;
           default: {
             FieldEncoding fieldEncoding = reader.peekFieldEncoding();
             Object value = fieldEncoding.rawProtoAdapter().decode(reader);
@@ -795,6 +855,7 @@ public final class Star extends Message<Star, Star.Builder> {
       Internal.redactElements(builder.empire_stores, EmpireStorage.ADAPTER);
       Internal.redactElements(builder.fleets, Fleet.ADAPTER);
       if (builder.wormhole != null) builder.wormhole = Wormhole.ADAPTER.redact(builder.wormhole);
+      if (builder.combat_report != null) builder.combat_report = CombatReport.ADAPTER.redact(builder.combat_report);
       builder.clearUnknownFields();
       return builder.build();
     }
@@ -0,0 +1,407 @@
+// Code generated by Wire protocol buffer compiler, do not edit.
+// Source file: star.proto at 121:1
+package au.com.codeka.warworlds.common.proto;
+
+import com.squareup.wire.FieldEncoding;
+import com.squareup.wire.Message;
+import com.squareup.wire.ProtoAdapter;
+import com.squareup.wire.ProtoReader;
+import com.squareup.wire.ProtoWriter;
+import com.squareup.wire.WireField;
+import com.squareup.wire.internal.Internal;
+import java.io.IOException;
+import java.lang.Integer;
+import java.lang.Long;
+import java.lang.Object;
+import java.lang.Override;
+import java.lang.String;
+import java.lang.StringBuilder;
+import java.util.List;
+import okio.ByteString;
+
+/**
+ * The changes that turn one version of a star into another, so that we don't have to send the
+ * whole star every time it changes. See StarDeltas for how they're made and applied.
+ *
+ * Changed fields are sent as "partial" messages, where only the fields that have changed are set.
+ * A partial message field is itself partial (it's merged into the old value), while a repeated
+ * field is replaced in its entirety. Fields which have been cleared (or emptied, for repeated
+ * fields) are listed separately, as the path of tags to the field, followed by a 0. For example, [21, 0] is the star's combat_report and
+ * [8, 10, 0] is a planet's colony's cooldown_end_time.
+ */
+public final class StarDelta extends Message<StarDelta, StarDelta.Builder> {
+  public static final ProtoAdapter<StarDelta> ADAPTER = new ProtoAdapter_StarDelta();
+
+  private static final long serialVersionUID = 0L;
+
+  public static final Long DEFAULT_STAR_ID = 0L;
+
+  public static final Long DEFAULT_BASE_VERSION = 0L;
+
+  public static final Long DEFAULT_VERSION = 0L;
+
+  @WireField(
+      tag = 1,
+      adapter = "com.squareup.wire.ProtoAdapter#INT64"
+  )
+  public final Long star_id;
+
+  /**
+   * The version of the star that this delta applies to. If you don't have that version, you'll
+   * need to ask for the whole star (see RequestStarsPacket).
+   */
+  @WireField(
+      tag = 2,
+      adapter = "com.squareup.wire.ProtoAdapter#INT64"
+  )
+  public final Long base_version;
+
+  /**
+   * The version of the star once this delta has been applied.
+   */
+  @WireField(
+      tag = 3,
+      adapter = "com.squareup.wire.ProtoAdapter#INT64"
+  )
+  public final Long version;
+
+  /**
+   * The star's fields that have changed, apart from planets, empire_stores and fleets (which are
+   * below), and the ones that have been cleared.
+   */
+  @WireField(
+      tag = 4,
+      adapter = "au.com.codeka.warworlds.common.proto.Star#ADAPTER"
+  )
+  public final Star fields;
+
+  @WireField(
+      tag = 5,
+      adapter = "com.squareup.wire.ProtoAdapter#INT32",
+      label = WireField.Label.PACKED
+  )
+  public final List<Integer> cleared_fields;
+
+  /**
+   * Planets that have changed.
+   */
+  @WireField(
+      tag = 6,
+      adapter = "au.com.codeka.warworlds.common.proto.PlanetDelta#ADAPTER",
+      label = WireField.Label.REPEATED
+  )
+  public final List<PlanetDelta> planets;
+
+  /**
+   * Empire stores that have changed or been added, and the empire_ids of the ones that have been
+   * removed (0 for the natives' store, which doesn't have an empire_id).
+   */
+  @WireField(
+      tag = 7,
+      adapter = "au.com.codeka.warworlds.common.proto.EmpireStorageDelta#ADAPTER",
+      label = WireField.Label.REPEATED
+  )
+  public final List<EmpireStorageDelta> empire_stores;
+
+  @WireField(
+      tag = 8,
+      adapter = "com.squareup.wire.ProtoAdapter#INT64",
+      label = WireField.Label.PACKED
+  )
+  public final List<Long> removed_empire_store_ids;
+
+  /**
+   * Fleets that have changed (replacing the one with the same id) or been added, and the ids of
+   * the ones that have been removed.
+   */
+  @WireField(
+      tag = 9,
+      adapter = "au.com.codeka.warworlds.common.proto.Fleet#ADAPTER",
+      label = WireField.Label.REPEATED
+  )
+  public final List<Fleet> fleets;
+
+  @WireField(
+      tag = 10,
+      adapter = "com.squareup.wire.ProtoAdapter#INT64",
+      label = WireField.Label.PACKED
+  )
+  public final List<Long> removed_fleet_ids;
+
+  public StarDelta(Long star_id, Long base_version, Long version, Star fields, List<Integer> cleared_fields, List<PlanetDelta> planets, List<EmpireStorageDelta> empire_stores, List<Long> removed_empire_store_ids, List<Fleet> fleets, List<Long> removed_fleet_ids) {
+    this(star_id, base_version, version, fields, cleared_fields, planets, empire_stores, removed_empire_store_ids, fleets, removed_fleet_ids, ByteString.EMPTY);
+  }
+
+  public StarDelta(Long star_id, Long base_version, Long version, Star fields, List<Integer> cleared_fields, List<PlanetDelta> planets, List<EmpireStorageDelta> empire_stores, List<Long> removed_empire_store_ids, List<Fleet> fleets, List<Long> removed_fleet_ids, ByteString unknownFields) {
+    super(ADAPTER, unknownFields);
+    this.star_id = star_id;
+    this.base_version = base_version;
+    this.version = version;
+    this.fields = fields;
+    this.cleared_fields = Internal.immutableCopyOf("cleared_fields", cleared_fields);
+    this.planets = Internal.immutableCopyOf("planets", planets);
+    this.empire_stores = Internal.immutableCopyOf("empire_stores", empire_stores);
+    this.removed_empire_store_ids = Internal.immutableCopyOf("removed_empire_store_ids", removed_empire_store_ids);
+    this.fleets = Internal.immutableCopyOf("fleets", fleets);
+    this.removed_fleet_ids = Internal.immutableCopyOf("removed_fleet_ids", removed_fleet_ids);
+  }
+
+  @Override
+  public Builder newBuilder() {
+    Builder builder = new Builder();
+    builder.star_id = star_id;
+    builder.base_version = base_version;
+    builder.version = version;
+    builder.fields = fields;
+    builder.cleared_fields = Internal.copyOf("cleared_fields", cleared_fields);
+    builder.planets = Internal.copyOf("planets", planets);
+    builder.empire_stores = Internal.copyOf("empire_stores", empire_stores);
+    builder.removed_empire_store_ids = Internal.copyOf("removed_empire_store_ids", removed_empire_store_ids);
+    builder.fleets = Internal.copyOf("fleets", fleets);
+    builder.removed_fleet_ids = Internal.copyOf("removed_fleet_ids", removed_fleet_ids);
+    builder.addUnknownFields(unknownFields());
+    return builder;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == this) return true;
+    if (!(other instanceof StarDelta)) return false;
+    StarDelta o = (StarDelta) other;
+    return Internal.equals(unknownFields(), o.unknownFields())
+        && Internal.equals(star_id, o.star_id)
+        && Internal.equals(base_version, o.base_version)
+        && Internal.equals(version, o.version)
+        && Internal.equals(fields, o.fields)
+        && Internal.equals(cleared_fields, o.cleared_fields)
+        && Internal.equals(planets, o.planets)
+        && Internal.equals(empire_stores, o.empire_stores)
+        && Internal.equals(removed_empire_store_ids, o.removed_empire_store_ids)
+        && Internal.equals(fleets, o.fleets)
+        && Internal.equals(removed_fleet_ids, o.removed_fleet_ids);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = super.hashCode;
+    if (result == 0) {
+      result = unknownFields().hashCode();
+      result = result * 37 + (star_id != null ? star_id.hashCode() : 0);
+      result = result * 37 + (base_version != null ? base_version.hashCode() : 0);
+      result = result * 37 + (version != null ? version.hashCode() : 0);
+      result = result * 37 + (fields != null ? fields.hashCode() : 0);
+      result = result * 37 + (cleared_fields != null ? cleared_fields.hashCode() : 1);
+      result = result * 37 + (planets != null ? planets.hashCode() : 1);
+      result = result * 37 + (empire_stores != null ? empire_stores.hashCode() : 1);
+      result = result * 37 + (removed_empire_store_ids != null ? removed_empire_store_ids.hashCode() : 1);
+      result = result * 37 + (fleets != null ? fleets.hashCode() : 1);
+      result = result * 37 + (removed_fleet_ids != null ? removed_fleet_ids.hashCode() : 1);
+      super.hashCode = result;
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    if (star_id != null) builder.append(", star_id=").append(star_id);
+    if (base_version != null) builder.append(", base_version=").append(base_version);
+    if (version != null) builder.append(", version=").append(version);
+    if (fields != null) builder.append(", fields=").append(fields);
+    if (cleared_fields != null) builder.append(", cleared_fields=").append(cleared_fields);
+    if (planets != null) builder.append(", planets=").append(planets);
+    if (empire_stores != null) builder.append(", empire_stores=").append(empire_stores);
+    if (removed_empire_store_ids != null) builder.append(", removed_empire_store_ids=").append(removed_empire_store_ids);
+    if (fleets != null) builder.append(", fleets=").append(fleets);
+    if (removed_fleet_ids != null) builder.append(", removed_fleet_ids=").append(removed_fleet_ids);
+    return builder.replace(0, 2, "StarDelta{").append('}').toString();
+  }
+
+  public static final class Builder extends Message.Builder<StarDelta, Builder> {
+    public Long star_id;
+
+    public Long base_version;
+
+    public Long version;
+
+    public Star fields;
+
+    public List<Integer> cleared_fields;
+
+    public List<PlanetDelta> planets;
+
+    public List<EmpireStorageDelta> empire_stores;
+
+    public List<Long> removed_empire_store_ids;
+
+    public List<Fleet> fleets;
+
+    public List<Long> removed_fleet_ids;
+
+    public Builder() {
+      cleared_fields = Internal.newMutableList();
+      planets = Internal.newMutableList();
+      empire_stores = Internal.newMutableList();
+      removed_empire_store_ids = Internal.newMutableList();
+      fleets = Internal.newMutableList();
+      removed_fleet_ids = Internal.newMutableList();
+    }
+
+    public Builder star_id(Long star_id) {
+      this.star_id = star_id;
+      return this;
+    }
+
+    /**
+     * The version of the star that this delta applies to. If you don't have that version, you'll
+     * need to ask for the whole star (see RequestStarsPacket).
+     */
+    public Builder base_version(Long base_version) {
+      this.base_version = base_version;
+      return this;
+    }
+
+    /**
+     * The version of the star once this delta has been applied.
+     */
+    public Builder version(Long version) {
+      this.version = version;
+      return this;
+    }
+
+    /**
+     * The star's fields that have changed, apart from planets, empire_stores and fleets (which are
+     * below), and the ones that have been cleared.
+     */
+    public Builder fields(Star fields) {
+      this.fields = fields;
+      return this;
+    }
+
+    public Builder cleared_fields(List<Integer> cleared_fields) {
+      Internal.checkElementsNotNull(cleared_fields);
+      this.cleared_fields = cleared_fields;
+      return this;
+    }
+
+    /**
+     * Planets that have changed.
+     */
+    public Builder planets(List<PlanetDelta> planets) {
+      Internal.checkElementsNotNull(planets);
+      this.planets = planets;
+      return this;
+    }
+
+    /**
+     * Empire stores that have changed or been added, and the empire_ids of the ones that have been
+     * removed (0 for the natives' store, which doesn't have an empire_id).
+     */
+    public Builder empire_stores(List<EmpireStorageDelta> empire_stores) {
+      Internal.checkElementsNotNull(empire_stores);
+      this.empire_stores = empire_stores;
+      return this;
+    }
+
+    public Builder removed_empire_store_ids(List<Long> removed_empire_store_ids) {
+      Internal.checkElementsNotNull(removed_empire_store_ids);
+      this.removed_empire_store_ids = removed_empire_store_ids;
+      return this;
+    }
+
+    /**
+     * Fleets that have changed (replacing the one with the same id) or been added, and the ids of
+     * the ones that have been removed.
+     */
+    public Builder fleets(List<Fleet> fleets) {
+      Internal.checkElementsNotNull(fleets);
+      this.fleets = fleets;
+      return this;
+    }
+
+    public Builder removed_fleet_ids(List<Long> removed_fleet_ids) {
+      Internal.checkElementsNotNull(removed_fleet_ids);
+      this.removed_fleet_ids = removed_fleet_ids;
+      return this;
+    }
+
+    @Override
+    public StarDelta build() {
+      return new StarDelta(star_id, base_version, version, fields, cleared_fields, planets, empire_stores, removed_empire_store_ids, fleets, removed_fleet_ids, buildUnknownFields());
+    }
+  }
+
+  private static final class ProtoAdapter_StarDelta extends ProtoAdapter<StarDelta> {
+    ProtoAdapter_StarDelta() {
+      super(FieldEncoding.LENGTH_DELIMITED, StarDelta.class);
+    }
+
+    @Override
+    public int encodedSize(StarDelta value) {
+      return (value.star_id != null ? ProtoAdapter.INT64.encodedSizeWithTag(1, value.star_id) : 0)
+          + (value.base_version != null ? ProtoAdapter.INT64.encodedSizeWithTag(2, value.base_version) : 0)
+          + (value.version != null ? ProtoAdapter.INT64.encodedSizeWithTag(3, value.version) : 0)
+          + (value.fields != null ? Star.ADAPTER.encodedSizeWithTag(4, value.fields) : 0)
+          + ProtoAdapter.INT32.asPacked().encodedSizeWithTag(5, value.cleared_fields)
+          + PlanetDelta.ADAPTER.asRepeated().encodedSizeWithTag(6, value.planets)
+          + EmpireStorageDelta.ADAPTER.asRepeated().encodedSizeWithTag(7, value.empire_stores)
+          + ProtoAdapter.INT64.asPacked().encodedSizeWithTag(8, value.removed_empire_store_ids)
+          + Fleet.ADAPTER.asRepeated().encodedSizeWithTag(9, value.fleets)
+          + ProtoAdapter.INT64.asPacked().encodedSizeWithTag(10, value.removed_fleet_ids)
+          + value.unknownFields().size();
+    }
+
+    @Override
+    public void encode(ProtoWriter writer, StarDelta value) throws IOException {
+      if (value.star_id != null) ProtoAdapter.INT64.encodeWithTag(writer, 1, value.star_id);
+      if (value.base_version != null) ProtoAdapter.INT64.encodeWithTag(writer, 2, value.base_version);
+      if (value.version != null) ProtoAdapter.INT64.encodeWithTag(writer, 3, value.version);
+      if (value.fields != null) Star.ADAPTER.encodeWithTag(writer, 4, value.fields);
+      if (value.cleared_fields != null) ProtoAdapter.INT32.asPacked().encodeWithTag(writer, 5, value.cleared_fields);
+      if (value.planets != null) PlanetDelta.ADAPTER.asRepeated().encodeWithTag(writer, 6, value.planets);
+      if (value.empire_stores != null) EmpireStorageDelta.ADAPTER.asRepeated().encodeWithTag(writer, 7, value.empire_stores);
+      if (value.removed_empire_store_ids != null) ProtoAdapter.INT64.asPacked().encodeWithTag(writer, 8, value.removed_empire_store_ids);
+      if (value.fleets != null) Fleet.ADAPTER.asRepeated().encodeWithTag(writer, 9, value.fleets);
+      if (value.removed_fleet_ids != null) ProtoAdapter.INT64.asPacked().encodeWithTag(writer, 10, value.removed_fleet_ids);
+      writer.writeBytes(value.unknownFields());
+    }
+
+    @Override
+    public StarDelta decode(ProtoReader reader) throws IOException {
+      Builder builder = new Builder();
+      long token = reader.beginMessage();
+      for (int tag; (tag = reader.nextTag()) != -1;) {
+        switch (tag) {
+          case 1: builder.star_id(ProtoAdapter.INT64.decode(reader)); break;
+          case 2: builder.base_version(ProtoAdapter.INT64.decode(reader)); break;
+          case 3: builder.version(ProtoAdapter.INT64.decode(reader)); break;
+          case 4: builder.fields(Star.ADAPTER.decode(reader)); break;
+          case 5: builder.cleared_fields.add(ProtoAdapter.INT32.decode(reader)); break;
+          case 6: builder.planets.add(PlanetDelta.ADAPTER.decode(reader)); break;
+          case 7: builder.empire_stores.add(EmpireStorageDelta.ADAPTER.decode(reader)); break;
+          case 8: builder.removed_empire_store_ids.add(ProtoAdapter.INT64.decode(reader)); break;
+          case 9: builder.fleets.add(Fleet.ADAPTER.decode(reader)); break;
+          case 10: builder.removed_fleet_ids.add(ProtoAdapter.INT64.decode(reader)); break;
+          default: {
+            FieldEncoding fieldEncoding = reader.peekFieldEncoding();
+            Object value = fieldEncoding.rawProtoAdapter().decode(reader);
+            builder.addUnknownField(tag, fieldEncoding, value);
+          }
+        }
+      }
+      reader.endMessage(token);
+      return builder.build();
+    }
+
+    @Override
+    public StarDelta redact(StarDelta value) {
+      Builder builder = value.newBuilder();
+      if (builder.fields != null) builder.fields = Star.ADAPTER.redact(builder.fields);
+      Internal.redactElements(builder.planets, PlanetDelta.ADAPTER);
+      Internal.redactElements(builder.empire_stores, EmpireStorageDelta.ADAPTER);
+      Internal.redactElements(builder.fleets, Fleet.ADAPTER);
+      builder.clearUnknownFields();
+      return builder.build();
+    }
+  }
+}
@@ -1,5 +1,5 @@
 // Code generated by Wire protocol buffer compiler, do not edit.
-// Source file: star.proto at 167:1
+// Source file: star.proto at 246:1
 package au.com.codeka.warworlds.common.proto;
 
 import com.squareup.wire.FieldEncoding;
@@ -41,6 +41,10 @@ public final class StarModification extends Message<StarModification, StarModifi
 
   public static final Integer DEFAULT_COUNT = 0;
 
+  public static final Long DEFAULT_FLEET_ID = 0L;
+
+  public static final Long DEFAULT_STAR_ID = 0L;
+
   @WireField(
       tag = 1,
       adapter = "au.com.codeka.warworlds.common.proto.StarModification$MODIFICATION_TYPE#ADAPTER"
@@ -83,11 +87,23 @@ public final class StarModification extends Message<StarModification, StarModifi
   )
   public final Integer count;
 
-  public StarModification(MODIFICATION_TYPE type, Long empire_id, Integer planet_index, Long colony_id, ColonyFocus focus, Design.DesignType design_type, Integer count) {
-    this(type, empire_id, planet_index, colony_id, focus, design_type, count, ByteString.EMPTY);
+  @WireField(
+      tag = 8,
+      adapter = "com.squareup.wire.ProtoAdapter#INT64"
+  )
+  public final Long fleet_id;
+
+  @WireField(
+      tag = 9,
+      adapter = "com.squareup.wire.ProtoAdapter#INT64"
+  )
+  public final Long star_id;
+
+  public StarModification(MODIFICATION_TYPE type, Long empire_id, Integer planet_index, Long colony_id, ColonyFocus focus, Design.DesignType design_type, Integer count, Long fleet_id, Long star_id) {
+    this(type, empire_id, planet_index, colony_id, focus, design_type, count, fleet_id, star_id, ByteString.EMPTY);
   }
 
-  public StarModification(MODIFICATION_TYPE type, Long empire_id, Integer planet_index, Long colony_id, ColonyFocus focus, Design.DesignType design_type, Integer count, ByteString unknownFields) {
+  public StarModification(MODIFICATION_TYPE type, Long empire_id, Integer planet_index, Long colony_id, ColonyFocus focus, Design.DesignType design_type, Integer count, Long fleet_id, Long star_id, ByteString unknownFields) {
     super(ADAPTER, unknownFields);
     this.type = type;
     this.empire_id = empire_id;
@@ -96,6 +112,8 @@ public final class StarModification extends Message<StarModification, StarModifi
     this.focus = focus;
     this.design_type = design_type;
     this.count = count;
+    this.fleet_id = fleet_id;
+    this.star_id = star_id;
   }
 
   @Override
@@ -108,6 +126,8 @@ public final class StarModification extends Message<StarModification, StarModifi
     builder.focus = focus;
     builder.design_type = design_type;
     builder.count = count;
+    builder.fleet_id = fleet_id;
+    builder.star_id = star_id;
     builder.addUnknownFields(unknownFields());
     return builder;
   }
@@ -124,7 +144,9 @@ public final class StarModification extends Message<StarModification, StarModifi
         && Internal.equals(colony_id, o.colony_id)
         && Internal.equals(focus, o.focus)
         && Internal.equals(design_type, o.design_type)
-        && Internal.equals(count, o.count);
+        && Internal.equals(count, o.count)
+        && Internal.equals(fleet_id, o.fleet_id)
+        && Internal.equals(star_id, o.star_id);
   }
 
   @Override
@@ -139,6 +161,8 @@ public final class StarModification extends Message<StarModification, StarModifi
       result = result * 37 + (focus != null ? focus.hashCode() : 0);
       result = result * 37 + (design_type != null ? design_type.hashCode() : 0);
       result = result * 37 + (count != null ? count.hashCode() : 0);
+      result = result * 37 + (fleet_id != null ? fleet_id.hashCode() : 0);
+      result = result * 37 + (star_id != null ? star_id.hashCode() : 0);
       super.hashCode = result;
     }
     return result;
@@ -154,6 +178,8 @@ public final class StarModification extends Message<StarModification, StarModifi
     if (focus != null) builder.append(", focus=").append(focus);
     if (design_type != null) builder.append(", design_type=").append(design_type);
     if (count != null) builder.append(", count=").append(count);
+    if (fleet_id != null) builder.append(", fleet_id=").append(fleet_id);
+    if (star_id != null) builder.append(", star_id=").append(star_id);
     return builder.replace(0, 2, "StarModification{").append('}').toString();
   }
 
@@ -172,6 +198,10 @@ public final class StarModification extends Message<StarModification, StarModifi
 
     public Integer count;
 
+    public Long fleet_id;
+
+    public Long star_id;
+
     public Builder() {
     }
 
@@ -210,9 +240,19 @@ public final class StarModification extends Message<StarModification, StarModifi
       return this;
     }
 
+    public Builder fleet_id(Long fleet_id) {
+      this.fleet_id = fleet_id;
+      return this;
+    }
+
+    public Builder star_id(Long star_id) {
+      this.star_id = star_id;
+      return this;
+    }
+
     @Override
     public StarModification build() {
-      return new StarModification(type, empire_id, planet_index, colony_id, focus, design_type, count, buildUnknownFields());
+      return new StarModification(type, empire_id, planet_index, colony_id, focus, design_type, count, fleet_id, star_id, buildUnknownFields());
     }
   }
 
@@ -251,7 +291,13 @@ public final class StarModification extends Message<StarModification, StarModifi
      * Create a new building, ignored if sent from client.
      * empire_id, colony_id, design_type are required.
      */
-    CREATE_BUILDING(5);
+    CREATE_BUILDING(5),
+
+    /**
+     * Start a fleet moving to another star.
+     * empire_id, fleet_id and star_id (the destination) are required.
+     */
+    MOVE_FLEET(6);
 
     public static final ProtoAdapter<MODIFICATION_TYPE> ADAPTER = ProtoAdapter.newEnumAdapter(MODIFICATION_TYPE.class);
 
@@ -272,6 +318,7 @@ public final class StarModification extends Message<StarModification, StarModifi
         case 3: return CREATE_FLEET;
         case 4: return ADD_BUILD_REQUEST;
         case 5: return CREATE_BUILDING;
+        case 6: return MOVE_FLEET;
         default: return null;
       }
     }
@@ -296,6 +343,8 @@ public final class StarModification extends Message<StarModification, StarModifi
           + (value.focus != null ? ColonyFocus.ADAPTER.encodedSizeWithTag(5, value.focus) : 0)
           + (value.design_type != null ? Design.DesignType.ADAPTER.encodedSizeWithTag(6, value.design_type) : 0)
           + (value.count != null ? ProtoAdapter.INT32.encodedSizeWithTag(7, value.count) : 0)
+          + (value.fleet_id != null ? ProtoAdapter.INT64.encodedSizeWithTag(8, value.fleet_id) : 0)
+          + (value.star_id != null ? ProtoAdapter.INT64.encodedSizeWithTag(9, value.star_id) : 0)
           + value.unknownFields().size();
     }
 
@@ -308,6 +357,8 @@ public final class StarModification extends Message<StarModification, StarModifi
       if (value.focus != null) ColonyFocus.ADAPTER.encodeWithTag(writer, 5, value.focus);
       if (value.design_type != null) Design.DesignType.ADAPTER.encodeWithTag(writer, 6, value.design_type);
       if (value.count != null) ProtoAdapter.INT32.encodeWithTag(writer, 7, value.count);
+      if (value.fleet_id != null) ProtoAdapter.INT64.encodeWithTag(writer, 8, value.fleet_id);
+      if (value.star_id != null) ProtoAdapter.INT64.encodeWithTag(writer, 9, value.star_id);
       writer.writeBytes(value.unknownFields());
     }
 
@@ -338,6 +389,8 @@ public final class StarModification extends Message<StarModification, StarModifi
             break;
           }
           case 7: builder.count(ProtoAdapter.INT32.decode(reader)); break;
+          case 8: builder.fleet_id(ProtoAdapter.INT64.decode(reader)); break;
+          case 9: builder.star_id(ProtoAdapter.INT64.decode(reader)); break;
           default: {
             FieldEncoding fieldEncoding = reader.peekFieldEncoding();
             Object value = fieldEncoding.rawProtoAdapter().decode(reader);
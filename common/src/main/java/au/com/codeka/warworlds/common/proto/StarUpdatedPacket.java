@@ -1,5 +1,5 @@
 // Code generated by Wire protocol buffer compiler, do not edit.
-// Source file: packets.proto at 34:1
+// Source file: packets.proto at 45:1
 package au.com.codeka.warworlds.common.proto;
 
 import com.squareup.wire.FieldEncoding;
@@ -19,6 +19,8 @@ import okio.ByteString;
 
 /**
  * Sent from the server when a Star is updated. You can get more than one star update in a packet.
+ * If the client accepts them, stars that it should already have can be sent as deltas from the
+ * version we last sent on this connection.
  */
 public final class StarUpdatedPacket extends Message<StarUpdatedPacket, StarUpdatedPacket.Builder> {
   public static final ProtoAdapter<StarUpdatedPacket> ADAPTER = new ProtoAdapter_StarUpdatedPacket();
@@ -32,19 +34,28 @@ public final class StarUpdatedPacket extends Message<StarUpdatedPacket, StarUpda
   )
   public final List<Star> stars;
 
-  public StarUpdatedPacket(List<Star> stars) {
-    this(stars, ByteString.EMPTY);
+  @WireField(
+      tag = 2,
+      adapter = "au.com.codeka.warworlds.common.proto.StarDelta#ADAPTER",
+      label = WireField.Label.REPEATED
+  )
+  public final List<StarDelta> star_deltas;
+
+  public StarUpdatedPacket(List<Star> stars, List<StarDelta> star_deltas) {
+    this(stars, star_deltas, ByteString.EMPTY);
   }
 
-  public StarUpdatedPacket(List<Star> stars, ByteString unknownFields) {
+  public StarUpdatedPacket(List<Star> stars, List<StarDelta> star_deltas, ByteString unknownFields) {
     super(ADAPTER, unknownFields);
     this.stars = Internal.immutableCopyOf("stars", stars);
+    this.star_deltas = Internal.immutableCopyOf("star_deltas", star_deltas);
   }
 
   @Override
   public Builder newBuilder() {
     Builder builder = new Builder();
     builder.stars = Internal.copyOf("stars", stars);
+    builder.star_deltas = Internal.copyOf("star_deltas", star_deltas);
     builder.addUnknownFields(unknownFields());
     return builder;
   }
@@ -55,7 +66,8 @@ public final class StarUpdatedPacket extends Message<StarUpdatedPacket, StarUpda
     if (!(other instanceof StarUpdatedPacket)) return false;
     StarUpdatedPacket o = (StarUpdatedPacket) other;
     return Internal.equals(unknownFields(), o.unknownFields())
-        && Internal.equals(stars, o.stars);
+        && Internal.equals(stars, o.stars)
+        && Internal.equals(star_deltas, o.star_deltas);
   }
 
   @Override
@@ -64,6 +76,7 @@ public final class StarUpdatedPacket extends Message<StarUpdatedPacket, StarUpda
     if (result == 0) {
       result = unknownFields().hashCode();
       result = result * 37 + (stars != null ? stars.hashCode() : 1);
+      result = result * 37 + (star_deltas != null ? star_deltas.hashCode() : 1);
       super.hashCode = result;
     }
     return result;
@@ -73,14 +86,18 @@ public final class StarUpdatedPacket extends Message<StarUpdatedPacket, StarUpda
   public String toString() {
     StringBuilder builder = new StringBuilder();
     if (stars != null) builder.append(", stars=").append(stars);
+    if (star_deltas != null) builder.append(", star_deltas=").append(star_deltas);
     return builder.replace(0, 2, "StarUpdatedPacket{").append('}').toString();
   }
 
   public static final class Builder extends Message.Builder<StarUpdatedPacket, Builder> {
     public List<Star> stars;
 
+    public List<StarDelta> star_deltas;
+
     public Builder() {
       stars = Internal.newMutableList();
+      star_deltas = Internal.newMutableList();
     }
 
     public Builder stars(List<Star> stars) {
@@ -89,9 +106,15 @@ public final class StarUpdatedPacket extends Message<StarUpdatedPacket, StarUpda
       return this;
     }
 
+    public Builder star_deltas(List<StarDelta> star_deltas) {
+      Internal.checkElementsNotNull(star_deltas);
+      this.star_deltas = star_deltas;
+      return this;
+    }
+
     @Override
     public StarUpdatedPacket build() {
-      return new StarUpdatedPacket(stars, buildUnknownFields());
+      return new StarUpdatedPacket(stars, star_deltas, buildUnknownFields());
     }
   }
 
@@ -103,12 +126,14 @@ public final class StarUpdatedPacket extends Message<StarUpdatedPacket, StarUpda
     @Override
     public int encodedSize(StarUpdatedPacket value) {
       return Star.ADAPTER.asRepeated().encodedSizeWithTag(1, value.stars)
+          + StarDelta.ADAPTER.asRepeated().encodedSizeWithTag(2, value.star_deltas)
           + value.unknownFields().size();
     }
 
     @Override
     public void encode(ProtoWriter writer, StarUpdatedPacket value) throws IOException {
       if (value.stars != null) Star.ADAPTER.asRepeated().encodeWithTag(writer, 1, value.stars);
+      if (value.star_deltas != null) StarDelta.ADAPTER.asRepeated().encodeWithTag(writer, 2, value.star_deltas);
       writer.writeBytes(value.unknownFields());
     }
 
@@ -119,6 +144,7 @@ public final class StarUpdatedPacket extends Message<StarUpdatedPacket, StarUpda
       for (int tag; (tag = reader.nextTag()) != -1;) {
         switch (tag) {
           case 1: builder.stars.add(Star.ADAPTER.decode(reader)); break;
+          case 2: builder.star_deltas.add(StarDelta.ADAPTER.decode(reader)); break;
           default: {
             FieldEncoding fieldEncoding = reader.peekFieldEncoding();
             Object value = fieldEncoding.rawProtoAdapter().decode(reader);
@@ -134,6 +160,7 @@ public final class StarUpdatedPacket extends Message<StarUpdatedPacket, StarUpda
     public StarUpdatedPacket redact(StarUpdatedPacket value) {
       Builder builder = value.newBuilder();
       Internal.redactElements(builder.stars, Star.ADAPTER);
+      Internal.redactElements(builder.star_deltas, StarDelta.ADAPTER);
       builder.clearUnknownFields();
       return builder.build();
     }
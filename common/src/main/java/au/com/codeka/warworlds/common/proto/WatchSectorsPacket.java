@@ -1,5 +1,5 @@
 // Code generated by Wire protocol buffer compiler, do not edit.
-// Source file: packets.proto at 26:1
+// Source file: packets.proto at 35:1
 package au.com.codeka.warworlds.common.proto;
 
 import com.squareup.wire.FieldEncoding;
@@ -20,8 +20,8 @@ import okio.ByteString;
 /**
  * Requests that we want updates about all stars in sectors between (left,top) and (right,bottom)
  * inclusive. Sending a new WatchSectors packet will override your previous watched sectors. You
- * will immediately receive a StarUpdatedPacket with all of the stars in the sectors you've
- * requested.
+ * will immediately receive a StarUpdatedPacket with the stars in the sectors you weren't already
+ * watching (you should keep the ones you have in sectors that you're still watching).
  */
 public final class WatchSectorsPacket extends Message<WatchSectorsPacket, WatchSectorsPacket.Builder> {
   public static final ProtoAdapter<WatchSectorsPacket> ADAPTER = new ProtoAdapter_WatchSectorsPacket();
@@ -0,0 +1,453 @@
+package au.com.codeka.warworlds.common.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.CombatReport;
+import au.com.codeka.warworlds.common.proto.Design;
+import au.com.codeka.warworlds.common.proto.Fleet;
+
+/**
+ * Simulates combat between the fleets at a star, for {@link Simulation}.
+ *
+ * <p>Combat happens in rounds, one every minute. Fleets are on the same "side" if they belong to
+ * the same alliance (or the same empire, if they're not in an alliance). In each round:
+ * <ol>
+ *   <li>The fleets are grouped by side, design, stance and state.</li>
+ *   <li>Every attacking group targets the enemy group with the lowest combat priority, and does
+ *       damage in proportion to its number of ships.</li>
+ *   <li>Idle groups that were attacked fight back, unless they're passive.</li>
+ *   <li>The damage is applied, destroying fleets from the front of each group.</li>
+ *   <li>If there's only one side left, everybody goes back to idle and the combat is over.</li>
+ * </ol>
+ *
+ * <p>Like {@link SimulationState}, the fleets are loaded into flat arrays at the start of a step
+ * and written back (only the ones that changed) at the end. Groups are formed by sorting packed
+ * (group, fleet) keys, and targets are picked from a list of groups sorted by priority, so a round
+ * is O(n log n) in the number of fleets, and there are at most ten rounds in a step. The arrays
+ * are re-used from step to step.
+ */
+class CombatSimulator {
+  /** Each round of combat lasts one minute. */
+  private static final long ROUND_TIME = Time.MINUTE;
+
+  /** We pack fleet and group indices into the bottom bits of a long to sort them. */
+  private static final int INDEX_BITS = 20;
+  private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+  /** Marks a side whose target we haven't looked for yet this round. */
+  private static final int TARGET_UNKNOWN = -2;
+
+  /** Marks a side that has nobody left to attack. */
+  private static final int TARGET_NONE = -1;
+
+  // The fleets that can fight (i.e. not moving and not destroyed), indexed by f.
+  private int numFleets;
+  private int[] fleetListIndex = new int[0];
+  private long[] fleetId;
+  private int[] fleetSide;
+  private Design[] fleetDesign;
+  private float[] fleetShips;
+  private Fleet.FLEET_STATE[] fleetState;
+  private Fleet.FLEET_STANCE[] fleetStance;
+  private long[] fleetStateStartTime;
+  private boolean[] fleetHasTarget;
+  private long[] fleetTargetId;
+  private boolean[] fleetDestroyed;
+  private long[] fleetTimeDestroyed;
+  private boolean[] fleetChanged;
+
+  // The sides, indexed by s.
+  private int numSides;
+  private Long[] sideEmpireId = new Long[0];
+  private Long[] sideAllianceId;
+  private int[] sideTarget;
+
+  // The groups of the current round, indexed by g. The fleets in group g are
+  // groupFleets[groupStart[g]] to groupFleets[groupStart[g + 1] - 1].
+  private int numGroups;
+  private long[] sortKeys = new long[0];
+  private int[] groupFleets;
+  private int[] groupStart;
+  private float[] groupShips;
+  private float[] groupDamage;
+  private long[] targetKeys;
+
+  /**
+   * Simulates the combat at a star for one step.
+   *
+   * @param fleets The star's fleets. Fleets that change are replaced in the list.
+   * @param rounds The rounds of combat so far. Rounds from this step are added to the end.
+   * @param now The time at the start of the step.
+   * @param stepTime The length of the step.
+   */
+  void simulateStep(List<Fleet> fleets, List<CombatReport.Round> rounds, long now, long stepTime) {
+    if (!needsCombat(fleets, now)) {
+      return;
+    }
+    load(fleets, now);
+
+    // Aggressive fleets attack as soon as there's an enemy around.
+    long attackStartTime = Long.MAX_VALUE;
+    for (int f = 0; f < numFleets; f++) {
+      if (fleetState[f] == Fleet.FLEET_STATE.IDLE
+          && fleetStance[f] == Fleet.FLEET_STANCE.AGGRESSIVE) {
+        setState(f, Fleet.FLEET_STATE.ATTACKING, now);
+      }
+      if (fleetState[f] == Fleet.FLEET_STATE.ATTACKING) {
+        attackStartTime = Math.min(attackStartTime, fleetStateStartTime[f]);
+      }
+    }
+
+    if (attackStartTime != Long.MAX_VALUE) {
+      // Rounds happen on the minute.
+      long roundTime = Math.max(attackStartTime, now);
+      roundTime = ((roundTime + ROUND_TIME - 1) / ROUND_TIME) * ROUND_TIME;
+      while (roundTime < now + stepTime) {
+        if (!simulateRound(roundTime, rounds)) {
+          break;
+        }
+        roundTime += ROUND_TIME;
+      }
+    }
+
+    save(fleets);
+  }
+
+  /**
+   * Checks whether there's any combat to simulate: there has to be more than one side at the
+   * star, and at least one fleet that's attacking (or will attack). If there's only one side,
+   * anybody still attacking goes back to idle (destroyed fleets are left as they were).
+   */
+  private boolean needsCombat(List<Fleet> fleets, long now) {
+    Fleet first = null;
+    boolean contested = false;
+    boolean anyAttacking = false;
+    for (int i = 0; i < fleets.size(); i++) {
+      Fleet fleet = fleets.get(i);
+      if (!canFight(fleet, now)) {
+        continue;
+      }
+      if (fleet.state == Fleet.FLEET_STATE.ATTACKING
+          || fleet.stance == Fleet.FLEET_STANCE.AGGRESSIVE) {
+        anyAttacking = true;
+      }
+      if (first == null) {
+        first = fleet;
+      } else if (!isFriendly(first, fleet)) {
+        contested = true;
+      }
+    }
+
+    if (!contested) {
+      for (int i = 0; i < fleets.size(); i++) {
+        Fleet fleet = fleets.get(i);
+        if (fleet.state == Fleet.FLEET_STATE.ATTACKING && canFight(fleet, now)) {
+          fleets.set(i, fleet.newBuilder()
+              .state(Fleet.FLEET_STATE.IDLE)
+              .state_start_time(now)
+              .target_fleet_id(null)
+              .build());
+        }
+      }
+      return false;
+    }
+    return anyAttacking;
+  }
+
+  private void load(List<Fleet> fleets, long now) {
+    ensureCapacity(fleets.size());
+    numFleets = 0;
+    numSides = 0;
+    for (int i = 0; i < fleets.size(); i++) {
+      Fleet fleet = fleets.get(i);
+      if (!canFight(fleet, now)) {
+        continue;
+      }
+
+      int f = numFleets++;
+      fleetListIndex[f] = i;
+      fleetId[f] = fleet.id;
+      fleetSide[f] = findSide(fleet.empire_id, fleet.alliance_id);
+      fleetDesign[f] = DesignHelper.getDesign(fleet.design_type);
+      fleetShips[f] = fleet.num_ships;
+      fleetState[f] = fleet.state;
+      fleetStance[f] = fleet.stance == null ? Fleet.FLEET_STANCE.NEUTRAL : fleet.stance;
+      fleetStateStartTime[f] = fleet.state_start_time == null ? now : fleet.state_start_time;
+      fleetHasTarget[f] = fleet.target_fleet_id != null;
+      fleetTargetId[f] = fleet.target_fleet_id == null ? 0 : fleet.target_fleet_id;
+      fleetDestroyed[f] = false;
+      fleetTimeDestroyed[f] = 0;
+      fleetChanged[f] = false;
+    }
+  }
+
+  /** Writes the fleets that changed back to the given list. */
+  private void save(List<Fleet> fleets) {
+    for (int f = 0; f < numFleets; f++) {
+      if (!fleetChanged[f]) {
+        continue;
+      }
+      Fleet.Builder fleet = fleets.get(fleetListIndex[f]).newBuilder()
+          .num_ships(fleetShips[f])
+          .state(fleetState[f])
+          .state_start_time(fleetStateStartTime[f])
+          .target_fleet_id(fleetHasTarget[f] ? fleetTargetId[f] : null);
+      if (fleetDestroyed[f]) {
+        fleet.time_destroyed(fleetTimeDestroyed[f]);
+      }
+      fleets.set(fleetListIndex[f], fleet.build());
+    }
+  }
+
+  /**
+   * Simulates a single round of combat.
+   *
+   * @return true if the combat is still going, false if it's finished.
+   */
+  private boolean simulateRound(long roundTime, List<CombatReport.Round> rounds) {
+    // Group the fleets, by sorting them by their group key.
+    int n = 0;
+    for (int f = 0; f < numFleets; f++) {
+      if (!fleetDestroyed[f]) {
+        sortKeys[n++] = (groupKey(f) << INDEX_BITS) | f;
+      }
+    }
+    Arrays.sort(sortKeys, 0, n);
+
+    numGroups = 0;
+    long lastKey = -1;
+    for (int i = 0; i < n; i++) {
+      long key = sortKeys[i] >>> INDEX_BITS;
+      int f = (int) (sortKeys[i] & INDEX_MASK);
+      if (key != lastKey) {
+        groupStart[numGroups] = i;
+        groupShips[numGroups] = 0.0f;
+        groupDamage[numGroups] = 0.0f;
+        numGroups++;
+        lastKey = key;
+      }
+      groupFleets[i] = f;
+      groupShips[numGroups - 1] += fleetShips[f];
+    }
+    groupStart[numGroups] = n;
+
+    // Sort the groups by their priority as a target (lowest first).
+    for (int g = 0; g < numGroups; g++) {
+      Integer priority = fleetDesign[groupFleets[groupStart[g]]].combat_priority;
+      targetKeys[g] = ((long) Math.max(0, priority == null ? 0 : priority) << INDEX_BITS) | g;
+    }
+    Arrays.sort(targetKeys, 0, numGroups);
+    Arrays.fill(sideTarget, 0, numSides, TARGET_UNKNOWN);
+
+    // Each attacking group fires at its target.
+    ArrayList<Long> attackerFleetIds = null;
+    ArrayList<Long> targetFleetIds = null;
+    ArrayList<Float> damages = null;
+    for (int g = 0; g < numGroups; g++) {
+      int first = groupFleets[groupStart[g]];
+      if (fleetState[first] != Fleet.FLEET_STATE.ATTACKING) {
+        continue;
+      }
+
+      int target = findTarget(fleetSide[first]);
+      if (target == TARGET_NONE) {
+        for (int i = groupStart[g]; i < groupStart[g + 1]; i++) {
+          setState(groupFleets[i], Fleet.FLEET_STATE.IDLE, roundTime);
+        }
+        continue;
+      }
+
+      Float baseAttack = fleetDesign[first].base_attack;
+      float damage = groupShips[g] * (baseAttack == null ? 0.0f : baseAttack);
+      groupDamage[target] += damage;
+
+      long targetFleetId = fleetId[groupFleets[groupStart[target]]];
+      for (int i = groupStart[g]; i < groupStart[g + 1]; i++) {
+        setTarget(groupFleets[i], targetFleetId);
+      }
+
+      if (attackerFleetIds == null) {
+        attackerFleetIds = new ArrayList<>();
+        targetFleetIds = new ArrayList<>();
+        damages = new ArrayList<>();
+      }
+      attackerFleetIds.add(fleetId[first]);
+      targetFleetIds.add(targetFleetId);
+      damages.add(damage);
+    }
+
+    if (attackerFleetIds != null) {
+      rounds.add(new CombatReport.Round.Builder()
+          .round_time(roundTime)
+          .attacker_fleet_ids(attackerFleetIds)
+          .target_fleet_ids(targetFleetIds)
+          .damage(damages)
+          .build());
+    }
+
+    // Apply the damage. Fleets that were attacked while idle will fight back next round.
+    for (int g = 0; g < numGroups; g++) {
+      if (groupDamage[g] <= 0.0f) {
+        continue;
+      }
+      int first = groupFleets[groupStart[g]];
+      if (fleetState[first] == Fleet.FLEET_STATE.IDLE
+          && fleetStance[first] != Fleet.FLEET_STANCE.PASSIVE) {
+        for (int i = groupStart[g]; i < groupStart[g + 1]; i++) {
+          setState(groupFleets[i], Fleet.FLEET_STATE.ATTACKING, roundTime);
+        }
+      }
+
+      Float baseDefence = fleetDesign[first].base_defence;
+      float shipsLost =
+          groupDamage[g] / (baseDefence == null || baseDefence <= 0.0f ? 1.0f : baseDefence);
+      for (int i = groupStart[g]; i < groupStart[g + 1] && shipsLost > 0.0f; i++) {
+        int f = groupFleets[i];
+        float lost = Math.min(fleetShips[f], shipsLost);
+        fleetShips[f] -= lost;
+        shipsLost -= lost;
+        fleetChanged[f] = true;
+        if (fleetShips[f] <= 0.0f) {
+          fleetShips[f] = 0.0f;
+          fleetDestroyed[f] = true;
+          fleetTimeDestroyed[f] = roundTime;
+        }
+      }
+    }
+
+    // If there's only one side left, the combat is over.
+    int side = -1;
+    boolean enemyExists = false;
+    for (int f = 0; f < numFleets && !enemyExists; f++) {
+      if (fleetDestroyed[f]) {
+        continue;
+      }
+      if (side < 0) {
+        side = fleetSide[f];
+      } else if (fleetSide[f] != side) {
+        enemyExists = true;
+      }
+    }
+    if (!enemyExists) {
+      for (int f = 0; f < numFleets; f++) {
+        if (!fleetDestroyed[f] && fleetState[f] == Fleet.FLEET_STATE.ATTACKING) {
+          setState(f, Fleet.FLEET_STATE.IDLE, roundTime);
+        }
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Finds the group that fleets on the given side will attack this round: the enemy group with
+   * the lowest combat priority. Each side's target is only looked for once per round.
+   */
+  private int findTarget(int side) {
+    if (sideTarget[side] == TARGET_UNKNOWN) {
+      sideTarget[side] = TARGET_NONE;
+      for (int i = 0; i < numGroups; i++) {
+        int g = (int) (targetKeys[i] & INDEX_MASK);
+        if (fleetSide[groupFleets[groupStart[g]]] != side) {
+          sideTarget[side] = g;
+          break;
+        }
+      }
+    }
+    return sideTarget[side];
+  }
+
+  /** Gets the key that fleets are grouped by: their side, design, stance and state. */
+  private long groupKey(int f) {
+    long key = fleetSide[f];
+    key = key * 256 + fleetDesign[f].type.getValue();
+    key = key * 4 + fleetStance[f].getValue();
+    key = key * 4 + fleetState[f].getValue();
+    return key;
+  }
+
+  private void setState(int f, Fleet.FLEET_STATE state, long time) {
+    fleetState[f] = state;
+    fleetStateStartTime[f] = time;
+    if (state != Fleet.FLEET_STATE.ATTACKING) {
+      fleetHasTarget[f] = false;
+    }
+    fleetChanged[f] = true;
+  }
+
+  private void setTarget(int f, long targetFleetId) {
+    if (!fleetHasTarget[f] || fleetTargetId[f] != targetFleetId) {
+      fleetHasTarget[f] = true;
+      fleetTargetId[f] = targetFleetId;
+      fleetChanged[f] = true;
+    }
+  }
+
+  /** Gets the index of the side with the given empire and alliance, adding it if it's new. */
+  private int findSide(Long empireId, Long allianceId) {
+    for (int s = 0; s < numSides; s++) {
+      if (allianceId != null) {
+        if (allianceId.equals(sideAllianceId[s])) {
+          return s;
+        }
+      } else if (sideAllianceId[s] == null
+          && Simulation.equalEmpire(empireId, sideEmpireId[s])) {
+        return s;
+      }
+    }
+    sideEmpireId[numSides] = empireId;
+    sideAllianceId[numSides] = allianceId;
+    return numSides++;
+  }
+
+  /** Fleets can fight if they're not moving, and haven't been destroyed already. */
+  private static boolean canFight(Fleet fleet, long now) {
+    return fleet.state != Fleet.FLEET_STATE.MOVING
+        && (fleet.time_destroyed == null || fleet.time_destroyed > now)
+        && fleet.num_ships != null && fleet.num_ships > 0.0f;
+  }
+
+  /**
+   * Fleets are friendly if they belong to the same empire (natives are all friendly with each
+   * other), or to the same alliance.
+   */
+  private static boolean isFriendly(Fleet fleet1, Fleet fleet2) {
+    if (fleet1.alliance_id != null || fleet2.alliance_id != null) {
+      return fleet1.alliance_id != null && fleet1.alliance_id.equals(fleet2.alliance_id);
+    }
+    return Simulation.equalEmpire(fleet1.empire_id, fleet2.empire_id);
+  }
+
+  private void ensureCapacity(int n) {
+    if (fleetListIndex.length >= n) {
+      return;
+    }
+    fleetListIndex = new int[n];
+    fleetId = new long[n];
+    fleetSide = new int[n];
+    fleetDesign = new Design[n];
+    fleetShips = new float[n];
+    fleetState = new Fleet.FLEET_STATE[n];
+    fleetStance = new Fleet.FLEET_STANCE[n];
+    fleetStateStartTime = new long[n];
+    fleetHasTarget = new boolean[n];
+    fleetTargetId = new long[n];
+    fleetDestroyed = new boolean[n];
+    fleetTimeDestroyed = new long[n];
+    fleetChanged = new boolean[n];
+
+    sideEmpireId = new Long[n];
+    sideAllianceId = new Long[n];
+    sideTarget = new int[n];
+
+    sortKeys = new long[n];
+    groupFleets = new int[n];
+    groupStart = new int[n + 1];
+    groupShips = new float[n];
+    groupDamage = new float[n];
+    targetKeys = new long[n];
+  }
+}
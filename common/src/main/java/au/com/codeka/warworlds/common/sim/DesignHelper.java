@@ -1,18 +1,21 @@
 package au.com.codeka.warworlds.common.sim;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Iterables;
-
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
 
-import javax.annotation.Nullable;
-
 import au.com.codeka.warworlds.common.proto.Building;
 import au.com.codeka.warworlds.common.proto.Colony;
 import au.com.codeka.warworlds.common.proto.Design;
 
 /**
  * Helper class for working with ship and building designs.
+ *
+ * <p>The designs never change, so the first time we need them we build a lookup table (see
+ * {@link Table}) with the design of each {@link Design.DesignType}, the designs of each
+ * {@link Design.DesignKind}, and the few things about each design that the simulation wants in a
+ * hurry. After that, all of the lookups here are O(1).
  */
 public class DesignHelper {
   /** Gets a list of all the {@link Design}s we have. */
@@ -21,24 +24,59 @@ public class DesignHelper {
   }
 
   /** Gets a list of all the {@link Design}s of the given {@link Design.DesignKind} we have. */
-  public static Iterable<Design> getDesigns(final Design.DesignKind kind) {
-    return Iterables.filter(getDesigns(), new Predicate<Design>() {
-      @Override
-      public boolean apply(@Nullable Design design) {
-        return design != null && design.design_kind.equals(kind);
-      }
-    });
+  public static List<Design> getDesigns(Design.DesignKind kind) {
+    List<Design> designs = Table.designsByKind.get(kind);
+    if (designs == null) {
+      return Collections.emptyList();
+    }
+    return designs;
   }
 
   /** Gets the {@link Design} with the given identifier. */
   public static Design getDesign(Design.DesignType type) {
-    for (Design design : getDesigns()) {
-      if (design.type.equals(type)) {
-        return design;
-      }
+    Design design = Table.designs[type.ordinal()];
+    if (design == null) {
+      throw new IllegalStateException("No design with id=" + type + " found.");
+    }
+    return design;
+  }
+
+  /** Gets the number of minerals it costs to build one of the given design. */
+  public static float getBuildCostMinerals(Design.DesignType type) {
+    if (Table.designs[type.ordinal()] == null) {
+      throw new IllegalStateException("No design with id=" + type + " found.");
+    }
+    return Table.buildCostMinerals[type.ordinal()];
+  }
+
+  /** Gets the population (i.e. the number of workers) it takes to build one of the given design. */
+  public static float getBuildCostPopulation(Design.DesignType type) {
+    if (Table.designs[type.ordinal()] == null) {
+      throw new IllegalStateException("No design with id=" + type + " found.");
+    }
+    return Table.buildCostPopulation[type.ordinal()];
+  }
+
+  /**
+   * Checks whether the given colony has the buildings it needs to build the given design (if level
+   * is 0 or 1) or to upgrade a building of the given design to the given level.
+   */
+  public static boolean hasDependencies(Colony colony, Design design, int level) {
+    Dependencies dependencies = Table.getDependencies(design, level);
+    if (dependencies == null) {
+      return true;
     }
 
-    throw new IllegalStateException("No design with id=" + type + " found.");
+    int[] buildingLevels = getBuildingLevels(colony);
+    if ((dependencies.typeMask & ~getBuildingMask(buildingLevels)) != 0) {
+      return false;
+    }
+    for (int i = 0; i < dependencies.types.length; i++) {
+      if (buildingLevels[dependencies.types[i]] < dependencies.levels[i]) {
+        return false;
+      }
+    }
+    return true;
   }
 
   /** Gets the display name of the given design, correctly pluralized. */
@@ -56,40 +94,163 @@ public class DesignHelper {
    */
   // TODO: localize this string
   public static String getDependenciesHtml(Colony colony, Design design, int level) {
-    String required = "Required: ";
-    List<Design.Dependency> dependencies = design.dependencies;
-    if (level > 1) {
-      dependencies = design.upgrades.get(level - 2).dependencies;
-    }
+    StringBuilder required = new StringBuilder("Required: ");
+    Dependencies dependencies = Table.getDependencies(design, level);
 
-    if (dependencies == null || dependencies.size() == 0) {
-      required += "none";
+    if (dependencies == null) {
+      required.append("none");
     } else {
-      int n = 0;
-      for (Design.Dependency dep : dependencies) {
-        if (n > 0) {
-          required += ", ";
+      int[] buildingLevels = getBuildingLevels(colony);
+      for (int i = 0; i < dependencies.types.length; i++) {
+        if (i > 0) {
+          required.append(", ");
         }
 
-        boolean isMet = false;
-        for (Building building : colony.buildings) {
-          if (building.design_type.equals(dep.type) && building.level >= dep.level) {
-            isMet = true;
-            break;
-          }
+        int depLevel = dependencies.levels[i];
+        boolean isMet = buildingLevels[dependencies.types[i]] >= depLevel;
+        Design dependentDesign = Table.designs[dependencies.types[i]];
+        required.append("<font color=\"").append(isMet ? "green" : "red").append("\">");
+        required.append(dependentDesign.display_name);
+        if (depLevel > 1) {
+          required.append(" lvl ").append(depLevel);
         }
+        required.append("</font>");
+      }
+    }
+
+    return required.toString();
+  }
 
-        Design dependentDesign = getDesign(dep.type);
-        required += "<font color=\""+(isMet ? "green" : "red")+"\">";
-        required += dependentDesign.display_name;
-        if (dep.level > 1) {
-          required += " lvl " + dep.level;
+  /**
+   * Gets the highest level of each kind of building on the given colony, indexed by the ordinal of
+   * its {@link Design.DesignType} (0 if the colony doesn't have one).
+   */
+  private static int[] getBuildingLevels(Colony colony) {
+    int[] levels = new int[Table.designs.length];
+    if (colony.buildings != null) {
+      for (Building building : colony.buildings) {
+        int type = building.design_type.ordinal();
+        int level = building.level == null ? 1 : building.level;
+        if (level > levels[type]) {
+          levels[type] = level;
         }
-        required += "</font>";
-        n++;
       }
     }
+    return levels;
+  }
+
+  /** Gets a mask of the {@link Design.DesignType}s that the given building levels include. */
+  private static long getBuildingMask(int[] buildingLevels) {
+    long mask = 0;
+    for (int i = 0; i < buildingLevels.length; i++) {
+      if (buildingLevels[i] > 0) {
+        mask |= 1L << i;
+      }
+    }
+    return mask;
+  }
+
+  /** The dependencies of one level of a design, flattened out of the {@link Design.Dependency}s. */
+  private static class Dependencies {
+    /** The ordinals of the {@link Design.DesignType}s of the buildings we need. */
+    final int[] types;
 
-    return required;
+    /** The minimum level of each of the buildings in {@link #types}. */
+    final int[] levels;
+
+    /** A mask with a bit set for the ordinal of each of {@link #types}. */
+    final long typeMask;
+
+    Dependencies(List<Design.Dependency> dependencies) {
+      types = new int[dependencies.size()];
+      levels = new int[dependencies.size()];
+      long mask = 0;
+      for (int i = 0; i < dependencies.size(); i++) {
+        Design.Dependency dep = dependencies.get(i);
+        types[i] = dep.type.ordinal();
+        levels[i] = dep.level == null ? 1 : dep.level;
+        mask |= 1L << types[i];
+      }
+      typeMask = mask;
+    }
+  }
+
+  /**
+   * The lookup table for our designs. It's a separate class so that it's only built the first time
+   * we need it (and so that the JVM takes care of making that thread-safe).
+   */
+  private static class Table {
+    /** The design of each {@link Design.DesignType}, indexed by ordinal. */
+    static final Design[] designs = new Design[Design.DesignType.values().length];
+
+    static final EnumMap<Design.DesignKind, List<Design>> designsByKind =
+        new EnumMap<>(Design.DesignKind.class);
+
+    static final float[] buildCostMinerals = new float[designs.length];
+    static final float[] buildCostPopulation = new float[designs.length];
+
+    /**
+     * The dependencies of each design, indexed by ordinal and then level - 1 (so the dependencies
+     * of the design itself come first, then those of each upgrade). Null if there are none.
+     */
+    static final Dependencies[][] dependencies = new Dependencies[designs.length][];
+
+    static {
+      // The masks in Dependencies have one bit per design type.
+      if (designs.length > Long.SIZE) {
+        throw new IllegalStateException("Too many design types: " + designs.length);
+      }
+
+      EnumMap<Design.DesignKind, ArrayList<Design>> byKind =
+          new EnumMap<>(Design.DesignKind.class);
+      for (Design design : DesignDefinitions.designs.designs) {
+        int index = design.type.ordinal();
+        designs[index] = design;
+
+        ArrayList<Design> kindDesigns = byKind.get(design.design_kind);
+        if (kindDesigns == null) {
+          kindDesigns = new ArrayList<>();
+          byKind.put(design.design_kind, kindDesigns);
+        }
+        kindDesigns.add(design);
+
+        if (design.build_cost != null) {
+          buildCostMinerals[index] = valueOf(design.build_cost.minerals);
+          buildCostPopulation[index] = valueOf(design.build_cost.population);
+        }
+
+        int numLevels = 1 + (design.upgrades == null ? 0 : design.upgrades.size());
+        dependencies[index] = new Dependencies[numLevels];
+        dependencies[index][0] = newDependencies(design.dependencies);
+        for (int level = 1; level < numLevels; level++) {
+          dependencies[index][level] =
+              newDependencies(design.upgrades.get(level - 1).dependencies);
+        }
+      }
+      for (Design.DesignKind kind : byKind.keySet()) {
+        designsByKind.put(kind, Collections.unmodifiableList(byKind.get(kind)));
+      }
+    }
+
+    /** Gets the dependencies of the given level of the given design, or null if there are none. */
+    static Dependencies getDependencies(Design design, int level) {
+      Dependencies[] levels = dependencies[design.type.ordinal()];
+      int index = Math.max(level, 1) - 1;
+      if (levels == null || index >= levels.length) {
+        return null;
+      }
+      return levels[index];
+    }
+
+    private static Dependencies newDependencies(List<Design.Dependency> dependencies) {
+      if (dependencies == null || dependencies.isEmpty()) {
+        return null;
+      }
+      return new Dependencies(dependencies);
+    }
+
+    private static float valueOf(Integer value) {
+      return value == null ? 0.0f : value;
+    }
   }
 }
@@ -2,31 +2,59 @@ package au.com.codeka.warworlds.common.sim;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
+import com.google.common.base.Objects;
+
 import au.com.codeka.warworlds.common.Log;
 import au.com.codeka.warworlds.common.Time;
-import au.com.codeka.warworlds.common.proto.BuildRequest;
-import au.com.codeka.warworlds.common.proto.Colony;
-import au.com.codeka.warworlds.common.proto.Design;
-import au.com.codeka.warworlds.common.proto.EmpireStorage;
+import au.com.codeka.warworlds.common.proto.CombatReport;
 import au.com.codeka.warworlds.common.proto.Fleet;
 import au.com.codeka.warworlds.common.proto.Planet;
 import au.com.codeka.warworlds.common.proto.Star;
 
-/** This class is used to simulate a {@link Star}. */
+/**
+ * This class is used to simulate a {@link Star}. An instance can be used to simulate any number of
+ * stars, one after the other, but not from more than one thread at a time.
+ */
 public class Simulation {
+  private static final Log log = new Log("Simulation");
   private final LogHandler logHandler;
   private final boolean predict;
   private long timeOverride;
+  private boolean fastForward = true;
+  @Nullable private Set<Long> changedEmpireIds;
+  @Nullable private SimulationProfile profile;
+  @Nullable private Executor empireExecutor;
+
+  /** Whether {@link #simulateStep} should record the time of each phase in the profile. */
+  private boolean profilePhases;
+
+  /**
+   * The state we simulate the star on, and the state we predict on. These are scratch space,
+   * re-used by every call to {@link #simulate} on this instance.
+   */
+  private final SimulationState state = new SimulationState();
+  private final SimulationState predictionState = new SimulationState();
+  private final CombatSimulator combatSimulator = new CombatSimulator();
 
   private static final boolean sDebug = false;
 
-  /** Step time is 10 minutes. */
-  private static final long STEP_TIME = 10 * Time.MINUTE;
+  /** Step time is 10 minutes. A star's last_simulation is always a multiple of this. */
+  public static final long STEP_TIME = 10 * Time.MINUTE;
+
+  /** The maximum number of rounds of combat we keep in a star's combat report. */
+  private static final int MAX_COMBAT_ROUNDS = 100;
+
+  /** The minimum number of empires a star needs before we'll simulate them in parallel. */
+  private static final int MIN_PARALLEL_EMPIRES = 3;
 
   public Simulation() {
     this(System.currentTimeMillis(), true, sDebug ? new BasicLogHandler() : null);
@@ -50,6 +78,55 @@ public class Simulation {
     this.logHandler = logHandler;
   }
 
+  /**
+   * Sets whether we'll fast-forward over periods where the star is in a steady state (see
+   * {@link #isSteadyState}), rather than simulating every step. The stored totals of a
+   * fast-forwarded star are within floating point rounding of a step-by-step simulation, everything
+   * else is identical. This is on by default.
+   */
+  public void setFastForward(boolean fastForward) {
+    this.fastForward = fastForward;
+  }
+
+  /**
+   * Tells us that the star we're about to simulate was already simulated (with prediction) up to
+   * the current step, and the only thing that has changed since then is the given empires'
+   * colonies (e.g. the player adjusted a focus, or added a build request). If the star is in fact
+   * still up-to-date when we simulate it, we only re-predict those empires. Every other empire's
+   * predicted values (storage deltas and build end times) are left as they were, because nothing
+   * they depend on has changed. If the star needs simulating, this is ignored.
+   *
+   * @param changedEmpireIds The IDs of the empires that have changed (null for natives), or null
+   *     to predict every empire as normal.
+   */
+  public void setIncremental(@Nullable Set<Long> changedEmpireIds) {
+    this.changedEmpireIds = changedEmpireIds;
+  }
+
+  /**
+   * Sets the {@link Executor} we'll use to simulate each empire's step in parallel, on stars with
+   * enough empires for it to be worth it (i.e. contested stars). Each empire's step only touches
+   * its own partition of the {@link SimulationState} (its colonies and its storage), so the
+   * empires can be simulated concurrently, and the result is exactly the same as simulating them
+   * one after the other. The calling thread simulates empires too, so the executor doesn't need any
+   * free threads for us to make progress.
+   *
+   * <p>If this is null (the default), or there's a {@link LogHandler} (so that the log makes
+   * sense), every empire is simulated serially on the calling thread.
+   */
+  public void setEmpireExecutor(@Nullable Executor empireExecutor) {
+    this.empireExecutor = empireExecutor;
+  }
+
+  /**
+   * Sets the {@link SimulationProfile} to record where the time goes when we simulate a star. It's
+   * reset at the start of each call to {@link #simulate}. Profiling is off if this is null, which
+   * is the default.
+   */
+  public void setProfile(@Nullable SimulationProfile profile) {
+    this.profile = profile;
+  }
+
   /**
    * Simulate the given star, and make sure it's "current".
    *
@@ -58,6 +135,11 @@ public class Simulation {
    */
   @Nullable
   public void simulate(Star.Builder star) {
+    long simulateStartTime = 0;
+    if (profile != null) {
+      profile.reset();
+      simulateStartTime = System.nanoTime();
+    }
     if (logHandler != null) {
       logHandler.setStarName(star.name);
     }
@@ -77,96 +159,130 @@ public class Simulation {
         empireIds.add(planet.colony.empire_id);
       }
     }
+    if (changedEmpireIds != null && startTime >= endTime) {
+      // Each empire's simulation only depends on its own colonies, so the last prediction is still
+      // good for everybody that hasn't changed.
+      empireIds.retainAll(changedEmpireIds);
+      log("Star is up-to-date, only predicting %d changed empire(s).", empireIds.size());
+    }
+
+    // We load everything we need into a SimulationState once, and step that in-place. It's only
+    // written back to the star once we're done.
+    state.load(star, empireIds);
+
+    // Any rounds of combat from startTime on were only predicted, we'll simulate them again.
+    ArrayList<CombatReport.Round> combatRounds = new ArrayList<>();
+    if (star.combat_report != null) {
+      for (CombatReport.Round round : star.combat_report.rounds) {
+        if (round.round_time < startTime) {
+          combatRounds.add(round);
+        }
+      }
+    }
+    ArrayList<Fleet> predictionFleets = null;
+    ArrayList<CombatReport.Round> predictionRounds = null;
 
     // We'll simulate in "prediction mode" for an extra bit of time so that we can get a
     // more accurate estimate of the end time for builds. We won't *record* the population
     // growth and such, just the end time of builds. We'll also record the time that the
     // population drops below a certain threshold so that we can warn the player.
     long predictionTime = endTime + Time.DAY;
-    Star.Builder predictionStar = null;
+    boolean predicting = false;
+    long predictionStartTime = 0;
     long now = startTime;
     while (true) {
       if (now < endTime) {
-        simulateStepForAllEmpires(now, star, empireIds);
-      } else if (predictionStar == null) {
+        // The deltas calculated in a step are based on the populations at the start of that step,
+        // so we need the star to be steady both before and after a step before we can trust them.
+        boolean wasSteady = fastForward && isSteadyState(star.fleets, state);
+        simulateStepForAllEmpires(now, star.fleets, combatRounds, state, false);
+
+        // If the star is in a steady state, we can skip straight to the last step before the end
+        // time. We still simulate that last step, so that the deltas are all exactly right.
+        long numSteps = (endTime - now) / STEP_TIME - 2;
+        if (wasSteady && numSteps > 0 && isSteadyState(star.fleets, state)) {
+          log("Steady state, fast-forwarding %d steps", numSteps);
+          fastForward(state, numSteps);
+          now += numSteps * STEP_TIME;
+          if (profile != null) {
+            profile.addFastForwardSteps(numSteps);
+          }
+        }
+      } else if (!predicting) {
         // We always predict at least one more step, so that we can put the deltas from the next
         // step in (since they'll take into account things like focus changes, new builds, etc that
         // the user has applied in THIS step).
-        predictionStar = star.build().newBuilder();
+        predicting = true;
+        if (profile != null) {
+          predictionStartTime = System.nanoTime();
+        }
+        predictionState.copyFrom(state);
+        predictionFleets = new ArrayList<>(star.fleets);
+        predictionRounds = new ArrayList<>(combatRounds);
         log("Begin prediction");
-        simulateStepForAllEmpires(now, predictionStar, empireIds);
-        copyDeltas(star, predictionStar);
+        simulateStepForAllEmpires(now, predictionFleets, predictionRounds, predictionState, true);
+        state.copyDeltasFrom(predictionState);
+
+        // If the prediction star is in a steady state, there's no builds to predict end times for,
+        // so there's no point predicting any further.
+        if (fastForward && isSteadyState(predictionFleets, predictionState)) {
+          log("Steady state, skipping prediction");
+          break;
+        }
       } else if (predict && now < predictionTime) {
-        simulateStepForAllEmpires(now, predictionStar, empireIds);
+        simulateStepForAllEmpires(now, predictionFleets, predictionRounds, predictionState, true);
       } else {
         break;
       }
       now += STEP_TIME;
     }
 
+    if (profile != null) {
+      profile.addTime(SimulationProfile.Phase.PREDICTION, System.nanoTime() - predictionStartTime);
+    }
+
     // copy the end times for builds from the prediction star
-    for (int i = 0; i < star.planets.size(); i++) {
-      Planet predictionPlanet = predictionStar.planets.get(i);
-      Planet.Builder planet = star.planets.get(i).newBuilder();
-      if (planet.colony == null || predictionPlanet.colony == null
-          || planet.colony.build_requests == null
-          || predictionPlanet.colony.build_requests == null) {
-        continue;
-      }
+    state.copyBuildEndTimesFrom(predictionState);
 
-      ArrayList<BuildRequest> buildRequests = new ArrayList<>();
-      for (BuildRequest predictionBuildRequest : predictionPlanet.colony.build_requests) {
-        for (int j = 0; j < planet.colony.build_requests.size(); j++) {
-          BuildRequest.Builder br = planet.colony.build_requests.get(j).newBuilder();
-          if (predictionBuildRequest.id.equals(br.id)) {
-            buildRequests.add(br.end_time(predictionBuildRequest.end_time).build());
-          }
-        }
+    // Any fleets that *will be* destroyed, remember the time of their death. Combat only ever
+    // replaces fleets in the list, so the predicted fleets are at the same index as the real ones.
+    for (int i = 0; i < star.fleets.size(); i++) {
+      Fleet fleet = star.fleets.get(i);
+      Fleet predictedFleet = predictionFleets.get(i);
+      if (!Objects.equal(fleet.time_destroyed, predictedFleet.time_destroyed)) {
+        log("Fleet #%d updating time_destroyed to: %s", fleet.id, predictedFleet.time_destroyed);
+        star.fleets.set(i, fleet.newBuilder()
+            .time_destroyed(predictedFleet.time_destroyed)
+            .build());
       }
-      planet.colony(planet.colony.newBuilder().build_requests(buildRequests).build());
-      star.planets.set(i, planet.build());
     }
-/*
-    // any fleets that *will be* destroyed, remember the time of their death
-    for (BaseFleet fleet : star.getFleets()) {
-      for (BaseFleet predictedFleet : predictionStar.getFleets()) {
-        if (fleet.getKey().equals(predictedFleet.getKey())) {
-          log(String.format("Fleet #%s updating timeDestroyed to: %s", fleet.getKey(), predictedFleet.getTimeDestroyed()));
-          fleet.setTimeDestroyed(predictedFleet.getTimeDestroyed());
-        }
+
+    // Fleets that were destroyed before the time we've simulated up to are gone now.
+    for (int i = star.fleets.size() - 1; i >= 0; i--) {
+      Long timeDestroyed = star.fleets.get(i).time_destroyed;
+      if (timeDestroyed != null && timeDestroyed <= endTime) {
+        log("Fleet #%d was destroyed, removing it.", star.fleets.get(i).id);
+        star.fleets.remove(i);
       }
     }
 
-    // if the empire is going to run out of resources, save that time as well.
-    for (BaseEmpirePresence empirePresence : star.getEmpirePresences()) {
-      for (BaseEmpirePresence predictedEmpirePresence : predictionStar.getEmpirePresences()) {
-        if (empirePresence.getKey().equals(predictedEmpirePresence.getKey())) {
-          empirePresence.setGoodsZeroTime(predictedEmpirePresence.getGoodsZeroTime());
-        }
+    // Also, the prediction's combat report (if any) is the one to use.
+    if (predictionRounds.isEmpty()) {
+      star.combat_report = null;
+    } else {
+      if (predictionRounds.size() > MAX_COMBAT_ROUNDS) {
+        predictionRounds.subList(0, predictionRounds.size() - MAX_COMBAT_ROUNDS).clear();
       }
+      star.combat_report = new CombatReport.Builder().rounds(predictionRounds).build();
     }
 
-    // also, the prediction combat report (if any) is the one to use
-    star.setCombatReport(predictionStar.getCombatReport());
-    */
 
+    state.save(star);
     star.last_simulation = endTime;
-  }
 
-  /**
-   * After simulating one more step in the prediction star, copy the mineral, goods and energy
-   * deltas across to the main star.
-   */
-  private void copyDeltas(Star.Builder star, Star.Builder predictionStar) {
-    ArrayList<EmpireStorage> stores = new ArrayList<>();
-    for (int i = 0; i < star.empire_stores.size(); i++) {
-      stores.add(star.empire_stores.get(i).newBuilder()
-          .minerals_delta_per_hour(predictionStar.empire_stores.get(i).minerals_delta_per_hour)
-          .goods_delta_per_hour(predictionStar.empire_stores.get(i).goods_delta_per_hour)
-          .energy_delta_per_hour(predictionStar.empire_stores.get(i).energy_delta_per_hour)
-          .build());
-    }
-    star.empire_stores(stores);
+    if (profile != null) {
+      profile.setTotalNanos(System.nanoTime() - simulateStartTime);
+    }
   }
 
   /**
@@ -208,110 +324,201 @@ public class Simulation {
     return trimTimeToStep(lastSimulation);
   }
 
+  /**
+   * Checks whether the given state is in a "steady state", that is, simulating another step would
+   * change nothing but the stored totals, and those only increase (up to their maximum) by the same
+   * amount each step. That's the case if:
+   * <ul>
+   *   <li>There's no builds in progress, or waiting to start.</li>
+   *   <li>Every colony is at its max population, and not in its cooldown period.</li>
+   *   <li>No empire's goods, minerals or energy are decreasing.</li>
+   *   <li>None of the fleets are attacking (fleets that are moving don't change while we
+   *       simulate, they're taken care of by the server when they arrive).</li>
+   * </ul>
+   *
+   * <p>The deltas are only meaningful after simulating at least one step, so if this hasn't
+   * happened yet (the deltas are null), the star is not considered steady.
+   */
+  private boolean isSteadyState(List<Fleet> fleets, SimulationState state) {
+    for (int c = 0; c < state.numColonies; c++) {
+      // Colonies of empires we're not simulating never change, so they can't stop us being steady.
+      if (state.colonyEmpire[c] < 0) {
+        continue;
+      }
+      for (int b = state.colonyFirstBuildRequest[c]; b < state.colonyFirstBuildRequest[c + 1];
+          b++) {
+        if (state.buildProgress[b] < 1.0f) {
+          return false;
+        }
+      }
+      if (state.hasCooldown[c]) {
+        return false;
+      }
+      if (state.population[c] != state.maxPopulation[c]) {
+        return false;
+      }
+    }
+
+    for (int e = 0; e < state.numEmpires; e++) {
+      if (!state.hasDeltas[e] || state.goodsDeltaPerHour[e] < 0.0f
+          || state.mineralsDeltaPerHour[e] < 0.0f || state.energyDeltaPerHour[e] < 0.0f) {
+        return false;
+      }
+    }
+
+    for (int i = 0; i < fleets.size(); i++) {
+      if (fleets.get(i).state == Fleet.FLEET_STATE.ATTACKING) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Fast-forwards a state that is in a steady state (see {@link #isSteadyState}) by the given
+   * number of steps. The only thing that changes is the stored totals, which go up by their delta
+   * each step, up to their maximum.
+   */
+  private void fastForward(SimulationState state, long numSteps) {
+    float hours = Time.toHours(STEP_TIME) * numSteps;
+    for (int e = 0; e < state.numEmpires; e++) {
+      state.totalGoods[e] = Math.min(
+          state.maxGoods[e], state.totalGoods[e] + state.goodsDeltaPerHour[e] * hours);
+      state.totalMinerals[e] = Math.min(
+          state.maxMinerals[e], state.totalMinerals[e] + state.mineralsDeltaPerHour[e] * hours);
+      state.totalEnergy[e] = Math.min(
+          state.maxEnergy[e], state.totalEnergy[e] + state.energyDeltaPerHour[e] * hours);
+    }
+  }
+
   /** Trims a time to the step time. */
   private static long trimTimeToStep(long time) {
     return (time / STEP_TIME) * STEP_TIME;
   }
 
-  private void simulateStepForAllEmpires(long now, Star.Builder star, Set<Long> empireIds) {
-    log("- Step [now=%s]", Time.format(now));
-    for (Long empireId : empireIds) {
-      log(String.format("-- Empire [%s]", empireId == null ? "Native" : empireId));
-      simulateStep(now, star, empireId);
+  private void simulateStepForAllEmpires(long now, List<Fleet> fleets,
+      List<CombatReport.Round> combatRounds, SimulationState state, boolean predicting) {
+    if (logHandler != null) {
+      log("- Step [now=%s]", Time.format(now));
     }
+    boolean parallel = empireExecutor != null && logHandler == null
+        && state.numEmpires >= MIN_PARALLEL_EMPIRES;
 
-    // Don't forget to simulate combat for this step as well.
-    simulateCombat(star, now);
-  }
+    // We only break the step down into phases if it's not part of the prediction, and the empires
+    // are being simulated on this thread.
+    profilePhases = profile != null && !predicting && !parallel;
+    if (parallel) {
+      long startTime = profile != null && !predicting ? System.nanoTime() : 0;
+      new ParallelStep(now, state).run(empireExecutor);
+      if (profile != null && !predicting) {
+        profile.addTime(SimulationProfile.Phase.EMPIRE_STEPS, System.nanoTime() - startTime);
+      }
+    } else {
+      for (int e = 0; e < state.numEmpires; e++) {
+        if (logHandler != null) {
+          Long empireId = state.empireIds[e];
+          log("-- Empire [%s]", empireId == null ? "Native" : empireId);
+        }
+        simulateStep(now, state, e);
+      }
+    }
+    state.stepped = true;
 
-  private void simulateStep(long now, Star.Builder star, @Nullable Long empireId) {
-    float totalPopulation = 0.0f;
+    // Don't forget to simulate combat for this step as well.
+    long combatStartTime = profile != null && !predicting ? System.nanoTime() : 0;
+    combatSimulator.simulateStep(fleets, combatRounds, now, STEP_TIME);
 
-    EmpireStorage.Builder storage = null;
-    int storageIndex = -1;
-    for (int i = 0; i < star.empire_stores.size(); i++) {
-      if (!equalEmpire(star.empire_stores.get(i).empire_id, empireId)) {
-        continue;
+    if (profile != null) {
+      // The prediction is timed as a whole, in simulate().
+      if (!predicting) {
+        profile.addTime(SimulationProfile.Phase.COMBAT, System.nanoTime() - combatStartTime);
       }
-      storageIndex = i;
-      storage = star.empire_stores.get(i).newBuilder();
-    }
-    if (storage == null) {
-      log("No storage found for this empire!");
-      return;
+      profile.addStep(predicting);
     }
+  }
+
+  /**
+   * Simulates one step for the given empire. This runs once for every empire on every step, so it
+   * works only on the arrays in the {@link SimulationState} and must not allocate. Log calls are
+   * guarded so that we don't box their arguments when there's no {@link LogHandler}.
+   */
+  private void simulateStep(long now, SimulationState state, int empire) {
+    long startTime = profilePhases ? System.nanoTime() : 0;
+    float totalPopulation = 0.0f;
 
     float dt = Time.toHours(STEP_TIME);
     float goodsDeltaPerHour = 0.0f;
     float mineralsDeltaPerHour = 0.0f;
     float energyDeltaPerHour = 0.0f;
 
-    for (int i = 0; i < star.planets.size(); i++) {
-      Planet planet = star.planets.get(i);
-      if (planet.colony == null) {
+    for (int c = 0; c < state.numColonies; c++) {
+      if (state.colonyEmpire[c] != empire) {
         continue;
       }
-      Colony.Builder colony = planet.colony.newBuilder();
-      if (!equalEmpire(colony.empire_id, empireId)) {
-        continue;
+      float population = state.population[c];
+      if (logHandler != null) {
+        log("--- Colony [planetIndex=%d] [population=%.2f]", state.colonyPlanetIndex[c],
+            population);
       }
 
-      log("--- Colony [planetIndex=%d] [population=%.2f]", i, colony.population);
-
       // Calculate the output from farming this turn and add it to the star global
       float goods =
-          colony.population * colony.focus.farming * (planet.farming_congeniality / 100.0f);
-      colony.delta_goods(goods);
-      storage.total_goods(storage.total_goods + goods * dt);
+          population * state.focusFarming[c] * (state.farmingCongeniality[c] / 100.0f);
+      state.deltaGoods[c] = goods;
+      state.totalGoods[empire] += goods * dt;
       goodsDeltaPerHour += goods;
-      log("    Goods: [total=%.2f] [delta=%.2f / hr] [this turn=%.2f]",
-          storage.total_goods, goods, goods * dt);
+      if (logHandler != null) {
+        log("    Goods: [total=%.2f] [delta=%.2f / hr] [this turn=%.2f]",
+            state.totalGoods[empire], goods, goods * dt);
+      }
 
       // calculate the output from mining this turn and add it to the star global
       float minerals =
-          colony.population * colony.focus.mining * (planet.mining_congeniality / 100.0f);
-      colony.delta_minerals(minerals);
-      storage.total_minerals(storage.total_minerals + minerals * dt);
+          population * state.focusMining[c] * (state.miningCongeniality[c] / 100.0f);
+      state.deltaMinerals[c] = minerals;
+      state.totalMinerals[empire] += minerals * dt;
       mineralsDeltaPerHour += minerals;
-      log("    Minerals: [total=%.2f] [delta=%.2f / hr] [this turn=%.2f]",
-          storage.total_minerals, minerals, minerals * dt);
+      if (logHandler != null) {
+        log("    Minerals: [total=%.2f] [delta=%.2f / hr] [this turn=%.2f]",
+            state.totalMinerals[empire], minerals, minerals * dt);
+      }
 
       // calculate the output from energy this turn and add it to the star global
       float enegry =
-          colony.population * colony.focus.energy * (planet.energy_congeniality / 100.0f);
-      colony.delta_energy(enegry);
-      storage.total_energy(storage.total_energy + enegry * dt);
+          population * state.focusEnergy[c] * (state.energyCongeniality[c] / 100.0f);
+      state.deltaEnergy[c] = enegry;
+      state.totalEnergy[empire] += enegry * dt;
       energyDeltaPerHour += enegry;
-      log("    Energy: [total=%.2f] [delta=%.2f / hr] [this turn=%.2f]",
-          storage.total_energy, enegry, enegry * dt);
+      if (logHandler != null) {
+        log("    Energy: [total=%.2f] [delta=%.2f / hr] [this turn=%.2f]",
+            state.totalEnergy[empire], enegry, enegry * dt);
+      }
 
-      totalPopulation += colony.population;
+      totalPopulation += population;
+    }
 
-      star.planets.set(i, planet.newBuilder().colony(colony.build()).build());
+    long buildStartTime = 0;
+    if (profilePhases) {
+      buildStartTime = System.nanoTime();
+      profile.addTime(SimulationProfile.Phase.RESOURCES, buildStartTime - startTime);
     }
 
     // A second loop though the colonies, once the goods/minerals have been calculated.
-    for (int i = 0; i < star.planets.size(); i++) {
-      Planet.Builder planet = star.planets.get(i).newBuilder();
-      if (planet.colony == null) {
-        continue;
-      }
-      Colony.Builder colony = planet.colony.newBuilder();
-      if (!equalEmpire(colony.empire_id, empireId)) {
-        continue;
-      }
-      if (colony.build_requests == null || colony.build_requests.isEmpty()) {
+    for (int c = 0; c < state.numColonies; c++) {
+      if (state.colonyEmpire[c] != empire) {
         continue;
       }
+      int firstBuildRequest = state.colonyFirstBuildRequest[c];
+      int lastBuildRequest = state.colonyFirstBuildRequest[c + 1];
 
       // not all build requests will be processed this turn. We divide up the population
       // based on the number of ACTUAL build requests they'll be working on this turn
       int numValidBuildRequests = 0;
-      for (BuildRequest br : colony.build_requests) {
-        if (br.start_time > now) {
+      for (int b = firstBuildRequest; b < lastBuildRequest; b++) {
+        if (state.buildStartTime[b] > now) {
           continue;
         }
-        if (br.progress >= 1.0f) {
+        if (state.buildProgress[b] >= 1.0f) {
           continue;
         }
 
@@ -321,98 +528,101 @@ public class Simulation {
 
       // If we have pending build requests, we'll have to update them as well
       if (numValidBuildRequests > 0) {
-        float totalWorkers = colony.population * colony.focus.construction;
+        float totalWorkers = state.population[c] * state.focusConstruction[c];
         float workersPerBuildRequest = totalWorkers / numValidBuildRequests;
-        float mineralsPerBuildRequest = storage.total_minerals / numValidBuildRequests;
+        float mineralsPerBuildRequest = state.totalMinerals[empire] / numValidBuildRequests;
 
-        log("--- Building [buildRequests=%d] [planetIndex=%d] [totalWorker=%.2f] [totalMinerals=%.2f]",
-            numValidBuildRequests, planet.index, totalWorkers, storage.total_minerals);
+        if (logHandler != null) {
+          log("--- Building [buildRequests=%d] [planetIndex=%d] [totalWorker=%.2f] "
+              + "[totalMinerals=%.2f]", numValidBuildRequests, state.colonyPlanetIndex[c],
+              totalWorkers, state.totalMinerals[empire]);
+        }
 
         // OK, we can spare at least ONE population
         if (workersPerBuildRequest < 1.0f) {
           workersPerBuildRequest = 1.0f;
         }
 
-        ArrayList<BuildRequest> completeBuildRequests = new ArrayList<>();
-        for (int j = 0; j < colony.build_requests.size(); j++) {
-          BuildRequest.Builder br = colony.build_requests.get(j).newBuilder();
-          Design design = DesignHelper.getDesign(br.design_type);
-
-          long startTime = br.start_time;
-          if (startTime > now || br.progress >= 1.0f) {
-            completeBuildRequests.add(br.build());
+        for (int b = firstBuildRequest; b < lastBuildRequest; b++) {
+          float progress = state.buildProgress[b];
+          if (state.buildStartTime[b] > now || progress >= 1.0f) {
             continue;
           }
 
           // the build cost is defined by the original design, or possibly by the upgrade if that
           // is what it is.
-          Design.BuildCost buildCost = design.build_cost;
-          //if (br.mExistingFleetID != null) {
-          //  ShipDesign shipDesign = (ShipDesign) design;
-          //  ShipDesign.Upgrade upgrade = shipDesign.getUpgrade(br.getUpgradeID());
-          //  buildCost = upgrade.getBuildCost();
-          //}
-
-          log("---- Building [design=%s %s] [count=%d] cost [workers=%d] [minerals=%d]",
-              design.design_kind, design.type, br.count, buildCost.population, buildCost.minerals);
+          float costPopulation = state.buildCostPopulation[b];
+          float costMinerals = state.buildCostMinerals[b];
+          if (logHandler != null) {
+            log("---- Building [index=%d] cost [workers=%.0f] [minerals=%.0f]",
+                b - firstBuildRequest, costPopulation, costMinerals);
+          }
 
           // The total amount of time to build something is based on the number of workers it
           // requires, if you have the right number of workers and the right amount of minerals,
           // you can finish the build in one turn. We require whatever fraction of progress is left
           // of both minerals and workers.
-          float totalWorkersRequired = buildCost.population * (1.0f - br.progress);
-          float totalMineralsRequired = buildCost.minerals * (1.0f - br.progress);
-          log("     Required: [population=%.2f] [minerals=%.2f]",
-              totalWorkersRequired, totalMineralsRequired);
+          float totalWorkersRequired = costPopulation * (1.0f - progress);
+          float totalMineralsRequired = costMinerals * (1.0f - progress);
+          if (logHandler != null) {
+            log("     Required: [population=%.2f] [minerals=%.2f]",
+                totalWorkersRequired, totalMineralsRequired);
+          }
 
           // The amount of work we can do this turn is the minimum of whatever resources we have
           // available allows.
           float progressThisTurn = Math.min(
               workersPerBuildRequest / totalWorkersRequired,
               mineralsPerBuildRequest / totalMineralsRequired);
-          log("     Progress: [this turn=%.4f] [total=%.4f]",
-              progressThisTurn, br.progress + progressThisTurn);
+          if (logHandler != null) {
+            log("     Progress: [this turn=%.4f] [total=%.4f]",
+                progressThisTurn, progress + progressThisTurn);
+          }
 
           // what is the current amount of time we have now as a percentage of the total build
           // time?
-          if (progressThisTurn + br.progress >= 1.0f) {
+          if (progressThisTurn + progress >= 1.0f) {
             // OK, we've finished!
             log("     FINISHED!");
-            br.progress(1.0f);
-            br.end_time(now + STEP_TIME);
-            completeBuildRequests.add(br.build());
+            state.buildProgress[b] = 1.0f;
+            state.hasBuildEndTime[b] = true;
+            state.buildEndTime[b] = now + STEP_TIME;
             continue;
           }
 
           // work hasn't finished yet, so lets estimate how long it will take now
-          float remainingWorkersRequired =
-              buildCost.population * (1.0f - br.progress - progressThisTurn);
-          float remainingMineralsRequired =
-              buildCost.minerals * (1.0f - br.progress - progressThisTurn);
+          float remainingWorkersRequired = costPopulation * (1.0f - progress - progressThisTurn);
+          float remainingMineralsRequired = costMinerals * (1.0f - progress - progressThisTurn);
 
           float mineralsUsedThisTurn = totalMineralsRequired - remainingMineralsRequired;
-          storage.total_minerals(storage.total_minerals - mineralsUsedThisTurn);
+          state.totalMinerals[empire] -= mineralsUsedThisTurn;
           mineralsDeltaPerHour -= mineralsUsedThisTurn;
-          log("     Used: [minerals=%.2f]", mineralsUsedThisTurn);
+          if (logHandler != null) {
+            log("     Used: [minerals=%.2f]", mineralsUsedThisTurn);
+          }
 
           float timeForMineralsHours =
               remainingMineralsRequired / mineralsUsedThisTurn / (Time.HOUR / STEP_TIME);
           float timeForPopulationHours =
               remainingWorkersRequired / workersPerBuildRequest / (Time.HOUR / STEP_TIME);
-          log("     Remaining: [minerals=%.2f hrs] [population=%.2f hrs]",
-              timeForMineralsHours, timeForPopulationHours);
-          br.end_time(now +
-              Math.round(Math.max(timeForMineralsHours, timeForPopulationHours)) * Time.HOUR);
-          br.progress(br.progress + progressThisTurn);
-
-          completeBuildRequests.add(br.build());
+          if (logHandler != null) {
+            log("     Remaining: [minerals=%.2f hrs] [population=%.2f hrs]",
+                timeForMineralsHours, timeForPopulationHours);
+          }
+          state.hasBuildEndTime[b] = true;
+          state.buildEndTime[b] = now +
+              Math.round(Math.max(timeForMineralsHours, timeForPopulationHours)) * Time.HOUR;
+          state.buildProgress[b] = progress + progressThisTurn;
         }
-
-        star.planets.set(i, planet.colony(
-            colony.build_requests(completeBuildRequests).build()).build());
       }
     }
 
+    long populationStartTime = 0;
+    if (profilePhases) {
+      populationStartTime = System.nanoTime();
+      profile.addTime(SimulationProfile.Phase.BUILD, populationStartTime - buildStartTime);
+    }
+
     // Finally, update the population. The first thing we need to do is evenly distribute goods
     // between all of the colonies.
     float totalGoodsPerHour = totalPopulation / 10.0f;
@@ -425,413 +635,197 @@ public class Simulation {
     // If we have more than total_goods_required stored, then we're cool. Otherwise, our population
     // suffers...
     float goodsEfficiency = 1.0f;
-    if (totalGoodsRequired > storage.total_goods && totalGoodsRequired > 0) {
-      goodsEfficiency = storage.total_goods / totalGoodsRequired;
+    if (totalGoodsRequired > state.totalGoods[empire] && totalGoodsRequired > 0) {
+      goodsEfficiency = state.totalGoods[empire] / totalGoodsRequired;
     }
 
-    log("--- Updating Population [goods required=%.2f] [goods available=%.2f] [efficiency=%.2f]",
-        totalGoodsRequired, storage.total_goods, goodsEfficiency);
+    if (logHandler != null) {
+      log("--- Updating Population [goods required=%.2f] [goods available=%.2f] "
+          + "[efficiency=%.2f]", totalGoodsRequired, state.totalGoods[empire], goodsEfficiency);
+    }
 
     // subtract all the goods we'll need
-    storage.total_goods(storage.total_goods - totalGoodsRequired);
-    if (storage.total_goods <= 0.0f) {
+    state.totalGoods[empire] -= totalGoodsRequired;
+    if (state.totalGoods[empire] <= 0.0f) {
       // We've run out of goods! That's bad...
-      storage.total_goods(0.0f);
+      state.totalGoods[empire] = 0.0f;
 
-      if (storage.goods_zero_time == null || storage.goods_zero_time > now) {
+      if (!state.hasGoodsZeroTime[empire] || state.goodsZeroTime[empire] > now) {
         log("    GOODS HAVE HIT ZERO");
-        storage.goods_zero_time(now);
+        state.hasGoodsZeroTime[empire] = true;
+        state.goodsZeroTime[empire] = now;
       }
     }
 
     // now loop through the colonies and update the population/goods counter
-    for (int i = 0; i < star.planets.size(); i++) {
-      Planet planet = star.planets.get(i);
-      if (planet.colony == null) {
-        continue;
-      }
-      Colony.Builder colony = planet.colony.newBuilder();
-      if (!equalEmpire(colony.empire_id, empireId)) {
+    for (int c = 0; c < state.numColonies; c++) {
+      if (state.colonyEmpire[c] != empire) {
         continue;
       }
+      float population = state.population[c];
 
       float populationIncrease;
       if (goodsEfficiency >= 1.0f) {
-        populationIncrease = Math.max(colony.population, 10.0f) * 0.1f;
+        populationIncrease = Math.max(population, 10.0f) * 0.1f;
       } else {
-        populationIncrease = Math.max(colony.population, 10.0f);
+        populationIncrease = Math.max(population, 10.0f);
         populationIncrease *= 0.9f;
         populationIncrease *= 0.25f * (goodsEfficiency - 1.0f);
       }
 
-      colony.delta_population(populationIncrease);
+      state.deltaPopulation[c] = populationIncrease;
       float populationIncreaseThisTurn = populationIncrease * dt;
 
-      if (colony.cooldown_end_time != null && colony.cooldown_end_time < now) {
+      if (state.hasCooldown[c] && state.cooldownEndTime[c] < now) {
         log("    Colony is no longer in cooldown period.");
-        colony.cooldown_end_time = null;
+        state.hasCooldown[c] = false;
       }
 
-      int maxPopulation = ColonyHelper.getMaxPopulation(planet);
-      float newPopulation = colony.population + populationIncreaseThisTurn;
+      float maxPopulation = state.maxPopulation[c];
+      float newPopulation = population + populationIncreaseThisTurn;
       if (newPopulation < 1.0f) {
         newPopulation = 0.0f;
       } else if (newPopulation > maxPopulation) {
         newPopulation = maxPopulation;
       }
-      if (newPopulation < 100.0f && colony.cooldown_end_time != null) {
+      if (newPopulation < 100.0f && state.hasCooldown[c]) {
         newPopulation = 100.0f;
       }
-      log("    Colony[%d]: [delta=%.2f] [new=%.2f]", i, populationIncrease, newPopulation);
-      colony.population(newPopulation);
-
-      star.planets.set(i, planet.newBuilder().colony(colony.build()).build());
-    }
-
-    if (storage.total_goods > storage.max_goods) {
-      storage.total_goods = storage.max_goods;
-    }
-    if (storage.total_minerals > storage.max_minerals) {
-      storage.total_minerals = storage.max_minerals;
-    }
-    if (storage.total_energy > storage.max_energy) {
-      storage.total_energy = storage.max_energy;
-    }
-
-    storage.goods_delta_per_hour(goodsDeltaPerHour);
-    storage.minerals_delta_per_hour(mineralsDeltaPerHour);
-    storage.energy_delta_per_hour(energyDeltaPerHour);
-    if (storageIndex >= 0) {
-      star.empire_stores.set(storageIndex, storage.build());
-    } else {
-      star.empire_stores.add(storage.build());
-    }
-  }
-
-  private void simulateCombat(Star.Builder star, long now) {/*
-    // if there's no fleets in ATTACKING mode, then there's nothing to do
-    int numAttacking = 0;
-    for (BaseFleet fleet : star.getFleets()) {
-      if (fleet.getState() != BaseFleet.State.ATTACKING || isDestroyed(fleet, now)) {
-        continue;
+      if (logHandler != null) {
+        log("    Colony[%d]: [delta=%.2f] [new=%.2f]", state.colonyPlanetIndex[c],
+            populationIncrease, newPopulation);
       }
-      numAttacking ++;
-    }
-    if (numAttacking == 0) {
-      return;
+      state.population[c] = newPopulation;
     }
 
-    // get the existing combat report, or create a new one
-    BaseCombatReport combatReport = star.getCombatReport();
-    if (combatReport == null) {
-      log(String.format("-- Combat [new combat report] [%d attacking]", numAttacking));
-      combatReport = star.createCombatReport(null);
-      star.setCombatReport(combatReport);
-    } else {
-      // remove any rounds that are in the future
-      for (int i = 0; i < combatReport.getCombatRounds().size(); i++) {
-        BaseCombatReport.CombatRound round = combatReport.getCombatRounds().get(i);
-        if (round.getRoundTime().isAfter(now)) {
-          combatReport.getCombatRounds().remove(i);
-          i--;
-        }
-      }
-
-      log(String.format("-- Combat, [loaded %d rounds] [%d attacking]", combatReport.getCombatRounds().size(), numAttacking));
+    if (state.totalGoods[empire] > state.maxGoods[empire]) {
+      state.totalGoods[empire] = state.maxGoods[empire];
     }
-
-    DateTime attackStartTime = null;
-    for (BaseFleet fleet : star.getFleets()) {
-      if (fleet.getState() != BaseFleet.State.ATTACKING) {
-        continue;
-      }
-      if (attackStartTime == null || attackStartTime.isAfter(fleet.getStateStartTime())) {
-        attackStartTime = fleet.getStateStartTime();
-      }
+    if (state.totalMinerals[empire] > state.maxMinerals[empire]) {
+      state.totalMinerals[empire] = state.maxMinerals[empire];
     }
-
-    if (attackStartTime == null || attackStartTime.isBefore(now)) {
-      attackStartTime = now;
+    if (state.totalEnergy[empire] > state.maxEnergy[empire]) {
+      state.totalEnergy[empire] = state.maxEnergy[empire];
     }
 
-    // round up to the next minute
-    attackStartTime = attackStartTime.withSecondOfMinute(0).withMillisOfSecond(0);
-    attackStartTime = attackStartTime.plusMinutes(1);
+    state.hasDeltas[empire] = true;
+    state.goodsDeltaPerHour[empire] = goodsDeltaPerHour;
+    state.mineralsDeltaPerHour[empire] = mineralsDeltaPerHour;
+    state.energyDeltaPerHour[empire] = energyDeltaPerHour;
 
-    // if they're not supposed to start attacking yet, then don't start
-    if (attackStartTime.isAfter(now.plus(dt))) {
-      return;
+    if (profilePhases) {
+      profile.addTime(
+          SimulationProfile.Phase.POPULATION, System.nanoTime() - populationStartTime);
     }
-
-    // attacks happen in turns, each turn lasts for one minute
-    DateTime attackEndTime = now.plus(dt);
-    while (now.isBefore(attackEndTime)) {
-      if (now.isBefore(attackStartTime)) {
-        now = now.plusMinutes(1);
-        if (now.isAfter(attackStartTime)) {
-          now = attackStartTime;
-        }
-        continue;
-      }
-
-      BaseCombatReport.CombatRound round = new BaseCombatReport.CombatRound();
-      round.setStarKey(star.getKey());
-      round.setRoundTime(now);
-      log(String.format("--- Round #%d [%s]", combatReport.getCombatRounds().size() + 1, now));
-      boolean stillAttacking = simulateCombatRound(now, star, round);
-      if (combatReport.getStartTime() == null) {
-        combatReport.setStartTime(now);
-      }
-      combatReport.setEndTime(now);
-      combatReport.getCombatRounds().add(round);
-
-      if (!stillAttacking) {
-        log(String.format("--- Combat finished."));
-        break;
-      }
-      now = now.plusMinutes(1);
-    }*/
   }
-/*
-  private boolean simulateCombatRound(DateTime now, BaseStar star, BaseCombatReport.CombatRound round) {
-    for (BaseFleet fleet : star.getFleets()) {
-      if (isDestroyed(fleet, now)) {
-        continue;
-      }
-      // if it's got a cloaking device and it's not aggressive, then it's invisible to combat
-      if (fleet.hasUpgrade("cloak") && fleet.getStance() != Stance.AGGRESSIVE) {
-        continue;
-      }
-
-      BaseCombatReport.FleetSummary fleetSummary = new BaseCombatReport.FleetSummary(fleet);
-      round.getFleets().add(fleetSummary);
-    }
 
-    // now we go through the fleet summaries and join them together
-    for (int i = 0; i < round.getFleets().size(); i++) {
-      BaseCombatReport.FleetSummary fs1 = round.getFleets().get(i);
-      for (int j = i + 1; j < round.getFleets().size(); j++) {
-        BaseCombatReport.FleetSummary fs2 = round.getFleets().get(j);
-
-        if (!isFriendly(fs1, fs2)) {
-          continue;
-        }
-        if (!fs1.getDesignID().equals(fs2.getDesignID())) {
-          continue;
-        }
-        if (fs1.getFleetStance() != fs2.getFleetStance()) {
-          continue;
-        }
-        if (fs1.getFleetState() != fs2.getFleetState()) {
-          continue;
-        }
-
-        // same empire, same design, same stance/state -- join 'em!
-        fs1.addShips(fs2);
-        round.getFleets().remove(j);
-        j--;
-      }
+  static boolean equalEmpire(Long one, Long two) {
+    if (one == null && two == null) {
+      return true;
     }
-
-    for (int i = 0; i < round.getFleets().size(); i++) {
-      BaseCombatReport.FleetSummary fleet = round.getFleets().get(i);
-      fleet.setIndex(i);
+    if (one == null || two == null) {
+      return false;
     }
+    return one.equals(two);
+  }
 
-    // each fleet targets and fires at once
-    TreeMap<Integer, Double> hits = new TreeMap<Integer, Double>();
-    for (BaseCombatReport.FleetSummary fleet : round.getFleets()) {
-      if (fleet.getFleetState() != BaseFleet.State.ATTACKING) {
-        continue;
-      }
-
-      BaseCombatReport.FleetSummary target = findTarget(round, fleet);
-      if (target == null) {
-        // if there's no more available targets, then we're no longer attacking
-        log(String.format("    Fleet #%d no suitable target.", fleet.getIndex()));
-        fleet.setFleetState(BaseFleet.State.IDLE);
-        continue;
-      } else {
-        log(String.format("    Fleet #%d attacking fleet #%d", fleet.getIndex(), target.getIndex()));
-      }
-
-      ShipDesign fleetDesign = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, fleet.getDesignID());
-      float damage = fleet.getNumShips() * fleetDesign.getBaseAttack();
-      log(String.format("    Fleet #%d (%s x %.2f) hit by fleet #%d (%s x %.2f) for %.2f damage",
-          target.getIndex(), target.getDesignID(), target.getNumShips(),
-          fleet.getIndex(), fleet.getDesignID(), fleet.getNumShips(), damage));
-
-      Double totalDamage = hits.get(target.getIndex());
-      if (totalDamage == null) {
-        hits.put(target.getIndex(), new Double(damage));
-      } else {
-        hits.put(target.getIndex(), new Double(totalDamage + damage));
+  /**
+   * One step of every empire in a {@link SimulationState}, simulated in parallel (see
+   * {@link #setEmpireExecutor}). Whoever runs it (the calling thread, and however many of the
+   * tasks we hand to the executor get to run) takes the next empire that hasn't been simulated yet
+   * until there's none left, and the calling thread then waits for the empires that other threads
+   * took.
+   *
+   * <p>The {@link SimulationState} is re-used (and re-loaded) for the next step, or the next star,
+   * while tasks we handed to the executor may still be waiting to run. So each step gets a new
+   * one, which remembers how many empires <em>this</em> step has: once they've all been taken, a
+   * task that only gets to run later returns without touching the state.
+   */
+  private class ParallelStep implements Runnable {
+    private final long now;
+    private final SimulationState state;
+    private final int numEmpires;
+    private final AtomicInteger nextEmpire = new AtomicInteger();
+
+    /** The number of empires that have been simulated. Guarded by this. */
+    private int numSimulated;
+
+    /** Set once every empire has been simulated, so that late tasks can return straight away. */
+    private volatile boolean finished;
+
+    /** The first error from simulating an empire, if any. Guarded by this. */
+    @Nullable private RuntimeException error;
+
+    ParallelStep(long now, SimulationState state) {
+      this.now = now;
+      this.state = state;
+      this.numEmpires = state.numEmpires;
+    }
+
+    /**
+     * Simulates every empire, with the help of the given {@link Executor}, and waits for them all
+     * to finish. Once this returns, everything the other threads wrote to the state is visible to
+     * the calling thread.
+     */
+    void run(Executor executor) {
+      for (int e = 1; e < numEmpires; e++) {
+        try {
+          executor.execute(this);
+        } catch (RejectedExecutionException ex) {
+          // We'll just do more of them ourselves.
+          break;
+        }
       }
+      run();
 
-      BaseCombatReport.FleetAttackRecord attackRecord = new BaseCombatReport.FleetAttackRecord(
-          round.getFleets(), fleet.getIndex(), target.getIndex(), damage);
-      round.getFleetAttackRecords().add(attackRecord);
-    }
-
-    // any fleets that were attacked this round will want to change to attacking for the next
-    // round, if they're not attacking already...
-    for (BaseCombatReport.FleetSummary fleet : round.getFleets()) {
-      if (!hits.keySet().contains(fleet.getIndex())) {
-        continue;
-      }
-      for (BaseFleet targetFleet : fleet.getFleets()) {
-        if (targetFleet.getState() == BaseFleet.State.IDLE) {
-          ShipDesign targetDesign = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, fleet.getDesignID());
-          ArrayList<ShipEffect> effects = targetDesign.getEffects(ShipEffect.class);
-          for (ShipEffect effect : effects) {
-            effect.onAttacked(star, targetFleet);
+      boolean interrupted = false;
+      RuntimeException firstError;
+      synchronized (this) {
+        while (numSimulated < numEmpires) {
+          try {
+            wait();
+          } catch (InterruptedException ex) {
+            interrupted = true;
           }
         }
+        firstError = error;
       }
-
-    }
-
-    // next, apply the damage from this round
-    for (BaseCombatReport.FleetSummary fleet : round.getFleets()) {
-      Double damage = hits.get(fleet.getIndex());
-      if (damage == null) {
-        continue;
+      if (interrupted) {
+        Thread.currentThread().interrupt();
       }
-
-      ShipDesign fleetDesign = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, fleet.getDesignID());
-      damage /= fleetDesign.getBaseDefence();
-      fleet.removeShips((float) (double) damage);
-      log(String.format("    Fleet #%d %.2f ships lost (%.2f ships remaining)", fleet.getIndex(), damage, fleet.getNumShips()));
-
-      BaseCombatReport.FleetDamagedRecord damageRecord = new BaseCombatReport.FleetDamagedRecord(
-          round.getFleets(), fleet.getIndex(), (float) damage.doubleValue());
-      round.getFleetDamagedRecords().add(damageRecord);
-
-      // go through the "real" fleets and apply the damage as well
-      for (String fleetKey : fleet.getFleetKeys()) {
-        BaseFleet realFleet = star.findFleet(fleetKey);
-        float newNumShips = (float)(realFleet.getNumShips() - damage);
-        if (newNumShips <= 0) {
-          newNumShips = 0;
-        }
-        realFleet.setNumShips(newNumShips);
-        if (realFleet.getNumShips() <= 0.0f) {
-          realFleet.setTimeDestroyed(now);
-        }
-
-        if (damage <= 0) {
-          break;
-        }
+      if (firstError != null) {
+        throw firstError;
       }
     }
 
-    // if all the fleets are friendly (or running away), we can stop attacking
-    boolean enemyExists = false;
-    for (int i = 0; i < star.getFleets().size(); i++) {
-      BaseFleet fleet1 = star.getFleets().get(i);
-      if (isDestroyed(fleet1, now) || fleet1.getState() == BaseFleet.State.MOVING) {
-        continue;
-      }
-
-      for (int j = i + 1; j < star.getFleets().size(); j++) {
-        BaseFleet fleet2 = star.getFleets().get(j);
-        if (isDestroyed(fleet2, now)) {
-          continue;
+    @Override
+    public void run() {
+      while (!finished) {
+        int empire = nextEmpire.getAndIncrement();
+        if (empire >= numEmpires) {
+          return;
         }
 
-        if (!isFriendly(fleet1, fleet2)) {
-          if (fleet2.getState() == BaseFleet.State.MOVING) {
-            // if it's moving, it doesn't count
-            continue;
-          }
-          enemyExists = true;
+        RuntimeException stepError = null;
+        try {
+          simulateStep(now, state, empire);
+        } catch (RuntimeException e) {
+          stepError = e;
         }
-      }
-    }
-    if (!enemyExists) {
-      for (BaseFleet fleet : star.getFleets()) {
-        // switch back from attacking mode to idle
-        if (fleet.getState() == BaseFleet.State.ATTACKING) {
-          fleet.idle(now);
+        synchronized (this) {
+          if (error == null) {
+            error = stepError;
+          }
+          numSimulated++;
+          if (numSimulated == numEmpires) {
+            finished = true;
+            notifyAll();
+          }
         }
       }
-      return false;
     }
-    return true;
-  }*/
-
-  /**
-   * Searches for an enemy fleet with the lowest priority.
-   */
-  /*private BaseCombatReport.FleetSummary findTarget(BaseCombatReport.CombatRound round,
-      BaseCombatReport.FleetSummary fleet) {
-    int foundPriority = 9999;
-    BaseCombatReport.FleetSummary foundFleet = null;
-
-    for (BaseCombatReport.FleetSummary otherFleet : round.getFleets()) {
-      if (isFriendly(fleet, otherFleet)) {
-        continue;
-      }
-      if (otherFleet.getFleetState() == BaseFleet.State.MOVING) {
-        continue;
-      }
-      ShipDesign design = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, otherFleet.getDesignID());
-      if (foundFleet == null || design.getCombatPriority() < foundPriority) {
-        foundFleet = otherFleet;
-        foundPriority = design.getCombatPriority();
-      }
-    }
-
-    return foundFleet;
-  }*/
-
-  private static boolean equalEmpire(Long one, Long two) {
-    if (one == null && two == null) {
-      return true;
-    }
-    if (one == null || two == null) {
-      return false;
-    }
-    return one.equals(two);
-  }
-/*
-  private static boolean isFriendly(BaseCombatReport.FleetSummary fleet1, BaseCombatReport.FleetSummary fleet2) {
-    BaseFleet baseFleet1 = fleet1.getFleets().get(0);
-    BaseFleet baseFleet2 = fleet2.getFleets().get(0);
-    return isFriendly(baseFleet1, baseFleet2);
   }
-*//*
-  public static boolean isFriendly(BaseFleet fleet1, BaseFleet fleet2) {
-    if (fleet1.getEmpireKey() == null && fleet2.getEmpireKey() == null) {
-      // if they're both native (i.e. no empire key) they they're friendly
-      return true;
-    }
-    if (fleet1.getEmpireKey() == null || fleet2.getEmpireKey() == null) {
-      // if one is native and one is non-native, then they're not friendly
-      return false;
-    }
-    if (fleet1.getEmpireKey().equals(fleet2.getEmpireKey())) {
-      // if they're both the same empire they're friendly
-      return true;
-    }
 
-    // check whether they're the same alliance, in which case they're friendly
-    if (fleet1.getAllianceID() != null && fleet2.getAllianceID() != null &&
-        fleet1.getAllianceID().intValue() == fleet2.getAllianceID()) {
-      return true;
-    }
-
-    // otherwise they're enemies
-    return false;
-  }
-*//*
-  private boolean isDestroyed(BaseFleet fleet, DateTime now) {
-    if (fleet.getTimeDestroyed() != null && !fleet.getTimeDestroyed().isAfter(now)) {
-      return true;
-    }
-    return false;
-  }
-*/
   private void log(String format, Object... args) {
     if (logHandler != null) {
       logHandler.log(String.format(Locale.US, format, args));
@@ -848,7 +842,6 @@ public class Simulation {
   }
 
   private static class BasicLogHandler implements LogHandler {
-    private static final Log log = new Log("Simulation");
     private String starName;
 
     @Override
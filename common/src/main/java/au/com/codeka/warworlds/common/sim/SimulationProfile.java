@@ -0,0 +1,100 @@
+package au.com.codeka.warworlds.common.sim;
+
+/**
+ * Where the time went in a call to {@link Simulation#simulate}. Set one on the simulation with
+ * {@link Simulation#setProfile} and it's reset and filled in each time a star is simulated. The
+ * same profile can be re-used for any number of stars (one at a time).
+ *
+ * <p>Profiling costs a few calls to {@link System#nanoTime} per empire per step, so it's off unless
+ * a profile has been set.
+ */
+public class SimulationProfile {
+  /** The phases of a simulation that we time separately. */
+  public enum Phase {
+    /** Calculating each colony's output of goods, minerals and energy (not predicting). */
+    RESOURCES,
+
+    /** Making progress on build requests (not predicting). */
+    BUILD,
+
+    /** Updating each colony's population (not predicting). */
+    POPULATION,
+
+    /**
+     * Empires' steps that were simulated in parallel (see {@link Simulation#setEmpireExecutor}),
+     * which can't be broken down into the phases above.
+     */
+    EMPIRE_STEPS,
+
+    /** Simulating combat (not predicting). */
+    COMBAT,
+
+    /** Every step of the prediction, including its combat. */
+    PREDICTION,
+
+    /** Completing the actions of a simulation, recorded by the caller (e.g. on the server). */
+    COMPLETE_ACTIONS
+  }
+
+  private final long[] phaseNanos = new long[Phase.values().length];
+  private long totalNanos;
+  private int numSteps;
+  private int numFastForwardSteps;
+  private int numPredictionSteps;
+
+  /** Resets everything back to zero, ready to profile another star. */
+  public void reset() {
+    for (int i = 0; i < phaseNanos.length; i++) {
+      phaseNanos[i] = 0;
+    }
+    totalNanos = 0;
+    numSteps = 0;
+    numFastForwardSteps = 0;
+    numPredictionSteps = 0;
+  }
+
+  public void addTime(Phase phase, long nanos) {
+    phaseNanos[phase.ordinal()] += nanos;
+  }
+
+  /** Gets the time, in nanoseconds, spent in the given phase. */
+  public long getNanos(Phase phase) {
+    return phaseNanos[phase.ordinal()];
+  }
+
+  /** Gets the total time, in nanoseconds, that {@link Simulation#simulate} took. */
+  public long getTotalNanos() {
+    return totalNanos;
+  }
+
+  /** Gets the number of steps we simulated (not counting prediction steps). */
+  public int getNumSteps() {
+    return numSteps;
+  }
+
+  /** Gets the number of steps we skipped over by fast-forwarding through a steady state. */
+  public int getNumFastForwardSteps() {
+    return numFastForwardSteps;
+  }
+
+  /** Gets the number of steps we simulated while predicting. */
+  public int getNumPredictionSteps() {
+    return numPredictionSteps;
+  }
+
+  void setTotalNanos(long totalNanos) {
+    this.totalNanos = totalNanos;
+  }
+
+  void addStep(boolean predicting) {
+    if (predicting) {
+      numPredictionSteps++;
+    } else {
+      numSteps++;
+    }
+  }
+
+  void addFastForwardSteps(long steps) {
+    numFastForwardSteps += steps;
+  }
+}
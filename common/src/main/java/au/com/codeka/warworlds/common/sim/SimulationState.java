@@ -0,0 +1,376 @@
+package au.com.codeka.warworlds.common.sim;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+import au.com.codeka.warworlds.common.proto.BuildRequest;
+import au.com.codeka.warworlds.common.proto.Colony;
+import au.com.codeka.warworlds.common.proto.EmpireStorage;
+import au.com.codeka.warworlds.common.proto.Planet;
+import au.com.codeka.warworlds.common.proto.Star;
+
+/**
+ * The mutable state of a star that {@link Simulation} works on. Rather than building new protos
+ * for every colony and empire on every step, we load everything the simulation needs into flat
+ * arrays once, step those in-place, and write them back to the {@link Star.Builder} at the end.
+ *
+ * <p>Empires are indexed in the order they were given to {@link #load}, colonies and build
+ * requests in the order they appear in the star.
+ */
+class SimulationState {
+  // Empires, only the ones that have an {@link EmpireStorage} (the others aren't simulated).
+  int numEmpires;
+  Long[] empireIds;
+  int[] storageIndex;
+  float[] totalGoods;
+  float[] totalMinerals;
+  float[] totalEnergy;
+  float[] maxGoods;
+  float[] maxMinerals;
+  float[] maxEnergy;
+  boolean[] hasDeltas;
+  float[] goodsDeltaPerHour;
+  float[] mineralsDeltaPerHour;
+  float[] energyDeltaPerHour;
+  boolean[] hasGoodsZeroTime;
+  long[] goodsZeroTime;
+
+  // Colonies. colonyEmpire is the index of the colony's empire, or -1 if its empire isn't
+  // simulated.
+  int numColonies;
+  int[] colonyPlanetIndex;
+  int[] colonyEmpire;
+  float[] population;
+  float[] maxPopulation;
+  float[] focusFarming;
+  float[] focusMining;
+  float[] focusEnergy;
+  float[] focusConstruction;
+  float[] farmingCongeniality;
+  float[] miningCongeniality;
+  float[] energyCongeniality;
+  float[] deltaGoods;
+  float[] deltaMinerals;
+  float[] deltaEnergy;
+  float[] deltaPopulation;
+  boolean[] hasCooldown;
+  long[] cooldownEndTime;
+
+  // Build requests. The build requests for colony i are at indices
+  // [colonyFirstBuildRequest[i], colonyFirstBuildRequest[i + 1]).
+  int numBuildRequests;
+  int[] colonyFirstBuildRequest;
+  long[] buildStartTime;
+  float[] buildProgress;
+  boolean[] hasBuildEndTime;
+  long[] buildEndTime;
+  float[] buildCostPopulation;
+  float[] buildCostMinerals;
+
+  /** Set once we've simulated at least one step on this state. */
+  boolean stepped;
+
+  SimulationState() {
+  }
+
+  /**
+   * Loads the state of the given star, replacing whatever this state held before. The arrays are
+   * only re-allocated when they're too small, so one state can be re-used for many stars.
+   *
+   * @param star The star to load.
+   * @param empireIds The IDs of the empires we'll be simulating.
+   */
+  void load(Star.Builder star, Set<Long> empireIds) {
+    ensureEmpireCapacity(empireIds.size());
+    numEmpires = 0;
+    for (Long empireId : empireIds) {
+      int index = -1;
+      for (int i = 0; i < star.empire_stores.size(); i++) {
+        if (Simulation.equalEmpire(star.empire_stores.get(i).empire_id, empireId)) {
+          index = i;
+        }
+      }
+      if (index < 0) {
+        continue;
+      }
+
+      int e = numEmpires++;
+      EmpireStorage storage = star.empire_stores.get(index);
+      this.empireIds[e] = empireId;
+      storageIndex[e] = index;
+      totalGoods[e] = valueOf(storage.total_goods);
+      totalMinerals[e] = valueOf(storage.total_minerals);
+      totalEnergy[e] = valueOf(storage.total_energy);
+      maxGoods[e] = valueOf(storage.max_goods);
+      maxMinerals[e] = valueOf(storage.max_minerals);
+      maxEnergy[e] = valueOf(storage.max_energy);
+      hasDeltas[e] = storage.goods_delta_per_hour != null
+          && storage.minerals_delta_per_hour != null
+          && storage.energy_delta_per_hour != null;
+      goodsDeltaPerHour[e] = valueOf(storage.goods_delta_per_hour);
+      mineralsDeltaPerHour[e] = valueOf(storage.minerals_delta_per_hour);
+      energyDeltaPerHour[e] = valueOf(storage.energy_delta_per_hour);
+      hasGoodsZeroTime[e] = storage.goods_zero_time != null;
+      goodsZeroTime[e] = storage.goods_zero_time == null ? 0 : storage.goods_zero_time;
+    }
+
+    int colonyCount = 0;
+    int buildRequestCount = 0;
+    for (int i = 0; i < star.planets.size(); i++) {
+      Colony colony = star.planets.get(i).colony;
+      if (colony != null) {
+        colonyCount++;
+        if (colony.build_requests != null) {
+          buildRequestCount += colony.build_requests.size();
+        }
+      }
+    }
+    ensureColonyCapacity(colonyCount);
+    ensureBuildRequestCapacity(buildRequestCount);
+
+    numColonies = 0;
+    numBuildRequests = 0;
+    for (int i = 0; i < star.planets.size(); i++) {
+      Planet planet = star.planets.get(i);
+      Colony colony = planet.colony;
+      if (colony == null) {
+        continue;
+      }
+
+      int c = numColonies++;
+      colonyPlanetIndex[c] = i;
+      colonyEmpire[c] = findEmpire(colony.empire_id);
+      population[c] = valueOf(colony.population);
+      maxPopulation[c] = ColonyHelper.getMaxPopulation(planet);
+      focusFarming[c] = colony.focus.farming;
+      focusMining[c] = colony.focus.mining;
+      focusEnergy[c] = colony.focus.energy;
+      focusConstruction[c] = colony.focus.construction;
+      farmingCongeniality[c] = planet.farming_congeniality;
+      miningCongeniality[c] = planet.mining_congeniality;
+      energyCongeniality[c] = planet.energy_congeniality;
+      deltaGoods[c] = valueOf(colony.delta_goods);
+      deltaMinerals[c] = valueOf(colony.delta_minerals);
+      deltaEnergy[c] = valueOf(colony.delta_energy);
+      deltaPopulation[c] = valueOf(colony.delta_population);
+      hasCooldown[c] = colony.cooldown_end_time != null;
+      cooldownEndTime[c] = colony.cooldown_end_time == null ? 0 : colony.cooldown_end_time;
+
+      colonyFirstBuildRequest[c] = numBuildRequests;
+      if (colony.build_requests != null) {
+        for (BuildRequest br : colony.build_requests) {
+          int b = numBuildRequests++;
+          buildStartTime[b] = br.start_time;
+          buildProgress[b] = br.progress;
+          hasBuildEndTime[b] = br.end_time != null;
+          buildEndTime[b] = br.end_time == null ? 0 : br.end_time;
+          buildCostPopulation[b] = DesignHelper.getBuildCostPopulation(br.design_type);
+          buildCostMinerals[b] = DesignHelper.getBuildCostMinerals(br.design_type);
+        }
+      }
+    }
+    colonyFirstBuildRequest[numColonies] = numBuildRequests;
+
+    stepped = false;
+  }
+
+  /**
+   * Makes this state a copy of the given state, so that it can be stepped independently of it.
+   * Like {@link #load}, this only re-allocates our arrays if they're too small.
+   */
+  void copyFrom(SimulationState other) {
+    ensureEmpireCapacity(other.numEmpires);
+    numEmpires = other.numEmpires;
+    System.arraycopy(other.empireIds, 0, empireIds, 0, numEmpires);
+    System.arraycopy(other.storageIndex, 0, storageIndex, 0, numEmpires);
+    System.arraycopy(other.totalGoods, 0, totalGoods, 0, numEmpires);
+    System.arraycopy(other.totalMinerals, 0, totalMinerals, 0, numEmpires);
+    System.arraycopy(other.totalEnergy, 0, totalEnergy, 0, numEmpires);
+    System.arraycopy(other.maxGoods, 0, maxGoods, 0, numEmpires);
+    System.arraycopy(other.maxMinerals, 0, maxMinerals, 0, numEmpires);
+    System.arraycopy(other.maxEnergy, 0, maxEnergy, 0, numEmpires);
+    System.arraycopy(other.hasDeltas, 0, hasDeltas, 0, numEmpires);
+    System.arraycopy(other.goodsDeltaPerHour, 0, goodsDeltaPerHour, 0, numEmpires);
+    System.arraycopy(other.mineralsDeltaPerHour, 0, mineralsDeltaPerHour, 0, numEmpires);
+    System.arraycopy(other.energyDeltaPerHour, 0, energyDeltaPerHour, 0, numEmpires);
+    System.arraycopy(other.hasGoodsZeroTime, 0, hasGoodsZeroTime, 0, numEmpires);
+    System.arraycopy(other.goodsZeroTime, 0, goodsZeroTime, 0, numEmpires);
+
+    ensureColonyCapacity(other.numColonies);
+    numColonies = other.numColonies;
+    System.arraycopy(other.colonyPlanetIndex, 0, colonyPlanetIndex, 0, numColonies);
+    System.arraycopy(other.colonyEmpire, 0, colonyEmpire, 0, numColonies);
+    System.arraycopy(other.population, 0, population, 0, numColonies);
+    System.arraycopy(other.maxPopulation, 0, maxPopulation, 0, numColonies);
+    System.arraycopy(other.focusFarming, 0, focusFarming, 0, numColonies);
+    System.arraycopy(other.focusMining, 0, focusMining, 0, numColonies);
+    System.arraycopy(other.focusEnergy, 0, focusEnergy, 0, numColonies);
+    System.arraycopy(other.focusConstruction, 0, focusConstruction, 0, numColonies);
+    System.arraycopy(other.farmingCongeniality, 0, farmingCongeniality, 0, numColonies);
+    System.arraycopy(other.miningCongeniality, 0, miningCongeniality, 0, numColonies);
+    System.arraycopy(other.energyCongeniality, 0, energyCongeniality, 0, numColonies);
+    System.arraycopy(other.deltaGoods, 0, deltaGoods, 0, numColonies);
+    System.arraycopy(other.deltaMinerals, 0, deltaMinerals, 0, numColonies);
+    System.arraycopy(other.deltaEnergy, 0, deltaEnergy, 0, numColonies);
+    System.arraycopy(other.deltaPopulation, 0, deltaPopulation, 0, numColonies);
+    System.arraycopy(other.hasCooldown, 0, hasCooldown, 0, numColonies);
+    System.arraycopy(other.cooldownEndTime, 0, cooldownEndTime, 0, numColonies);
+    System.arraycopy(
+        other.colonyFirstBuildRequest, 0, colonyFirstBuildRequest, 0, numColonies + 1);
+
+    ensureBuildRequestCapacity(other.numBuildRequests);
+    numBuildRequests = other.numBuildRequests;
+    System.arraycopy(other.buildStartTime, 0, buildStartTime, 0, numBuildRequests);
+    System.arraycopy(other.buildProgress, 0, buildProgress, 0, numBuildRequests);
+    System.arraycopy(other.hasBuildEndTime, 0, hasBuildEndTime, 0, numBuildRequests);
+    System.arraycopy(other.buildEndTime, 0, buildEndTime, 0, numBuildRequests);
+    System.arraycopy(other.buildCostPopulation, 0, buildCostPopulation, 0, numBuildRequests);
+    System.arraycopy(other.buildCostMinerals, 0, buildCostMinerals, 0, numBuildRequests);
+
+    stepped = other.stepped;
+  }
+
+  /**
+   * Writes this state back to the given star (which must be the same star we were loaded from).
+   * If we were never stepped, only the storage deltas and build end times are written (they may
+   * have been copied from a prediction), everything else is unchanged.
+   */
+  void save(Star.Builder star) {
+    for (int e = 0; e < numEmpires; e++) {
+      if (!stepped && !hasDeltas[e]) {
+        continue;
+      }
+      EmpireStorage.Builder storage = star.empire_stores.get(storageIndex[e]).newBuilder();
+      if (stepped) {
+        storage.total_goods(totalGoods[e])
+            .total_minerals(totalMinerals[e])
+            .total_energy(totalEnergy[e])
+            .goods_zero_time(hasGoodsZeroTime[e] ? goodsZeroTime[e] : null);
+      }
+      if (hasDeltas[e]) {
+        storage.goods_delta_per_hour(goodsDeltaPerHour[e])
+            .minerals_delta_per_hour(mineralsDeltaPerHour[e])
+            .energy_delta_per_hour(energyDeltaPerHour[e]);
+      }
+      star.empire_stores.set(storageIndex[e], storage.build());
+    }
+
+    for (int c = 0; c < numColonies; c++) {
+      int first = colonyFirstBuildRequest[c];
+      int last = colonyFirstBuildRequest[c + 1];
+      boolean simulated = stepped && colonyEmpire[c] >= 0;
+      if (!simulated && first == last) {
+        continue;
+      }
+
+      Planet planet = star.planets.get(colonyPlanetIndex[c]);
+      Colony.Builder colony = planet.colony.newBuilder();
+      if (simulated) {
+        colony.population(population[c])
+            .delta_goods(deltaGoods[c])
+            .delta_minerals(deltaMinerals[c])
+            .delta_energy(deltaEnergy[c])
+            .delta_population(deltaPopulation[c])
+            .cooldown_end_time(hasCooldown[c] ? cooldownEndTime[c] : null);
+      }
+      if (first != last) {
+        ArrayList<BuildRequest> buildRequests = new ArrayList<>();
+        for (int b = first; b < last; b++) {
+          buildRequests.add(colony.build_requests.get(b - first).newBuilder()
+              .progress(buildProgress[b])
+              .end_time(hasBuildEndTime[b] ? buildEndTime[b] : null)
+              .build());
+        }
+        colony.build_requests(buildRequests);
+      }
+      star.planets.set(colonyPlanetIndex[c], planet.newBuilder().colony(colony.build()).build());
+    }
+  }
+
+  /** Copies the storage deltas from the given state (a prediction of this one) to this one. */
+  void copyDeltasFrom(SimulationState other) {
+    for (int e = 0; e < numEmpires; e++) {
+      hasDeltas[e] = other.hasDeltas[e];
+      goodsDeltaPerHour[e] = other.goodsDeltaPerHour[e];
+      mineralsDeltaPerHour[e] = other.mineralsDeltaPerHour[e];
+      energyDeltaPerHour[e] = other.energyDeltaPerHour[e];
+    }
+  }
+
+  /** Copies the build end times from the given state (a prediction of this one) to this one. */
+  void copyBuildEndTimesFrom(SimulationState other) {
+    for (int b = 0; b < numBuildRequests; b++) {
+      hasBuildEndTime[b] = other.hasBuildEndTime[b];
+      buildEndTime[b] = other.buildEndTime[b];
+    }
+  }
+
+  private void ensureEmpireCapacity(int n) {
+    if (empireIds != null && empireIds.length >= n) {
+      return;
+    }
+    empireIds = new Long[n];
+    storageIndex = new int[n];
+    totalGoods = new float[n];
+    totalMinerals = new float[n];
+    totalEnergy = new float[n];
+    maxGoods = new float[n];
+    maxMinerals = new float[n];
+    maxEnergy = new float[n];
+    hasDeltas = new boolean[n];
+    goodsDeltaPerHour = new float[n];
+    mineralsDeltaPerHour = new float[n];
+    energyDeltaPerHour = new float[n];
+    hasGoodsZeroTime = new boolean[n];
+    goodsZeroTime = new long[n];
+  }
+
+  private void ensureColonyCapacity(int n) {
+    if (colonyPlanetIndex != null && colonyPlanetIndex.length >= n) {
+      return;
+    }
+    colonyPlanetIndex = new int[n];
+    colonyEmpire = new int[n];
+    population = new float[n];
+    maxPopulation = new float[n];
+    focusFarming = new float[n];
+    focusMining = new float[n];
+    focusEnergy = new float[n];
+    focusConstruction = new float[n];
+    farmingCongeniality = new float[n];
+    miningCongeniality = new float[n];
+    energyCongeniality = new float[n];
+    deltaGoods = new float[n];
+    deltaMinerals = new float[n];
+    deltaEnergy = new float[n];
+    deltaPopulation = new float[n];
+    hasCooldown = new boolean[n];
+    cooldownEndTime = new long[n];
+    colonyFirstBuildRequest = new int[n + 1];
+  }
+
+  private void ensureBuildRequestCapacity(int n) {
+    if (buildStartTime != null && buildStartTime.length >= n) {
+      return;
+    }
+    buildStartTime = new long[n];
+    buildProgress = new float[n];
+    hasBuildEndTime = new boolean[n];
+    buildEndTime = new long[n];
+    buildCostPopulation = new float[n];
+    buildCostMinerals = new float[n];
+  }
+
+  private int findEmpire(Long empireId) {
+    for (int e = 0; e < numEmpires; e++) {
+      if (Simulation.equalEmpire(empireIds[e], empireId)) {
+        return e;
+      }
+    }
+    return -1;
+  }
+
+  private static float valueOf(Float value) {
+    return value == null ? 0.0f : value;
+  }
+}
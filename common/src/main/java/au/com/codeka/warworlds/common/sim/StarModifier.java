@@ -4,6 +4,8 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -26,6 +28,9 @@ import au.com.codeka.warworlds.common.proto.StarModification;
 public class StarModifier {
   private static final Log log = new Log("StarModifier");
 
+  /** The size of a sector, in pixels. Must match the server's SectorManager.SECTOR_SIZE. */
+  private static final int SECTOR_SIZE = 1024;
+
   public interface IdentifierGenerator {
     long nextIdentifier();
   }
@@ -41,14 +46,65 @@ public class StarModifier {
   }
 
   public void modifyStar(Star.Builder star, Collection<StarModification> modifications) {
+    modifyStar(star, modifications, null);
+  }
+
+  /**
+   * Applies the given modifications to the star.
+   *
+   * @param star The star to modify.
+   * @param modifications The modifications to apply.
+   * @param auxStars Other stars the modifications need to know about (e.g. the destination of a
+   *     fleet we're moving), or null if there aren't any.
+   */
+  public void modifyStar(Star.Builder star, Collection<StarModification> modifications,
+      @Nullable Collection<Star> auxStars) {
+    Long lastSimulation = star.last_simulation;
     new Simulation(false).simulate(star);
+    boolean wasUpToDate = lastSimulation != null && lastSimulation.equals(star.last_simulation);
+
+    HashSet<Long> changedEmpireIds = new HashSet<>();
     for (StarModification modification : modifications) {
-      applyModification(star, modification);
+      addChangedEmpire(star, modification, changedEmpireIds);
+      applyModification(star, auxStars, modification);
+    }
+
+    Simulation simulation = new Simulation();
+    if (wasUpToDate) {
+      // The star hadn't moved on since it was last simulated (and predicted), so we only need to
+      // re-predict the empires we just changed.
+      simulation.setIncremental(changedEmpireIds);
+    }
+    simulation.simulate(star);
+  }
+
+  /**
+   * Adds the ID of the empire whose colonies will be changed by the given modification (if any)
+   * to the given set.
+   */
+  private void addChangedEmpire(
+      Star.Builder star, StarModification modification, Set<Long> changedEmpireIds) {
+    switch (modification.type) {
+      case COLONIZE:
+        changedEmpireIds.add(modification.empire_id);
+        break;
+      case CREATE_BUILDING:
+      case ADJUST_FOCUS:
+      case ADD_BUILD_REQUEST:
+        Planet planet = getPlanetWithColony(star, modification.colony_id);
+        if (planet != null) {
+          changedEmpireIds.add(planet.colony.empire_id);
+        }
+        break;
+      default:
+        // Fleets don't affect the simulation of any empire's colonies (and combat is always
+        // predicted, whichever empires changed).
+        break;
     }
-    new Simulation().simulate(star);
   }
 
-  private void applyModification(Star.Builder star, StarModification modification) {
+  private void applyModification(
+      Star.Builder star, @Nullable Collection<Star> auxStars, StarModification modification) {
     switch (modification.type) {
       case COLONIZE:
         applyColonize(star, modification);
@@ -65,6 +121,9 @@ public class StarModifier {
       case ADD_BUILD_REQUEST:
         applyAddBuildRequest(star, modification);
         return;
+      case MOVE_FLEET:
+        applyMoveFleet(star, auxStars, modification);
+        return;
       default:
         log.error("Unknown or unexpected modification type: %s", modification.type);
     }
@@ -147,6 +206,54 @@ public class StarModifier {
         .build());
   }
 
+  private void applyMoveFleet(
+      Star.Builder star, @Nullable Collection<Star> auxStars, StarModification modification) {
+    Preconditions.checkArgument(
+        modification.type.equals(StarModification.MODIFICATION_TYPE.MOVE_FLEET));
+
+    Star destination = null;
+    if (auxStars != null) {
+      for (Star auxStar : auxStars) {
+        if (auxStar.id.equals(modification.star_id)) {
+          destination = auxStar;
+        }
+      }
+    }
+    if (destination == null || destination.id.equals(star.id)) {
+      log.warning("Cannot move fleet %d to star %d, destination not found.",
+          modification.fleet_id, modification.star_id);
+      return;
+    }
+
+    for (int i = 0; i < star.fleets.size(); i++) {
+      Fleet fleet = star.fleets.get(i);
+      if (!fleet.id.equals(modification.fleet_id)) {
+        continue;
+      }
+      if (!Simulation.equalEmpire(fleet.empire_id, modification.empire_id)
+          || fleet.state == Fleet.FLEET_STATE.MOVING
+          || fleet.time_destroyed != null) {
+        return;
+      }
+
+      Design design = DesignHelper.getDesign(fleet.design_type);
+      if (design.speed_px_per_hour == null || design.speed_px_per_hour <= 0.0f) {
+        return;
+      }
+      double distance = distanceBetween(star, destination);
+      long now = System.currentTimeMillis();
+      long travelTime = (long) (distance / design.speed_px_per_hour * Time.HOUR);
+      star.fleets.set(i, fleet.newBuilder()
+          .state(Fleet.FLEET_STATE.MOVING)
+          .state_start_time(now)
+          .destination_star_id(destination.id)
+          .eta(now + travelTime)
+          .target_fleet_id(null)
+          .build());
+      return;
+    }
+  }
+
   private void applyCreateBuilding(Star.Builder star, StarModification modification) {
     Preconditions.checkArgument(
         modification.type.equals(StarModification.MODIFICATION_TYPE.CREATE_BUILDING));
@@ -198,7 +305,13 @@ public class StarModifier {
     }
   }
 
-  @Nullable
+  /** Gets the distance, in pixels, between the two given stars. */
+  private static double distanceBetween(Star.Builder from, Star to) {
+    double dx = (to.sector_x - from.sector_x) * SECTOR_SIZE + (to.offset_x - from.offset_x);
+    double dy = (to.sector_y - from.sector_y) * SECTOR_SIZE + (to.offset_y - from.offset_y);
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
   private Planet getPlanetWithColony(Star.Builder star, long colonyId) {
     for (int i = 0; i < star.planets.size(); i++) {
       Planet planet = star.planets.get(i);
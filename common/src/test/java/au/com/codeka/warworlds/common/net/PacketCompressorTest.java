@@ -0,0 +1,309 @@
+package au.com.codeka.warworlds.common.net;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import au.com.codeka.warworlds.common.proto.Colony;
+import au.com.codeka.warworlds.common.proto.ColonyFocus;
+import au.com.codeka.warworlds.common.proto.Design;
+import au.com.codeka.warworlds.common.proto.EmpireStorage;
+import au.com.codeka.warworlds.common.proto.Fleet;
+import au.com.codeka.warworlds.common.proto.Packet;
+import au.com.codeka.warworlds.common.proto.Planet;
+import au.com.codeka.warworlds.common.proto.Star;
+import au.com.codeka.warworlds.common.proto.StarUpdatedPacket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests for {@link PacketCompressor} and {@link PacketDecompressor}. */
+public class PacketCompressorTest {
+  /** Packet sizes either side of the thresholds and the decompressor's default buffer size. */
+  private static final int[] SIZES = {0, 1, 63, 64, 255, 256, 1000, 4095, 4096, 4097, 100000, 10};
+
+  /** The number of packets one connection sends in {@link #modesBenchmark}. */
+  private static final int BENCHMARK_PACKETS = 2000;
+
+  /** The number of stars that get updated, over and over, in {@link #modesBenchmark}. */
+  private static final int BENCHMARK_STARS = 50;
+
+  /** The number of times we compress all of the packets with each mode. */
+  private static final int BENCHMARK_ITERATIONS = 5;
+
+  @Test
+  public void roundTripNone() throws IOException {
+    assertRoundTrip(PacketCompressor.Mode.NONE);
+  }
+
+  @Test
+  public void roundTripGzip() throws IOException {
+    assertRoundTrip(PacketCompressor.Mode.GZIP);
+  }
+
+  @Test
+  public void roundTripDeflate() throws IOException {
+    assertRoundTrip(PacketCompressor.Mode.DEFLATE);
+  }
+
+  @Test
+  public void roundTripStreamingDeflate() throws IOException {
+    assertRoundTrip(PacketCompressor.Mode.STREAMING_DEFLATE);
+  }
+
+  @Test
+  public void noneNeverCompresses() {
+    PacketCompressor compressor = new PacketCompressor(PacketCompressor.Mode.NONE);
+    assertFalse(compressor.compress(makePacket(new Random(1), 100000, true)));
+    compressor.close();
+  }
+
+  @Test
+  public void streamingCompressesRepeatedPackets() {
+    // The second time we send the same packet, it should just be a reference back to the first.
+    PacketCompressor compressor = new PacketCompressor(PacketCompressor.Mode.STREAMING_DEFLATE);
+    byte[] packet = makePacket(new Random(1), 1000, false);
+    assertTrue(compressor.compress(packet));
+    int firstLength = compressor.getLength();
+    assertTrue(compressor.compress(packet));
+    assertTrue(compressor.getLength() < firstLength / 10);
+    compressor.close();
+  }
+
+  @Test
+  public void rejectsPacketsBiggerThanMaxSize() throws IOException {
+    PacketCompressor compressor = new PacketCompressor(PacketCompressor.Mode.DEFLATE);
+    PacketDecompressor decompressor = new PacketDecompressor(10000);
+    assertTrue(compressor.compress(new byte[20000]));
+    try {
+      decompressor.decompress(
+          Arrays.copyOf(compressor.getBuffer(), compressor.getLength()), compressor.getFlags());
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      // Expected.
+    }
+
+    // Packets that do fit are still fine afterwards.
+    byte[] packet = makePacket(new Random(1), 5000, true);
+    assertTrue(compressor.compress(packet));
+    assertArrayEquals(packet, decompressor.decompress(
+        Arrays.copyOf(compressor.getBuffer(), compressor.getLength()), compressor.getFlags()));
+    compressor.close();
+    decompressor.close();
+  }
+
+  @Test
+  public void modesBenchmark() {
+    // What a connection sends while the player watches a few dozen stars: star_updated packets
+    // of one to five stars each, the same stars over and over with a few things changed. Bytes on
+    // the wire include each packet's header. GzipHelper is how we compressed every packet before
+    // PacketCompressor.
+    List<byte[]> packets = makeStarUpdatedPackets();
+    long rawBytes = 0;
+    for (byte[] packet : packets) {
+      rawBytes += PacketDecoder.HEADER_SIZE + packet.length;
+    }
+
+    long gzipHelperNanos = Long.MAX_VALUE;
+    long gzipHelperBytes = 0;
+    for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+      long startTime = System.nanoTime();
+      gzipHelperBytes = 0;
+      for (byte[] packet : packets) {
+        byte[] compressed = GzipHelper.compress(packet);
+        gzipHelperBytes += PacketDecoder.HEADER_SIZE
+            + (compressed != null && compressed.length < packet.length
+                ? compressed.length : packet.length);
+      }
+      gzipHelperNanos = Math.min(gzipHelperNanos, System.nanoTime() - startTime);
+    }
+    System.out.println(String.format(
+        "%d star_updated packets, %d bytes on the wire uncompressed.", packets.size(), rawBytes));
+    printBenchmarkResult("GzipHelper", gzipHelperNanos, gzipHelperBytes, rawBytes);
+
+    long[] bytes = new long[PacketCompressor.Mode.values().length];
+    for (PacketCompressor.Mode mode : PacketCompressor.Mode.values()) {
+      long nanos = Long.MAX_VALUE;
+      for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+        // A new compressor each time, like a new connection.
+        PacketCompressor compressor = new PacketCompressor(mode);
+        long startTime = System.nanoTime();
+        long numBytes = 0;
+        for (byte[] packet : packets) {
+          numBytes += PacketDecoder.HEADER_SIZE
+              + (compressor.compress(packet) ? compressor.getLength() : packet.length);
+        }
+        nanos = Math.min(nanos, System.nanoTime() - startTime);
+        compressor.close();
+        bytes[mode.ordinal()] = numBytes;
+      }
+      printBenchmarkResult(mode.toString(), nanos, bytes[mode.ordinal()], rawBytes);
+    }
+
+    assertEquals(rawBytes, bytes[PacketCompressor.Mode.NONE.ordinal()]);
+    assertTrue(bytes[PacketCompressor.Mode.GZIP.ordinal()] < rawBytes);
+    assertTrue(bytes[PacketCompressor.Mode.DEFLATE.ordinal()]
+        < bytes[PacketCompressor.Mode.GZIP.ordinal()]);
+    assertTrue(bytes[PacketCompressor.Mode.STREAMING_DEFLATE.ordinal()]
+        < bytes[PacketCompressor.Mode.DEFLATE.ordinal()]);
+  }
+
+  private static void printBenchmarkResult(String name, long nanos, long bytes, long rawBytes) {
+    System.out.println(String.format(
+        "  %-17s %7.2fus/packet %9d bytes (%5.1f%%) %7.1f bytes/packet",
+        name, nanos / 1000.0 / BENCHMARK_PACKETS, bytes, 100.0 * bytes / rawBytes,
+        (double) bytes / BENCHMARK_PACKETS));
+  }
+
+  /** Makes the (encoded) packets for {@link #modesBenchmark}. */
+  private static List<byte[]> makeStarUpdatedPackets() {
+    Random rand = new Random(1234);
+    List<byte[]> packets = new ArrayList<>();
+    for (int i = 0; i < BENCHMARK_PACKETS; i++) {
+      List<Star> stars = new ArrayList<>();
+      int numStars = 1 + rand.nextInt(5);
+      for (int j = 0; j < numStars; j++) {
+        stars.add(makeStar(rand.nextInt(BENCHMARK_STARS), i));
+      }
+      packets.add(new Packet.Builder()
+          .star_updated(new StarUpdatedPacket.Builder().stars(stars).build())
+          .build()
+          .encode());
+    }
+    return packets;
+  }
+
+  /**
+   * Makes the given star as it is at the given time: most of it never changes, but its colonies'
+   * populations and its empires' stores do.
+   */
+  private static Star makeStar(long id, int time) {
+    List<Planet> planets = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      Planet.Builder planet = new Planet.Builder()
+          .index(i)
+          .planet_type(Planet.PLANET_TYPE.values()[(int) ((id + i) % 5)])
+          .population_congeniality((int) (500 + id + 100 * i))
+          .farming_congeniality((int) (30 + id % 10 + 10 * i))
+          .mining_congeniality((int) (60 + id % 7 - 5 * i))
+          .energy_congeniality((int) (40 + id % 5 + 5 * i));
+      if (i < 3) {
+        planet.colony(new Colony.Builder()
+            .id(id * 100 + i)
+            .empire_id(i == 2 ? null : id % 4 + i)
+            .population(100.0f + (time % 100) * (i + 1) + id)
+            .focus(new ColonyFocus.Builder()
+                .construction(0.1f)
+                .farming(0.3f)
+                .mining(0.3f)
+                .energy(0.3f)
+                .build())
+            .defence_bonus(1.0f)
+            .build());
+      }
+      planets.add(planet.build());
+    }
+
+    List<EmpireStorage> empireStores = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      empireStores.add(new EmpireStorage.Builder()
+          .empire_id(i == 2 ? null : id % 4 + i)
+          .total_goods(100.0f + time % 37)
+          .total_minerals(200.0f + time % 53)
+          .total_energy(300.0f + time % 71)
+          .max_goods(1000.0f)
+          .max_minerals(1000.0f)
+          .max_energy(1000.0f)
+          .build());
+    }
+
+    List<Fleet> fleets = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      fleets.add(new Fleet.Builder()
+          .id(id * 100 + i)
+          .empire_id(id % 4 + i % 2)
+          .design_type(i % 2 == 0 ? Design.DesignType.FIGHTER : Design.DesignType.SCOUT)
+          .num_ships(10.0f * (i + 1))
+          .state(Fleet.FLEET_STATE.IDLE)
+          .state_start_time(1000L)
+          .stance(Fleet.FLEET_STANCE.AGGRESSIVE)
+          .build());
+    }
+
+    return new Star.Builder()
+        .id(id)
+        .name("Star " + id)
+        .classification(Star.CLASSIFICATION.values()[(int) (id % 5)])
+        .size((int) (10 + id % 20))
+        .sector_x(id / 10)
+        .sector_y(id % 10)
+        .offset_x((int) (id * 37 % 1024))
+        .offset_y((int) (id * 91 % 1024))
+        .last_simulation(1000000L + time * 60000L)
+        .planets(planets)
+        .empire_stores(empireStores)
+        .fleets(fleets)
+        .build();
+  }
+
+  /**
+   * Sends a bunch of packets of different sizes, some that compress well and some that don't,
+   * through one compressor and decompressor (like one connection) and checks they come out the
+   * same as they went in.
+   */
+  private static void assertRoundTrip(PacketCompressor.Mode mode) throws IOException {
+    PacketCompressor compressor = new PacketCompressor(mode);
+    PacketDecompressor decompressor = new PacketDecompressor(1024 * 1024);
+    Random rand = new Random(mode.ordinal());
+    int numCompressed = 0;
+    for (int round = 0; round < 3; round++) {
+      for (int size : SIZES) {
+        for (boolean compressible : new boolean[] {true, false}) {
+          byte[] packet = makePacket(rand, size, compressible);
+          byte[] sent;
+          int flags;
+          if (compressor.compress(packet)) {
+            sent = Arrays.copyOf(compressor.getBuffer(), compressor.getLength());
+            flags = compressor.getFlags();
+            numCompressed++;
+          } else {
+            sent = packet;
+            flags = PacketFlags.NONE;
+          }
+          assertArrayEquals(mode + " packet of " + size + " bytes",
+              packet, decompressor.decompress(sent, flags));
+        }
+      }
+    }
+    if (mode == PacketCompressor.Mode.NONE) {
+      assertEquals(0, numCompressed);
+    } else {
+      assertTrue(numCompressed > 0);
+    }
+    compressor.close();
+    decompressor.close();
+  }
+
+  /**
+   * Makes a packet of the given size. If compressible, it's made of a few different bytes (so it
+   * compresses well), otherwise it's random.
+   */
+  private static byte[] makePacket(Random rand, int size, boolean compressible) {
+    byte[] packet = new byte[size];
+    if (compressible) {
+      for (int i = 0; i < size; i++) {
+        packet[i] = (byte) ('a' + rand.nextInt(4));
+      }
+    } else {
+      rand.nextBytes(packet);
+    }
+    return packet;
+  }
+}
@@ -0,0 +1,358 @@
+package au.com.codeka.warworlds.common.net;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import au.com.codeka.warworlds.common.proto.Building;
+import au.com.codeka.warworlds.common.proto.Colony;
+import au.com.codeka.warworlds.common.proto.ColonyFocus;
+import au.com.codeka.warworlds.common.proto.Design;
+import au.com.codeka.warworlds.common.proto.EmpireStorage;
+import au.com.codeka.warworlds.common.proto.Fleet;
+import au.com.codeka.warworlds.common.proto.Planet;
+import au.com.codeka.warworlds.common.proto.Star;
+import au.com.codeka.warworlds.common.proto.StarDelta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link StarDeltas} (and the {@link MessageDeltas} it uses): applying the diff of two
+ * stars to the first should always give us the second, or we shouldn't get a diff at all.
+ */
+public class StarDeltasTest {
+  private static final int NUM_PLANETS = 6;
+  private static final int NUM_FLEETS = 10;
+
+  @Test
+  public void unchanged() throws IOException {
+    Star base = makeStar();
+    StarDelta delta = assertRoundTrip(base, base.newBuilder().version(2L).build());
+    assertNull(delta.fields);
+    assertTrue(delta.planets.isEmpty());
+    assertTrue(delta.empire_stores.isEmpty());
+    assertTrue(delta.fleets.isEmpty());
+  }
+
+  @Test
+  public void starFieldsChanged() throws IOException {
+    Star base = makeStar();
+    assertRoundTrip(base, base.newBuilder()
+        .version(2L)
+        .name("Renamed")
+        .last_simulation(base.last_simulation + 1000L)
+        .classification(Star.CLASSIFICATION.NEUTRON)
+        .build());
+  }
+
+  @Test
+  public void starFieldsCleared() throws IOException {
+    Star base = makeStar();
+    StarDelta delta = assertRoundTrip(base, base.newBuilder()
+        .version(2L)
+        .time_emptied(null)
+        .next_simulation(null)
+        .build());
+    assertNull(delta.fields);
+    assertEquals(4, delta.cleared_fields.size());
+  }
+
+  @Test
+  public void planetFieldsChangedAndCleared() throws IOException {
+    Star base = makeStar();
+    Star.Builder star = base.newBuilder().version(2L);
+    star.planets.set(3, star.planets.get(3).newBuilder()
+        .population_congeniality(123)
+        .energy_congeniality(null)
+        .build());
+    StarDelta delta = assertRoundTrip(base, star.build());
+    assertEquals(1, delta.planets.size());
+    assertEquals(3, (int) delta.planets.get(0).index);
+  }
+
+  @Test
+  public void colonyFieldsChanged() throws IOException {
+    Star base = makeStar();
+    Star.Builder star = base.newBuilder().version(2L);
+    Colony colony = star.planets.get(1).colony;
+    star.planets.set(1, star.planets.get(1).newBuilder()
+        .colony(colony.newBuilder()
+            .population(colony.population + 10.0f)
+            .focus(colony.focus.newBuilder().farming(0.5f).mining(0.1f).build())
+            .buildings(Collections.singletonList(new Building.Builder()
+                .design_type(Design.DesignType.SILO)
+                .level(2)
+                .build()))
+            .build())
+        .build());
+    assertRoundTrip(base, star.build());
+  }
+
+  @Test
+  public void colonyFieldsCleared() throws IOException {
+    Star base = makeStar();
+    Star.Builder star = base.newBuilder().version(2L);
+    Colony colony = star.planets.get(1).colony;
+    star.planets.set(1, star.planets.get(1).newBuilder()
+        .colony(colony.newBuilder()
+            .cooldown_end_time(null)
+            .buildings(new ArrayList<Building>())
+            .focus(colony.focus.newBuilder().construction(null).build())
+            .build())
+        .build());
+    StarDelta delta = assertRoundTrip(base, star.build());
+    assertNull(delta.planets.get(0).fields);
+  }
+
+  @Test
+  public void colonyAddedAndRemoved() throws IOException {
+    Star base = makeStar();
+    Star.Builder star = base.newBuilder().version(2L);
+    star.planets.set(1, star.planets.get(1).newBuilder().colony(null).build());
+    star.planets.set(4, star.planets.get(4).newBuilder()
+        .colony(makeColony(400L, 2L))
+        .build());
+    assertRoundTrip(base, star.build());
+  }
+
+  @Test
+  public void empireStoresChanged() throws IOException {
+    Star base = makeStar();
+    Star.Builder star = base.newBuilder().version(2L);
+    star.empire_stores.set(0, star.empire_stores.get(0).newBuilder()
+        .total_goods(12.0f)
+        .goods_zero_time(null)
+        .build());
+    StarDelta delta = assertRoundTrip(base, star.build());
+    assertEquals(1, delta.empire_stores.size());
+    assertEquals(1L, (long) delta.empire_stores.get(0).empire_id);
+  }
+
+  @Test
+  public void empireStoreAddedAndRemoved() throws IOException {
+    Star base = makeStar();
+    Star.Builder star = base.newBuilder().version(2L);
+    star.empire_stores.remove(0);
+    star.empire_stores.add(makeEmpireStore(3L));
+    StarDelta delta = assertRoundTrip(base, star.build());
+    assertEquals(Collections.singletonList(1L), delta.removed_empire_store_ids);
+    assertEquals(1, delta.empire_stores.size());
+    assertEquals(3L, (long) delta.empire_stores.get(0).empire_id);
+  }
+
+  @Test
+  public void nativeEmpireStore() throws IOException {
+    // The natives' store doesn't have an empire_id, it's matched as 0.
+    Star base = makeStar();
+    Star.Builder star = base.newBuilder().version(2L);
+    star.empire_stores.set(1, star.empire_stores.get(1).newBuilder().total_energy(1.0f).build());
+    StarDelta delta = assertRoundTrip(base, star.build());
+    assertEquals(0L, (long) delta.empire_stores.get(0).empire_id);
+
+    star = base.newBuilder().version(2L);
+    star.empire_stores.remove(1);
+    delta = assertRoundTrip(base, star.build());
+    assertEquals(Collections.singletonList(0L), delta.removed_empire_store_ids);
+
+    Star withoutNatives = star.build();
+    star = withoutNatives.newBuilder().version(3L);
+    star.empire_stores.add(makeEmpireStore(null));
+    delta = assertRoundTrip(withoutNatives, star.build());
+    assertEquals(0L, (long) delta.empire_stores.get(0).empire_id);
+  }
+
+  @Test
+  public void fleetsAddedRemovedAndChanged() throws IOException {
+    Star base = makeStar();
+    Star.Builder star = base.newBuilder().version(2L);
+    star.fleets.remove(7);
+    star.fleets.remove(2);
+    star.fleets.set(0, star.fleets.get(0).newBuilder()
+        .num_ships(1.0f)
+        .state(Fleet.FLEET_STATE.ATTACKING)
+        .target_fleet_id(null)
+        .build());
+    star.fleets.add(makeFleet(100L, 2L));
+    star.fleets.add(makeFleet(101L, null));
+    StarDelta delta = assertRoundTrip(base, star.build());
+    assertEquals(3, delta.fleets.size());
+    assertEquals(2, delta.removed_fleet_ids.size());
+  }
+
+  @Test
+  public void everythingChanged() throws IOException {
+    Star base = makeStar();
+    Star.Builder star = base.newBuilder().version(2L).name("Everything");
+    for (int i = 0; i < NUM_PLANETS; i++) {
+      star.planets.set(i, star.planets.get(i).newBuilder().mining_congeniality(i).build());
+    }
+    star.empire_stores.set(1, star.empire_stores.get(1).newBuilder().max_goods(1.0f).build());
+    star.empire_stores.remove(2);
+    star.fleets.remove(5);
+    star.fleets.set(1, star.fleets.get(1).newBuilder().notes("Hello").build());
+    star.fleets.add(makeFleet(100L, 1L));
+    assertRoundTrip(base, star.build());
+  }
+
+  @Test
+  public void reorderedFleets() {
+    Star base = makeStar();
+    Star.Builder star = base.newBuilder().version(2L);
+    Collections.swap(star.fleets, 3, 4);
+    assertNull(StarDeltas.diff(base, star.build()));
+
+    // An added fleet has to go on the end.
+    star = base.newBuilder().version(2L);
+    star.fleets.add(0, makeFleet(100L, 1L));
+    assertNull(StarDeltas.diff(base, star.build()));
+  }
+
+  @Test
+  public void reorderedEmpireStores() {
+    Star base = makeStar();
+    Star.Builder star = base.newBuilder().version(2L);
+    Collections.swap(star.empire_stores, 0, 1);
+    assertNull(StarDeltas.diff(base, star.build()));
+  }
+
+  @Test
+  public void reorderedPlanets() {
+    Star base = makeStar();
+    Star.Builder star = base.newBuilder().version(2L);
+    Collections.swap(star.planets, 0, 1);
+    assertNull(StarDeltas.diff(base, star.build()));
+  }
+
+  @Test
+  public void wrongBaseVersion() {
+    Star base = makeStar();
+    StarDelta delta = StarDeltas.diff(base, base.newBuilder().version(3L).name("New").build());
+    assertNotNull(delta);
+    assertNull(StarDeltas.apply(base.newBuilder().version(2L).build(), delta));
+    assertNull(StarDeltas.apply(base.newBuilder().version(null).build(), delta));
+    assertNull(StarDeltas.apply(base.newBuilder().id(43L).build(), delta));
+  }
+
+  @Test
+  public void invalidClearedFields() {
+    Star base = makeStar();
+    StarDelta delta = StarDeltas.diff(base, base.newBuilder().version(2L).name("New").build());
+    assertNotNull(delta);
+    assertNull(StarDeltas.apply(base, delta.newBuilder()
+        .cleared_fields(Collections.singletonList(4))
+        .build()));
+  }
+
+  /**
+   * Checks that applying the diff of the two stars to {@code base} gives us {@code star}, after
+   * sending the delta over the wire.
+   */
+  private static StarDelta assertRoundTrip(Star base, Star star) throws IOException {
+    StarDelta delta = StarDeltas.diff(base, star);
+    assertNotNull(delta);
+    delta = StarDelta.ADAPTER.decode(StarDelta.ADAPTER.encode(delta));
+    assertEquals(star, StarDeltas.apply(base, delta));
+    return delta;
+  }
+
+  private static Star makeStar() {
+    Star.Builder star = new Star.Builder()
+        .id(42L)
+        .name("Test")
+        .classification(Star.CLASSIFICATION.YELLOW)
+        .size(20)
+        .sector_x(1L)
+        .sector_y(-1L)
+        .offset_x(100)
+        .offset_y(200)
+        .time_emptied(1000L)
+        .last_simulation(2000L)
+        .next_simulation(3000L)
+        .version(1L);
+
+    List<Planet> planets = new ArrayList<>();
+    for (int i = 0; i < NUM_PLANETS; i++) {
+      Planet.Builder planet = new Planet.Builder()
+          .index(i)
+          .planet_type(Planet.PLANET_TYPE.TERRAN)
+          .population_congeniality(100 + i)
+          .farming_congeniality(200 + i)
+          .mining_congeniality(300 + i)
+          .energy_congeniality(400 + i);
+      if (i == 1) {
+        planet.colony(makeColony(100L, 1L));
+      } else if (i == 2) {
+        planet.colony(makeColony(200L, null));
+      }
+      planets.add(planet.build());
+    }
+    star.planets(planets);
+
+    List<EmpireStorage> empireStores = new ArrayList<>();
+    empireStores.add(makeEmpireStore(1L));
+    empireStores.add(makeEmpireStore(null));
+    empireStores.add(makeEmpireStore(2L));
+    star.empire_stores(empireStores);
+
+    List<Fleet> fleets = new ArrayList<>();
+    for (int i = 0; i < NUM_FLEETS; i++) {
+      fleets.add(makeFleet(10L + i, i % 3 == 0 ? null : (long) (i % 3)));
+    }
+    star.fleets(fleets);
+    return star.build();
+  }
+
+  private static Colony makeColony(long id, Long empireId) {
+    List<Building> buildings = new ArrayList<>();
+    buildings.add(new Building.Builder()
+        .design_type(Design.DesignType.SHIPYARD)
+        .level(1)
+        .build());
+    return new Colony.Builder()
+        .id(id)
+        .empire_id(empireId)
+        .population(500.0f)
+        .focus(new ColonyFocus.Builder()
+            .construction(0.25f)
+            .farming(0.25f)
+            .mining(0.25f)
+            .energy(0.25f)
+            .build())
+        .defence_bonus(1.0f)
+        .cooldown_end_time(5000L)
+        .buildings(buildings)
+        .build();
+  }
+
+  private static EmpireStorage makeEmpireStore(Long empireId) {
+    return new EmpireStorage.Builder()
+        .empire_id(empireId)
+        .total_goods(100.0f)
+        .total_minerals(200.0f)
+        .total_energy(300.0f)
+        .max_goods(1000.0f)
+        .max_minerals(1000.0f)
+        .max_energy(1000.0f)
+        .goods_zero_time(6000L)
+        .build();
+  }
+
+  private static Fleet makeFleet(long id, Long empireId) {
+    return new Fleet.Builder()
+        .id(id)
+        .empire_id(empireId)
+        .design_type(Design.DesignType.FIGHTER)
+        .num_ships(10.0f)
+        .state(Fleet.FLEET_STATE.IDLE)
+        .state_start_time(1000L)
+        .stance(Fleet.FLEET_STANCE.AGGRESSIVE)
+        .target_fleet_id(5L)
+        .build();
+  }
+}
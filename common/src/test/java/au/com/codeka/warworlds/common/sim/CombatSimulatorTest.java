@@ -0,0 +1,154 @@
+package au.com.codeka.warworlds.common.sim;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.CombatReport;
+import au.com.codeka.warworlds.common.proto.Design;
+import au.com.codeka.warworlds.common.proto.Fleet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link CombatSimulator}. Each test simulates a step of only a few rounds, so that we
+ * can check exactly what happened in each.
+ */
+public class CombatSimulatorTest {
+  /** A time on the minute, so that the first round happens right at the start of the step. */
+  private static final long NOW = 1000 * Time.DAY;
+
+  private static final long EMPIRE_1 = 1L;
+  private static final long EMPIRE_2 = 2L;
+
+  private final List<Fleet> fleets = new ArrayList<>();
+  private final List<CombatReport.Round> rounds = new ArrayList<>();
+
+  @Test
+  public void targetsLowestCombatPriority() {
+    Design troopCarrier = DesignHelper.getDesign(Design.DesignType.TROOP_CARRIER);
+    Design scout = DesignHelper.getDesign(Design.DesignType.SCOUT);
+    assertTrue(troopCarrier.combat_priority < scout.combat_priority);
+
+    addFleet(1L, EMPIRE_1, Design.DesignType.FIGHTER, 1.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    addFleet(2L, EMPIRE_2, Design.DesignType.SCOUT, 100.0f, Fleet.FLEET_STANCE.PASSIVE);
+    addFleet(3L, EMPIRE_2, Design.DesignType.TROOP_CARRIER, 100.0f, Fleet.FLEET_STANCE.PASSIVE);
+    simulate(2);
+
+    assertEquals(2, rounds.size());
+    for (CombatReport.Round round : rounds) {
+      assertEquals(1, round.attacker_fleet_ids.size());
+      assertEquals(1L, (long) round.attacker_fleet_ids.get(0));
+      assertEquals(3L, (long) round.target_fleet_ids.get(0));
+    }
+    assertEquals(3L, (long) fleets.get(0).target_fleet_id);
+    assertEquals(100.0f, fleets.get(1).num_ships, 0.0f);
+    assertEquals(100.0f - 2 * shipsLost(Design.DesignType.FIGHTER, 1.0f, troopCarrier),
+        fleets.get(2).num_ships, 0.0001f);
+  }
+
+  @Test
+  public void damageDestroysFleetsFromTheFront() {
+    // One fighter does enough damage to destroy five scouts: the first two fleets and none of the
+    // third.
+    Design scout = DesignHelper.getDesign(Design.DesignType.SCOUT);
+    assertEquals(5.0f, shipsLost(Design.DesignType.FIGHTER, 1.0f, scout), 0.0f);
+
+    addFleet(1L, EMPIRE_1, Design.DesignType.FIGHTER, 1.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    addFleet(2L, EMPIRE_2, Design.DesignType.SCOUT, 2.0f, Fleet.FLEET_STANCE.PASSIVE);
+    addFleet(3L, EMPIRE_2, Design.DesignType.SCOUT, 3.0f, Fleet.FLEET_STANCE.PASSIVE);
+    addFleet(4L, EMPIRE_2, Design.DesignType.SCOUT, 10.0f, Fleet.FLEET_STANCE.PASSIVE);
+    simulate(1);
+
+    assertEquals(0.0f, fleets.get(1).num_ships, 0.0f);
+    assertEquals(NOW, (long) fleets.get(1).time_destroyed);
+    assertEquals(0.0f, fleets.get(2).num_ships, 0.0f);
+    assertEquals(NOW, (long) fleets.get(2).time_destroyed);
+    assertEquals(10.0f, fleets.get(3).num_ships, 0.0f);
+    assertNull(fleets.get(3).time_destroyed);
+  }
+
+  @Test
+  public void idleFleetsFightBack() {
+    addFleet(1L, EMPIRE_1, Design.DesignType.FIGHTER, 10.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    addFleet(2L, EMPIRE_2, Design.DesignType.FIGHTER, 10.0f, Fleet.FLEET_STANCE.NEUTRAL);
+    simulate(2);
+
+    // In the first round only the aggressive fleet attacks, the fleet it attacked fights back from
+    // the second round on.
+    assertEquals(2, rounds.size());
+    assertEquals(1, rounds.get(0).attacker_fleet_ids.size());
+    assertEquals(2, rounds.get(1).attacker_fleet_ids.size());
+    assertTrue(rounds.get(1).attacker_fleet_ids.contains(2L));
+    assertEquals(Fleet.FLEET_STATE.ATTACKING, fleets.get(1).state);
+    assertEquals(NOW, (long) fleets.get(1).state_start_time);
+    assertEquals(1L, (long) fleets.get(1).target_fleet_id);
+  }
+
+  @Test
+  public void passiveFleetsDontFightBack() {
+    addFleet(1L, EMPIRE_1, Design.DesignType.SCOUT, 1.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    addFleet(2L, EMPIRE_2, Design.DesignType.FIGHTER, 10.0f, Fleet.FLEET_STANCE.PASSIVE);
+    simulate(2);
+
+    assertEquals(2, rounds.size());
+    for (CombatReport.Round round : rounds) {
+      assertEquals(1, round.attacker_fleet_ids.size());
+      assertEquals(1L, (long) round.attacker_fleet_ids.get(0));
+    }
+    assertEquals(Fleet.FLEET_STATE.IDLE, fleets.get(1).state);
+    assertNull(fleets.get(1).target_fleet_id);
+    assertTrue(fleets.get(1).num_ships < 10.0f);
+  }
+
+  @Test
+  public void combatEndsWithSurvivorsIdle() {
+    addFleet(1L, EMPIRE_1, Design.DesignType.FIGHTER, 100.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    addFleet(2L, EMPIRE_1, Design.DesignType.SCOUT, 5.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    addFleet(3L, EMPIRE_2, Design.DesignType.SCOUT, 1.0f, Fleet.FLEET_STANCE.NEUTRAL);
+    simulate(10);
+
+    // The enemy is destroyed in the first round, and that's the end of the combat.
+    assertEquals(1, rounds.size());
+    assertEquals(NOW, (long) fleets.get(2).time_destroyed);
+    for (Fleet fleet : fleets.subList(0, 2)) {
+      assertEquals(Fleet.FLEET_STATE.IDLE, fleet.state);
+      assertEquals(NOW, (long) fleet.state_start_time);
+      assertNull(fleet.target_fleet_id);
+      assertNull(fleet.time_destroyed);
+    }
+
+    // And there's nothing more to do in the next step (the destroyed fleet is left alone, too).
+    List<Fleet> before = new ArrayList<>(fleets);
+    new CombatSimulator().simulateStep(fleets, rounds, NOW + Time.MINUTE * 10, Time.MINUTE * 10);
+    assertEquals(1, rounds.size());
+    assertEquals(before, fleets);
+  }
+
+  /** Simulates a step with the given number of rounds in it. */
+  private void simulate(int numRounds) {
+    new CombatSimulator().simulateStep(fleets, rounds, NOW, numRounds * Time.MINUTE);
+  }
+
+  private void addFleet(long id, long empireId, Design.DesignType designType, float numShips,
+      Fleet.FLEET_STANCE stance) {
+    fleets.add(new Fleet.Builder()
+        .id(id)
+        .empire_id(empireId)
+        .design_type(designType)
+        .num_ships(numShips)
+        .state(Fleet.FLEET_STATE.IDLE)
+        .state_start_time(NOW - Time.HOUR)
+        .stance(stance)
+        .build());
+  }
+
+  /** The number of ships of the target design that the given attackers destroy in one round. */
+  private static float shipsLost(Design.DesignType attacker, float numShips, Design target) {
+    return numShips * DesignHelper.getDesign(attacker).base_attack / target.base_defence;
+  }
+}
@@ -0,0 +1,252 @@
+package au.com.codeka.warworlds.common.sim;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.BuildRequest;
+import au.com.codeka.warworlds.common.proto.Building;
+import au.com.codeka.warworlds.common.proto.Colony;
+import au.com.codeka.warworlds.common.proto.Design;
+import au.com.codeka.warworlds.common.proto.Fleet;
+import au.com.codeka.warworlds.common.proto.Planet;
+import au.com.codeka.warworlds.common.proto.Star;
+
+import static au.com.codeka.warworlds.common.sim.TestStars.addBuildRequest;
+import static au.com.codeka.warworlds.common.sim.TestStars.addFleet;
+import static au.com.codeka.warworlds.common.sim.TestStars.colonize;
+import static au.com.codeka.warworlds.common.sim.TestStars.makeStar;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link DesignHelper}, checked against scanning the list of designs directly. */
+public class DesignHelperTest {
+  /** The number of fleets at the star in {@link #fullSimulationBenchmark}. */
+  private static final int BENCHMARK_FLEETS = 200;
+
+  /** The number of times we run each part of {@link #fullSimulationBenchmark}. */
+  private static final int BENCHMARK_ITERATIONS = 10;
+
+  @Test
+  public void getDesign() {
+    for (Design.DesignType type : Design.DesignType.values()) {
+      Design expected = null;
+      for (Design design : DesignHelper.getDesigns()) {
+        if (design.type == type) {
+          expected = design;
+          break;
+        }
+      }
+
+      if (expected == null) {
+        try {
+          DesignHelper.getDesign(type);
+          throw new AssertionError("Expected no design for " + type);
+        } catch (IllegalStateException e) {
+          // Expected.
+        }
+      } else {
+        assertSame(expected, DesignHelper.getDesign(type));
+      }
+    }
+  }
+
+  @Test
+  public void getDesignsByKind() {
+    int total = 0;
+    for (Design.DesignKind kind : Design.DesignKind.values()) {
+      List<Design> expected = new ArrayList<>();
+      for (Design design : DesignHelper.getDesigns()) {
+        if (design.design_kind == kind) {
+          expected.add(design);
+        }
+      }
+      assertEquals(expected, DesignHelper.getDesigns(kind));
+      total += expected.size();
+    }
+    assertEquals(DesignHelper.getDesigns().size(), total);
+    assertTrue(DesignHelper.getDesigns(Design.DesignKind.SHIP).size() > 0);
+    assertTrue(DesignHelper.getDesigns(Design.DesignKind.BUILDING).size() > 0);
+  }
+
+  @Test
+  public void getBuildCosts() {
+    for (Design design : DesignHelper.getDesigns()) {
+      Integer minerals = design.build_cost == null ? null : design.build_cost.minerals;
+      Integer population = design.build_cost == null ? null : design.build_cost.population;
+      assertEquals(minerals == null ? 0.0f : minerals,
+          DesignHelper.getBuildCostMinerals(design.type), 0.0f);
+      assertEquals(population == null ? 0.0f : population,
+          DesignHelper.getBuildCostPopulation(design.type), 0.0f);
+    }
+  }
+
+  @Test
+  public void hasDependencies() {
+    List<Colony> colonies = new ArrayList<>();
+    colonies.add(makeColony(new ArrayList<Building>()));
+    for (Design building : DesignHelper.getDesigns(Design.DesignKind.BUILDING)) {
+      for (int level = 1; level <= 3; level++) {
+        List<Building> buildings = new ArrayList<>();
+        buildings.add(makeBuilding(building.type, level));
+        colonies.add(makeColony(buildings));
+      }
+    }
+    for (int level = 1; level <= 3; level++) {
+      List<Building> buildings = new ArrayList<>();
+      for (Design building : DesignHelper.getDesigns(Design.DesignKind.BUILDING)) {
+        buildings.add(makeBuilding(building.type, level));
+      }
+      colonies.add(makeColony(buildings));
+    }
+
+    for (Colony colony : colonies) {
+      for (Design design : DesignHelper.getDesigns()) {
+        int maxLevel = 1 + (design.upgrades == null ? 0 : design.upgrades.size());
+        for (int level = 0; level <= maxLevel; level++) {
+          assertEquals(design.type + " level " + level + " with " + colony.buildings,
+              hasDependenciesByScanning(colony, design, level),
+              DesignHelper.hasDependencies(colony, design, level));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void fullSimulationBenchmark() {
+    // A day of combat (and a day of predicting it) at a star with a few hundred fleets and a build
+    // on every colony. The combat looks up the design of every fleet in every step, and loading
+    // the star looks up the cost of every build. We can't run the simulation with the old lookups
+    // any more, so we time a full simulation, then the lookups it made, once with DesignHelper and
+    // once by scanning the list of designs like getDesign used to.
+    Star.Builder starBuilder = makeStar(1L, 5, Time.DAY);
+    for (int i = 0; i < 5; i++) {
+      colonize(starBuilder, i, 1L + i % 4, 100.0f);
+      addBuildRequest(starBuilder, i, i % 2 == 0 ? Design.DesignType.SCOUT
+          : Design.DesignType.FIGHTER, 10);
+    }
+    for (int i = 0; i < BENCHMARK_FLEETS; i++) {
+      addFleet(starBuilder, 100L + i, 1L + i % 4,
+          i % 3 == 0 ? Design.DesignType.SCOUT : Design.DesignType.FIGHTER, i < 8 ? 1.0f : 1000.0f,
+          i < 8 ? Fleet.FLEET_STANCE.AGGRESSIVE : Fleet.FLEET_STANCE.PASSIVE);
+    }
+    Star star = starBuilder.build();
+
+    List<Design.DesignType> fleetTypes = new ArrayList<>();
+    for (Fleet fleet : star.fleets) {
+      fleetTypes.add(fleet.design_type);
+    }
+    List<Design.DesignType> buildTypes = new ArrayList<>();
+    for (Planet planet : star.planets) {
+      for (BuildRequest buildRequest : planet.colony.build_requests) {
+        buildTypes.add(buildRequest.design_type);
+      }
+    }
+
+    long simulationNanos = Long.MAX_VALUE;
+    int numSteps = 0;
+    for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+      SimulationProfile profile = new SimulationProfile();
+      Simulation simulation = new Simulation(System.currentTimeMillis(), true, null);
+      simulation.setProfile(profile);
+      long startTime = System.nanoTime();
+      simulation.simulate(star.newBuilder());
+      simulationNanos = Math.min(simulationNanos, System.nanoTime() - startTime);
+      numSteps = profile.getNumSteps() + profile.getNumPredictionSteps();
+    }
+
+    long tableNanos = Long.MAX_VALUE;
+    long scanNanos = Long.MAX_VALUE;
+    float checksum = 0.0f;
+    for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+      long startTime = System.nanoTime();
+      for (Design.DesignType type : buildTypes) {
+        checksum += DesignHelper.getBuildCostMinerals(type)
+            + DesignHelper.getBuildCostPopulation(type);
+      }
+      for (int step = 0; step < numSteps; step++) {
+        for (int f = 0; f < fleetTypes.size(); f++) {
+          checksum += DesignHelper.getDesign(fleetTypes.get(f)).speed_px_per_hour;
+        }
+      }
+      tableNanos = Math.min(tableNanos, System.nanoTime() - startTime);
+
+      startTime = System.nanoTime();
+      for (Design.DesignType type : buildTypes) {
+        Design design = getDesignByScanning(type);
+        checksum += design.build_cost.minerals + design.build_cost.population;
+      }
+      for (int step = 0; step < numSteps; step++) {
+        for (int f = 0; f < fleetTypes.size(); f++) {
+          checksum += getDesignByScanning(fleetTypes.get(f)).speed_px_per_hour;
+        }
+      }
+      scanNanos = Math.min(scanNanos, System.nanoTime() - startTime);
+    }
+
+    System.out.println(String.format(
+        "Simulating %d steps with %d fleets and %d builds took %.2fms. Its design lookups took"
+            + " %.2fms, and would have taken %.2fms by scanning (%.1f%% of the simulation)."
+            + " [checksum=%.0f]",
+        numSteps, fleetTypes.size(), buildTypes.size(), simulationNanos / 1000000.0,
+        tableNanos / 1000000.0, scanNanos / 1000000.0,
+        100.0 * (scanNanos - tableNanos) / simulationNanos, checksum));
+    assertTrue(numSteps > 0);
+    assertTrue("Table took " + tableNanos + "ns, scanning took " + scanNanos + "ns",
+        tableNanos < scanNanos);
+  }
+
+  /** Finds the design of the given type by scanning the list of designs, like we used to. */
+  private static Design getDesignByScanning(Design.DesignType type) {
+    for (Design design : DesignHelper.getDesigns()) {
+      if (design.type.equals(type)) {
+        return design;
+      }
+    }
+    throw new IllegalStateException("No design with id=" + type + " found.");
+  }
+
+  /** Checks the given design's dependencies by scanning the colony's buildings for each one. */
+  private static boolean hasDependenciesByScanning(Colony colony, Design design, int level) {
+    List<Design.Dependency> dependencies = design.dependencies;
+    if (level > 1) {
+      dependencies = design.upgrades.get(level - 2).dependencies;
+    }
+    if (dependencies == null) {
+      return true;
+    }
+
+    for (Design.Dependency dep : dependencies) {
+      int depLevel = dep.level == null ? 1 : dep.level;
+      boolean isMet = false;
+      for (Building building : colony.buildings) {
+        int buildingLevel = building.level == null ? 1 : building.level;
+        if (building.design_type == dep.type && buildingLevel >= depLevel) {
+          isMet = true;
+          break;
+        }
+      }
+      if (!isMet) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Colony makeColony(List<Building> buildings) {
+    return new Colony.Builder()
+        .id(1L)
+        .buildings(buildings)
+        .build();
+  }
+
+  private static Building makeBuilding(Design.DesignType type, int level) {
+    return new Building.Builder()
+        .design_type(type)
+        .level(level)
+        .build();
+  }
+}
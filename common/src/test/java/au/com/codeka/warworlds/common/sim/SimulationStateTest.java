@@ -0,0 +1,162 @@
+package au.com.codeka.warworlds.common.sim;
+
+import com.google.common.collect.Sets;
+
+import org.junit.Test;
+
+import java.util.Set;
+
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.Colony;
+import au.com.codeka.warworlds.common.proto.Design;
+import au.com.codeka.warworlds.common.proto.EmpireStorage;
+import au.com.codeka.warworlds.common.proto.Planet;
+import au.com.codeka.warworlds.common.proto.Star;
+
+import static au.com.codeka.warworlds.common.sim.TestStars.addBuildRequest;
+import static au.com.codeka.warworlds.common.sim.TestStars.colonize;
+import static au.com.codeka.warworlds.common.sim.TestStars.makeStar;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/** Tests for {@link SimulationState}. */
+public class SimulationStateTest {
+  private static final Set<Long> ALL_EMPIRES = Sets.newHashSet(1L, 2L, null);
+
+  @Test
+  public void roundTripWithoutStepping() {
+    Star star = makeFullStar(1L);
+    Star.Builder starBuilder = star.newBuilder();
+    SimulationState state = new SimulationState();
+    state.load(starBuilder, ALL_EMPIRES);
+    state.save(starBuilder);
+    assertEquals(star, starBuilder.build());
+  }
+
+  @Test
+  public void roundTripAfterStepping() {
+    // If the state was stepped but nothing actually changed, everything we write back is what we
+    // loaded in the first place.
+    Star star = makeFullStar(1L);
+    Star.Builder starBuilder = star.newBuilder();
+    SimulationState state = new SimulationState();
+    state.load(starBuilder, ALL_EMPIRES);
+    state.stepped = true;
+    state.save(starBuilder);
+    assertEquals(star, starBuilder.build());
+  }
+
+  @Test
+  public void roundTripReusedState() {
+    // Load a bigger star first, so the arrays are bigger than the next star needs.
+    SimulationState state = new SimulationState();
+    state.load(makeFullStar(2L).newBuilder(), ALL_EMPIRES);
+    state.stepped = true;
+
+    Star.Builder smallStar = makeStar(3L, 2, Time.HOUR);
+    colonize(smallStar, 1, 2L, 30.0f);
+    Star star = withEverythingSet(smallStar.build());
+    Star.Builder starBuilder = star.newBuilder();
+    state.load(starBuilder, ALL_EMPIRES);
+    state.stepped = true;
+    state.save(starBuilder);
+    assertEquals(star, starBuilder.build());
+  }
+
+  @Test
+  public void roundTripCopy() {
+    Star star = makeFullStar(1L);
+    SimulationState state = new SimulationState();
+    state.load(star.newBuilder(), ALL_EMPIRES);
+    state.stepped = true;
+
+    SimulationState copy = new SimulationState();
+    copy.copyFrom(state);
+    Star.Builder starBuilder = star.newBuilder();
+    copy.save(starBuilder);
+    assertEquals(star, starBuilder.build());
+  }
+
+  @Test
+  public void onlySavesLoadedEmpires() {
+    Star star = makeFullStar(1L);
+    Star.Builder starBuilder = star.newBuilder();
+    SimulationState state = new SimulationState();
+    state.load(starBuilder, Sets.newHashSet(1L));
+    for (int c = 0; c < state.numColonies; c++) {
+      state.population[c] += 1.0f;
+    }
+    for (int e = 0; e < state.numEmpires; e++) {
+      state.totalGoods[e] += 1.0f;
+    }
+    state.stepped = true;
+    state.save(starBuilder);
+
+    Star saved = starBuilder.build();
+    for (int i = 0; i < star.planets.size(); i++) {
+      Colony before = star.planets.get(i).colony;
+      Colony after = saved.planets.get(i).colony;
+      if (before == null) {
+        assertEquals(null, after);
+      } else if (before.empire_id != null && before.empire_id == 1L) {
+        assertEquals(before.population + 1.0f, after.population, 0.0001f);
+      } else {
+        assertEquals(before, after);
+      }
+    }
+    for (int i = 0; i < star.empire_stores.size(); i++) {
+      EmpireStorage before = star.empire_stores.get(i);
+      EmpireStorage after = saved.empire_stores.get(i);
+      if (before.empire_id != null && before.empire_id == 1L) {
+        assertNotEquals(before, after);
+      } else {
+        assertEquals(before, after);
+      }
+    }
+  }
+
+  /**
+   * Makes a star with colonies of a couple of empires and the natives, and build requests, with
+   * every field that {@link SimulationState#save} writes already set.
+   */
+  private static Star makeFullStar(long id) {
+    Star.Builder star = makeStar(id, 5, Time.HOUR);
+    colonize(star, 0, 1L, 100.0f);
+    colonize(star, 1, 2L, 80.0f);
+    colonize(star, 3, 1L, 20.0f);
+    colonize(star, 4, null, 300.0f);
+    addBuildRequest(star, 0, Design.DesignType.SCOUT, 5);
+    addBuildRequest(star, 0, Design.DesignType.FIGHTER, 10);
+    addBuildRequest(star, 3, Design.DesignType.SHIPYARD, 1);
+    return withEverythingSet(star.build());
+  }
+
+  private static Star withEverythingSet(Star star) {
+    Star.Builder starBuilder = star.newBuilder();
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < starBuilder.planets.size(); i++) {
+      Planet planet = starBuilder.planets.get(i);
+      if (planet.colony == null) {
+        continue;
+      }
+      starBuilder.planets.set(i, planet.newBuilder()
+          .colony(planet.colony.newBuilder()
+              .delta_goods(1.5f + i)
+              .delta_minerals(2.5f + i)
+              .delta_energy(3.5f + i)
+              .delta_population(-0.5f * i)
+              .cooldown_end_time(i % 2 == 0 ? now + Time.HOUR : null)
+              .build())
+          .build());
+    }
+    for (int i = 0; i < starBuilder.empire_stores.size(); i++) {
+      starBuilder.empire_stores.set(i, starBuilder.empire_stores.get(i).newBuilder()
+          .goods_delta_per_hour(10.0f + i)
+          .minerals_delta_per_hour(-5.0f + i)
+          .energy_delta_per_hour(2.0f * i)
+          .goods_zero_time(i % 2 == 0 ? now + Time.DAY : null)
+          .build());
+    }
+    return starBuilder.build();
+  }
+}
@@ -0,0 +1,406 @@
+package au.com.codeka.warworlds.common.sim;
+
+import com.google.common.collect.Sets;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.ColonyFocus;
+import au.com.codeka.warworlds.common.proto.Design;
+import au.com.codeka.warworlds.common.proto.EmpireStorage;
+import au.com.codeka.warworlds.common.proto.Fleet;
+import au.com.codeka.warworlds.common.proto.Planet;
+import au.com.codeka.warworlds.common.proto.Star;
+
+import static au.com.codeka.warworlds.common.sim.TestStars.addBuildRequest;
+import static au.com.codeka.warworlds.common.sim.TestStars.addFleet;
+import static au.com.codeka.warworlds.common.sim.TestStars.colonize;
+import static au.com.codeka.warworlds.common.sim.TestStars.makeStar;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link Simulation}. */
+public class SimulationTest {
+  /** The relative error we allow in stored totals, between fast-forwarding and not. */
+  private static final float TOTALS_TOLERANCE = 0.001f;
+
+  /** The number of fleets in {@link #combatWithManyFleetsIsFast}. */
+  private static final int NUM_COMBAT_FLEETS = 1000;
+
+  /** How long we'll allow {@link #combatWithManyFleetsIsFast} to take. */
+  private static final long COMBAT_TIME_BUDGET_NANOS = 2000 * 1000000L;
+
+  @Test
+  public void fastForwardMatchesStepByStep() {
+    // A week of simulation: the colonies grow to their max population in the first few steps, and
+    // after that the star is steady.
+    Star.Builder star = makeStar(1L, 4, 7 * Time.DAY);
+    colonize(star, 0, 1L, 100.0f);
+    colonize(star, 2, 1L, 50.0f);
+    colonize(star, 3, null, 200.0f);
+
+    SimulationProfile profile = new SimulationProfile();
+    Star fastForwarded = simulate(star.build(), true, profile);
+    Star stepByStep = simulate(star.build(), false, null);
+    assertTrue(profile.getNumFastForwardSteps() > 0);
+    assertSameExceptTotals(stepByStep, fastForwarded);
+  }
+
+  @Test
+  public void fastForwardStopsForBuilds() {
+    Star.Builder star = makeStar(1L, 3, 3 * Time.DAY);
+    colonize(star, 0, 1L, 100.0f);
+    colonize(star, 1, 1L, 100.0f);
+    addBuildRequest(star, 1, Design.DesignType.SCOUT, 10);
+    assertSameExceptTotals(simulate(star.build(), false, null), simulate(star.build(), true, null));
+  }
+
+  @Test
+  public void fastForwardStopsForCombat() {
+    Star.Builder star = makeStar(1L, 3, Time.DAY);
+    colonize(star, 0, 1L, 100.0f);
+    addFleet(star, 1L, 1L, Design.DesignType.FIGHTER, 10.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    addFleet(star, 2L, 2L, Design.DesignType.FIGHTER, 20.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    assertSameExceptTotals(simulate(star.build(), false, null), simulate(star.build(), true, null));
+  }
+
+  @Test
+  public void destroyedFleetsAreRemoved() {
+    // The fight is over long before we've simulated up to now, so the loser should be gone rather
+    // than left on the star with a time_destroyed in the past.
+    Star.Builder star = makeStar(1L, 3, Time.DAY);
+    addFleet(star, 1L, 1L, Design.DesignType.FIGHTER, 2.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    addFleet(star, 2L, 2L, Design.DesignType.FIGHTER, 100.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    Star simulated = simulate(star.build(), false, null);
+    assertEquals(1, simulated.fleets.size());
+    assertEquals(2L, (long) simulated.fleets.get(0).id);
+    assertNull(simulated.fleets.get(0).time_destroyed);
+  }
+
+  @Test
+  public void combatWithManyFleetsIsFast() {
+    // A day of combat (and a day of predicting it) at a star with a thousand fleets in four
+    // empires. A few small aggressive fleets keep the combat going in every round, and the rest are
+    // big and passive, so they never fight back and never run out of ships. That's almost 3000 rounds, each of which has to
+    // group all the fleets. The budget is generous enough for a slow, busy test machine, but not
+    // for a round that's quadratic in the number of fleets.
+    Star.Builder star = makeStar(1L, 3, Time.DAY);
+    colonize(star, 0, 1L, 100.0f);
+    for (int i = 0; i < NUM_COMBAT_FLEETS; i++) {
+      if (i < 8) {
+        addFleet(star, 100L + i, 1L + i % 4, Design.DesignType.FIGHTER, 1.0f,
+            Fleet.FLEET_STANCE.AGGRESSIVE);
+      } else {
+        addFleet(star, 100L + i, 1L + i % 4,
+            i % 3 == 0 ? Design.DesignType.SCOUT : Design.DesignType.FIGHTER, 1000.0f,
+            Fleet.FLEET_STANCE.PASSIVE);
+      }
+    }
+
+    long minNanos = Long.MAX_VALUE;
+    for (int i = 0; i < 3; i++) {
+      long startTime = System.nanoTime();
+      Star simulated = simulate(star.build(), true, null);
+      minNanos = Math.min(minNanos, System.nanoTime() - startTime);
+      // The combat lasts all day, and hardly anybody is destroyed.
+      assertTrue(simulated.fleets.size() > NUM_COMBAT_FLEETS - 8);
+      int numAttacking = 0;
+      for (Fleet fleet : simulated.fleets) {
+        if (fleet.state == Fleet.FLEET_STATE.ATTACKING) {
+          numAttacking++;
+        }
+      }
+      assertTrue(numAttacking > 0);
+    }
+    assertTrue("Took " + (minNanos / 1000000L) + "ms", minNanos < COMBAT_TIME_BUDGET_NANOS);
+  }
+
+  @Test
+  public void incrementalMatchesFullPrediction() {
+    long now = System.currentTimeMillis();
+    Star base = makeUpToDateStar(now);
+
+    // Empire #1 changes a colony's focus. Empire #2's colonies and build aren't touched, but its
+    // fleet is fighting empire #1's.
+    Star.Builder incremental = base.newBuilder();
+    adjustFocus(incremental, 0);
+    Star.Builder full = base.newBuilder();
+    adjustFocus(full, 0);
+    assertIncrementalMatchesFull(now, incremental, full, Sets.newHashSet(1L));
+
+    // Empire #1 adds a build request.
+    incremental = base.newBuilder();
+    addBuildRequest(incremental, 0, Design.DesignType.FIGHTER, 5);
+    full = base.newBuilder();
+    addBuildRequest(full, 0, Design.DesignType.FIGHTER, 5);
+    assertIncrementalMatchesFull(now, incremental, full, Sets.newHashSet(1L));
+
+    // The natives change.
+    incremental = base.newBuilder();
+    adjustFocus(incremental, 3);
+    full = base.newBuilder();
+    adjustFocus(full, 3);
+    assertIncrementalMatchesFull(now, incremental, full, Sets.newHashSet((Long) null));
+  }
+
+  @Test
+  public void incrementalMatchesFullPredictionForNewFleet() {
+    // Empire #1 gets a new fleet, which none of the empires' colonies care about, but it joins the
+    // fight with empire #2's fleet (and changes when empire #2's fleet is destroyed).
+    long now = System.currentTimeMillis();
+    Star base = makeUpToDateStar(now);
+    Star.Builder incremental = base.newBuilder();
+    addFleet(incremental, 3L, 1L, Design.DesignType.FIGHTER, 50.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    Star.Builder full = base.newBuilder();
+    addFleet(full, 3L, 1L, Design.DesignType.FIGHTER, 50.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    assertIncrementalMatchesFull(now, incremental, full, new HashSet<Long>());
+  }
+
+  @Test
+  public void simulationIsDeterministic() {
+    long now = System.currentTimeMillis();
+    Star star = makeManyEmpireStar(1L);
+    byte[] expected = simulate(new Simulation(now, true, null), star);
+
+    // Again, with a fresh simulation, and then with one whose scratch state was last used for a
+    // different (bigger) star.
+    assertArrayEquals(expected, simulate(new Simulation(now, true, null), star));
+    Simulation reused = new Simulation(now, true, null);
+    Star.Builder other = makeManyEmpireStar(2L).newBuilder();
+    colonize(other, 5, 5L, 10.0f);
+    reused.simulate(other);
+    assertArrayEquals(expected, simulate(reused, star));
+    assertArrayEquals(expected, simulate(reused, star));
+  }
+
+  @Test
+  public void empiresAreSimulatedIndependently() {
+    // Each empire's step only touches its own colonies and storage. So taking an empire away from
+    // the star makes no difference to how the others are simulated.
+    long now = System.currentTimeMillis();
+    Star star = makeManyEmpireStar(1L);
+    Star.Builder withAll = star.newBuilder();
+    new Simulation(now, true, null).simulate(withAll);
+
+    Star.Builder withoutEmpire3 = star.newBuilder();
+    for (int i = 0; i < withoutEmpire3.planets.size(); i++) {
+      Planet planet = withoutEmpire3.planets.get(i);
+      if (planet.colony != null && Long.valueOf(3L).equals(planet.colony.empire_id)) {
+        withoutEmpire3.planets.set(i, planet.newBuilder().colony(null).build());
+      }
+    }
+    for (int i = withoutEmpire3.empire_stores.size() - 1; i >= 0; i--) {
+      if (Long.valueOf(3L).equals(withoutEmpire3.empire_stores.get(i).empire_id)) {
+        withoutEmpire3.empire_stores.remove(i);
+      }
+    }
+    new Simulation(now, true, null).simulate(withoutEmpire3);
+
+    for (int i = 0; i < withoutEmpire3.planets.size(); i++) {
+      if (withoutEmpire3.planets.get(i).colony != null) {
+        assertEquals(withAll.planets.get(i), withoutEmpire3.planets.get(i));
+      }
+    }
+    for (EmpireStorage storage : withoutEmpire3.empire_stores) {
+      assertTrue(withAll.empire_stores.contains(storage));
+    }
+  }
+
+  @Test
+  public void parallelEmpiresMatchSerial() {
+    long now = System.currentTimeMillis();
+    Star star = makeManyEmpireStar(1L);
+    byte[] expected = simulate(new Simulation(now, true, null), star);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      // The same simulation many times over, so the empires get handed out between the threads
+      // differently each time.
+      Simulation simulation = new Simulation(now, true, null);
+      simulation.setEmpireExecutor(executor);
+      SimulationProfile profile = new SimulationProfile();
+      simulation.setProfile(profile);
+      for (int i = 0; i < 50; i++) {
+        assertArrayEquals(expected, simulate(simulation, star));
+        assertTrue(profile.getNanos(SimulationProfile.Phase.EMPIRE_STEPS) > 0);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void parallelEmpiresDontNeedFreeThreads() {
+    // If the executor won't run anything, the calling thread simulates every empire itself.
+    long now = System.currentTimeMillis();
+    Star star = makeManyEmpireStar(1L);
+    byte[] expected = simulate(new Simulation(now, true, null), star);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    Simulation simulation = new Simulation(now, true, null);
+    simulation.setEmpireExecutor(executor);
+    assertArrayEquals(expected, simulate(simulation, star));
+  }
+
+  @Test
+  public void parallelEmpiresWithReusedSimulation() {
+    // One simulation, used for stars with different numbers of empires, with an executor that
+    // doesn't run any of the tasks it's given until the next star is being simulated. So they run
+    // on a state that's been re-loaded with more empires than they were given for. The big star
+    // was only simulated an hour ago, so it doesn't have time to settle back into the same steady
+    // state if one of its empires gets simulated more than once.
+    long now = System.currentTimeMillis();
+    Star small = makeManyEmpireStar(1L);
+    Star.Builder bigBuilder = makeStar(2L, 8, Time.HOUR);
+    for (int i = 0; i < 8; i++) {
+      colonize(bigBuilder, i, i == 7 ? null : (long) (i + 1), 50.0f + 20.0f * i);
+    }
+    addBuildRequest(bigBuilder, 6, Design.DesignType.SCOUT, 10);
+    Star big = bigBuilder.build();
+    byte[] expectedSmall = simulate(new Simulation(now, true, null), small);
+    byte[] expectedBig = simulate(new Simulation(now, true, null), big);
+
+    final ArrayList<Runnable> held = new ArrayList<>();
+    final ArrayList<Runnable> late = new ArrayList<>();
+    Simulation simulation = new Simulation(now, true, null);
+    simulation.setEmpireExecutor(new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        for (Runnable lateTask : late) {
+          lateTask.run();
+        }
+        late.clear();
+        held.add(task);
+      }
+    });
+    for (int i = 0; i < 3; i++) {
+      assertArrayEquals(expectedSmall, simulate(simulation, small));
+      late.addAll(held);
+      held.clear();
+      assertArrayEquals(expectedBig, simulate(simulation, big));
+      late.addAll(held);
+      held.clear();
+    }
+  }
+
+  /**
+   * Makes a star with colonies of three empires and the natives, with a couple of builds in
+   * progress, last simulated a day ago.
+   */
+  private static Star makeManyEmpireStar(long id) {
+    Star.Builder star = makeStar(id, 6, Time.DAY);
+    colonize(star, 0, 1L, 100.0f);
+    colonize(star, 1, 2L, 200.0f);
+    colonize(star, 2, 3L, 50.0f);
+    colonize(star, 3, 3L, 150.0f);
+    colonize(star, 4, null, 300.0f);
+    addBuildRequest(star, 0, Design.DesignType.SCOUT, 10);
+    addBuildRequest(star, 3, Design.DesignType.FIGHTER, 20);
+    return star.build();
+  }
+
+  /** Simulates a copy of the given star with the given simulation, and returns it encoded. */
+  private static byte[] simulate(Simulation simulation, Star star) {
+    Star.Builder starBuilder = star.newBuilder();
+    simulation.simulate(starBuilder);
+    return Star.ADAPTER.encode(starBuilder.build());
+  }
+
+  /**
+   * Makes a star with colonies of two empires (one of which is building something) and the
+   * natives, and a fleet of each empire fighting each other, then simulates it up to the given
+   * time.
+   */
+  private static Star makeUpToDateStar(long now) {
+    Star.Builder star = makeStar(1L, 5, Time.DAY);
+    colonize(star, 0, 1L, 100.0f);
+    colonize(star, 1, 2L, 200.0f);
+    colonize(star, 2, 2L, 50.0f);
+    colonize(star, 3, null, 300.0f);
+    addBuildRequest(star, 1, Design.DesignType.SCOUT, 10);
+    addFleet(star, 1L, 1L, Design.DesignType.FIGHTER, 10.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    addFleet(star, 2L, 2L, Design.DesignType.FIGHTER, 30.0f, Fleet.FLEET_STANCE.AGGRESSIVE);
+    new Simulation(now, true, null).simulate(star);
+    return star.build();
+  }
+
+  /** Changes the focus of the colony on the given planet. */
+  private static void adjustFocus(Star.Builder star, int planetIndex) {
+    Planet planet = star.planets.get(planetIndex);
+    star.planets.set(planetIndex, planet.newBuilder()
+        .colony(planet.colony.newBuilder()
+            .focus(new ColonyFocus.Builder()
+                .construction(0.7f)
+                .farming(0.1f)
+                .mining(0.1f)
+                .energy(0.1f)
+                .build())
+            .build())
+        .build());
+  }
+
+  /**
+   * Simulates the given stars (which were both up-to-date, and then had the same change made to
+   * them) at the same time, one incrementally and one in full, and asserts that they're the same.
+   */
+  private static void assertIncrementalMatchesFull(long now, Star.Builder incremental,
+      Star.Builder full, Set<Long> changedEmpireIds) {
+    Simulation simulation = new Simulation(now, true, null);
+    simulation.setIncremental(changedEmpireIds);
+    simulation.simulate(incremental);
+    new Simulation(now, true, null).simulate(full);
+    assertEquals(full.build(), incremental.build());
+  }
+
+  /** Simulates a copy of the given star. */
+  private static Star simulate(Star star, boolean fastForward, SimulationProfile profile) {
+    Star.Builder starBuilder = star.newBuilder();
+    Simulation simulation = new Simulation(System.currentTimeMillis(), true, null);
+    simulation.setFastForward(fastForward);
+    simulation.setProfile(profile);
+    simulation.simulate(starBuilder);
+    return starBuilder.build();
+  }
+
+  /**
+   * Asserts that the given stars are identical, except for the stored totals in their empire
+   * storages, which must be within {@link #TOTALS_TOLERANCE} of each other.
+   */
+  private static void assertSameExceptTotals(Star expected, Star actual) {
+    assertEquals(expected.empire_stores.size(), actual.empire_stores.size());
+    for (int i = 0; i < expected.empire_stores.size(); i++) {
+      EmpireStorage lhs = expected.empire_stores.get(i);
+      EmpireStorage rhs = actual.empire_stores.get(i);
+      assertClose(lhs.total_goods, rhs.total_goods);
+      assertClose(lhs.total_minerals, rhs.total_minerals);
+      assertClose(lhs.total_energy, rhs.total_energy);
+    }
+    assertEquals(withoutTotals(expected), withoutTotals(actual));
+  }
+
+  private static void assertClose(float expected, float actual) {
+    assertEquals(expected, actual, Math.max(1.0f, Math.abs(expected)) * TOTALS_TOLERANCE);
+  }
+
+  private static Star withoutTotals(Star star) {
+    ArrayList<EmpireStorage> storages = new ArrayList<>();
+    for (EmpireStorage storage : star.empire_stores) {
+      storages.add(storage.newBuilder()
+          .total_goods(null)
+          .total_minerals(null)
+          .total_energy(null)
+          .build());
+    }
+    return star.newBuilder().empire_stores(storages).build();
+  }
+}
@@ -0,0 +1,99 @@
+package au.com.codeka.warworlds.common.sim;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import au.com.codeka.warworlds.common.proto.Building;
+import au.com.codeka.warworlds.common.proto.Colony;
+import au.com.codeka.warworlds.common.proto.Design;
+import au.com.codeka.warworlds.common.proto.Fleet;
+import au.com.codeka.warworlds.common.proto.Planet;
+import au.com.codeka.warworlds.common.proto.Star;
+import au.com.codeka.warworlds.common.proto.StarModification;
+
+import static au.com.codeka.warworlds.common.sim.TestStars.addFleet;
+import static au.com.codeka.warworlds.common.sim.TestStars.colonize;
+import static au.com.codeka.warworlds.common.sim.TestStars.makeStar;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Tests for {@link StarModifier}. */
+public class StarModifierTest {
+  private final StarModifier starModifier =
+      new StarModifier(new StarModifier.IdentifierGenerator() {
+        private long nextId = 1000L;
+
+        @Override
+        public long nextIdentifier() {
+          return nextId++;
+        }
+      });
+
+  @Test
+  public void moveFleet() {
+    Star.Builder star = makeStar(1L, 3, 0).offset_x(0).offset_y(0);
+    addFleet(star, 10L, 1L, Design.DesignType.SCOUT, 1.0f, Fleet.FLEET_STANCE.PASSIVE);
+    Star destination = makeDestination();
+
+    starModifier.modifyStar(star, Lists.newArrayList(makeMoveFleet(1L)),
+        Lists.newArrayList(destination));
+    Fleet fleet = star.fleets.get(0);
+    assertEquals(Fleet.FLEET_STATE.MOVING, fleet.state);
+    assertEquals(destination.id, fleet.destination_star_id);
+  }
+
+  @Test
+  public void moveFleetIgnoresOtherEmpires() {
+    Star.Builder star = makeStar(1L, 3, 0).offset_x(0).offset_y(0);
+    addFleet(star, 10L, 1L, Design.DesignType.SCOUT, 1.0f, Fleet.FLEET_STANCE.PASSIVE);
+
+    starModifier.modifyStar(star, Lists.newArrayList(makeMoveFleet(2L)),
+        Lists.newArrayList(makeDestination()));
+    Fleet fleet = star.fleets.get(0);
+    assertEquals(Fleet.FLEET_STATE.IDLE, fleet.state);
+    assertNull(fleet.destination_star_id);
+  }
+
+  @Test
+  public void addBuildRequest() {
+    Star.Builder star = makeStar(1L, 3, 0);
+    colonize(star, 0, 1L, 100.0f);
+    Planet planet = star.planets.get(0);
+    Colony colony = planet.colony.newBuilder()
+        .buildings(Lists.newArrayList(new Building.Builder()
+            .design_type(Design.DesignType.SHIPYARD)
+            .level(1)
+            .build()))
+        .build();
+    star.planets.set(0, planet.newBuilder().colony(colony).build());
+
+    starModifier.modifyStar(star, Lists.newArrayList(makeAddBuildRequest()), null);
+    assertEquals(1, star.planets.get(0).colony.build_requests.size());
+    assertEquals(Design.DesignType.SCOUT,
+        star.planets.get(0).colony.build_requests.get(0).design_type);
+  }
+
+  private static Star makeDestination() {
+    return makeStar(2L, 3, 0).offset_x(100).offset_y(0).build();
+  }
+
+  private static StarModification makeAddBuildRequest() {
+    return new StarModification.Builder()
+        .type(StarModification.MODIFICATION_TYPE.ADD_BUILD_REQUEST)
+        .empire_id(1L)
+        .colony_id(100L)
+        .design_type(Design.DesignType.SCOUT)
+        .count(10)
+        .build();
+  }
+
+  private static StarModification makeMoveFleet(long empireId) {
+    return new StarModification.Builder()
+        .type(StarModification.MODIFICATION_TYPE.MOVE_FLEET)
+        .empire_id(empireId)
+        .fleet_id(10L)
+        .star_id(2L)
+        .build();
+  }
+}
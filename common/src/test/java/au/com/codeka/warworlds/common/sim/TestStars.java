@@ -0,0 +1,116 @@
+package au.com.codeka.warworlds.common.sim;
+
+import java.util.ArrayList;
+
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.BuildRequest;
+import au.com.codeka.warworlds.common.proto.Colony;
+import au.com.codeka.warworlds.common.proto.ColonyFocus;
+import au.com.codeka.warworlds.common.proto.Design;
+import au.com.codeka.warworlds.common.proto.EmpireStorage;
+import au.com.codeka.warworlds.common.proto.Fleet;
+import au.com.codeka.warworlds.common.proto.Planet;
+import au.com.codeka.warworlds.common.proto.Star;
+
+/** Helpers for building the {@link Star}s that the simulation tests work on. */
+class TestStars {
+  private TestStars() {
+  }
+
+  /**
+   * Makes a star with the given number of planets, last simulated the given time ago. The planets
+   * all have different congenialities, and none of them are colonized.
+   */
+  static Star.Builder makeStar(long id, int numPlanets, long lastSimulatedAgo) {
+    ArrayList<Planet> planets = new ArrayList<>();
+    for (int i = 0; i < numPlanets; i++) {
+      planets.add(new Planet.Builder()
+          .index(i)
+          .planet_type(Planet.PLANET_TYPE.TERRAN)
+          .population_congeniality(500 + 100 * i)
+          .farming_congeniality(30 + 10 * i)
+          .mining_congeniality(60 - 5 * i)
+          .energy_congeniality(40 + 5 * i)
+          .build());
+    }
+    return new Star.Builder()
+        .id(id)
+        .name("Star " + id)
+        .sector_x(0L)
+        .sector_y(0L)
+        .planets(planets)
+        .empire_stores(new ArrayList<EmpireStorage>())
+        .fleets(new ArrayList<Fleet>())
+        .last_simulation(System.currentTimeMillis() - lastSimulatedAgo);
+  }
+
+  /**
+   * Colonizes the given planet for the given empire (null for natives), and makes sure the empire
+   * has somewhere to store its goods, minerals and energy.
+   */
+  static void colonize(Star.Builder star, int planetIndex, Long empireId, float population) {
+    Planet planet = star.planets.get(planetIndex);
+    star.planets.set(planetIndex, planet.newBuilder()
+        .colony(new Colony.Builder()
+            .id(star.id * 100 + planetIndex)
+            .empire_id(empireId)
+            .population(population)
+            .focus(new ColonyFocus.Builder()
+                .construction(0.1f)
+                .farming(0.3f)
+                .mining(0.3f)
+                .energy(0.3f)
+                .build())
+            .defence_bonus(1.0f)
+            .build())
+        .build());
+
+    for (EmpireStorage storage : star.empire_stores) {
+      if (storage.empire_id == null ? empireId == null : storage.empire_id.equals(empireId)) {
+        return;
+      }
+    }
+    star.empire_stores.add(new EmpireStorage.Builder()
+        .empire_id(empireId)
+        .total_goods(100.0f)
+        .total_minerals(100.0f)
+        .total_energy(100.0f)
+        .max_goods(1000.0f)
+        .max_minerals(1000.0f)
+        .max_energy(1000.0f)
+        .build());
+  }
+
+  /** Adds a build request to the colony on the given planet. */
+  static void addBuildRequest(
+      Star.Builder star, int planetIndex, Design.DesignType designType, int count) {
+    Planet planet = star.planets.get(planetIndex);
+    ArrayList<BuildRequest> buildRequests = new ArrayList<>(planet.colony.build_requests);
+    long now = System.currentTimeMillis();
+    buildRequests.add(new BuildRequest.Builder()
+        .id(planet.colony.id * 100 + buildRequests.size())
+        .design_type(designType)
+        .count(count)
+        .start_time(now - Time.HOUR)
+        .end_time(now + Time.HOUR)
+        .progress(0.0f)
+        .build());
+    star.planets.set(planetIndex, planet.newBuilder()
+        .colony(planet.colony.newBuilder().build_requests(buildRequests).build())
+        .build());
+  }
+
+  /** Adds a fleet to the star. */
+  static void addFleet(Star.Builder star, long fleetId, Long empireId,
+      Design.DesignType designType, float numShips, Fleet.FLEET_STANCE stance) {
+    star.fleets.add(new Fleet.Builder()
+        .id(fleetId)
+        .empire_id(empireId)
+        .design_type(designType)
+        .num_ships(numShips)
+        .state(Fleet.FLEET_STATE.IDLE)
+        .state_start_time(System.currentTimeMillis() - Time.DAY)
+        .stance(stance)
+        .build());
+  }
+}
@@ -12,6 +12,7 @@ import au.com.codeka.warworlds.server.admin.AdminServlet;
 import au.com.codeka.warworlds.server.net.ServerSocketManager;
 import au.com.codeka.warworlds.server.render.RendererServlet;
 import au.com.codeka.warworlds.server.store.DataStore;
+import au.com.codeka.warworlds.server.world.FleetMovementQueue;
 import au.com.codeka.warworlds.server.world.StarSimulatorQueue;
 
 public class Program {
@@ -53,7 +54,13 @@ public class Program {
   }
 
   private static void gameMain() throws Exception {
+    // Bring any stars that became overdue while we were down up-to-date before anybody can
+    // connect. This can be turned off with -Dwarworlds.simulator.catchup=false.
+    if (Boolean.parseBoolean(System.getProperty("warworlds.simulator.catchup", "true"))) {
+      StarSimulatorQueue.i.catchUp();
+    }
     StarSimulatorQueue.i.start();
+    FleetMovementQueue.i.start();
     ServerSocketManager.i.start();
 
     try {
@@ -78,6 +85,7 @@ public class Program {
       server.join();
     } finally {
       ServerSocketManager.i.stop();
+      FleetMovementQueue.i.stop();
       StarSimulatorQueue.i.stop();
     }
   }
@@ -22,6 +22,7 @@ import au.com.codeka.warworlds.common.Log;
 import au.com.codeka.warworlds.server.admin.handlers.AdminLoginHandler;
 import au.com.codeka.warworlds.server.admin.handlers.AjaxDesignsHandler;
 import au.com.codeka.warworlds.server.admin.handlers.AjaxEmpireHandler;
+import au.com.codeka.warworlds.server.admin.handlers.AjaxMetricsHandler;
 import au.com.codeka.warworlds.server.admin.handlers.AjaxSectorsHandler;
 import au.com.codeka.warworlds.server.admin.handlers.AjaxSimulateHandler;
 import au.com.codeka.warworlds.server.admin.handlers.AjaxStarfieldHandler;
@@ -51,6 +52,7 @@ public class AdminServlet extends GenericServlet {
       new Route("/users/create", UsersCreateHandler.class),
       new Route("/ajax/empire", AjaxEmpireHandler.class),
       new Route("/ajax/designs", AjaxDesignsHandler.class),
+      new Route("/ajax/metrics", AjaxMetricsHandler.class),
       new Route("/ajax/sectors", AjaxSectorsHandler.class),
       new Route("/ajax/simulate", AjaxSimulateHandler.class),
       new Route("/ajax/starfield", AjaxStarfieldHandler.class),
@@ -0,0 +1,87 @@
+package au.com.codeka.warworlds.server.admin.handlers;
+
+import java.util.TreeMap;
+
+import au.com.codeka.warworlds.common.proto.Star;
+import au.com.codeka.warworlds.server.admin.RequestException;
+import au.com.codeka.warworlds.server.metrics.Histogram;
+import au.com.codeka.warworlds.server.metrics.SectorWatchMetrics;
+import au.com.codeka.warworlds.server.metrics.SimulationMetrics;
+import au.com.codeka.warworlds.server.net.ServerSocketManager;
+import au.com.codeka.warworlds.server.store.DataStore;
+import au.com.codeka.warworlds.server.store.WriteBehindQueue;
+import au.com.codeka.warworlds.server.world.FleetMovementQueue;
+import au.com.codeka.warworlds.server.world.InterestManager;
+import au.com.codeka.warworlds.server.world.StarCache;
+import au.com.codeka.warworlds.server.world.StarManager;
+import au.com.codeka.warworlds.server.world.StarSimulatorQueue;
+
+/**
+ * Handler for /admin/ajax/metrics, returning the simulation and sector watch histograms (see
+ * {@link SimulationMetrics} and {@link SectorWatchMetrics}) and the stats of the star cache,
+ * queues and game socket as JSON.
+ */
+public class AjaxMetricsHandler extends AjaxHandler {
+  @Override
+  public void get() throws RequestException {
+    MetricsResponse resp = new MetricsResponse();
+    resp.simulation = SimulationMetrics.i.getSnapshots();
+    resp.sectorWatch = SectorWatchMetrics.i.getSnapshots();
+
+    StarSimulatorQueue simulatorQueue = StarSimulatorQueue.i;
+    resp.simulatorQueue.put("workers", simulatorQueue.getNumWorkers());
+    resp.simulatorQueue.put("simulated", simulatorQueue.getNumSimulated());
+    resp.simulatorQueue.put("skipped", simulatorQueue.getNumSkipped());
+    resp.simulatorQueue.put("deferred", simulatorQueue.getNumDeferred());
+    resp.simulatorQueue.put("scheduled", simulatorQueue.getNumScheduled());
+    resp.simulatorQueue.put("inFlight", simulatorQueue.getNumInFlight());
+    resp.simulatorQueue.put("averageSimulateMs", simulatorQueue.getAverageSimulateTimeMs());
+    resp.simulatorQueue.put("averageLagMs", simulatorQueue.getAverageLagMs());
+    resp.simulatorQueue.put("maxLagMs", simulatorQueue.getMaxLagMs());
+    resp.simulatorQueue.put("currentLagMs", simulatorQueue.getCurrentLagMs());
+
+    StarCache starCache = StarManager.i.getCache();
+    resp.starCache.put("size", starCache.size());
+    resp.starCache.put("hits", starCache.getHits());
+    resp.starCache.put("misses", starCache.getMisses());
+    resp.starCache.put("hitRate", starCache.getHitRate());
+    resp.starCache.put("averageLoadMs", starCache.getAverageLoadTimeMs());
+    resp.starCache.put("evictions", starCache.getEvictions());
+
+    WriteBehindQueue<Star> starsWriter = DataStore.i.starsWriter();
+    resp.starsWriter.put("puts", starsWriter.getNumPuts());
+    resp.starsWriter.put("writes", starsWriter.getNumWrites());
+    resp.starsWriter.put("flushes", starsWriter.getNumFlushes());
+    resp.starsWriter.put("coalesceRatio", starsWriter.getCoalesceRatio());
+    resp.starsWriter.put("averageFlushMs", starsWriter.getAverageFlushLatencyMs());
+    resp.starsWriter.put("maxFlushMs", starsWriter.getMaxFlushLatencyMs());
+    resp.starsWriter.put("pending", starsWriter.getNumPending());
+
+    resp.fleetsMoving = FleetMovementQueue.i.getNumMoving();
+
+    resp.interest.put("subscribedSectors", InterestManager.i.getNumSectors());
+    resp.interest.put("published", InterestManager.i.getNumPublished());
+    resp.interest.put("delivered", InterestManager.i.getNumDelivered());
+
+    resp.gameSocket.put("connections", ServerSocketManager.i.getNumConnections());
+    resp.gameSocket.put("channels", ServerSocketManager.i.getNumChannels());
+    resp.gameSocket.put(
+        "starUpdatesCoalesced", ServerSocketManager.i.getNumStarUpdatesCoalesced());
+    resp.gameSocket.put("slowClientsClosed", ServerSocketManager.i.getNumSlowClientsClosed());
+    resp.gameSocket.put("wholeStarsSent", ServerSocketManager.i.getNumWholeStarsSent());
+    resp.gameSocket.put("starDeltasSent", ServerSocketManager.i.getNumStarDeltasSent());
+
+    setResponseGson(resp);
+  }
+
+  static class MetricsResponse {
+    public TreeMap<String, Histogram.Snapshot> simulation;
+    public TreeMap<String, Histogram.Snapshot> sectorWatch;
+    public TreeMap<String, Number> simulatorQueue = new TreeMap<>();
+    public TreeMap<String, Number> starCache = new TreeMap<>();
+    public TreeMap<String, Number> starsWriter = new TreeMap<>();
+    public int fleetsMoving;
+    public TreeMap<String, Number> interest = new TreeMap<>();
+    public TreeMap<String, Number> gameSocket = new TreeMap<>();
+  }
+}
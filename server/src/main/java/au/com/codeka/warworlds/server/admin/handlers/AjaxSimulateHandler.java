@@ -1,7 +1,10 @@
 package au.com.codeka.warworlds.server.admin.handlers;
 
+import java.util.TreeMap;
+
 import au.com.codeka.warworlds.common.proto.Star;
 import au.com.codeka.warworlds.common.sim.Simulation;
+import au.com.codeka.warworlds.common.sim.SimulationProfile;
 import au.com.codeka.warworlds.server.admin.RequestException;
 import au.com.codeka.warworlds.server.world.StarManager;
 import au.com.codeka.warworlds.server.world.WatchableObject;
@@ -15,11 +18,24 @@ public class AjaxSimulateHandler extends AjaxHandler {
     SimulateResponse resp = new SimulateResponse();
     Long id = Long.parseLong (getRequest().getParameter("id"));
     long startTime = System.nanoTime();
-    WatchableObject<Star> star = StarManager.i.getStar(id);
+    WatchableObject<Star> star = StarManager.i.acquireStar(id);
+    if (star == null) {
+      throw new RequestException(404);
+    }
+    try {
+      simulate(star, resp, startTime);
+    } finally {
+      StarManager.i.releaseStar(star);
+    }
+    setResponseGson(resp);
+  }
+
+  private void simulate(WatchableObject<Star> star, SimulateResponse resp, long startTime) {
     resp.loadTime = (System.nanoTime() - startTime) / 1000000L;
     Star.Builder starBuilder = star.get().newBuilder();
     final StringBuilder logMessages = new StringBuilder();
-    new Simulation(new Simulation.LogHandler() {
+    SimulationProfile profile = new SimulationProfile();
+    Simulation simulation = new Simulation(new Simulation.LogHandler() {
       @Override
       public void setStarName(String starName) {
         // ignore.
@@ -30,14 +46,22 @@ public class AjaxSimulateHandler extends AjaxHandler {
         logMessages.append(message);
         logMessages.append("\n");
       }
-    }).simulate(starBuilder);
+    });
+    simulation.setProfile(profile);
+    simulation.simulate(starBuilder);
     long simulateTime = System.nanoTime();
     resp.simulateTime = (simulateTime - startTime) / 1000000L;
-    StarManager.i.completeActions(star, starBuilder);
+    synchronized (star.lock) {
+      StarManager.i.completeActions(star, starBuilder);
+    }
     resp.saveTime = (System.nanoTime() - simulateTime) / 1000000L;
     resp.logMessages = logMessages.toString();
-
-    setResponseGson(resp);
+    for (SimulationProfile.Phase phase : SimulationProfile.Phase.values()) {
+      resp.phaseNanos.put(phase.name().toLowerCase(), profile.getNanos(phase));
+    }
+    resp.numSteps = profile.getNumSteps();
+    resp.numFastForwardSteps = profile.getNumFastForwardSteps();
+    resp.numPredictionSteps = profile.getNumPredictionSteps();
   }
 
   static class SimulateResponse {
@@ -45,5 +69,9 @@ public class AjaxSimulateHandler extends AjaxHandler {
     public long simulateTime;
     public long saveTime;
     public String logMessages;
+    public TreeMap<String, Long> phaseNanos = new TreeMap<>();
+    public int numSteps;
+    public int numFastForwardSteps;
+    public int numPredictionSteps;
   }
 }
@@ -4,7 +4,6 @@ import au.com.codeka.warworlds.common.proto.Sector;
 import au.com.codeka.warworlds.common.proto.SectorCoord;
 import au.com.codeka.warworlds.server.admin.RequestException;
 import au.com.codeka.warworlds.server.world.SectorManager;
-import au.com.codeka.warworlds.server.world.WatchableObject;
 
 /** Handler for /admin/ajax/starfield requests. */
 public class AjaxStarfieldHandler extends AjaxHandler {
@@ -22,8 +21,7 @@ public class AjaxStarfieldHandler extends AjaxHandler {
   }
 
   private void handleXyRequest(long x, long y) {
-    WatchableObject<Sector> sector =
-        SectorManager.i.getSector(new SectorCoord.Builder().x(x).y(y).build());
-    setResponseJson(sector.get());
+    Sector sector = SectorManager.i.getSector(new SectorCoord.Builder().x(x).y(y).build());
+    setResponseJson(sector);
   }
 }
@@ -2,7 +2,7 @@ package au.com.codeka.warworlds.server.admin.handlers;
 
 import com.google.common.collect.ImmutableMap;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import au.com.codeka.warworlds.common.proto.Empire;
 import au.com.codeka.warworlds.common.proto.Star;
@@ -13,17 +13,34 @@ import au.com.codeka.warworlds.server.store.DataStore;
  * Handler for /admin/empires/xxx which shows details about the empire with id xxx.
  */
 public class EmpireDetailsHandler extends AdminHandler {
+  /** The number of stars we show on each page. */
+  private static final int STARS_PAGE_SIZE = 50;
+
   @Override
   public void get() throws RequestException {
     long id = Long.parseLong(getUrlParameter("id"));
     Empire empire = DataStore.i.empires().get(id);
 
-    Iterable<Star> stars =
-        DataStore.i.starEmpireSecondaryStore().getStarsForEmpire(null, empire.id);
+    long startStarId = 0;
+    if (getRequest().getParameter("start") != null) {
+      startStarId = Long.parseLong(getRequest().getParameter("start"));
+    }
+
+    // Fetch one more than we need, so we know whether there's another page after this one.
+    List<Star> stars = DataStore.i.starEmpireSecondaryStore().getStarsForEmpire(
+        null, empire.id, startStarId, STARS_PAGE_SIZE + 1);
+    Long nextStarId = null;
+    if (stars.size() > STARS_PAGE_SIZE) {
+      nextStarId = stars.get(STARS_PAGE_SIZE).id;
+      stars = stars.subList(0, STARS_PAGE_SIZE);
+    }
 
-    render("empires/details.html", ImmutableMap.<String, Object>builder()
+    ImmutableMap.Builder<String, Object> data = ImmutableMap.<String, Object>builder()
         .put("empire", empire)
-        .put("stars", stars)
-        .build());
+        .put("stars", stars);
+    if (nextStarId != null) {
+      data.put("next_star_id", nextStarId);
+    }
+    render("empires/details.html", data.build());
   }
 }
@@ -0,0 +1,114 @@
+package au.com.codeka.warworlds.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative long values (e.g. times in nanoseconds), which many threads can
+ * record into at once without locking.
+ *
+ * <p>Like an HDR histogram, the buckets are log-linear: values below 16 get a bucket each, and
+ * above that each power of two is split into 16 equal buckets. That keeps the relative error of a
+ * percentile under about 6%, for any value up to {@link Long#MAX_VALUE}, in under 1000 buckets.
+ * Recording a value is one increment of its bucket's counter, plus a couple more for the count,
+ * sum and max.
+ */
+public class Histogram {
+  /** The number of bits of each value we keep: each power of two has 2^SUB_BUCKET_BITS buckets. */
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(getBucket(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long currMax = max.get();
+    while (value > currMax && !max.compareAndSet(currMax, value)) {
+      currMax = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0.0 : sum.get() / (double) n;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Gets the value at the given percentile (from 0 to 100). This is the upper bound of the bucket
+   * the percentile falls in, so it's never less than the real value. Values recorded while we're
+   * counting may or may not be included.
+   */
+  public long getPercentile(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+    long seen = 0;
+    for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+      seen += counts.get(bucket);
+      if (seen >= target) {
+        return Math.min(getBucketUpperBound(bucket), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /** Gets a snapshot of this histogram's count, mean, max and common percentiles. */
+  public Snapshot getSnapshot() {
+    Snapshot snapshot = new Snapshot();
+    snapshot.count = getCount();
+    snapshot.mean = getMean();
+    snapshot.p50 = getPercentile(50.0);
+    snapshot.p90 = getPercentile(90.0);
+    snapshot.p99 = getPercentile(99.0);
+    snapshot.max = getMax();
+    return snapshot;
+  }
+
+  private static int getBucket(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  private static long getBucketUpperBound(int bucket) {
+    if (bucket < SUB_BUCKET_COUNT) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKET_COUNT;
+    long lowerBound = (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+    return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+
+  /** A point-in-time summary of a {@link Histogram}. */
+  public static class Snapshot {
+    public long count;
+    public double mean;
+    public long p50;
+    public long p90;
+    public long p99;
+    public long max;
+  }
+}
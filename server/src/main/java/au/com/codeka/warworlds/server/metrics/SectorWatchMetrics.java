@@ -0,0 +1,45 @@
+package au.com.codeka.warworlds.server.metrics;
+
+import java.util.TreeMap;
+
+/**
+ * Records what it costs when players pan around the starfield: each time a player changes the
+ * sectors they're watching, how many sectors came and went, and how many stars we had to send.
+ */
+public class SectorWatchMetrics {
+  public static final SectorWatchMetrics i = new SectorWatchMetrics();
+
+  private final Histogram sectorsEntered = new Histogram();
+  private final Histogram sectorsLeft = new Histogram();
+  private final Histogram starsSent = new Histogram();
+  private final Histogram nanos = new Histogram();
+
+  private SectorWatchMetrics() {
+  }
+
+  /**
+   * Records one change to the sectors a player is watching.
+   *
+   * @param numSectorsEntered The number of sectors they started watching.
+   * @param numSectorsLeft The number of sectors they stopped watching.
+   * @param numStarsSent The number of stars we sent them because of it.
+   * @param elapsedNanos How long it took us to work all that out.
+   */
+  public void record(
+      int numSectorsEntered, int numSectorsLeft, int numStarsSent, long elapsedNanos) {
+    sectorsEntered.record(numSectorsEntered);
+    sectorsLeft.record(numSectorsLeft);
+    starsSent.record(numStarsSent);
+    nanos.record(elapsedNanos);
+  }
+
+  /** Gets a snapshot of all of our histograms, keyed by name. Times are in nanoseconds. */
+  public TreeMap<String, Histogram.Snapshot> getSnapshots() {
+    TreeMap<String, Histogram.Snapshot> snapshots = new TreeMap<>();
+    snapshots.put("sectors_entered", sectorsEntered.getSnapshot());
+    snapshots.put("sectors_left", sectorsLeft.getSnapshot());
+    snapshots.put("stars_sent", starsSent.getSnapshot());
+    snapshots.put("nanos", nanos.getSnapshot());
+    return snapshots;
+  }
+}
@@ -0,0 +1,92 @@
+package au.com.codeka.warworlds.server.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.TreeMap;
+
+import au.com.codeka.warworlds.common.Log;
+import au.com.codeka.warworlds.common.sim.SimulationProfile;
+
+/**
+ * Aggregates the {@link SimulationProfile}s of the stars we simulate into {@link Histogram}s, so
+ * we can see where the time goes (and which phase has gotten slower) under real load.
+ */
+public class SimulationMetrics {
+  private static final Log log = new Log("SimulationMetrics");
+  public static final SimulationMetrics i = new SimulationMetrics();
+
+  private final Histogram[] phaseNanos = new Histogram[SimulationProfile.Phase.values().length];
+  private final Histogram totalNanos = new Histogram();
+  private final Histogram numSteps = new Histogram();
+  private final Histogram numFastForwardSteps = new Histogram();
+  private final Histogram numPredictionSteps = new Histogram();
+  private final Histogram allocations = new Histogram();
+
+  /** Used to measure how much each star allocates, or null if the JVM can't tell us. */
+  private final com.sun.management.ThreadMXBean threadBean;
+
+  private SimulationMetrics() {
+    for (int n = 0; n < phaseNanos.length; n++) {
+      phaseNanos[n] = new Histogram();
+    }
+
+    com.sun.management.ThreadMXBean bean = null;
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+      bean = (com.sun.management.ThreadMXBean) threadMXBean;
+      if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+        bean = null;
+      }
+    }
+    if (bean == null) {
+      log.info("Thread allocation counters not supported, not recording allocations.");
+    }
+    threadBean = bean;
+  }
+
+  /**
+   * Gets the number of bytes the current thread has allocated so far, or -1 if we can't tell. Call
+   * this before and after simulating a star, and pass the difference to {@link #record}.
+   */
+  public long getAllocatedBytes() {
+    if (threadBean == null) {
+      return -1;
+    }
+    return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Records the given profile.
+   *
+   * @param profile The profile of the simulation of one star.
+   * @param allocatedBytes The number of bytes allocated while simulating it (see
+   *     {@link #getAllocatedBytes}), or a negative number if we don't know.
+   */
+  public void record(SimulationProfile profile, long allocatedBytes) {
+    for (SimulationProfile.Phase phase : SimulationProfile.Phase.values()) {
+      phaseNanos[phase.ordinal()].record(profile.getNanos(phase));
+    }
+    totalNanos.record(profile.getTotalNanos());
+    numSteps.record(profile.getNumSteps());
+    numFastForwardSteps.record(profile.getNumFastForwardSteps());
+    numPredictionSteps.record(profile.getNumPredictionSteps());
+    if (allocatedBytes >= 0) {
+      allocations.record(allocatedBytes);
+    }
+  }
+
+  /** Gets a snapshot of all of our histograms, keyed by name. Times are in nanoseconds. */
+  public TreeMap<String, Histogram.Snapshot> getSnapshots() {
+    TreeMap<String, Histogram.Snapshot> snapshots = new TreeMap<>();
+    for (SimulationProfile.Phase phase : SimulationProfile.Phase.values()) {
+      snapshots.put("phase_nanos." + phase.name().toLowerCase(),
+          phaseNanos[phase.ordinal()].getSnapshot());
+    }
+    snapshots.put("total_nanos", totalNanos.getSnapshot());
+    snapshots.put("steps", numSteps.getSnapshot());
+    snapshots.put("fast_forward_steps", numFastForwardSteps.getSnapshot());
+    snapshots.put("prediction_steps", numPredictionSteps.getSnapshot());
+    snapshots.put("allocated_bytes", allocations.getSnapshot());
+    return snapshots;
+  }
+}
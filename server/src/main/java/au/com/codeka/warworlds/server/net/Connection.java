@@ -1,65 +1,322 @@
 package au.com.codeka.warworlds.server.net;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
 
 import au.com.codeka.warworlds.common.Log;
 import au.com.codeka.warworlds.common.debug.PacketDebug;
-import au.com.codeka.warworlds.common.net.PacketDecoder;
+import au.com.codeka.warworlds.common.net.PacketCompressor;
 import au.com.codeka.warworlds.common.net.PacketEncoder;
+import au.com.codeka.warworlds.common.net.PacketFlags;
+import au.com.codeka.warworlds.common.net.StarDeltas;
 import au.com.codeka.warworlds.common.proto.Account;
 import au.com.codeka.warworlds.common.proto.Empire;
+import au.com.codeka.warworlds.common.proto.HelloPacket;
 import au.com.codeka.warworlds.common.proto.Packet;
+import au.com.codeka.warworlds.common.proto.Star;
+import au.com.codeka.warworlds.common.proto.StarDelta;
+import au.com.codeka.warworlds.common.proto.StarUpdatedPacket;
 import au.com.codeka.warworlds.server.world.Player;
 import au.com.codeka.warworlds.server.world.WatchableObject;
 
 /**
  * Represents an established connection to a client.
+ *
+ * <p>{@link #send} never encodes or writes anything itself: packets are queued up, and a writer
+ * on one of the {@link GameChannel}'s worker threads encodes and sends them. Stars from
+ * {@code star_updated} packets are queued by ID, so if a star is updated again before we've sent
+ * it, only the latest version is sent. When the client isn't reading fast enough, the channel
+ * gets backed up and the writer stops until it's drained, while star updates keep replacing each
+ * other in the queue. So a slow client only ever gets fewer updates; it doesn't slow down whoever
+ * is updating the stars, or anybody else.
+ *
+ * <p>If the client accepts them, a star that we've already sent on this connection is sent as a
+ * {@link StarDelta} from the version we last sent, unless {@link StarDeltas} says the whole star
+ * is better. The client has to ask for the whole star (see {@link #resendStars}) if it can't apply
+ * a delta.
  */
-public class Connection implements PacketDecoder.PacketHandler {
+public class Connection implements GameChannel.PacketHandler {
   private final static Log log = new Log("Connection");
 
+  /**
+   * The most packets (apart from star updates, which replace each other) we'll queue for a
+   * client before we decide it's not keeping up, and close the connection.
+   */
+  private static final int MAX_PENDING_PACKETS = 1000;
+
+  /** The most stars we'll send in a single {@code star_updated} packet. */
+  private static final int MAX_STARS_PER_PACKET = 100;
+
   private final Account account;
   private final WatchableObject<Empire> empire;
   private final byte[] encryptionKey;
-  private final Socket socket;
+  private final GameChannel channel;
   private final PacketEncoder encoder;
-  private final PacketDecoder decoder;
   private final Player player;
 
+  /** Packets waiting to be sent. Also the lock for pendingStars and writing. */
+  private final ArrayDeque<Packet> pendingPackets = new ArrayDeque<>();
+
+  /** Stars waiting to be sent, by ID. Replacing a star keeps its place in the queue. */
+  private final LinkedHashMap<Long, Star> pendingStars = new LinkedHashMap<>();
+
+  /** IDs of the pendingStars that have to be sent whole, because the client asked for them. */
+  private final HashSet<Long> wholeStarIds = new HashSet<>();
+
+  /** True while the writer is running (or about to). */
+  private boolean writing;
+
+  private final boolean acceptsStarDeltas;
+
+  /**
+   * The last version of each star we've sent, which we can send deltas from. Only the writer adds
+   * to this, but {@link #forgetStars} can remove from it at any time.
+   */
+  private final Map<Long, Star> sentStars = new ConcurrentHashMap<>();
+
   public Connection(
       Account account,
       WatchableObject<Empire> empire,
       byte[] encryptionKey,
-      Socket socket,
-      PacketDecoder decoder,
-      OutputStream outs) {
+      GameChannel channel,
+      HelloPacket hello) {
     this.account = account;
     this.empire = empire;
     this.encryptionKey = encryptionKey;
-    this.socket = socket;
-    this.encoder = new PacketEncoder(outs);
-    this.decoder = decoder;
-    decoder.setPacketHandler(this);
+    this.channel = channel;
+    this.encoder = new PacketEncoder(channel.getOutputStream());
+    encoder.setCompressor(newCompressor(
+        hello.accepted_packet_flags == null ? PacketFlags.COMPRESSED : hello.accepted_packet_flags));
+    acceptsStarDeltas = Boolean.TRUE.equals(hello.accepts_star_deltas);
 
     player = new Player(this, empire);
+    channel.setDrainListener(this::scheduleWrite);
+    channel.setPacketHandler(this);
   }
 
   public void start() {
     encoder.setPacketHandler(packetEncodeHandler);
   }
 
+  /**
+   * Queues the given packet to be sent. This never blocks, so it's safe to call from anywhere
+   * (e.g. a star watcher, while the star's being simulated). Stars in {@code star_updated} packets
+   * are queued individually and may be sent before other queued packets, and in different batches
+   * to how they were queued.
+   */
   public void send(Packet pkt) {
-    try {
-      encoder.send(pkt);
-    } catch (IOException e) {
-      log.warning("Error", e);
+    if (channel.isClosed()) {
+      return;
+    }
+    boolean tooSlow = false;
+    synchronized (pendingPackets) {
+      if (pkt.star_updated != null) {
+        for (Star star : pkt.star_updated.stars) {
+          queueStar(star);
+        }
+      } else if (pendingPackets.size() >= MAX_PENDING_PACKETS) {
+        tooSlow = true;
+      } else {
+        pendingPackets.addLast(pkt);
+      }
+    }
+
+    if (tooSlow) {
+      log.warning("[%d %s] has %d packets waiting to be sent, closing.",
+          empire.get().id, empire.get().display_name, MAX_PENDING_PACKETS);
+      ServerSocketManager.i.onSlowClientClosed();
+      close();
+      return;
+    }
+    scheduleWrite();
+  }
+
+  /**
+   * Queues the given star to be sent. This is the same as sending a {@code star_updated} packet
+   * with just this star, without having to make the packet.
+   */
+  public void sendStar(Star star) {
+    if (channel.isClosed()) {
+      return;
+    }
+    synchronized (pendingPackets) {
+      queueStar(star);
     }
+    scheduleWrite();
+  }
+
+  /**
+   * Queues the given stars to be sent whole, even if we could send a delta. This is what we do
+   * when the client asks for them, because it couldn't apply a delta we sent.
+   */
+  public void resendStars(Collection<Star> stars) {
+    synchronized (pendingPackets) {
+      for (Star star : stars) {
+        queueStar(star);
+        wholeStarIds.add(star.id);
+      }
+    }
+    scheduleWrite();
+  }
+
+  /**
+   * Forgets the versions of the given stars that we've sent, because the player isn't watching
+   * them any more. If we send them again, we'll send them whole.
+   */
+  public void forgetStars(Collection<Long> starIds) {
+    for (Long starId : starIds) {
+      sentStars.remove(starId);
+    }
+  }
+
+  /** Closes the connection. */
+  public void close() {
+    channel.close();
+  }
+
+  /**
+   * Queues the given star, replacing the version that's already queued (if any) unless that's
+   * newer. Must be called while holding the lock on pendingPackets.
+   */
+  private void queueStar(Star star) {
+    Star pending = pendingStars.get(star.id);
+    if (pending != null) {
+      ServerSocketManager.i.onStarUpdateCoalesced();
+      if (isOlder(star, pending)) {
+        return;
+      }
+    }
+    pendingStars.put(star.id, star);
+  }
+
+  /** Makes sure the writer is running, if there's anything to write and the channel can take it. */
+  private void scheduleWrite() {
+    synchronized (pendingPackets) {
+      if (writing || channel.isBackedUp()
+          || (pendingPackets.isEmpty() && pendingStars.isEmpty())) {
+        return;
+      }
+      writing = true;
+    }
+    channel.execute(this::write);
+  }
+
+  /**
+   * Runs on a worker thread, encoding and sending queued packets until there's none left, or the
+   * channel is backed up (in which case the channel's drain listener will start us again).
+   */
+  private void write() {
+    while (true) {
+      Packet pkt = null;
+      List<Star> stars = null;
+      synchronized (pendingPackets) {
+        if (!channel.isClosed() && !channel.isBackedUp()) {
+          if (!pendingStars.isEmpty()) {
+            stars = takePendingStars();
+          } else {
+            pkt = pendingPackets.pollFirst();
+          }
+        }
+        if (pkt == null && stars == null) {
+          writing = false;
+          return;
+        }
+      }
+      if (stars != null) {
+        pkt = makeStarUpdatedPacket(stars);
+        if (pkt == null) {
+          continue;
+        }
+      }
+
+      try {
+        encoder.send(pkt);
+      } catch (IOException e) {
+        // The channel's been closed, there's nothing more we can send.
+        log.debug("Error sending packet: %s", e.getMessage());
+        synchronized (pendingPackets) {
+          writing = false;
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Takes the next batch of stars to send off the queue. If any of them have to be sent whole, we
+   * forget the version we last sent. Must be called while holding the lock on pendingPackets.
+   */
+  private List<Star> takePendingStars() {
+    List<Star> stars = new ArrayList<>(Math.min(pendingStars.size(), MAX_STARS_PER_PACKET));
+    Iterator<Star> it = pendingStars.values().iterator();
+    while (it.hasNext() && stars.size() < MAX_STARS_PER_PACKET) {
+      Star star = it.next();
+      it.remove();
+      if (wholeStarIds.remove(star.id)) {
+        sentStars.remove(star.id);
+      }
+      stars.add(star);
+    }
+    return stars;
+  }
+
+  /**
+   * Makes a {@code star_updated} packet for the given stars, with deltas for the ones we can send
+   * deltas for. Returns null if there's nothing to send, because we've already sent newer versions
+   * of all of them. Only called by the writer.
+   */
+  private Packet makeStarUpdatedPacket(List<Star> stars) {
+    List<Star> wholeStars = new ArrayList<>();
+    List<StarDelta> deltas = new ArrayList<>();
+    for (Star star : stars) {
+      StarDelta delta = null;
+      if (acceptsStarDeltas) {
+        Star base = sentStars.get(star.id);
+        if (base != null && isOlder(star, base)) {
+          // We've already sent a newer version (e.g. the player's subscription sent an update
+          // while they were fetching the star).
+          continue;
+        }
+        sentStars.put(star.id, star);
+        if (base != null) {
+          delta = StarDeltas.diff(base, star);
+        }
+      }
+      if (delta != null) {
+        deltas.add(delta);
+      } else {
+        wholeStars.add(star);
+      }
+    }
+    if (wholeStars.isEmpty() && deltas.isEmpty()) {
+      return null;
+    }
+    ServerSocketManager.i.onStarsSent(wholeStars.size(), deltas.size());
+
+    return new Packet.Builder()
+        .star_updated(new StarUpdatedPacket.Builder()
+            .stars(wholeStars)
+            .star_deltas(deltas)
+            .build())
+        .build();
+  }
+
+  /** Returns true if {@code star} is an older version of {@code other}. */
+  private static boolean isOlder(Star star, Star other) {
+    return star.version != null && other.version != null && star.version < other.version;
   }
 
   @Override
-  public void onPacket(PacketDecoder decoder, Packet packet, int encodedSize) {
+  public void onPacket(GameChannel channel, Packet packet, int encodedSize) {
     if (log.isDebugEnabled()) {
       log.debug("<< [%d %s] %s", empire.get().id, empire.get().display_name,
           PacketDebug.getPacketDebug(packet, encodedSize));
@@ -67,6 +324,47 @@ public class Connection implements PacketDecoder.PacketHandler {
     player.onPacket(packet);
   }
 
+  @Override
+  public void onClose(GameChannel channel) {
+    log.info("GameSocket connection closed for empire #%d %s",
+        empire.get().id, empire.get().display_name);
+    player.onDisconnect();
+    synchronized (pendingPackets) {
+      pendingPackets.clear();
+      pendingStars.clear();
+      wholeStarIds.clear();
+    }
+    sentStars.clear();
+    encoder.close();
+    ServerSocketManager.i.onConnectionClosed(empire.get().id, this);
+  }
+
+  /**
+   * Makes a {@link PacketCompressor} for a client that can decode the given {@link PacketFlags}.
+   * We use the best compression the client supports, unless the
+   * {@code warworlds.net.streaming_compression} system property is false. The compression level
+   * and the size of the smallest packet we compress come from the
+   * {@code warworlds.net.compression_level} and {@code warworlds.net.compression_threshold}
+   * system properties.
+   */
+  private static PacketCompressor newCompressor(int acceptedFlags) {
+    PacketCompressor.Mode mode = PacketCompressor.Mode.GZIP;
+    if ((acceptedFlags & PacketFlags.STREAM_DEFLATED) != 0 && Boolean.parseBoolean(
+        System.getProperty("warworlds.net.streaming_compression", "true"))) {
+      mode = PacketCompressor.Mode.STREAMING_DEFLATE;
+    } else if ((acceptedFlags & PacketFlags.DEFLATED) != 0) {
+      mode = PacketCompressor.Mode.DEFLATE;
+    } else if ((acceptedFlags & PacketFlags.COMPRESSED) == 0) {
+      mode = PacketCompressor.Mode.NONE;
+    }
+
+    return new PacketCompressor(
+        mode,
+        Integer.getInteger("warworlds.net.compression_level", Deflater.DEFAULT_COMPRESSION),
+        Integer.getInteger(
+            "warworlds.net.compression_threshold", PacketCompressor.getDefaultThreshold(mode)));
+  }
+
   private PacketEncoder.PacketHandler packetEncodeHandler = new PacketEncoder.PacketHandler() {
     @Override
     public void onPacket(Packet packet, int encodedSize) {
@@ -0,0 +1,469 @@
+package au.com.codeka.warworlds.server.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import au.com.codeka.warworlds.common.Log;
+import au.com.codeka.warworlds.common.net.PacketDecoder;
+import au.com.codeka.warworlds.common.net.PacketDecompressor;
+import au.com.codeka.warworlds.common.net.PacketEncoder;
+import au.com.codeka.warworlds.common.proto.Packet;
+
+/**
+ * A non-blocking game socket connected to a client. It's owned by one {@link SelectorThread},
+ * which does all of the reading and writing.
+ *
+ * <p>Incoming bytes are split into packets (with the same framing as {@link PacketDecoder}) on
+ * the selector thread, and the packets are decoded and handed to our {@link PacketHandler} on a
+ * worker thread, one at a time and in the order they arrived. If the handler falls too far behind,
+ * we stop reading from the socket until it catches up.
+ *
+ * <p>Outgoing packets are written with a normal {@link PacketEncoder} on top of
+ * {@link #getOutputStream}, which just queues the bytes up for the selector thread to write. Once
+ * more than {@link #HIGH_WATER_BYTES} are queued, we're "backed up" (see {@link #isBackedUp})
+ * until the selector thread gets it back under {@link #LOW_WATER_BYTES}, so that the writer can
+ * stop encoding packets for a client that isn't reading them. A client that stays backed up for
+ * longer than {@link #SLOW_CLIENT_TIMEOUT_MS} is closed.
+ */
+public class GameChannel {
+  private static final Log log = new Log("GameChannel");
+
+  /** The biggest packet we'll accept from a client. Anything bigger and we'll close the socket. */
+  private static final int MAX_PACKET_SIZE = 1024 * 1024;
+
+  /** The biggest packet we'll accept from a client once it's been decompressed. */
+  private static final int MAX_DECOMPRESSED_PACKET_SIZE = 4 * 1024 * 1024;
+
+  /** The number of packets we'll queue up for the handler before we stop reading. */
+  private static final int MAX_QUEUED_PACKETS = 64;
+
+  /**
+   * The number of bytes we'll queue up for a client before we decide it's not keeping up, and
+   * close the socket.
+   */
+  private static final long MAX_QUEUED_BYTES = 32L * 1024L * 1024L;
+
+  /** Once this many bytes are queued for a client, we're backed up. */
+  private static final long HIGH_WATER_BYTES = 256L * 1024L;
+
+  /** Once we're backed up, we stay that way until there's fewer than this many bytes queued. */
+  private static final long LOW_WATER_BYTES = 64L * 1024L;
+
+  /** How long a client can stay backed up before we decide it's not keeping up and close it. */
+  private static final long SLOW_CLIENT_TIMEOUT_MS = 60 * 1000L;
+
+  /** Handles the packets (and the close) of a {@link GameChannel}. */
+  public interface PacketHandler {
+    /** Called on a worker thread for each packet we receive, one at a time. */
+    void onPacket(GameChannel channel, Packet pkt, int encodedSize);
+
+    /** Called (once) when the channel is closed, for whatever reason. */
+    void onClose(GameChannel channel);
+  }
+
+  private final SocketChannel socketChannel;
+  private final SelectorThread selectorThread;
+  private final Executor executor;
+  private final SocketAddress remoteAddress;
+  private final long acceptTime;
+  private volatile PacketHandler handler;
+  private volatile boolean established;
+  private SelectionKey key;
+
+  /** The header of the packet we're reading, until we've read all of it. */
+  private final ByteBuffer header = ByteBuffer.allocate(PacketDecoder.HEADER_SIZE)
+      .order(ByteOrder.LITTLE_ENDIAN);
+  private int packetFlags;
+  private byte[] packetBytes;
+  private int packetPosition;
+
+  /** Packets that are waiting for the handler. Also the lock for dispatching and readPaused. */
+  private final ArrayDeque<Frame> inbound = new ArrayDeque<>();
+  private boolean dispatching;
+  private boolean readPaused;
+
+  /** Only used while dispatching, which only one worker does at a time. */
+  private final PacketDecompressor decompressor =
+      new PacketDecompressor(MAX_DECOMPRESSED_PACKET_SIZE);
+
+  /** Bytes that are waiting to be written. Also the lock for queuedBytes. */
+  private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+  private long queuedBytes;
+
+  /** The time we became backed up, or 0 if we're not. Only changed while holding outbound. */
+  private volatile long backedUpSince;
+  private volatile Runnable drainListener;
+
+  /** The last time we read or wrote anything. Only updated by the selector thread. */
+  private volatile long lastActivityTime;
+  private volatile boolean closed;
+
+  private final OutputStream outputStream = new OutputStream() {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      enqueue(b, off, len);
+    }
+  };
+
+  GameChannel(
+      SocketChannel socketChannel,
+      SelectorThread selectorThread,
+      Executor executor,
+      PacketHandler handler) {
+    this.socketChannel = socketChannel;
+    this.selectorThread = selectorThread;
+    this.executor = executor;
+    this.handler = handler;
+    this.remoteAddress = socketChannel.socket().getRemoteSocketAddress();
+    acceptTime = System.currentTimeMillis();
+    lastActivityTime = acceptTime;
+  }
+
+  /**
+   * Sets the handler for the rest of the packets we receive. This is called by the handshake
+   * handler, once it's received 'hello', with the {@link Connection}'s handler.
+   */
+  public void setPacketHandler(PacketHandler handler) {
+    this.handler = handler;
+    established = true;
+  }
+
+  /**
+   * Gets an {@link OutputStream} that queues everything written to it to be sent to the client.
+   * Writing to it never blocks. Once the channel is closed, writes throw {@link IOException}.
+   */
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  /**
+   * Returns true if more than {@link #HIGH_WATER_BYTES} are waiting to be written, and we haven't
+   * got them back under {@link #LOW_WATER_BYTES} yet. Anything that can wait should wait until
+   * the drain listener is called.
+   */
+  public boolean isBackedUp() {
+    return backedUpSince != 0;
+  }
+
+  /**
+   * Sets a {@link Runnable} to call when we're no longer backed up. It's called on the selector
+   * thread, so it should do no more than schedule some work.
+   */
+  public void setDrainListener(Runnable drainListener) {
+    this.drainListener = drainListener;
+  }
+
+  /** Runs the given {@link Runnable} on one of our worker threads. */
+  void execute(Runnable runnable) {
+    executor.execute(runnable);
+  }
+
+  public SocketAddress getRemoteAddress() {
+    return remoteAddress;
+  }
+
+  SocketChannel getSocketChannel() {
+    return socketChannel;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /** Closes the channel. This can be called from any thread, and any number of times. */
+  public void close() {
+    synchronized (outbound) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      outbound.clear();
+      queuedBytes = 0;
+      backedUpSince = 0;
+    }
+    synchronized (inbound) {
+      inbound.clear();
+    }
+
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      socketChannel.close();
+    } catch (IOException e) {
+      log.warning("Error closing channel.", e);
+    }
+
+    try {
+      handler.onClose(this);
+    } catch (Exception e) {
+      log.error("Error handling close.", e);
+    }
+  }
+
+  /** Registers with the given key. Called on the selector thread. */
+  void onRegistered(SelectionKey key) {
+    this.key = key;
+    if (closed) {
+      key.cancel();
+    }
+  }
+
+  /** Reads whatever's available into the given buffer, then parses it. Called on the selector. */
+  void onReadable(ByteBuffer buffer) {
+    try {
+      while (!closed) {
+        buffer.clear();
+        int numBytes = socketChannel.read(buffer);
+        if (numBytes < 0) {
+          close();
+          return;
+        }
+        if (numBytes == 0) {
+          return;
+        }
+        lastActivityTime = System.currentTimeMillis();
+        buffer.flip();
+        parse(buffer);
+        if (numBytes < buffer.capacity()) {
+          return;
+        }
+      }
+    } catch (IOException e) {
+      log.debug("Error reading from %s, closing: %s", remoteAddress, e.getMessage());
+      close();
+    }
+  }
+
+  /** Writes as much as we can of what's queued. Called on the selector thread. */
+  void onWritable() {
+    boolean drained = false;
+    try {
+      synchronized (outbound) {
+        if (closed) {
+          return;
+        }
+        ByteBuffer[] buffers = outbound.toArray(new ByteBuffer[outbound.size()]);
+        long numBytes = socketChannel.write(buffers);
+        if (numBytes > 0) {
+          lastActivityTime = System.currentTimeMillis();
+          queuedBytes -= numBytes;
+        }
+        while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining()) {
+          outbound.removeFirst();
+        }
+        if (backedUpSince != 0 && queuedBytes < LOW_WATER_BYTES) {
+          backedUpSince = 0;
+          drained = true;
+        }
+      }
+      updateInterestOps();
+      Runnable listener = drainListener;
+      if (drained && listener != null) {
+        listener.run();
+      }
+    } catch (IOException e) {
+      log.debug("Error writing to %s, closing: %s", remoteAddress, e.getMessage());
+      close();
+    }
+  }
+
+  /**
+   * Sets our key's interest ops to whatever we're currently waiting for. Called on the selector
+   * thread.
+   */
+  void updateInterestOps() {
+    if (key == null || !key.isValid()) {
+      return;
+    }
+    int ops = 0;
+    synchronized (inbound) {
+      if (!readPaused) {
+        ops |= SelectionKey.OP_READ;
+      }
+    }
+    synchronized (outbound) {
+      if (!outbound.isEmpty()) {
+        ops |= SelectionKey.OP_WRITE;
+      }
+    }
+    setInterestOps(ops);
+  }
+
+  private void setInterestOps(int ops) {
+    try {
+      key.interestOps(ops);
+    } catch (CancelledKeyException e) {
+      // Another thread has closed the channel, that's fine.
+    }
+  }
+
+  /**
+   * Closes the channel if it's timed out: it's not said 'hello' within the handshake timeout,
+   * nothing has been sent or received within the idle timeout (if there is one), or it's been
+   * backed up for longer than {@link #SLOW_CLIENT_TIMEOUT_MS}. Called on the selector thread.
+   */
+  void checkTimeout(long now, long handshakeTimeoutMs, long idleTimeoutMs) {
+    if (!established && now - acceptTime > handshakeTimeoutMs) {
+      log.info("No 'hello' from %s after %dms, closing.", remoteAddress, now - acceptTime);
+      close();
+    } else if (idleTimeoutMs > 0 && now - lastActivityTime > idleTimeoutMs) {
+      log.info("Nothing from %s for %dms, closing.", remoteAddress, now - lastActivityTime);
+      close();
+    } else if (backedUpSince != 0 && now - backedUpSince > SLOW_CLIENT_TIMEOUT_MS) {
+      log.warning("%s has been backed up for %dms, closing.", remoteAddress, now - backedUpSince);
+      ServerSocketManager.i.onSlowClientClosed();
+      close();
+    }
+  }
+
+  /**
+   * Parses as many packets as we can out of the given buffer, keeping whatever's left of a packet
+   * (or its header) for next time. Called on the selector thread (and by tests).
+   */
+  void parse(ByteBuffer buffer) {
+    while (buffer.hasRemaining() && !closed) {
+      if (packetBytes == null) {
+        while (header.hasRemaining() && buffer.hasRemaining()) {
+          header.put(buffer.get());
+        }
+        if (header.hasRemaining()) {
+          return;
+        }
+
+        int size = header.getInt(0);
+        packetFlags = header.getInt(4);
+        header.clear();
+        if (size < 0 || size > MAX_PACKET_SIZE) {
+          log.warning("Packet of %d bytes from %s is too big, closing.", size, remoteAddress);
+          close();
+          return;
+        }
+        packetBytes = new byte[size];
+        packetPosition = 0;
+      }
+
+      int numBytes = Math.min(buffer.remaining(), packetBytes.length - packetPosition);
+      buffer.get(packetBytes, packetPosition, numBytes);
+      packetPosition += numBytes;
+      if (packetPosition == packetBytes.length) {
+        onFrame(new Frame(packetBytes, packetFlags));
+        packetBytes = null;
+      }
+    }
+  }
+
+  /** Queues a frame for the handler, and makes sure somebody's dispatching them. */
+  private void onFrame(Frame frame) {
+    boolean startDispatching = false;
+    synchronized (inbound) {
+      inbound.addLast(frame);
+      if (!dispatching) {
+        dispatching = true;
+        startDispatching = true;
+      }
+      if (inbound.size() >= MAX_QUEUED_PACKETS && !readPaused) {
+        readPaused = true;
+        setInterestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      }
+    }
+    if (startDispatching) {
+      executor.execute(this::dispatch);
+    }
+  }
+
+  /** Runs on a worker thread, handing our queued frames to the handler until there's none left. */
+  private void dispatch() {
+    while (true) {
+      Frame frame;
+      boolean resumeRead = false;
+      synchronized (inbound) {
+        frame = inbound.pollFirst();
+        if (frame == null) {
+          dispatching = false;
+          return;
+        }
+        if (readPaused && inbound.size() < MAX_QUEUED_PACKETS / 2) {
+          readPaused = false;
+          resumeRead = true;
+        }
+      }
+      if (resumeRead) {
+        selectorThread.updateInterestOps(this);
+      }
+
+      Packet pkt;
+      try {
+        pkt = PacketDecoder.decode(frame.bytes, frame.flags, decompressor);
+      } catch (IOException e) {
+        log.warning("Error decoding packet from %s, closing.", remoteAddress, e);
+        close();
+        continue;
+      }
+
+      try {
+        handler.onPacket(this, pkt, frame.bytes.length);
+      } catch (Exception e) {
+        log.error("Error handling packet from %s.", remoteAddress, e);
+      }
+    }
+  }
+
+  /** Queues the given bytes to be written, and wakes up the selector thread to write them. */
+  private void enqueue(byte[] b, int off, int len) throws IOException {
+    boolean wasEmpty;
+    boolean tooSlow = false;
+    synchronized (outbound) {
+      if (closed) {
+        throw new IOException("Channel is closed.");
+      }
+      if (queuedBytes + len > MAX_QUEUED_BYTES) {
+        tooSlow = true;
+        wasEmpty = false;
+      } else {
+        byte[] copy = new byte[len];
+        System.arraycopy(b, off, copy, 0, len);
+        wasEmpty = outbound.isEmpty();
+        outbound.addLast(ByteBuffer.wrap(copy));
+        queuedBytes += len;
+        if (backedUpSince == 0 && queuedBytes >= HIGH_WATER_BYTES) {
+          backedUpSince = System.currentTimeMillis();
+        }
+      }
+    }
+
+    if (tooSlow) {
+      ServerSocketManager.i.onSlowClientClosed();
+      log.warning("%s isn't keeping up (%d bytes queued), closing.", remoteAddress, queuedBytes);
+      close();
+      throw new IOException("Client isn't keeping up.");
+    }
+    if (wasEmpty) {
+      selectorThread.updateInterestOps(this);
+    }
+  }
+
+  /** A complete packet, waiting to be decoded and handled. */
+  private static class Frame {
+    final byte[] bytes;
+    final int flags;
+
+    Frame(byte[] bytes, int flags) {
+      this.bytes = bytes;
+      this.flags = flags;
+    }
+  }
+}
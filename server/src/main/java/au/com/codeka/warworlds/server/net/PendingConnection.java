@@ -1,11 +1,8 @@
 package au.com.codeka.warworlds.server.net;
 
-import java.io.OutputStream;
-import java.net.Socket;
-
-import au.com.codeka.warworlds.common.net.PacketDecoder;
 import au.com.codeka.warworlds.common.proto.Account;
 import au.com.codeka.warworlds.common.proto.Empire;
+import au.com.codeka.warworlds.common.proto.HelloPacket;
 import au.com.codeka.warworlds.server.world.WatchableObject;
 
 /**
@@ -24,8 +21,8 @@ public class PendingConnection {
   }
 
   /** Called when the user actually connects to the game socket, returns a {@link Connection}. */
-  public Connection connect(Socket socket, PacketDecoder decoder, OutputStream outs) {
-    Connection conn = new Connection(account, empire, encryptionKey, socket, decoder, outs);
+  public Connection connect(GameChannel channel, HelloPacket hello) {
+    Connection conn = new Connection(account, empire, encryptionKey, channel, hello);
     conn.start();
     return conn;
   }
@@ -0,0 +1,178 @@
+package au.com.codeka.warworlds.server.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import au.com.codeka.warworlds.common.Log;
+
+/**
+ * A thread that does all of the reading and writing for a bunch of {@link GameChannel}s, with a
+ * {@link Selector}. {@link ServerSocketManager} has a small number of these, and gives each new
+ * connection to one of them.
+ *
+ * <p>Every read goes into a single direct buffer that's shared by all of our channels, so an idle
+ * connection doesn't cost us any buffer space. Once a second, we also check each channel's
+ * timeouts.
+ */
+public class SelectorThread {
+  private static final Log log = new Log("SelectorThread");
+
+  /** The size of the buffer we read into. */
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  /** How often we check our channels for timeouts. */
+  private static final long TIMEOUT_CHECK_INTERVAL_MS = 1000;
+
+  private final Selector selector;
+  private final Thread thread;
+  private final Executor executor;
+  private final long handshakeTimeoutMs;
+  private final long idleTimeoutMs;
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+  /** Channels that have been accepted, but not registered with our selector yet. */
+  private final ConcurrentLinkedQueue<GameChannel> newChannels = new ConcurrentLinkedQueue<>();
+
+  /** Channels whose interest ops need to be updated (e.g. because they have something to write). */
+  private final ConcurrentLinkedQueue<GameChannel> interestUpdates = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger numChannels = new AtomicInteger();
+  private volatile boolean running;
+
+  public SelectorThread(int index, Executor executor, long handshakeTimeoutMs, long idleTimeoutMs)
+      throws IOException {
+    this.selector = Selector.open();
+    this.executor = executor;
+    this.handshakeTimeoutMs = handshakeTimeoutMs;
+    this.idleTimeoutMs = idleTimeoutMs;
+    thread = new Thread(this::run, "Selector #" + index);
+  }
+
+  public void start() {
+    running = true;
+    thread.start();
+  }
+
+  public void stop() {
+    running = false;
+    selector.wakeup();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      // Ignore.
+    }
+  }
+
+  /** Gets the number of channels we currently have open. */
+  public int getNumChannels() {
+    return numChannels.get();
+  }
+
+  /**
+   * Takes over the given (newly-accepted) socket, and returns the {@link GameChannel} for it. The
+   * given handler will get its packets until it's replaced with
+   * {@link GameChannel#setPacketHandler}.
+   */
+  public GameChannel addChannel(SocketChannel socketChannel, GameChannel.PacketHandler handler)
+      throws IOException {
+    socketChannel.configureBlocking(false);
+    socketChannel.socket().setTcpNoDelay(true);
+    GameChannel channel = new GameChannel(socketChannel, this, executor, handler);
+    newChannels.add(channel);
+    selector.wakeup();
+    return channel;
+  }
+
+  /** Asks the selector thread to update the interest ops of the given channel. */
+  void updateInterestOps(GameChannel channel) {
+    interestUpdates.add(channel);
+    selector.wakeup();
+  }
+
+  private void run() {
+    long lastTimeoutCheck = System.currentTimeMillis();
+    while (running) {
+      try {
+        selector.select(TIMEOUT_CHECK_INTERVAL_MS);
+      } catch (IOException e) {
+        log.error("Error selecting.", e);
+        continue;
+      }
+
+      registerNewChannels();
+
+      GameChannel channel;
+      while ((channel = interestUpdates.poll()) != null) {
+        channel.updateInterestOps();
+      }
+
+      Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+      while (it.hasNext()) {
+        SelectionKey key = it.next();
+        it.remove();
+        channel = (GameChannel) key.attachment();
+        try {
+          if (key.isReadable()) {
+            channel.onReadable(readBuffer);
+          }
+          if (key.isValid() && key.isWritable()) {
+            channel.onWritable();
+          }
+        } catch (CancelledKeyException e) {
+          // Another thread closed the channel while we were using it, just ignore it.
+        }
+      }
+
+      long now = System.currentTimeMillis();
+      if (now - lastTimeoutCheck >= TIMEOUT_CHECK_INTERVAL_MS) {
+        lastTimeoutCheck = now;
+        checkTimeouts(now);
+      }
+    }
+
+    for (SelectionKey key : selector.keys()) {
+      ((GameChannel) key.attachment()).close();
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      log.error("Error closing selector.", e);
+    }
+  }
+
+  private void registerNewChannels() {
+    GameChannel channel;
+    while ((channel = newChannels.poll()) != null) {
+      try {
+        channel.onRegistered(channel.getSocketChannel().register(selector, 0, channel));
+        numChannels.incrementAndGet();
+        channel.updateInterestOps();
+      } catch (ClosedChannelException e) {
+        channel.close();
+      }
+    }
+  }
+
+  private void checkTimeouts(long now) {
+    int n = 0;
+    for (SelectionKey key : selector.keys()) {
+      GameChannel channel = (GameChannel) key.attachment();
+      if (key.isValid()) {
+        channel.checkTimeout(now, handshakeTimeoutMs, idleTimeoutMs);
+      }
+      if (!channel.isClosed()) {
+        n++;
+      }
+    }
+    numChannels.set(n);
+  }
+}
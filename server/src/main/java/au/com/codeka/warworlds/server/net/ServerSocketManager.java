@@ -1,22 +1,39 @@
 package au.com.codeka.warworlds.server.net;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import au.com.codeka.warworlds.common.Log;
-import au.com.codeka.warworlds.common.net.PacketDecoder;
 import au.com.codeka.warworlds.common.proto.Account;
 import au.com.codeka.warworlds.common.proto.Empire;
 import au.com.codeka.warworlds.common.proto.Packet;
+import au.com.codeka.warworlds.server.concurrency.TaskRunner;
+import au.com.codeka.warworlds.server.concurrency.Threads;
 import au.com.codeka.warworlds.server.world.WatchableObject;
 
 /**
- * Manages the {@link ServerSocket} which is listening for clients to connect.
+ * Manages the game socket which is listening for clients to connect.
+ *
+ * <p>The sockets are non-blocking: a single thread accepts new connections, and hands each one
+ * to one of a small number of {@link SelectorThread}s, which do all of the reading and writing.
+ * Complete packets are handled on a pool of worker threads (see {@link GameChannel}). So a
+ * connected player doesn't cost us a thread of their own.
+ *
+ * <p>The number of selector threads and workers default to half the number of processors and
+ * twice the number of processors, and can be changed with the {@code warworlds.net.selectors} and
+ * {@code warworlds.net.workers} system properties. A connection that doesn't say 'hello' within
+ * {@link #HANDSHAKE_TIMEOUT_MS} is closed, as is one that's been idle for longer than the
+ * {@code warworlds.net.idle_timeout_ms} system property, if it's set.
  */
 public class ServerSocketManager {
   private static final Log log = new Log("ServerSocketManager");
@@ -28,21 +45,67 @@ public class ServerSocketManager {
    */
   private static final int CONNECTION_TIMEOUT_MS = 10000;
 
-  private ServerSocket serverSocket;
+  /** How long a new connection has to send us its 'hello' before we close it. */
+  private static final long HANDSHAKE_TIMEOUT_MS = 10000;
+
+  /**
+   * Connections aren't closed for being idle unless you set {@code warworlds.net.idle_timeout_ms}:
+   * the client doesn't send keepalives, so a player who's just watching would be disconnected.
+   */
+  private static final long DEFAULT_IDLE_TIMEOUT_MS = 0;
+
+  /**
+   * If accepting a connection fails (e.g. because we've run out of file descriptors), we wait this
+   * long before trying again, so that we don't spin.
+   */
+  private static final long ACCEPT_ERROR_BACKOFF_MS = 1000;
+
+  private ServerSocketChannel serverSocketChannel;
   private Thread acceptThread;
+  private SelectorThread[] selectorThreads;
+  private ExecutorService executor;
+  private int nextSelectorThread;
 
-  private final Map<Long, PendingConnection> pendingConnections = new TreeMap<>();
-  private final Map<Long, Connection> connections = new TreeMap<>();
+  private final Map<Long, PendingConnection> pendingConnections = new ConcurrentHashMap<>();
+  private final Map<Long, Connection> connections = new ConcurrentHashMap<>();
+
+  private final AtomicLong numStarUpdatesCoalesced = new AtomicLong();
+  private final AtomicLong numSlowClientsClosed = new AtomicLong();
+  private final AtomicLong numWholeStarsSent = new AtomicLong();
+  private final AtomicLong numStarDeltasSent = new AtomicLong();
 
   public boolean start() {
+    int numProcessors = Runtime.getRuntime().availableProcessors();
+    int numSelectors =
+        Math.max(1, Integer.getInteger("warworlds.net.selectors", numProcessors / 2));
+    int numWorkers =
+        Math.max(1, Integer.getInteger("warworlds.net.workers", numProcessors * 2));
+    long idleTimeoutMs = Long.getLong("warworlds.net.idle_timeout_ms", DEFAULT_IDLE_TIMEOUT_MS);
+
+    AtomicInteger workerCount = new AtomicInteger(1);
+    executor = Executors.newFixedThreadPool(numWorkers,
+        r -> new Thread(r, "GameSocket worker #" + workerCount.getAndIncrement()));
+
     try {
-      serverSocket = new ServerSocket(8081); // TODO: configurable
+      selectorThreads = new SelectorThread[numSelectors];
+      for (int n = 0; n < numSelectors; n++) {
+        selectorThreads[n] = new SelectorThread(n, executor, HANDSHAKE_TIMEOUT_MS, idleTimeoutMs);
+      }
+
+      serverSocketChannel = ServerSocketChannel.open();
+      serverSocketChannel.socket().setReuseAddress(true);
+      serverSocketChannel.bind(new InetSocketAddress(8081)); // TODO: configurable
     } catch (IOException e) {
       log.error("Error starting socket server.", e);
       return false;
     }
 
-    acceptThread = new Thread(this::acceptThreadProc);
+    log.info("Starting socket server with %d selector threads and %d workers.",
+        numSelectors, numWorkers);
+    for (SelectorThread selectorThread : selectorThreads) {
+      selectorThread.start();
+    }
+    acceptThread = new Thread(this::acceptThreadProc, "GameSocket accept");
     acceptThread.start();
     return true;
   }
@@ -57,16 +120,22 @@ public class ServerSocketManager {
    */
   public void addPendingConnection(
       Account account, WatchableObject<Empire> empire, byte[] encryptionKey) {
-    pendingConnections.put(empire.get().id, new PendingConnection(account, empire, encryptionKey));
+    long empireId = empire.get().id;
+    PendingConnection pendingConnection = new PendingConnection(account, empire, encryptionKey);
+    pendingConnections.put(empireId, pendingConnection);
+    TaskRunner.i.runTask(
+        () -> pendingConnections.remove(empireId, pendingConnection),
+        Threads.BACKGROUND,
+        CONNECTION_TIMEOUT_MS);
   }
 
   public void stop() {
     try {
-      serverSocket.close();
+      serverSocketChannel.close();
     } catch (IOException e) {
       log.error("Error stopping socket server.", e);
     }
-    serverSocket = null;
+    serverSocketChannel = null;
 
     try {
       acceptThread.join();
@@ -74,65 +143,148 @@ public class ServerSocketManager {
       // ignore
     }
     acceptThread = null;
+
+    for (SelectorThread selectorThread : selectorThreads) {
+      selectorThread.stop();
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      // ignore
+    }
+  }
+
+  /** The number of players that are connected. */
+  public int getNumConnections() {
+    return connections.size();
+  }
+
+  /** The number of game sockets that are open, including those that haven't said 'hello' yet. */
+  public int getNumChannels() {
+    int numChannels = 0;
+    for (SelectorThread selectorThread : selectorThreads) {
+      numChannels += selectorThread.getNumChannels();
+    }
+    return numChannels;
+  }
+
+  /**
+   * The number of star updates that were never sent, because a newer update for the same star
+   * replaced them while they were waiting to be sent.
+   */
+  public long getNumStarUpdatesCoalesced() {
+    return numStarUpdatesCoalesced.get();
+  }
+
+  /** The number of connections we've closed because the client wasn't keeping up. */
+  public long getNumSlowClientsClosed() {
+    return numSlowClientsClosed.get();
+  }
+
+  /** The number of stars we've sent whole (rather than as deltas) to clients. */
+  public long getNumWholeStarsSent() {
+    return numWholeStarsSent.get();
+  }
+
+  /** The number of star deltas we've sent to clients. */
+  public long getNumStarDeltasSent() {
+    return numStarDeltasSent.get();
+  }
+
+  void onStarsSent(int numWholeStars, int numStarDeltas) {
+    numWholeStarsSent.addAndGet(numWholeStars);
+    numStarDeltasSent.addAndGet(numStarDeltas);
+  }
+
+  void onStarUpdateCoalesced() {
+    numStarUpdatesCoalesced.incrementAndGet();
+  }
+
+  void onSlowClientClosed() {
+    numSlowClientsClosed.incrementAndGet();
+  }
+
+  /** Called by {@link Connection} when it's closed. */
+  void onConnectionClosed(long empireId, Connection connection) {
+    connections.remove(empireId, connection);
   }
 
   /** Called when we get a new connection from a client. */
-  private void handleConnection(Socket socket) {
-    InputStream ins;
-    OutputStream outs;
+  private void handleConnection(SocketChannel socketChannel) {
+    SelectorThread selectorThread = selectorThreads[nextSelectorThread];
+    nextSelectorThread = (nextSelectorThread + 1) % selectorThreads.length;
     try {
-      ins = socket.getInputStream();
-      outs = socket.getOutputStream();
+      selectorThread.addChannel(socketChannel, new PendingConnectionPacketHandler());
     } catch (IOException e) {
-      log.error("Error waiting for 'hello'.", e);
-      return;
+      log.error("Error setting up connection.", e);
+      try {
+        socketChannel.close();
+      } catch (IOException e2) {
+        // ignore
+      }
     }
-
-    new PacketDecoder(ins, new PendingConnectionPacketHandler(socket, outs));
   }
 
   /**
    * This class receives the first packet from a pending connection and then converts it to a
    * normal connection.
    */
-  private class PendingConnectionPacketHandler implements PacketDecoder.PacketHandler {
-    private final Socket socket;
-    private final OutputStream outs;
-
-    public PendingConnectionPacketHandler(Socket socket, OutputStream outs) {
-      this.socket = socket;
-      this.outs = outs;
-    }
-
+  private class PendingConnectionPacketHandler implements GameChannel.PacketHandler {
     @Override
-    public void onPacket(PacketDecoder decoder, Packet pkt, int encodedSize) {
+    public void onPacket(GameChannel channel, Packet pkt, int encodedSize) {
       if (pkt.hello == null) {
         log.error("Expected 'hello' packet, but didn't get it.");
+        channel.close();
         return;
       }
 
-      PendingConnection pendingConnection = pendingConnections.remove(pkt.hello.empire_id);
+      long empireId = pkt.hello.empire_id;
+      PendingConnection pendingConnection = pendingConnections.remove(empireId);
       if (pendingConnection == null) {
-        log.error("Got 'hello' packet, but no pending connection for empire #%d",
-            pkt.hello.empire_id);
+        log.error("Got 'hello' packet, but no pending connection for empire #%d", empireId);
+        channel.close();
         return;
       }
 
       log.info("GameSocket connection received for empire #%d %s",
-          pkt.hello.empire_id, pendingConnection.getEmpire().get().display_name);
-      connections.put(pkt.hello.empire_id, pendingConnection.connect(socket, decoder, outs));
+          empireId, pendingConnection.getEmpire().get().display_name);
+      Connection connection = pendingConnection.connect(channel, pkt.hello);
+      Connection oldConnection = connections.put(empireId, connection);
+      if (oldConnection != null) {
+        // They've connected again, the old connection must be dead.
+        oldConnection.close();
+      }
+    }
+
+    @Override
+    public void onClose(GameChannel channel) {
+      // Nothing to do, we haven't made a connection yet.
     }
   }
 
   private void acceptThreadProc() {
+    ServerSocketChannel serverSocketChannel = this.serverSocketChannel;
     while (true) {
       try {
-        Socket socket = serverSocket.accept();
-        log.debug("Socket accepted from %s", socket.getRemoteSocketAddress());
-        handleConnection(socket);
-      } catch (IOException e) {
-        log.error("Error accepting connection.", e);
+        SocketChannel socketChannel = serverSocketChannel.accept();
+        log.debug("Socket accepted from %s", socketChannel.getRemoteAddress());
+        handleConnection(socketChannel);
+      } catch (ClosedChannelException e) {
+        // We've been stopped.
         return;
+      } catch (IOException e) {
+        if (!serverSocketChannel.isOpen()) {
+          return;
+        }
+        // Probably something temporary, like running out of file descriptors. Keep accepting
+        // connections once it's cleared up.
+        log.error("Error accepting connection, trying again in %dms.", ACCEPT_ERROR_BACKOFF_MS, e);
+        try {
+          Thread.sleep(ACCEPT_ERROR_BACKOFF_MS);
+        } catch (InterruptedException e2) {
+          return;
+        }
       }
     }
   }
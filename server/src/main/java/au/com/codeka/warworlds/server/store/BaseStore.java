@@ -8,10 +8,13 @@ import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Sequence;
 import com.sleepycat.je.SequenceConfig;
+import com.sleepycat.je.Transaction;
 import com.sleepycat.je.utilint.Pair;
 
 import java.nio.ByteBuffer;
 
+import javax.annotation.Nullable;
+
 import au.com.codeka.warworlds.common.Log;
 
 /**
@@ -23,17 +26,32 @@ public abstract class BaseStore<K, V> {
   protected final Database db;
   protected Sequence seq;
 
+  /**
+   * A per-thread {@link DatabaseEntry} for keys. Gets, puts and deletes encode the key into this,
+   * rather than allocating a new entry and buffer every time. (There's no point doing the same for
+   * values: JE allocates a new array for the value on every get.)
+   */
+  private final ThreadLocal<DatabaseEntry> keyEntry = ThreadLocal.withInitial(DatabaseEntry::new);
+
   public BaseStore(Database db) {
     this.db = Preconditions.checkNotNull(db);
   }
 
   public void put(K key, V value) {
-    db.put(null, encodeKey(key), encodeValue(value));
+    put(null, key, value);
+  }
+
+  public void put(@Nullable Transaction trans, K key, V value) {
+    DatabaseEntry keyEntry = this.keyEntry.get();
+    encodeKey(key, keyEntry);
+    db.put(trans, keyEntry, encodeValue(value));
   }
 
   public V get(K key) {
+    DatabaseEntry keyEntry = this.keyEntry.get();
+    encodeKey(key, keyEntry);
     DatabaseEntry value = new DatabaseEntry();
-    if (db.get(null, encodeKey(key), value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+    if (db.get(null, keyEntry, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
       return decodeValue(value);
     } else {
       return null;
@@ -41,7 +59,9 @@ public abstract class BaseStore<K, V> {
   }
 
   public boolean delete(K key) {
-    return (db.delete(null, encodeKey(key)) == OperationStatus.SUCCESS);
+    DatabaseEntry keyEntry = this.keyEntry.get();
+    encodeKey(key, keyEntry);
+    return (db.delete(null, keyEntry) == OperationStatus.SUCCESS);
   }
 
   /** Gets the number of entries in this store. */
@@ -73,6 +93,16 @@ public abstract class BaseStore<K, V> {
   }
 
   protected abstract DatabaseEntry encodeKey(K key);
+
+  /**
+   * Encodes the given key into the given {@link DatabaseEntry}, which may be reused between calls.
+   * Subclasses can override this to encode the key without allocating a new entry every time.
+   */
+  protected void encodeKey(K key, DatabaseEntry entry) {
+    DatabaseEntry encoded = encodeKey(key);
+    entry.setData(encoded.getData(), encoded.getOffset(), encoded.getSize());
+  }
+
   protected abstract DatabaseEntry encodeValue(V value);
   protected abstract K decodeKey(DatabaseEntry databaseEntry);
   protected abstract V decodeValue(DatabaseEntry databaseEntry);
@@ -10,6 +10,7 @@ import com.sleepycat.je.Transaction;
 import java.io.File;
 
 import au.com.codeka.warworlds.common.Log;
+import au.com.codeka.warworlds.common.Time;
 import au.com.codeka.warworlds.common.proto.Account;
 import au.com.codeka.warworlds.common.proto.AdminUser;
 import au.com.codeka.warworlds.common.proto.Empire;
@@ -25,6 +26,7 @@ public class DataStore {
   private ProtobufStore<Empire> empires;
   private SectorsStore sectors;
   private ProtobufStore<Star> stars;
+  private WriteBehindQueue<Star> starsWriter;
   private StarQueueSecondaryStore starsQueue;
   private StarEmpireSecondaryStore starEmpireSecondaryStore;
   private UniqueNameStore uniqueEmpireNames;
@@ -61,9 +63,17 @@ public class DataStore {
       stars = new ProtobufStore<>(db, Star.class);
       starsQueue = new StarQueueSecondaryStore(env, db, stars);
       starEmpireSecondaryStore = new StarEmpireSecondaryStore(env, db, stars);
+      starsWriter = new WriteBehindQueue<>(
+          stars,
+          "StarsWriter",
+          500 /* windowMs */,
+          200 /* maxBatchSize */,
+          20000 /* maxPending */,
+          10 * Time.SECOND /* putTimeoutMs */);
+      starsWriter.start();
 
       db = env.openDatabase(null, "sectors", dbConfig);
-      sectors = new SectorsStore(db, stars);
+      sectors = new SectorsStore(db, stars, starsWriter);
 
       db = env.openDatabase(null, "uniqueEmpireNames", dbConfig);
       uniqueEmpireNames = new UniqueNameStore(db);
@@ -77,7 +87,16 @@ public class DataStore {
   }
 
   public void close() {
+    // Make sure any pending star updates make it to disk before we close everything. If they can't
+    // be written this throws, and we leave everything open rather than lose them.
+    starsWriter.stop();
+
+    adminUsers.close();
     uniqueEmpireNames.close();
+    sectors.close();
+    starEmpireSecondaryStore.close();
+    starsQueue.close();
+    stars.close();
     accounts.close();
     empires.close();
     env.close();
@@ -103,6 +122,14 @@ public class DataStore {
     return stars;
   }
 
+  /**
+   * Gets the {@link WriteBehindQueue} for stars. Updates to stars should go through here rather
+   * than directly to {@link #stars()}.
+   */
+  public WriteBehindQueue<Star> starsWriter() {
+    return starsWriter;
+  }
+
   public StarQueueSecondaryStore starsQueue() {
     return starsQueue;
   }
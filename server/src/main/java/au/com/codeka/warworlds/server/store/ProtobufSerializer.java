@@ -4,6 +4,8 @@ import com.sleepycat.je.DatabaseEntry;
 import com.squareup.wire.Message;
 import com.squareup.wire.ProtoAdapter;
 
+import okio.Buffer;
+
 import java.io.IOException;
 import java.lang.reflect.Field;
 
@@ -33,7 +35,10 @@ public class ProtobufSerializer<M extends Message<?, ?>> {
 
   public M deserialize(DatabaseEntry entry) {
     try {
-      return protoAdapter.decode(entry.getData());
+      // The entry may be a reused buffer that's bigger than the value, so only decode the part of
+      // the buffer that's actually in use.
+      return protoAdapter.decode(
+          new Buffer().write(entry.getData(), entry.getOffset(), entry.getSize()));
     } catch (IOException e) {
       log.error("Exception deserializing protobuf.", e);
       throw new RuntimeException(e);
@@ -1,49 +1,166 @@
 package au.com.codeka.warworlds.server.store;
 
+import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
 import com.squareup.wire.Message;
 
-import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * {@link ProtobufStore} is basically a map of key/value pairs where the key is an 64-bit int and
  * the value is a protocol buffer of type M.
  */
 public class ProtobufStore<M extends Message<?, ?>> extends BaseStore<Long, M> {
+  /** Keys are a {@link StoreHelper#KEY_MARKER} followed by the ID. */
+  private static final int KEY_SIZE = Long.BYTES + 1;
+
   private final ProtobufSerializer<M> serializer;
 
+  /**
+   * The value currently being put on this thread. JE calls the secondary key creators on the
+   * putting thread, with the same {@link DatabaseEntry} we passed in, so this lets them get the
+   * value we already have instead of decoding it all over again.
+   */
+  private final ThreadLocal<EncodedValue<M>> encodedValue = new ThreadLocal<>();
+
   /* package */ ProtobufStore(Database db, Class<M> cls) {
     super(db);
     this.serializer = new ProtobufSerializer<>(cls);
   }
 
+  /**
+   * Gets all of the values with the given IDs. Rather than doing a separate lookup for each ID, we
+   * sort the IDs and fetch them all in one pass of a single cursor, which is much cheaper when the
+   * IDs are close together (e.g. stars in the same sector, which are created together).
+   *
+   * @param ids The IDs of the values to fetch.
+   * @return A map of the values we found. IDs that don't exist will not be in the map.
+   */
+  public Map<Long, M> getAll(Collection<Long> ids) {
+    long[] sortedIds = new long[ids.size()];
+    int n = 0;
+    for (Long id : ids) {
+      sortedIds[n++] = id;
+    }
+    Arrays.sort(sortedIds);
+
+    HashMap<Long, M> values = new HashMap<>();
+    DatabaseEntry key = new DatabaseEntry();
+    DatabaseEntry value = new DatabaseEntry();
+    try (Cursor cursor = db.openCursor(null, null)) {
+      boolean positioned = false;
+      long cursorId = 0;
+      for (int i = 0; i < sortedIds.length; i++) {
+        long id = sortedIds[i];
+        if (i > 0 && id == sortedIds[i - 1]) {
+          continue;
+        }
+
+        // If the cursor is positioned just before the ID we want, the next record is very likely
+        // to be the one we want, so try that before doing a full search.
+        if (positioned && cursorId < id) {
+          positioned = false;
+          if (cursor.getNext(key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+            Long nextId = decodeKey(key);
+            if (nextId != null) {
+              positioned = true;
+              cursorId = nextId;
+            }
+          }
+        }
+        if (positioned && cursorId == id) {
+          values.put(id, decodeValue(value));
+          continue;
+        } else if (positioned && cursorId > id) {
+          // The ID we want doesn't exist.
+          continue;
+        }
+
+        encodeKey(id, key);
+        positioned = (cursor.getSearchKey(key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS);
+        if (positioned) {
+          cursorId = id;
+          values.put(id, decodeValue(value));
+        }
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public void put(@Nullable Transaction trans, Long key, M value) {
+    try {
+      super.put(trans, key, value);
+    } finally {
+      encodedValue.remove();
+    }
+  }
+
   @Nonnull
   @Override
   protected DatabaseEntry encodeKey(Long id) {
-    return new DatabaseEntry(ByteBuffer.allocate(Long.BYTES + 1)
-        .put(StoreHelper.KEY_MARKER).putLong(id).array());
+    DatabaseEntry entry = new DatabaseEntry();
+    encodeKey(id, entry);
+    return entry;
+  }
+
+  @Override
+  protected void encodeKey(Long id, DatabaseEntry entry) {
+    byte[] data = entry.getData();
+    if (data == null || data.length != KEY_SIZE) {
+      data = new byte[KEY_SIZE];
+    }
+    data[0] = StoreHelper.KEY_MARKER;
+    StoreHelper.putLong(data, 1, id);
+    entry.setData(data);
   }
 
   @Override
   protected DatabaseEntry encodeValue(M value) {
-    return serializer.serialize(value);
+    DatabaseEntry entry = serializer.serialize(value);
+    encodedValue.set(new EncodedValue<>(entry, value));
+    return entry;
   }
 
   @Override
   protected Long decodeKey(DatabaseEntry databaseEntry) {
-    ByteBuffer bb = ByteBuffer.wrap(databaseEntry.getData());
-    if (bb.get() != StoreHelper.KEY_MARKER) {
+    byte[] data = databaseEntry.getData();
+    int offset = databaseEntry.getOffset();
+    if (databaseEntry.getSize() != KEY_SIZE || data[offset] != StoreHelper.KEY_MARKER) {
       return null;
     }
 
-    return bb.getLong();
+    return StoreHelper.getLong(data, offset + 1);
   }
 
   @Override
   protected M decodeValue(DatabaseEntry databaseEntry) {
+    EncodedValue<M> encoded = encodedValue.get();
+    if (encoded != null && encoded.entry == databaseEntry) {
+      // It's the value we're in the middle of putting, no need to decode it again.
+      return encoded.value;
+    }
     return serializer.deserialize(databaseEntry);
   }
+
+  /** A value, and the {@link DatabaseEntry} we encoded it to. */
+  private static class EncodedValue<M> {
+    final DatabaseEntry entry;
+    final M value;
+
+    EncodedValue(DatabaseEntry entry, M value) {
+      this.entry = entry;
+      this.value = value;
+    }
+  }
 }
@@ -1,20 +1,21 @@
 package au.com.codeka.warworlds.server.store;
 
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
+import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Transaction;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -31,26 +32,67 @@ import au.com.codeka.warworlds.common.proto.Star;
  * <p>We don't serialize the actual {@link Sector} object, since that includes a list of derived
  * objects (stars and colonies, etc). We also need to be able to store things like the list of
  * currently-empty sectors, the current bounds of the universe and so on.
+ *
+ * <p>The empty and ungenerated sectors are each stored as an index of individual keys, ordered by
+ * distance from the center of the universe. Finding the closest empty sector is a single cursor
+ * seek, and adding or removing a sector only touches one record.
  */
 public class SectorsStore {
+  /** The old key for the list of ungenerated sectors, only used for migrating old data. */
   private static final DatabaseEntry UNGENERATED_SECTORS_KEY =
       new DatabaseEntry("ungenerated-sectors".getBytes(Charset.defaultCharset()));
+  /** The old key for the list of empty sectors, only used for migrating old data. */
   private static final DatabaseEntry EMPTY_SECTORS_KEY =
       new DatabaseEntry("empty-sectors".getBytes(Charset.defaultCharset()));
   private static final DatabaseEntry UNIVERSE_BOUNDS_KEY =
       new DatabaseEntry("universe-bounds".getBytes(Charset.defaultCharset()));
 
+  /** The first byte of keys in the index of empty sectors. */
+  private static final byte EMPTY_SECTOR_MARKER = 1;
+
+  /** The first byte of keys in the index of ungenerated sectors. */
+  private static final byte UNGENERATED_SECTOR_MARKER = 2;
+
+  /** The size of keys in the empty and ungenerated sector indices. */
+  private static final int INDEX_KEY_SIZE = 1 + 3 * Long.BYTES;
+
+  /** Index records have no value, everything is in the key. */
+  private static final byte[] EMPTY_VALUE = new byte[0];
+
+  /** The first byte of keys for the sectors themselves. */
+  private static final byte SECTOR_MARKER = 3;
+
+  /** The size of sector keys: the marker byte, followed by the x and y coordinates. */
+  private static final int SECTOR_KEY_SIZE = 1 + 2 * Long.BYTES;
+
+  /** The prefix of the old (string) sector keys, only used for migrating old data. */
+  private static final byte[] OLD_SECTOR_KEY_PREFIX =
+      "sector:".getBytes(Charset.defaultCharset());
+
+  /** The number of old sector keys we'll migrate in a single transaction. */
+  private static final int MIGRATE_BATCH_SIZE = 1000;
+
   private final Log log = new Log("SectorsStore");
   private final Database db;
   private final ProtobufStore<Star> starsStore;
+  private final WriteBehindQueue<Star> starsWriter;
   private final ProtobufSerializer<IdentifierArray> idsArraySerializer;
   private final ProtobufSerializer<SectorCoordArray> sectorCoordArraySerializer;
 
-  public SectorsStore(Database db, ProtobufStore<Star> starsStore) {
+  /** Per-thread keys for looking up sectors, so that we don't allocate new ones every time. */
+  private final ThreadLocal<DatabaseEntry> keyEntry = ThreadLocal.withInitial(DatabaseEntry::new);
+
+  public SectorsStore(
+      Database db, ProtobufStore<Star> starsStore, WriteBehindQueue<Star> starsWriter) {
     this.db = Preconditions.checkNotNull(db);
     this.starsStore = Preconditions.checkNotNull(starsStore);
+    this.starsWriter = Preconditions.checkNotNull(starsWriter);
     idsArraySerializer = new ProtobufSerializer<>(IdentifierArray.class);
     sectorCoordArraySerializer = new ProtobufSerializer<>(SectorCoordArray.class);
+
+    migrateSectorKeys();
+    migrateSectorList(EMPTY_SECTORS_KEY, EMPTY_SECTOR_MARKER);
+    migrateSectorList(UNGENERATED_SECTORS_KEY, UNGENERATED_SECTOR_MARKER);
   }
 
   /**
@@ -59,7 +101,7 @@ public class SectorsStore {
    */
   @Nullable
   public Sector getSector(long x, long y) {
-    DatabaseEntry key = makeKey(x, y);
+    DatabaseEntry key = makeKey(x, y, keyEntry.get());
     DatabaseEntry value = new DatabaseEntry();
     OperationStatus status = db.get(null, key, value, LockMode.DEFAULT);
     if (status != OperationStatus.SUCCESS) {
@@ -69,7 +111,7 @@ public class SectorsStore {
 
     ArrayList<Star> stars = new ArrayList<>();
     for (long id : ids) {
-      stars.add(Preconditions.checkNotNull(starsStore.get(id)));
+      stars.add(Preconditions.checkNotNull(starsWriter.get(id)));
     }
 
     return new Sector.Builder()
@@ -79,6 +121,46 @@ public class SectorsStore {
         .build();
   }
 
+  /**
+   * Gets all the sectors at the given coordinates. This is much more efficient than calling
+   * {@link #getSector} for each coordinate, since we fetch all of the stars in one go.
+   *
+   * @return A map of the sectors we found. Sectors that we don't have stored yet will not be in
+   *     the map.
+   */
+  public Map<SectorCoord, Sector> getSectors(Collection<SectorCoord> coords) {
+    HashMap<SectorCoord, List<Long>> sectorStarIds = new HashMap<>();
+    ArrayList<Long> allStarIds = new ArrayList<>();
+    DatabaseEntry key = keyEntry.get();
+    DatabaseEntry value = new DatabaseEntry();
+    for (SectorCoord coord : coords) {
+      OperationStatus status =
+          db.get(null, makeKey(coord.x, coord.y, key), value, LockMode.DEFAULT);
+      if (status != OperationStatus.SUCCESS) {
+        continue;
+      }
+      List<Long> ids = idsArraySerializer.deserialize(value).ids;
+      sectorStarIds.put(coord, ids);
+      allStarIds.addAll(ids);
+    }
+
+    Map<Long, Star> stars = starsWriter.getAll(allStarIds);
+
+    HashMap<SectorCoord, Sector> sectors = new HashMap<>();
+    for (Map.Entry<SectorCoord, List<Long>> entry : sectorStarIds.entrySet()) {
+      ArrayList<Star> sectorStars = new ArrayList<>();
+      for (long id : entry.getValue()) {
+        sectorStars.add(Preconditions.checkNotNull(stars.get(id)));
+      }
+      sectors.put(entry.getKey(), new Sector.Builder()
+          .x(entry.getKey().x)
+          .y(entry.getKey().y)
+          .stars(sectorStars)
+          .build());
+    }
+    return sectors;
+  }
+
   /**
    * Creates a new sector in the store. We assume the sector does not already exist, and if it does
    * then an {@link IllegalStateException} will be thrown.
@@ -92,7 +174,7 @@ public class SectorsStore {
       starsStore.put(star.id, star);
     }
 
-    DatabaseEntry key = makeKey(sector.x, sector.y);
+    DatabaseEntry key = makeKey(sector.x, sector.y, new DatabaseEntry());
     DatabaseEntry value =
         idsArraySerializer.serialize(new IdentifierArray.Builder().ids(ids).build());
     db.put(null, key, value);
@@ -109,37 +191,11 @@ public class SectorsStore {
    */
   @Nullable
   public SectorCoord getEmptySector() {
-    DatabaseEntry value = new DatabaseEntry();
-    if (db.get(null, EMPTY_SECTORS_KEY, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
-      List<SectorCoord> coords = sectorCoordArraySerializer.deserialize(value).coords;
-      if (log.isDebugEnabled()) {
-        StringBuilder msg = new StringBuilder();
-        msg.append("Empty sectors: ");
-        for (int i = 0; i < coords.size(); i++) {
-          if (i != 0) {
-            msg.append(", ");
-          }
-          msg.append(String.format(Locale.US, "[%d,%d]", coords.get(i).x, coords.get(i).y));
-        }
-        log.debug(msg.toString());
-      }
-
-      // Find the one closest to (0,0)
-      SectorCoord closest = null;
-      float closestDistance = 0;
-      for (SectorCoord coord : coords) {
-        // square of the distance, actually, but it doesn't matter
-        float distance = (coord.x * coord.x) + (coord.y * coord.y);
-        if (closest == null || distance < closestDistance) {
-          closest = coord;
-          closestDistance = distance;
-        }
-      }
-
-      return closest;
-    } else {
+    List<SectorCoord> coords = getClosestSectors(EMPTY_SECTOR_MARKER, 1);
+    if (coords.isEmpty()) {
       return null;
     }
+    return coords.get(0);
   }
 
   /**
@@ -147,96 +203,38 @@ public class SectorsStore {
    * from {@link #getEmptySector()}.
    */
   public void removeEmptySector(SectorCoord coord) {
-    Transaction trans = db.getEnvironment().beginTransaction(null, null);
-    try {
-      DatabaseEntry value = new DatabaseEntry();
-      if (db.get(null, EMPTY_SECTORS_KEY, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
-        List<SectorCoord> coords = sectorCoordArraySerializer.deserialize(value).coords;
-        coords = new ArrayList<>(
-            Collections2.filter(coords, e -> !(coord.x.equals(e.x) && coord.y.equals(e.y))));
-        if (log.isDebugEnabled()) {
-          StringBuilder msg = new StringBuilder();
-          msg.append("Empty sectors: ");
-          for (int i = 0; i < coords.size(); i++) {
-            if (i != 0) {
-              msg.append(", ");
-            }
-            msg.append(String.format(Locale.US, "[%d,%d]", coords.get(i).x, coords.get(i).y));
-          }
-          log.debug(msg.toString());
-        }
-        db.put(
-            trans,
-            EMPTY_SECTORS_KEY,
-            sectorCoordArraySerializer.serialize(
-                new SectorCoordArray.Builder().coords(coords).build()));
-        trans.commit();
-        trans = null;
-      }
-    } finally {
-      if (trans != null) {
-        trans.abort();
-      }
-    }
+    db.delete(null, makeIndexKey(EMPTY_SECTOR_MARKER, coord.x, coord.y));
   }
 
   /**
    * Gets a list of sectors that we haven't currently generated yet. The sectors will be as close
    * to the center of the universe as possible, and serve as good candidates for new empires.
    *
-   * @param minSectors The minimum number of sectors you want. We'll make sure to return at least
-   *                   that number (though maybe more).
-   * @return A list of {@link SectorCoord}s for each ungenerated sector.
+   * @param minSectors The number of sectors you want. We'll expand the universe until there are
+   *                   at least that many ungenerated sectors, and return exactly that many.
+   * @return A list of the {@link SectorCoord}s of the {@code minSectors} ungenerated sectors
+   *     closest to the center of the universe, closest first.
    */
-  public List<SectorCoord> getUngeneratedSectors(int minSectors) {
-    HashSet<SectorCoord> coords = new HashSet<>();
-
+  public synchronized List<SectorCoord> getUngeneratedSectors(int minSectors) {
+    List<SectorCoord> coords = getClosestSectors(UNGENERATED_SECTOR_MARKER, minSectors);
     while (coords.size() < minSectors) {
-      DatabaseEntry value = new DatabaseEntry();
-      if (db.get(null, UNGENERATED_SECTORS_KEY, value, LockMode.DEFAULT)
-          == OperationStatus.SUCCESS) {
-        for (SectorCoord coord : sectorCoordArraySerializer.deserialize(value).coords) {
-          coords.add(coord);
-        }
-      }
-
-      if (coords.size() < minSectors) {
-        expandUniverse();
-      }
+      expandUniverse();
+      coords = getClosestSectors(UNGENERATED_SECTOR_MARKER, minSectors);
     }
-
-    return new ArrayList<>(coords);
+    return coords;
   }
 
   /** Adds the given {@link SectorCoord} to our list of empty sectors. */
   private void addEmptySector(SectorCoord coord) {
-    Transaction trans = db.getEnvironment().beginTransaction(null, null);
-    try {
-      List<SectorCoord> coords;
-      DatabaseEntry value = new DatabaseEntry();
-      if (db.get(trans, EMPTY_SECTORS_KEY, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
-        coords = new ArrayList<>(sectorCoordArraySerializer.deserialize(value).coords);
-      } else {
-        coords = new ArrayList<>();
-      }
-      coords.add(coord);
-      value = sectorCoordArraySerializer.serialize(
-          new SectorCoordArray.Builder().coords(coords).build());
-      db.put(trans, EMPTY_SECTORS_KEY, value);
-      trans.commit();
-      trans = null;
-    } finally {
-      if (trans != null) {
-        trans.abort();
-      }
-    }
+    db.put(null,
+        makeIndexKey(EMPTY_SECTOR_MARKER, coord.x, coord.y), new DatabaseEntry(EMPTY_VALUE));
   }
 
   /**
    * Expands the universe, making it one bigger than before, and creating a bunch of sectors to be
    * generated.
    */
-  private void expandUniverse() {
+  private synchronized void expandUniverse() {
     Transaction trans = db.getEnvironment().beginTransaction(null, null);
     try {
       List<SectorCoord> bounds;
@@ -266,28 +264,16 @@ public class SectorsStore {
           new SectorCoordArray.Builder().coords(bounds).build());
       db.put(trans, UNIVERSE_BOUNDS_KEY, value);
 
-      // Now save the newly-created ungenerated sectors.
-      List<SectorCoord> coords;
-      value = new DatabaseEntry();
-      if (db.get(trans, UNGENERATED_SECTORS_KEY, value, LockMode.DEFAULT)
-          == OperationStatus.SUCCESS) {
-        coords = new ArrayList<>(sectorCoordArraySerializer.deserialize(value).coords);
-      } else {
-        coords = new ArrayList<>();
-      }
+      // Now save the newly-created ungenerated sectors, which is just the edge of the new bounds.
+      DatabaseEntry empty = new DatabaseEntry(EMPTY_VALUE);
       for (long x = bounds.get(0).x; x <= bounds.get(1).x; x++) {
-        coords.add(new SectorCoord.Builder().x(x).y(bounds.get(0).y).build());
-        coords.add(new SectorCoord.Builder().x(x).y(bounds.get(1).y).build());
+        db.put(trans, makeIndexKey(UNGENERATED_SECTOR_MARKER, x, bounds.get(0).y), empty);
+        db.put(trans, makeIndexKey(UNGENERATED_SECTOR_MARKER, x, bounds.get(1).y), empty);
       }
       for (long y = bounds.get(0).y; y <= bounds.get(1).y; y++) {
-        coords.add(new SectorCoord.Builder().x(bounds.get(0).x).y(y).build());
-        coords.add(new SectorCoord.Builder().x(bounds.get(1).x).y(y).build());
+        db.put(trans, makeIndexKey(UNGENERATED_SECTOR_MARKER, bounds.get(0).x, y), empty);
+        db.put(trans, makeIndexKey(UNGENERATED_SECTOR_MARKER, bounds.get(1).x, y), empty);
       }
-      db.put(
-          trans,
-          UNGENERATED_SECTORS_KEY,
-          sectorCoordArraySerializer.serialize(
-              new SectorCoordArray.Builder().coords(coords).build()));
 
       trans.commit();
       trans = null;
@@ -302,28 +288,107 @@ public class SectorsStore {
    * Remove the given {@link SectorCoord} from the "ungenerated" sectors list.
    */
   private void removeUngeneratedSector(SectorCoord coord) {
+    db.delete(null, makeIndexKey(UNGENERATED_SECTOR_MARKER, coord.x, coord.y));
+  }
+
+  /**
+   * Gets the sectors in the given index (i.e. {@link #EMPTY_SECTOR_MARKER} or
+   * {@link #UNGENERATED_SECTOR_MARKER}) which are closest to the center of the universe. Because
+   * the index keys are ordered by distance from the center, this is just a cursor scan from the
+   * start of the index.
+   *
+   * @param marker The marker byte for the index we want to scan.
+   * @param maxSectors The maximum number of sectors to return.
+   */
+  private List<SectorCoord> getClosestSectors(byte marker, int maxSectors) {
+    ArrayList<SectorCoord> coords = new ArrayList<>();
+    DatabaseEntry key = new DatabaseEntry(new byte[] {marker});
+    DatabaseEntry value = new DatabaseEntry();
+    value.setPartial(0, 0, true);
+    try (Cursor cursor = db.openCursor(null, null)) {
+      OperationStatus status = cursor.getSearchKeyRange(key, value, LockMode.DEFAULT);
+      while (status == OperationStatus.SUCCESS && coords.size() < maxSectors) {
+        ByteBuffer bb = ByteBuffer.wrap(key.getData(), key.getOffset(), key.getSize());
+        if (key.getSize() != INDEX_KEY_SIZE || bb.get() != marker) {
+          // We've gone past the end of this index.
+          break;
+        }
+        bb.getLong(); // distance
+        coords.add(new SectorCoord.Builder().x(bb.getLong()).y(bb.getLong()).build());
+        status = cursor.getNext(key, value, LockMode.DEFAULT);
+      }
+    }
+    return coords;
+  }
+
+  /**
+   * Migrates sectors stored under the old "sector:x,y" string keys to the binary keys we use now.
+   */
+  private void migrateSectorKeys() {
+    int numMigrated = 0;
+    while (true) {
+      int numInBatch = 0;
+      Transaction trans = db.getEnvironment().beginTransaction(null, null);
+      try {
+        try (Cursor cursor = db.openCursor(trans, null)) {
+          DatabaseEntry key = new DatabaseEntry(OLD_SECTOR_KEY_PREFIX);
+          DatabaseEntry value = new DatabaseEntry();
+          OperationStatus status = cursor.getSearchKeyRange(key, value, LockMode.DEFAULT);
+          while (status == OperationStatus.SUCCESS && numInBatch < MIGRATE_BATCH_SIZE) {
+            String oldKey = new String(
+                key.getData(), key.getOffset(), key.getSize(), Charset.defaultCharset());
+            if (!oldKey.startsWith("sector:")) {
+              break;
+            }
+            String[] parts = oldKey.substring("sector:".length()).split(",");
+            long x = Long.parseLong(parts[0]);
+            long y = Long.parseLong(parts[1]);
+
+            db.put(trans, makeKey(x, y, new DatabaseEntry()), value);
+            cursor.delete();
+            numInBatch++;
+            status = cursor.getNext(key, value, LockMode.DEFAULT);
+          }
+        }
+        trans.commit();
+        trans = null;
+      } finally {
+        if (trans != null) {
+          trans.abort();
+        }
+      }
+
+      if (numInBatch == 0) {
+        break;
+      }
+      numMigrated += numInBatch;
+    }
+
+    if (numMigrated > 0) {
+      log.info("Migrated %d sectors to binary keys.", numMigrated);
+    }
+  }
+
+  /**
+   * Migrates the old "empty-sectors" and "ungenerated-sectors" values, which stored the whole list
+   * as a single {@link SectorCoordArray}, to the individual index keys we use now.
+   */
+  private void migrateSectorList(DatabaseEntry oldKey, byte marker) {
     Transaction trans = db.getEnvironment().beginTransaction(null, null);
     try {
-      List<SectorCoord> coords;
       DatabaseEntry value = new DatabaseEntry();
-      if (db.get(trans, UNGENERATED_SECTORS_KEY, value, LockMode.DEFAULT)
-          == OperationStatus.SUCCESS) {
-        coords = new ArrayList<>(sectorCoordArraySerializer.deserialize(value).coords);
-      } else {
+      if (db.get(trans, oldKey, value, LockMode.DEFAULT) != OperationStatus.SUCCESS) {
         return;
       }
-      for (int i = 0; i < coords.size(); i++) {
-        if (coords.get(i).equals(coord)) {
-          coords.remove(i);
-          break;
-        }
-      }
-      db.put(
-          trans,
-          UNGENERATED_SECTORS_KEY,
-          sectorCoordArraySerializer.serialize(
-              new SectorCoordArray.Builder().coords(coords).build()));
 
+      List<SectorCoord> coords = sectorCoordArraySerializer.deserialize(value).coords;
+      log.info("Migrating %d sectors from '%s' to index.",
+          coords.size(), new String(oldKey.getData(), Charset.defaultCharset()));
+      DatabaseEntry empty = new DatabaseEntry(EMPTY_VALUE);
+      for (SectorCoord coord : coords) {
+        db.put(trans, makeIndexKey(marker, coord.x, coord.y), empty);
+      }
+      db.delete(trans, oldKey);
       trans.commit();
       trans = null;
     } finally {
@@ -333,8 +398,37 @@ public class SectorsStore {
     }
   }
 
-  private DatabaseEntry makeKey(long x, long y) {
-    String key = String.format(Locale.US, "sector:%d,%d", x, y);
-    return new DatabaseEntry(key.getBytes(Charset.defaultCharset()));
+  public void close() {
+    db.close();
+  }
+
+  /**
+   * Makes a key for one of our sector indices. The key is the marker byte, followed by the square
+   * of the sector's distance from the center of the universe, then the x and y coordinates. All
+   * values are big-endian, so the keys for an index sort by distance from the center.
+   */
+  private static DatabaseEntry makeIndexKey(byte marker, long x, long y) {
+    return new DatabaseEntry(ByteBuffer.allocate(INDEX_KEY_SIZE)
+        .put(marker)
+        .putLong(x * x + y * y)
+        .putLong(x)
+        .putLong(y)
+        .array());
+  }
+
+  /**
+   * Makes the key for the sector at the given coordinates, in the given (possibly reused)
+   * {@link DatabaseEntry}.
+   */
+  private static DatabaseEntry makeKey(long x, long y, DatabaseEntry entry) {
+    byte[] data = entry.getData();
+    if (data == null || data.length != SECTOR_KEY_SIZE) {
+      data = new byte[SECTOR_KEY_SIZE];
+    }
+    data[0] = SECTOR_MARKER;
+    StoreHelper.putLong(data, 1, x);
+    StoreHelper.putLong(data, 1 + Long.BYTES, y);
+    entry.setData(data);
+    return entry;
   }
 }
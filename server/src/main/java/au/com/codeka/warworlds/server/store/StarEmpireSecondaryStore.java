@@ -1,32 +1,31 @@
 package au.com.codeka.warworlds.server.store;
 
 import com.google.common.base.Preconditions;
-import com.sleepycat.je.Cursor;
-import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.SecondaryConfig;
+import com.sleepycat.je.SecondaryCursor;
 import com.sleepycat.je.SecondaryDatabase;
 import com.sleepycat.je.SecondaryMultiKeyCreator;
 import com.sleepycat.je.Transaction;
 
-import java.nio.ByteBuffer;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import javax.annotation.Nullable;
 
 import au.com.codeka.warworlds.common.Log;
+import au.com.codeka.warworlds.common.proto.Fleet;
 import au.com.codeka.warworlds.common.proto.Planet;
 import au.com.codeka.warworlds.common.proto.Star;
 
 /**
  * A secondary store for stars which allows us to index them by empire (i.e. fetch all stars that
- * an empire owns).
+ * an empire has a colony or a fleet on).
  */
 public class StarEmpireSecondaryStore {
   private static final Log log = new Log("StarEmpireSecondaryStore");
@@ -45,11 +44,35 @@ public class StarEmpireSecondaryStore {
     this.sdb = env.openSecondaryDatabase(null, "empire_stars", db, secondaryConfig);
   }
 
-  /** Gets an iterable of all the stars beloning to the given empire. */
-  public StarIterable getStarsForEmpire(@Nullable Transaction trans, final long empireId) {
-    CursorConfig cursorConfig = new CursorConfig();
-    Cursor cursor = sdb.openCursor(trans, cursorConfig);
-    return new StarIterable(cursor, empireId);
+  /**
+   * Gets a page of the stars belonging to the given empire, in order of star ID. To walk through
+   * all of an empire's stars, start with a startStarId of 0, then pass one more than the ID of the
+   * last star returned to get the next page, until a page comes back with fewer than limit stars.
+   *
+   * @param trans An optional {@link Transaction} to do the fetch in.
+   * @param empireId The ID of the empire whose stars we want.
+   * @param startStarId Only stars with an ID greater than or equal to this are returned.
+   * @param limit The maximum number of stars to return.
+   */
+  public List<Star> getStarsForEmpire(
+      @Nullable Transaction trans, long empireId, long startStarId, int limit) {
+    ArrayList<Star> results = new ArrayList<>();
+    try (SecondaryCursor cursor = sdb.openCursor(trans, null)) {
+      DatabaseEntry key = stars.encodeKey(empireId);
+      DatabaseEntry primaryKey = stars.encodeKey(startStarId);
+      DatabaseEntry value = new DatabaseEntry();
+      OperationStatus status =
+          cursor.getSearchBothRange(key, primaryKey, value, LockMode.DEFAULT);
+      while (status == OperationStatus.SUCCESS && results.size() < limit) {
+        results.add(stars.decodeValue(value));
+        status = cursor.getNextDup(key, primaryKey, value, LockMode.DEFAULT);
+      }
+    }
+    return results;
+  }
+
+  public void close() {
+    sdb.close();
   }
 
   /** Key creator which extracts the empireIDs from stars and uses that as the key. */
@@ -67,98 +90,19 @@ public class StarEmpireSecondaryStore {
       }
       Star star = stars.decodeValue(value);
 
-      Set<Long> empireIds = new HashSet<>();
+      // No need to de-dupe the empire IDs ourselves, results is a set already.
       for (Planet planet : star.planets) {
         if (planet.colony != null && planet.colony.empire_id != null) {
-          long empireId = planet.colony.empire_id;
-          if (!empireIds.contains(empireId)) {
-            empireIds.add(empireId);
-          }
+          results.add(stars.encodeKey(planet.colony.empire_id));
         }
       }
-
-      // TODO: fleets
-
-      log.debug("updating empire index for star %d (%d empires)", star.id, empireIds.size());
-      for (long empireId : empireIds) {
-        results.add(stars.encodeKey(empireId));
-      }
-    }
-  }
-
-  /** An {@link Iterable} for stars. */
-  public class StarIterable implements Iterable<Star>, AutoCloseable {
-    private final Cursor cursor;
-    private final long empireId;
-
-    public StarIterable(Cursor cursor, long empireId) {
-      this.cursor = cursor;
-      this.empireId = empireId;
-    }
-
-    @Override
-    public void close() {
-      cursor.close();
-    }
-
-    @Override
-    public Iterator<Star> iterator() {
-      return new StarIterator(cursor, empireId);
-    }
-  }
-
-  /** An {@link Iterator} for iterating through the results of a cursor. */
-  public class StarIterator implements Iterator<Star>, AutoCloseable {
-    private final Cursor cursor;
-    private final long empireId;
-
-    @Nullable private DatabaseEntry currKey;
-    @Nullable private DatabaseEntry currValue;
-    private Boolean validValue = null;
-
-    StarIterator(Cursor cursor, long empireId) {
-      this.cursor = Preconditions.checkNotNull(cursor);
-      this.empireId = empireId;
-    }
-
-    @Override
-    public boolean hasNext() {
-      if (validValue != null && !validValue) {
-        return false;
-      }
-
-      if (currValue != null) {
-        // We've already got a value, so it's obviously valid.
-        return true;
-      }
-
-      if (currKey == null) {
-        currKey = stars.encodeKey(empireId);
-        currValue = new DatabaseEntry();
-        OperationStatus status = cursor.getSearchKey(currKey, currValue, LockMode.DEFAULT);
-        validValue = (status == OperationStatus.SUCCESS);
-      } else {
-        currValue = new DatabaseEntry();
-        OperationStatus status = cursor.getNextDup(currKey, currValue, LockMode.DEFAULT);
-        validValue = (status == OperationStatus.SUCCESS);
-      }
-      return validValue;
-    }
-
-    @Override
-    public Star next() {
-      if (validValue) {
-        Star star = stars.decodeValue(currValue);
-        currValue = null;
-        return star;
+      for (Fleet fleet : star.fleets) {
+        if (fleet.empire_id != null) {
+          results.add(stars.encodeKey(fleet.empire_id));
+        }
       }
 
-      return null;
-    }
-
-    @Override
-    public void close() {
-      cursor.close();
+      log.debug("updating empire index for star %d (%d empires)", star.id, results.size());
     }
   }
 }
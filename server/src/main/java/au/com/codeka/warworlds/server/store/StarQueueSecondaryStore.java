@@ -9,11 +9,14 @@ import com.sleepycat.je.Environment;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.SecondaryConfig;
+import com.sleepycat.je.SecondaryCursor;
 import com.sleepycat.je.SecondaryDatabase;
 import com.sleepycat.je.SecondaryKeyCreator;
 import com.sleepycat.je.Transaction;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.annotation.Nullable;
 
@@ -29,6 +32,7 @@ public class StarQueueSecondaryStore {
 
   public StarQueueSecondaryStore(Environment env, Database db, ProtobufStore<Star> stars) {
     SecondaryConfig secondaryConfig = new SecondaryConfig();
+    secondaryConfig.setAllowPopulate(true);
     secondaryConfig.setAllowCreate(true);
     secondaryConfig.setTransactional(true);
     secondaryConfig.setSortedDuplicates(true);
@@ -55,6 +59,41 @@ public class StarQueueSecondaryStore {
     }
   }
 
+  /**
+   * Gets the stars that are due to be simulated before the given time, in order of their
+   * next_simulation time. Only the index is read, not the stars themselves.
+   *
+   * @param trans An optional {@link Transaction} to do the fetch in.
+   * @param before Only stars whose next_simulation is before this time are returned.
+   * @param limit The maximum number of stars to return.
+   */
+  public List<QueueEntry> getDueStars(@Nullable Transaction trans, long before, int limit) {
+    ArrayList<QueueEntry> entries = new ArrayList<>();
+    try (SecondaryCursor cursor = sdb.openCursor(trans, null)) {
+      DatabaseEntry key = new DatabaseEntry();
+      DatabaseEntry primaryKey = new DatabaseEntry();
+      DatabaseEntry value = new DatabaseEntry();
+      value.setPartial(0, 0, true);
+      OperationStatus status = cursor.getFirst(key, primaryKey, value, LockMode.DEFAULT);
+      while (status == OperationStatus.SUCCESS && entries.size() < limit) {
+        long nextSimulation = StoreHelper.getLong(key.getData(), key.getOffset());
+        if (nextSimulation >= before) {
+          break;
+        }
+        Long starId = stars.decodeKey(primaryKey);
+        if (starId != null) {
+          entries.add(new QueueEntry(starId, nextSimulation));
+        }
+        status = cursor.getNext(key, primaryKey, value, LockMode.DEFAULT);
+      }
+    }
+    return entries;
+  }
+
+  public void close() {
+    sdb.close();
+  }
+
   /** Key creator which extracts the "next simulation" time from stars and uses that as the key. */
   public class KeyCreator implements SecondaryKeyCreator {
     @Override
@@ -63,7 +102,7 @@ public class StarQueueSecondaryStore {
         DatabaseEntry key,
         DatabaseEntry value,
         DatabaseEntry result) {
-      if (key.getSize() != 8) {
+      if (!StoreHelper.isKey(key)) {
         // it's probably not a star (probably the sequence)
         return false;
       }
@@ -76,4 +115,15 @@ public class StarQueueSecondaryStore {
       return true;
     }
   }
+
+  /** An entry in the queue: the ID of a star, and the time it's due to be simulated. */
+  public static class QueueEntry {
+    public final long starId;
+    public final long nextSimulation;
+
+    public QueueEntry(long starId, long nextSimulation) {
+      this.starId = starId;
+      this.nextSimulation = nextSimulation;
+    }
+  }
 }
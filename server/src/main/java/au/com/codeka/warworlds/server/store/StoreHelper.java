@@ -14,6 +14,23 @@ public class StoreHelper {
 
   /** Returns true if the given {@link DatabaseEntry} is a key. */
   public static boolean isKey(DatabaseEntry entry) {
-    return entry.getData()[0] == KEY_MARKER;
+    return entry.getSize() > 0 && entry.getData()[entry.getOffset()] == KEY_MARKER;
+  }
+
+  /** Writes the given long, big-endian, to the given buffer at the given offset. */
+  public static void putLong(byte[] buffer, int offset, long value) {
+    for (int i = 7; i >= 0; i--) {
+      buffer[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+
+  /** Reads a big-endian long from the given buffer at the given offset. */
+  public static long getLong(byte[] buffer, int offset) {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value = (value << 8) | (buffer[offset + i] & 0xff);
+    }
+    return value;
   }
 }
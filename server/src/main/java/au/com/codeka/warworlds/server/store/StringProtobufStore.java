@@ -35,7 +35,8 @@ public class StringProtobufStore<M extends Message<?, ?>> extends BaseStore<Stri
 
   @Override
   protected String decodeKey(DatabaseEntry databaseEntry) {
-    return new String(databaseEntry.getData(), charset);
+    return new String(
+        databaseEntry.getData(), databaseEntry.getOffset(), databaseEntry.getSize(), charset);
   }
 
   @Override
@@ -35,11 +35,12 @@ public class UniqueNameStore extends BaseStore<String, Long> {
 
   @Override
   protected String decodeKey(DatabaseEntry databaseEntry) {
-    return new String(databaseEntry.getData(), charset);
+    return new String(
+        databaseEntry.getData(), databaseEntry.getOffset(), databaseEntry.getSize(), charset);
   }
 
   @Override
   protected Long decodeValue(DatabaseEntry databaseEntry) {
-    return ByteBuffer.wrap(databaseEntry.getData()).getLong();
+    return StoreHelper.getLong(databaseEntry.getData(), databaseEntry.getOffset());
   }
 }
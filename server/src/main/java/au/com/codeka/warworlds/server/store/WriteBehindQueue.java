@@ -0,0 +1,460 @@
+package au.com.codeka.warworlds.server.store;
+
+import com.google.common.base.Preconditions;
+import com.sleepycat.je.Transaction;
+import com.squareup.wire.Message;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import au.com.codeka.warworlds.common.Log;
+
+/**
+ * A write-behind queue in front of a {@link ProtobufStore}. Rather than writing every update to
+ * the store on the calling thread, we remember the latest value for each key and write the dirty
+ * values out in batches (one transaction per batch) from a dedicated writer thread.
+ *
+ * <p>Multiple updates to the same key within the flush window are coalesced, so only the most
+ * recent value gets written. The number of pending values is bounded: if the writer falls too far
+ * behind, callers of {@link #put} will block until it catches up, or until they've waited long
+ * enough that they write a batch themselves (see {@link #put}).
+ *
+ * <p>Values are never dropped: if they can't be written, they stay pending and {@link #flush} (and
+ * hence {@link #stop}) fails.
+ */
+public class WriteBehindQueue<M extends Message<?, ?>> {
+  /** The number of times in a row {@link #flush} tries to write a batch before giving up. */
+  private static final int MAX_FLUSH_ATTEMPTS = 5;
+
+  /** How long {@link #flush} waits after the first failed attempt, doubling after each one. */
+  private static final long FLUSH_RETRY_DELAY_MS = 100;
+
+  private final Log log;
+  private final ProtobufStore<M> store;
+  private final String name;
+  private final long windowMs;
+  private final int maxBatchSize;
+  private final int maxPending;
+  private final long putTimeoutMs;
+
+  private final Object lock = new Object();
+
+  /** Values that are waiting to be written, in the order they were first dirtied. */
+  private final LinkedHashMap<Long, M> pending = new LinkedHashMap<>();
+
+  /** Values that the writer thread has taken from {@link #pending} but not yet committed. */
+  private final HashMap<Long, M> inFlight = new HashMap<>();
+
+  @Nullable private Thread thread;
+  private boolean running;
+
+  private long numPuts;
+  private long numCoalesced;
+  private long numWrites;
+  private long numFlushes;
+  private long totalFlushNanos;
+  private long maxFlushNanos;
+
+  /**
+   * Constructs a new {@link WriteBehindQueue}.
+   *
+   * @param store The {@link ProtobufStore} that we'll eventually write values to.
+   * @param name A name for this queue, used for the writer thread and logging.
+   * @param windowMs The number of milliseconds to wait after a value becomes dirty before we
+   *     write it, updates to the same key within this window are coalesced.
+   * @param maxBatchSize The maximum number of values we'll write in a single transaction.
+   * @param maxPending The maximum number of values we'll keep in memory before {@link #put}
+   *     blocks waiting for the writer to catch up.
+   * @param putTimeoutMs The longest {@link #put} will wait for the writer to make room, before it
+   *     writes a batch itself.
+   */
+  public WriteBehindQueue(ProtobufStore<M> store, String name, long windowMs, int maxBatchSize,
+      int maxPending, long putTimeoutMs) {
+    this.store = Preconditions.checkNotNull(store);
+    this.name = Preconditions.checkNotNull(name);
+    this.windowMs = windowMs;
+    this.maxBatchSize = maxBatchSize;
+    this.maxPending = maxPending;
+    this.putTimeoutMs = putTimeoutMs;
+    this.log = new Log(name);
+  }
+
+  public void start() {
+    synchronized (lock) {
+      Preconditions.checkState(thread == null, "%s already started.", name);
+      running = true;
+      thread = new Thread(this::run, name);
+      thread.start();
+    }
+  }
+
+  /**
+   * Stops the writer thread and synchronously writes everything that's still pending. After this
+   * returns, {@link #put} writes straight through to the store.
+   *
+   * @throws RuntimeException if we couldn't write everything (see {@link #flush}). The store must
+   *     not be closed in that case, since the values that are still pending would be lost.
+   */
+  public void stop() {
+    Thread t;
+    synchronized (lock) {
+      running = false;
+      t = thread;
+      thread = null;
+      lock.notifyAll();
+    }
+
+    if (t != null) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        // Ignore.
+      }
+    }
+
+    flush();
+    log.info("Stopped. puts=%d writes=%d coalesce ratio=%.2f flushes=%d avg flush=%.2fms "
+            + "max flush=%.2fms", getNumPuts(), getNumWrites(), getCoalesceRatio(),
+        getNumFlushes(), getAverageFlushLatencyMs(), getMaxFlushLatencyMs());
+  }
+
+  /**
+   * Queues the given value to be written to the store. If there's already a pending value for
+   * this key, it's replaced.
+   *
+   * <p>If there's too many values pending, we wait for the writer to make room. If it hasn't after
+   * putTimeoutMs (e.g. because it's stuck, or writes are failing), we queue the value anyway and
+   * write the oldest batch of pending values ourselves, so that callers (who may be holding a
+   * star's lock) are never blocked indefinitely.
+   *
+   * @throws RuntimeException if we had to write a batch ourselves, and it failed. The value is
+   *     still pending.
+   */
+  public void put(long key, M value) {
+    boolean timedOut = false;
+    synchronized (lock) {
+      numPuts++;
+      if (pending.containsKey(key)) {
+        numCoalesced++;
+        pending.put(key, value);
+        return;
+      }
+
+      long endTime = System.currentTimeMillis() + putTimeoutMs;
+      while (running && pending.size() >= maxPending) {
+        long waitTime = endTime - System.currentTimeMillis();
+        if (waitTime <= 0) {
+          timedOut = true;
+          break;
+        }
+
+        // Too many pending values, wake the writer up and wait for it to make some room.
+        lock.notifyAll();
+        try {
+          lock.wait(waitTime);
+        } catch (InterruptedException e) {
+          // Ignore.
+        }
+      }
+
+      if (pending.put(key, value) != null) {
+        // Someone else put the same key in while we were waiting.
+        numCoalesced++;
+      } else if (pending.size() == 1 || pending.size() >= maxPending) {
+        // The writer only needs waking when we go from empty to non-empty, or we're full.
+        lock.notifyAll();
+      }
+
+      if (running && !timedOut) {
+        return;
+      }
+    }
+
+    if (timedOut) {
+      log.warning("Waited %dms for room, writing a batch on this thread.", putTimeoutMs);
+      if (!flushBatch()) {
+        throw new RuntimeException(String.format(Locale.ENGLISH,
+            "%s: %d values pending, and writing a batch failed.", name, getNumPending()));
+      }
+      return;
+    }
+
+    // Not running (not started yet, or we've been stopped), so write it straight through.
+    flush();
+  }
+
+  /**
+   * Gets the value for the given key that is waiting to be written, or null if the store is
+   * already up-to-date. Callers that read the store directly should check here first.
+   */
+  @Nullable
+  public M getPending(long key) {
+    synchronized (lock) {
+      M value = pending.get(key);
+      if (value == null) {
+        value = inFlight.get(key);
+      }
+      return value;
+    }
+  }
+
+  /** Gets the value with the given key, taking into account any value pending a write. */
+  @Nullable
+  public M get(long key) {
+    M value = getPending(key);
+    if (value == null) {
+      value = store.get(key);
+    }
+    return value;
+  }
+
+  /**
+   * Gets all the values with the given keys, taking into account values pending a write. The
+   * values that aren't pending are fetched with {@link ProtobufStore#getAll}.
+   */
+  public Map<Long, M> getAll(Collection<Long> keys) {
+    HashMap<Long, M> values = new HashMap<>();
+    ArrayList<Long> missing = new ArrayList<>();
+    synchronized (lock) {
+      for (Long key : keys) {
+        M value = pending.get(key);
+        if (value == null) {
+          value = inFlight.get(key);
+        }
+        if (value == null) {
+          missing.add(key);
+        } else {
+          values.put(key, value);
+        }
+      }
+    }
+
+    if (!missing.isEmpty()) {
+      values.putAll(store.getAll(missing));
+    }
+    return values;
+  }
+
+  /**
+   * Synchronously writes everything that's currently pending. If a batch fails to write, we try
+   * again (up to {@link #MAX_FLUSH_ATTEMPTS} times in a row, backing off in between).
+   *
+   * @throws RuntimeException if it still fails after that. The IDs of every value we couldn't
+   *     write are logged, and the values are left pending, so a later flush can still write them.
+   */
+  public void flush() {
+    int attempts = 0;
+    long delayMs = FLUSH_RETRY_DELAY_MS;
+    while (!writePending()) {
+      attempts++;
+      if (attempts >= MAX_FLUSH_ATTEMPTS) {
+        ArrayList<Long> unwritten;
+        synchronized (lock) {
+          unwritten = new ArrayList<>(pending.keySet());
+        }
+        log.error("Giving up after %d attempts, %d values are still unwritten: %s",
+            attempts, unwritten.size(), unwritten);
+        throw new RuntimeException(String.format(Locale.ENGLISH,
+            "%s: couldn't write %d values after %d attempts.", name, unwritten.size(), attempts));
+      }
+
+      log.warning("Error flushing, will retry in %dms (attempt %d of %d).",
+          delayMs, attempts, MAX_FLUSH_ATTEMPTS);
+      try {
+        Thread.sleep(delayMs);
+      } catch (InterruptedException e) {
+        // Ignore.
+      }
+      delayMs *= 2;
+    }
+  }
+
+  /** The total number of calls to {@link #put}. */
+  public long getNumPuts() {
+    synchronized (lock) {
+      return numPuts;
+    }
+  }
+
+  /** The number of values we've actually written to the store. */
+  public long getNumWrites() {
+    synchronized (lock) {
+      return numWrites;
+    }
+  }
+
+  /** The number of batches (transactions) we've written. */
+  public long getNumFlushes() {
+    synchronized (lock) {
+      return numFlushes;
+    }
+  }
+
+  /** The fraction of calls to {@link #put} that were coalesced with an already-pending value. */
+  public double getCoalesceRatio() {
+    synchronized (lock) {
+      return numPuts == 0 ? 0.0 : (double) numCoalesced / numPuts;
+    }
+  }
+
+  public double getAverageFlushLatencyMs() {
+    synchronized (lock) {
+      return numFlushes == 0 ? 0.0 : (totalFlushNanos / (double) numFlushes) / 1000000.0;
+    }
+  }
+
+  public double getMaxFlushLatencyMs() {
+    synchronized (lock) {
+      return maxFlushNanos / 1000000.0;
+    }
+  }
+
+  /** The number of values currently waiting to be written. */
+  public int getNumPending() {
+    synchronized (lock) {
+      return pending.size() + inFlight.size();
+    }
+  }
+
+  /**
+   * Writes batches of pending values until there are none left, or one of them fails.
+   *
+   * @return true if everything was written, false if a batch failed (in which case its values are
+   *     back in {@link #pending}).
+   */
+  private boolean writePending() {
+    while (true) {
+      synchronized (lock) {
+        if (pending.isEmpty()) {
+          return true;
+        }
+      }
+      if (!flushBatch()) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Writes one batch of (up to maxBatchSize) pending values to the store in a single transaction.
+   * If every pending value is currently being written by another thread, waits for that to finish
+   * instead.
+   *
+   * @return true if the batch was written, false if it failed and was put back in
+   *     {@link #pending}.
+   */
+  private boolean flushBatch() {
+    ArrayList<Map.Entry<Long, M>> batch = new ArrayList<>();
+    synchronized (lock) {
+      Iterator<Map.Entry<Long, M>> it = pending.entrySet().iterator();
+      while (it.hasNext() && batch.size() < maxBatchSize) {
+        Map.Entry<Long, M> entry = it.next();
+        if (inFlight.containsKey(entry.getKey())) {
+          // Another thread is writing an older value for this key, it'll pick this one up next.
+          continue;
+        }
+        it.remove();
+        inFlight.put(entry.getKey(), entry.getValue());
+        batch.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+      }
+
+      if (batch.isEmpty()) {
+        if (!pending.isEmpty()) {
+          // Everything left is in flight on another thread, wait for it to finish.
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            // Ignore.
+          }
+        }
+        return true;
+      }
+    }
+
+    long startTime = System.nanoTime();
+    boolean success = false;
+    Transaction trans = store.db.getEnvironment().beginTransaction(null, null);
+    try {
+      for (Map.Entry<Long, M> entry : batch) {
+        store.put(trans, entry.getKey(), entry.getValue());
+      }
+      trans.commit();
+      trans = null;
+      success = true;
+    } catch (RuntimeException e) {
+      log.error("Error writing batch of %d values.", batch.size(), e);
+    } finally {
+      if (trans != null) {
+        trans.abort();
+      }
+    }
+    long elapsed = System.nanoTime() - startTime;
+
+    synchronized (lock) {
+      for (Map.Entry<Long, M> entry : batch) {
+        inFlight.remove(entry.getKey());
+        if (!success && !pending.containsKey(entry.getKey())) {
+          // Put it back, unless it's been updated again in the meantime.
+          pending.put(entry.getKey(), entry.getValue());
+        }
+      }
+      if (success) {
+        numWrites += batch.size();
+        numFlushes++;
+        totalFlushNanos += elapsed;
+        maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+      }
+      lock.notifyAll();
+    }
+
+    if (success) {
+      log.debug("Wrote %d values in %dms", batch.size(), elapsed / 1000000L);
+    }
+    return success;
+  }
+
+  private void run() {
+    log.info("%s starting up.", name);
+    while (true) {
+      synchronized (lock) {
+        while (running && pending.isEmpty()) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            // Ignore.
+          }
+        }
+        if (!running) {
+          break;
+        }
+
+        // Wait for the window to expire so that more updates to the same keys can be coalesced,
+        // unless we're already over the limit of pending values.
+        long endTime = System.currentTimeMillis() + windowMs;
+        long waitTime = windowMs;
+        while (running && waitTime > 0 && pending.size() < maxPending) {
+          try {
+            lock.wait(waitTime);
+          } catch (InterruptedException e) {
+            // Ignore.
+          }
+          waitTime = endTime - System.currentTimeMillis();
+        }
+      }
+
+      if (!writePending()) {
+        // Whatever we didn't write is still pending, so we'll try again after the next window.
+        log.warning("Error flushing, will retry in %dms.", windowMs);
+      }
+    }
+    log.info("%s shut down.", name);
+  }
+}
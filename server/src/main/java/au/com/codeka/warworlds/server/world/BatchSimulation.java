@@ -0,0 +1,90 @@
+package au.com.codeka.warworlds.server.world;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import au.com.codeka.warworlds.common.Log;
+import au.com.codeka.warworlds.common.proto.Star;
+import au.com.codeka.warworlds.common.sim.Simulation;
+
+/**
+ * Simulates lots of stars at once, in parallel on a {@link ForkJoinPool}. This lives here rather
+ * than next to {@link Simulation} because the common module is shared with the client, which can't
+ * use fork/join on all the devices we support.
+ */
+public class BatchSimulation {
+  private static final Log log = new Log("BatchSimulation");
+
+  /** Ranges with this many stars or fewer are simulated directly, rather than split. */
+  private static final int CHUNK_SIZE = 16;
+
+  private BatchSimulation() {
+  }
+
+  /**
+   * Simulates all of the given stars in parallel on the given {@link ForkJoinPool}, and waits for
+   * them all to finish.
+   *
+   * <p>The stars are split into chunks which are simulated by fork/join tasks, so idle threads can
+   * steal work from busy ones. Each chunk is simulated by a single {@link Simulation}, so the
+   * stars in a chunk share its scratch state. Stars with lots of empires also have their empires
+   * simulated in parallel on the same pool (see {@link Simulation#setEmpireExecutor}). If a star
+   * fails to simulate, the error is logged
+   * and the star is left as it was, the rest of the stars are still simulated.
+   *
+   * @param pool The {@link ForkJoinPool} to simulate the stars on.
+   * @param stars The stars to simulate. Each {@link Star.Builder} is modified in-place, and must
+   *     not be touched by anybody else until we return.
+   * @param now The time to simulate the stars up to.
+   */
+  public static void simulateAll(ForkJoinPool pool, Collection<Star.Builder> stars, long now) {
+    List<Star.Builder> starList =
+        stars instanceof List ? (List<Star.Builder>) stars : new ArrayList<>(stars);
+    if (starList.isEmpty()) {
+      return;
+    }
+    pool.invoke(new SimulateTask(starList, 0, starList.size(), now));
+  }
+
+  /** A fork/join task that simulates a range of stars, splitting the range if it's too big. */
+  private static class SimulateTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Star.Builder> stars;
+    private final int start;
+    private final int end;
+    private final long now;
+
+    SimulateTask(List<Star.Builder> stars, int start, int end, long now) {
+      this.stars = stars;
+      this.start = start;
+      this.end = end;
+      this.now = now;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start > CHUNK_SIZE) {
+        int mid = (start + end) >>> 1;
+        invokeAll(
+            new SimulateTask(stars, start, mid, now),
+            new SimulateTask(stars, mid, end, now));
+        return;
+      }
+
+      Simulation simulation = new Simulation(now, true, null);
+      simulation.setEmpireExecutor(getPool());
+      for (int i = start; i < end; i++) {
+        Star.Builder star = stars.get(i);
+        try {
+          simulation.simulate(star);
+        } catch (RuntimeException e) {
+          log.error("Error simulating star #%d.", star.id, e);
+        }
+      }
+    }
+  }
+}
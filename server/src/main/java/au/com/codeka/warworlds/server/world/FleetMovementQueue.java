@@ -0,0 +1,274 @@
+package au.com.codeka.warworlds.server.world;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import au.com.codeka.warworlds.common.Log;
+import au.com.codeka.warworlds.common.proto.Fleet;
+import au.com.codeka.warworlds.common.proto.SectorCoord;
+import au.com.codeka.warworlds.common.proto.Star;
+
+/**
+ * Moves fleets from one star to another.
+ *
+ * <p>Every star's moving fleets are registered with us by {@link StarManager#completeActions} (see
+ * {@link #track}). We keep them in order of their eta, and a single thread waits for the next one
+ * to arrive, then takes it off the star it left and hands it to the star it was moving to. Only
+ * the destination star is simulated when a fleet arrives, the star it left is just saved without
+ * it.
+ *
+ * <p>We also keep a {@link FleetTransitIndex} of the fleets that are moving, so that we can quickly
+ * find the fleets that are passing over an area of space (e.g. the sectors a player is watching).
+ *
+ * <p>None of this is saved: after a restart, a moving fleet is tracked again the next time its
+ * star is simulated, and {@link StarManager} always schedules that for just after the fleet's eta.
+ */
+public class FleetMovementQueue {
+  private static final Log log = new Log("FleetMovementQueue");
+  public static final FleetMovementQueue i = new FleetMovementQueue();
+
+  /**
+   * The movements, ordered by eta (and then fleet ID, to keep them unique). This is also the lock
+   * for all of our other state.
+   */
+  private final TreeSet<Movement> movements = new TreeSet<>((lhs, rhs) -> {
+    int cmp = Long.compare(lhs.eta, rhs.eta);
+    return cmp != 0 ? cmp : Long.compare(lhs.fleetId, rhs.fleetId);
+  });
+
+  /** The movement of each fleet, so we can find it again to update it. */
+  private final HashMap<Long, Movement> movementsByFleet = new HashMap<>();
+
+  /** The IDs of the fleets that are moving from each star. */
+  private final HashMap<Long, HashSet<Long>> fleetsByStar = new HashMap<>();
+
+  private final FleetTransitIndex transitIndex = new FleetTransitIndex();
+
+  private final Thread thread;
+  private volatile boolean running;
+
+  private FleetMovementQueue() {
+    thread = new Thread(this::run, "FleetMovementQueue");
+  }
+
+  public void start() {
+    log.info("Starting fleet movement queue.");
+    running = true;
+    thread.start();
+  }
+
+  public void stop() {
+    running = false;
+    synchronized (movements) {
+      movements.notify();
+    }
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      // Ignore.
+    }
+  }
+
+  /**
+   * Updates the movements we have for the fleets of the given star: any fleet that's moving is
+   * added (or updated, if its destination or eta has changed) and any fleet we had that's no
+   * longer moving (or no longer on the star) is removed. This must be called whenever a star is
+   * updated.
+   */
+  public void track(Star star) {
+    HashMap<Long, Fleet> movingFleets = new HashMap<>();
+    for (Fleet fleet : star.fleets) {
+      if (fleet.state == Fleet.FLEET_STATE.MOVING && fleet.eta != null
+          && fleet.destination_star_id != null && fleet.time_destroyed == null) {
+        movingFleets.put(fleet.id, fleet);
+      }
+    }
+
+    ArrayList<Fleet> newFleets = new ArrayList<>();
+    synchronized (movements) {
+      HashSet<Long> fleetIds = fleetsByStar.get(star.id);
+      if (fleetIds == null && movingFleets.isEmpty()) {
+        return;
+      }
+      if (fleetIds != null) {
+        for (Long fleetId : new ArrayList<>(fleetIds)) {
+          Fleet fleet = movingFleets.get(fleetId);
+          Movement movement = movementsByFleet.get(fleetId);
+          if (fleet == null || movement.eta != fleet.eta
+              || movement.destinationStarId != fleet.destination_star_id) {
+            remove(movement);
+          }
+        }
+      }
+      for (Fleet fleet : movingFleets.values()) {
+        if (!movementsByFleet.containsKey(fleet.id)) {
+          newFleets.add(fleet);
+        }
+      }
+    }
+
+    // We look up the destinations without holding the lock, since they might need to be loaded.
+    for (Fleet fleet : newFleets) {
+      WatchableObject<Star> destination = StarManager.i.getStar(fleet.destination_star_id);
+      if (destination == null) {
+        log.warning("Fleet #%d is moving to star #%d, which doesn't exist.",
+            fleet.id, fleet.destination_star_id);
+        continue;
+      }
+
+      Movement movement = new Movement(fleet.id, star.id, fleet.destination_star_id, fleet.eta,
+          FleetTransitIndex.getSectorsOnPath(star, destination.get()));
+      synchronized (movements) {
+        Movement existing = movementsByFleet.get(fleet.id);
+        if (existing != null) {
+          remove(existing);
+        }
+        add(movement);
+        if (movements.first() == movement) {
+          // It's the next one to arrive, so we might need to wake up earlier.
+          movements.notify();
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the fleets that are moving over the given rectangle of sectors (inclusive), for example
+   * the sectors that a player is watching.
+   */
+  public List<Movement> getFleetsInTransit(long left, long top, long right, long bottom) {
+    synchronized (movements) {
+      return transitIndex.query(left, top, right, bottom);
+    }
+  }
+
+  /** The number of fleets that are currently moving. */
+  public int getNumMoving() {
+    synchronized (movements) {
+      return movements.size();
+    }
+  }
+
+  private void add(Movement movement) {
+    movements.add(movement);
+    movementsByFleet.put(movement.fleetId, movement);
+    HashSet<Long> fleetIds = fleetsByStar.get(movement.starId);
+    if (fleetIds == null) {
+      fleetIds = new HashSet<>();
+      fleetsByStar.put(movement.starId, fleetIds);
+    }
+    fleetIds.add(movement.fleetId);
+    transitIndex.add(movement);
+  }
+
+  private void remove(Movement movement) {
+    movements.remove(movement);
+    movementsByFleet.remove(movement.fleetId);
+    HashSet<Long> fleetIds = fleetsByStar.get(movement.starId);
+    if (fleetIds != null) {
+      fleetIds.remove(movement.fleetId);
+      if (fleetIds.isEmpty()) {
+        fleetsByStar.remove(movement.starId);
+      }
+    }
+    transitIndex.remove(movement);
+  }
+
+  private void run() {
+    log.info("Fleet movement queue starting up.");
+    while (running) {
+      Movement movement;
+      try {
+        synchronized (movements) {
+          if (movements.isEmpty()) {
+            movements.wait();
+            continue;
+          }
+          movement = movements.first();
+          long waitTime = movement.eta - System.currentTimeMillis();
+          if (waitTime > 0) {
+            movements.wait(waitTime);
+            continue;
+          }
+          remove(movement);
+        }
+      } catch (InterruptedException e) {
+        continue;
+      }
+
+      try {
+        arrive(movement);
+      } catch (Exception e) {
+        log.error("Error moving fleet #%d to star #%d.",
+            movement.fleetId, movement.destinationStarId, e);
+      }
+    }
+    log.info("Fleet movement queue shut down.");
+  }
+
+  /** Moves the fleet in the given movement from the star it left to its destination. */
+  private void arrive(Movement movement) {
+    WatchableObject<Star> destination = StarManager.i.getStar(movement.destinationStarId);
+    WatchableObject<Star> star = StarManager.i.acquireStar(movement.starId);
+    if (star == null || destination == null) {
+      log.warning("Fleet #%d cannot move from star #%d to #%d, star doesn't exist.",
+          movement.fleetId, movement.starId, movement.destinationStarId);
+      if (star != null) {
+        StarManager.i.releaseStar(star);
+      }
+      return;
+    }
+
+    Fleet fleet = null;
+    try {
+      synchronized (star.lock) {
+        Star.Builder starBuilder = star.get().newBuilder();
+        for (int i = 0; i < starBuilder.fleets.size(); i++) {
+          Fleet f = starBuilder.fleets.get(i);
+          if (f.id == movement.fleetId && f.state == Fleet.FLEET_STATE.MOVING
+              && f.destination_star_id != null
+              && f.destination_star_id == movement.destinationStarId) {
+            fleet = f;
+            starBuilder.fleets.remove(i);
+            break;
+          }
+        }
+        if (fleet == null) {
+          // It's been destroyed, or changed course, since we took it from the queue.
+          return;
+        }
+        StarManager.i.completeActions(star, starBuilder);
+      }
+    } finally {
+      StarManager.i.releaseStar(star);
+    }
+
+    StarManager.i.arriveFleet(destination, fleet);
+    log.info("Fleet #%d arrived at star #%d (%s), %dms after its eta.", movement.fleetId,
+        movement.destinationStarId, destination.get().name,
+        System.currentTimeMillis() - movement.eta);
+  }
+
+  /** A fleet that's moving from one star to another. */
+  public static class Movement {
+    public final long fleetId;
+    public final long starId;
+    public final long destinationStarId;
+    public final long eta;
+
+    /** The sectors that the fleet passes through on the way, see {@link FleetTransitIndex}. */
+    public final List<SectorCoord> sectors;
+
+    public Movement(
+        long fleetId, long starId, long destinationStarId, long eta, List<SectorCoord> sectors) {
+      this.fleetId = fleetId;
+      this.starId = starId;
+      this.destinationStarId = destinationStarId;
+      this.eta = eta;
+      this.sectors = sectors;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package au.com.codeka.warworlds.server.world;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import au.com.codeka.warworlds.common.proto.SectorCoord;
+import au.com.codeka.warworlds.common.proto.Star;
+
+/**
+ * A spatial index of the fleets that are in transit between stars, used by
+ * {@link FleetMovementQueue}. Space is divided into a grid of sectors, and each movement is added
+ * to every sector its path passes through, so finding the fleets moving over a rectangle of
+ * sectors only has to look at the sectors in that rectangle.
+ *
+ * <p>This class is not thread-safe, the {@link FleetMovementQueue} synchronizes access to it.
+ */
+public class FleetTransitIndex {
+  private final HashMap<SectorCoord, ArrayList<FleetMovementQueue.Movement>> sectors =
+      new HashMap<>();
+
+  public void add(FleetMovementQueue.Movement movement) {
+    for (SectorCoord coord : movement.sectors) {
+      ArrayList<FleetMovementQueue.Movement> movements = sectors.get(coord);
+      if (movements == null) {
+        movements = new ArrayList<>();
+        sectors.put(coord, movements);
+      }
+      movements.add(movement);
+    }
+  }
+
+  public void remove(FleetMovementQueue.Movement movement) {
+    for (SectorCoord coord : movement.sectors) {
+      ArrayList<FleetMovementQueue.Movement> movements = sectors.get(coord);
+      if (movements != null) {
+        movements.remove(movement);
+        if (movements.isEmpty()) {
+          sectors.remove(coord);
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the movements whose path passes through any of the sectors in the given rectangle
+   * (inclusive), in sector coordinates.
+   */
+  public List<FleetMovementQueue.Movement> query(long left, long top, long right, long bottom) {
+    ArrayList<FleetMovementQueue.Movement> result = new ArrayList<>();
+    HashSet<FleetMovementQueue.Movement> seen = new HashSet<>();
+    for (long sectorY = top; sectorY <= bottom; sectorY++) {
+      for (long sectorX = left; sectorX <= right; sectorX++) {
+        ArrayList<FleetMovementQueue.Movement> movements =
+            sectors.get(new SectorCoord.Builder().x(sectorX).y(sectorY).build());
+        if (movements == null) {
+          continue;
+        }
+        for (FleetMovementQueue.Movement movement : movements) {
+          if (seen.add(movement)) {
+            result.add(movement);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /** The number of sectors that have at least one fleet moving through them. */
+  public int getNumSectors() {
+    return sectors.size();
+  }
+
+  /**
+   * Gets the sectors that the straight line between the two given stars passes through, by
+   * walking the grid from one star's sector to the other's, one sector at a time.
+   */
+  public static List<SectorCoord> getSectorsOnPath(Star from, Star to) {
+    double x0 = from.sector_x + from.offset_x / (double) SectorManager.SECTOR_SIZE;
+    double y0 = from.sector_y + from.offset_y / (double) SectorManager.SECTOR_SIZE;
+    double x1 = to.sector_x + to.offset_x / (double) SectorManager.SECTOR_SIZE;
+    double y1 = to.sector_y + to.offset_y / (double) SectorManager.SECTOR_SIZE;
+
+    long sectorX = from.sector_x;
+    long sectorY = from.sector_y;
+    long stepX = Long.signum(to.sector_x - from.sector_x);
+    long stepY = Long.signum(to.sector_y - from.sector_y);
+    double dx = Math.abs(x1 - x0);
+    double dy = Math.abs(y1 - y0);
+
+    // How far along the line (from 0 to 1) we have to go to cross into the next sector along
+    // each axis, and how far we have to go to cross a whole sector.
+    double nextX = stepX == 0 ? Double.MAX_VALUE
+        : (stepX > 0 ? sectorX + 1 - x0 : x0 - sectorX) / dx;
+    double nextY = stepY == 0 ? Double.MAX_VALUE
+        : (stepY > 0 ? sectorY + 1 - y0 : y0 - sectorY) / dy;
+    double deltaX = stepX == 0 ? 0.0 : 1.0 / dx;
+    double deltaY = stepY == 0 ? 0.0 : 1.0 / dy;
+
+    ArrayList<SectorCoord> coords = new ArrayList<>();
+    coords.add(new SectorCoord.Builder().x(sectorX).y(sectorY).build());
+    while (sectorX != to.sector_x || sectorY != to.sector_y) {
+      if (sectorY == to.sector_y || (sectorX != to.sector_x && nextX < nextY)) {
+        sectorX += stepX;
+        nextX += deltaX;
+      } else {
+        sectorY += stepY;
+        nextY += deltaY;
+      }
+      coords.add(new SectorCoord.Builder().x(sectorX).y(sectorY).build());
+    }
+    return coords;
+  }
+}
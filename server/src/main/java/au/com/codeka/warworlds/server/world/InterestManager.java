@@ -0,0 +1,128 @@
+package au.com.codeka.warworlds.server.world;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.com.codeka.warworlds.common.proto.Star;
+
+/**
+ * Keeps track of who is interested in which sectors, and tells them when the stars in those
+ * sectors are updated.
+ *
+ * <p>The subscribers of each sector are kept in an array that's copied whenever somebody
+ * subscribes or unsubscribes, so {@link #publish} never takes a lock: it reads the current array
+ * and hands the star to each subscriber in turn. Subscribers must queue the star up and return
+ * straight away (a {@link Player} puts it on its connection's send queue, which the connection's
+ * writer sends later on), because we're called while the star is locked.
+ */
+public class InterestManager {
+  public static final InterestManager i = new InterestManager();
+
+  /** The interface you implement to be told about updates to the stars in a sector. */
+  public interface Subscriber {
+    /**
+     * Called when a star in one of the sectors you've subscribed to is updated. This is called on
+     * the thread that updated the star, while it holds the star's lock, so it must not block.
+     */
+    void onStarUpdated(Star star);
+  }
+
+  private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+  /** The subscribers of each sector that has any, keyed by {@link #getSectorKey}. */
+  private final ConcurrentHashMap<Long, Subscriber[]> subscribers = new ConcurrentHashMap<>();
+
+  private final AtomicLong numPublished = new AtomicLong();
+  private final AtomicLong numDelivered = new AtomicLong();
+
+  private InterestManager() {
+  }
+
+  /**
+   * Subscribes to updates of the stars in the given sector. Subscribing more than once means
+   * you'll be told about each update more than once.
+   */
+  public void subscribe(long sectorX, long sectorY, Subscriber subscriber) {
+    subscribers.compute(getSectorKey(sectorX, sectorY), (key, current) -> {
+      if (current == null) {
+        current = NO_SUBSCRIBERS;
+      }
+      Subscriber[] updated = Arrays.copyOf(current, current.length + 1);
+      updated[current.length] = subscriber;
+      return updated;
+    });
+  }
+
+  /** Undoes one call to {@link #subscribe} for the given sector. */
+  public void unsubscribe(long sectorX, long sectorY, Subscriber subscriber) {
+    subscribers.computeIfPresent(getSectorKey(sectorX, sectorY), (key, current) -> {
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] == subscriber) {
+          if (current.length == 1) {
+            return null;
+          }
+          Subscriber[] updated = new Subscriber[current.length - 1];
+          System.arraycopy(current, 0, updated, 0, i);
+          System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+          return updated;
+        }
+      }
+      return current;
+    });
+  }
+
+  /** Returns true if anybody has subscribed to the given sector. */
+  public boolean hasSubscribers(long sectorX, long sectorY) {
+    return subscribers.containsKey(getSectorKey(sectorX, sectorY));
+  }
+
+  /**
+   * Tells everybody who has subscribed to the given star's sector that it's been updated. The
+   * caller must hold the star's lock, so that subscribers see each star's updates in order.
+   */
+  public void publish(Star star) {
+    numPublished.incrementAndGet();
+    Subscriber[] current = subscribers.get(getSectorKey(star.sector_x, star.sector_y));
+    if (current == null) {
+      return;
+    }
+    for (Subscriber subscriber : current) {
+      subscriber.onStarUpdated(star);
+    }
+    numDelivered.addAndGet(current.length);
+  }
+
+  /** The number of sectors that somebody has subscribed to. */
+  public int getNumSectors() {
+    return subscribers.size();
+  }
+
+  /** The number of star updates that have been published. */
+  public long getNumPublished() {
+    return numPublished.get();
+  }
+
+  /** The number of star updates that have been delivered to subscribers. */
+  public long getNumDelivered() {
+    return numDelivered.get();
+  }
+
+  /**
+   * Packs the given sector coordinates into a single key. Sector coordinates are nowhere near
+   * 2^31, so each fits in half of the key.
+   */
+  public static long getSectorKey(long sectorX, long sectorY) {
+    return (sectorX << 32) | (sectorY & 0xffffffffL);
+  }
+
+  /** Gets the x coordinate of the sector with the given {@link #getSectorKey key}. */
+  public static long getSectorX(long sectorKey) {
+    return sectorKey >> 32;
+  }
+
+  /** Gets the y coordinate of the sector with the given {@link #getSectorKey key}. */
+  public static long getSectorY(long sectorKey) {
+    return (int) sectorKey;
+  }
+}
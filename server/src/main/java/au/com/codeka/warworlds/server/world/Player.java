@@ -1,43 +1,74 @@
 package au.com.codeka.warworlds.server.world;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import au.com.codeka.warworlds.common.Log;
 import au.com.codeka.warworlds.common.proto.Empire;
 import au.com.codeka.warworlds.common.proto.ModifyStarPacket;
 import au.com.codeka.warworlds.common.proto.Packet;
+import au.com.codeka.warworlds.common.proto.RequestStarsPacket;
 import au.com.codeka.warworlds.common.proto.Sector;
 import au.com.codeka.warworlds.common.proto.SectorCoord;
 import au.com.codeka.warworlds.common.proto.Star;
+import au.com.codeka.warworlds.common.proto.StarModification;
 import au.com.codeka.warworlds.common.proto.StarUpdatedPacket;
 import au.com.codeka.warworlds.common.proto.WatchSectorsPacket;
 import au.com.codeka.warworlds.server.concurrency.TaskRunner;
 import au.com.codeka.warworlds.server.concurrency.Threads;
+import au.com.codeka.warworlds.server.metrics.SectorWatchMetrics;
 import au.com.codeka.warworlds.server.net.Connection;
 
 /** Represents a currently-connected player. */
 public class Player {
   private static final Log log = new Log("Player");
 
+  /** The number of the empire's stars we fetch at a time when the player connects. */
+  private static final int EMPIRE_STARS_PAGE_SIZE = 100;
+
+  private static final long[] NO_STAR_IDS = new long[0];
+
   private final Connection connection;
 
   /** The {@link Empire} this player belongs to. */
   private final WatchableObject<Empire> empire;
 
-  /** The list of {@link Sector}s this player is currently watching. */
-  private final ArrayList<WatchableObject<Sector>> sectors = new ArrayList<>();
+  /**
+   * The IDs of the stars in each of the {@link Sector}s this player is currently watching, keyed
+   * by {@link InterestManager#getSectorKey}. Only changed while holding the lock on
+   * {@link #stars}, but our subscriber reads it without the lock.
+   */
+  private final Map<Long, long[]> sectorStarIds = new ConcurrentHashMap<>();
 
-  /** The {@link Star}s that we are currently watching. */
-  private final Map<Long, WatchableObject<Star>> stars = new HashMap<>();
+  /**
+   * The stars we're watching because a fleet is moving from them over the sectors we're watching,
+   * and the key of the sector each is in. Only changed while holding the lock on {@link #stars},
+   * but our subscriber reads it without the lock.
+   */
+  private final Map<Long, Long> transitStarSectors = new ConcurrentHashMap<>();
 
-  /** The {@link WatchableObject.Watcher} which we'll be watching stars with. */
-  private final WatchableObject.Watcher<Star> starWatcher;
+  /**
+   * The IDs of the {@link Star}s that we are currently watching, and the number of reasons we
+   * have to watch each: the watched sector it's in (if any), plus one if it's a transit star.
+   */
+  private final Map<Long, Integer> stars = new HashMap<>();
+
+  /**
+   * The number of reasons we have to be subscribed to each sector: one if we're watching it, plus
+   * one for each transit star in it. Only touched while holding the lock on {@link #stars}.
+   */
+  private final Map<Long, Integer> subscribedSectors = new HashMap<>();
+
+  /** The {@link InterestManager.Subscriber} which we subscribe to sectors with. */
+  private final InterestManager.Subscriber subscriber;
 
   public Player(Connection connection, WatchableObject<Empire> empire) {
     log.setPrefix(String.format("[%d %s]", empire.get().id, empire.get().display_name));
@@ -45,12 +76,13 @@ public class Player {
     this.connection = Preconditions.checkNotNull(connection);
     this.empire = Preconditions.checkNotNull(empire);
 
-    starWatcher = star -> {
-      connection.send(new Packet.Builder()
-          .star_updated(new StarUpdatedPacket.Builder()
-              .stars(Lists.newArrayList(star.get()))
-              .build())
-          .build());
+    subscriber = star -> {
+      // We subscribe to the whole sector of each transit star, but we only want the transit star
+      // itself from those sectors.
+      if (sectorStarIds.containsKey(InterestManager.getSectorKey(star.sector_x, star.sector_y))
+          || transitStarSectors.containsKey(star.id)) {
+        connection.sendStar(star);
+      }
     };
 
     TaskRunner.i.runTask(this::onPostConnect, Threads.BACKGROUND);
@@ -62,62 +94,270 @@ public class Player {
       onWatchSectorsPacket(pkt.watch_sectors);
     } else if (pkt.modify_star != null) {
       onModifyStar(pkt.modify_star);
+    } else if (pkt.request_stars != null) {
+      onRequestStarsPacket(pkt.request_stars);
+    }
+  }
+
+  /** Called when the player's connection is closed. We stop watching everything they were. */
+  public void onDisconnect() {
+    synchronized (stars) {
+      for (Long sectorKey : subscribedSectors.keySet()) {
+        InterestManager.i.unsubscribe(InterestManager.getSectorX(sectorKey),
+            InterestManager.getSectorY(sectorKey), subscriber);
+      }
+      subscribedSectors.clear();
+      sectorStarIds.clear();
+      transitStarSectors.clear();
+      stars.clear();
     }
   }
 
   /**
-   * This is called on a background thread when this {@link Player} is created. We'll send the
-   * client some updates they might be interested in.
+   * This is called on a background thread when this {@link Player} is created. We send the client
+   * all of its empire's stars.
    */
   private void onPostConnect() {
     long startTime = System.nanoTime();
-    ArrayList<WatchableObject<Star>> stars = StarManager.i.getStarsForEmpire(empire.get().id);
-    log.debug("Fetched %d stars for empire %d in %dms", stars.size(), empire.get().id,
-        (System.nanoTime() - startTime) / 1000000L);
+    long empireId = empire.get().id;
 
-    // TODO: send to player
+    // Walk through the empire's stars a page at a time, sending each page as we go, so that big
+    // empires don't need to have all of their stars in memory at once.
+    int numStars = 0;
+    long startStarId = 0;
+    while (true) {
+      List<Star> stars =
+          StarManager.i.getStarsForEmpire(empireId, startStarId, EMPIRE_STARS_PAGE_SIZE);
+      numStars += stars.size();
+      if (!stars.isEmpty()) {
+        connection.send(new Packet.Builder()
+            .star_updated(new StarUpdatedPacket.Builder()
+                .stars(stars)
+                .build())
+            .build());
+      }
+
+      if (stars.size() < EMPIRE_STARS_PAGE_SIZE) {
+        break;
+      }
+      startStarId = stars.get(stars.size() - 1).id + 1;
+    }
+    log.debug("Sent %d stars for empire %d in %dms", numStars, empireId,
+        (System.nanoTime() - startTime) / 1000000L);
   }
 
+  /**
+   * The player has moved, and wants to watch a different rectangle of sectors. Usually it's only
+   * moved a sector or so, so we only start watching (and send the stars of) the sectors that have
+   * come into the rectangle, and stop watching those that have left it. The client keeps the
+   * stars it already has in the sectors that are in both.
+   */
   private void onWatchSectorsPacket(WatchSectorsPacket pkt) {
-    // TODO: if we're already watching some of these sectors, we can just keep watching those,
-
-    // Remove all our current watched stars
+    long startTime = System.nanoTime();
+    List<Star> newStars = new ArrayList<>();
+    List<Long> unwatchedStarIds = new ArrayList<>();
+    int numSectorsEntered;
+    int numSectorsLeft = 0;
     synchronized (stars) {
-      for (WatchableObject<Star> star : stars.values()) {
-        star.removeWatcher(starWatcher);
+      // Start watching the sectors that we weren't already. We subscribe to each sector before we
+      // get it, so we can't miss an update. We also do this before we stop watching anything, so
+      // that stars we keep watching for a different reason aren't sent again.
+      List<SectorCoord> coords = new ArrayList<>();
+      for (long sectorY = pkt.top; sectorY <= pkt.bottom; sectorY ++) {
+        for (long sectorX = pkt.left; sectorX <= pkt.right; sectorX ++) {
+          long sectorKey = InterestManager.getSectorKey(sectorX, sectorY);
+          if (!sectorStarIds.containsKey(sectorKey)) {
+            sectorStarIds.put(sectorKey, NO_STAR_IDS);
+            subscribe(sectorKey);
+            coords.add(new SectorCoord.Builder().x(sectorX).y(sectorY).build());
+          }
+        }
+      }
+      numSectorsEntered = coords.size();
+      if (!coords.isEmpty()) {
+        List<Sector> sectors;
+        try {
+          sectors = SectorManager.i.getSectors(coords);
+        } catch (RuntimeException e) {
+          // Forget about these sectors, so that we'll try them again next time.
+          for (SectorCoord coord : coords) {
+            long sectorKey = InterestManager.getSectorKey(coord.x, coord.y);
+            sectorStarIds.remove(sectorKey);
+            unsubscribe(sectorKey);
+          }
+          throw e;
+        }
+        for (int i = 0; i < coords.size(); i++) {
+          List<Star> sectorStars = sectors.get(i).stars;
+          long[] starIds = new long[sectorStars.size()];
+          for (int j = 0; j < starIds.length; j++) {
+            starIds[j] = sectorStars.get(j).id;
+            if (watchStar(starIds[j])) {
+              newStars.add(sectorStars.get(j));
+            }
+          }
+          sectorStarIds.put(
+              InterestManager.getSectorKey(coords.get(i).x, coords.get(i).y), starIds);
+        }
       }
-    }
 
-    sectors.clear();
-    List<Star> stars = new ArrayList<>();
-    for (long sectorY = pkt.top; sectorY <= pkt.bottom; sectorY ++) {
-      for (long sectorX = pkt.left; sectorX <= pkt.right; sectorX ++) {
-        WatchableObject<Sector> sector =
-            SectorManager.i.getSector(new SectorCoord.Builder().x(sectorX).y(sectorY).build());
-        sectors.add(sector);
-        for (Star star : sector.get().stars) {
-          stars.add(star);
+      // Fleets that are moving over these sectors belong to the star they left, so we'll want to
+      // watch that star as well, even if it's somewhere else.
+      Set<Long> transitStarIds = new HashSet<>();
+      for (FleetMovementQueue.Movement movement
+          : FleetMovementQueue.i.getFleetsInTransit(pkt.left, pkt.top, pkt.right, pkt.bottom)) {
+        if (!transitStarSectors.containsKey(movement.starId)) {
+          WatchableObject<Star> star = StarManager.i.getStar(movement.starId);
+          if (star == null) {
+            continue;
+          }
+          long sectorKey = InterestManager.getSectorKey(star.get().sector_x, star.get().sector_y);
+          transitStarSectors.put(movement.starId, sectorKey);
+          subscribe(sectorKey);
+          if (watchStar(movement.starId)) {
+            newStars.add(star.get());
+          }
         }
+        transitStarIds.add(movement.starId);
       }
+      Iterator<Map.Entry<Long, Long>> transitIt = transitStarSectors.entrySet().iterator();
+      while (transitIt.hasNext()) {
+        Map.Entry<Long, Long> entry = transitIt.next();
+        if (!transitStarIds.contains(entry.getKey())) {
+          transitIt.remove();
+          unsubscribe(entry.getValue());
+          unwatchStar(entry.getKey(), unwatchedStarIds);
+        }
+      }
+
+      // Stop watching the sectors that are out of bounds now.
+      Iterator<Map.Entry<Long, long[]>> it = sectorStarIds.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Long, long[]> entry = it.next();
+        long sectorX = InterestManager.getSectorX(entry.getKey());
+        long sectorY = InterestManager.getSectorY(entry.getKey());
+        if (sectorX < pkt.left || sectorX > pkt.right
+            || sectorY < pkt.top || sectorY > pkt.bottom) {
+          it.remove();
+          unsubscribe(entry.getKey());
+          for (long starId : entry.getValue()) {
+            unwatchStar(starId, unwatchedStarIds);
+          }
+          numSectorsLeft++;
+        }
+      }
+    }
+
+    // The connection can forget what it's sent of the stars we're not watching any more.
+    connection.forgetStars(unwatchedStarIds);
+
+    if (!newStars.isEmpty()) {
+      connection.send(new Packet.Builder()
+          .star_updated(new StarUpdatedPacket.Builder()
+              .stars(newStars)
+              .build())
+          .build());
+    }
+    SectorWatchMetrics.i.record(
+        numSectorsEntered, numSectorsLeft, newStars.size(), System.nanoTime() - startTime);
+  }
+
+  /**
+   * Adds a reason to watch the given star. Returns true if we weren't already watching it, in
+   * which case it should be sent to the client. Must be called while holding the lock on
+   * {@link #stars}.
+   */
+  private boolean watchStar(long starId) {
+    Integer numReasons = stars.get(starId);
+    stars.put(starId, numReasons == null ? 1 : numReasons + 1);
+    return numReasons == null;
+  }
+
+  /**
+   * Removes a reason to watch the given star. If there's none left, we stop watching it, and add
+   * its ID to {@code unwatchedStarIds}. Must be called while holding the lock on {@link #stars}.
+   */
+  private void unwatchStar(long starId, List<Long> unwatchedStarIds) {
+    Integer numReasons = stars.get(starId);
+    if (numReasons == null) {
+      return;
+    }
+    if (numReasons == 1) {
+      stars.remove(starId);
+      unwatchedStarIds.add(starId);
+    } else {
+      stars.put(starId, numReasons - 1);
+    }
+  }
+
+  /**
+   * Adds a reason to be subscribed to the given sector, subscribing if we weren't already. Must be
+   * called while holding the lock on {@link #stars}.
+   */
+  private void subscribe(long sectorKey) {
+    Integer numReasons = subscribedSectors.get(sectorKey);
+    if (numReasons == null) {
+      InterestManager.i.subscribe(InterestManager.getSectorX(sectorKey),
+          InterestManager.getSectorY(sectorKey), subscriber);
     }
+    subscribedSectors.put(sectorKey, numReasons == null ? 1 : numReasons + 1);
+  }
 
-    connection.send(new Packet.Builder()
-        .star_updated(new StarUpdatedPacket.Builder()
-            .stars(stars)
-            .build())
-        .build());
+  /**
+   * Removes a reason to be subscribed to the given sector, unsubscribing if there's none left.
+   * Must be called while holding the lock on {@link #stars}.
+   */
+  private void unsubscribe(long sectorKey) {
+    Integer numReasons = subscribedSectors.get(sectorKey);
+    if (numReasons == null) {
+      return;
+    }
+    if (numReasons == 1) {
+      subscribedSectors.remove(sectorKey);
+      InterestManager.i.unsubscribe(InterestManager.getSectorX(sectorKey),
+          InterestManager.getSectorY(sectorKey), subscriber);
+    } else {
+      subscribedSectors.put(sectorKey, numReasons - 1);
+    }
+  }
 
+  /**
+   * The client wants the whole of some stars, because it couldn't apply a delta we sent it. We'll
+   * send the ones it's watching.
+   */
+  private void onRequestStarsPacket(RequestStarsPacket pkt) {
+    List<Long> starIds = new ArrayList<>();
     synchronized (this.stars) {
-      for (Star star : stars) {
-        WatchableObject<Star> watchableStar = StarManager.i.getStar(star.id);
-        watchableStar.addWatcher(starWatcher);
-        this.stars.put(star.id, watchableStar);
+      for (Long starId : pkt.star_ids) {
+        if (this.stars.containsKey(starId)) {
+          starIds.add(starId);
+        }
+      }
+    }
+
+    List<Star> stars = new ArrayList<>();
+    for (Long starId : starIds) {
+      WatchableObject<Star> star = StarManager.i.getStar(starId);
+      if (star != null) {
+        stars.add(star.get());
       }
     }
+    connection.resendStars(stars);
   }
 
   private void onModifyStar(ModifyStarPacket pkt) {
     WatchableObject<Star> star = StarManager.i.getStar(pkt.star_id);
-    StarManager.i.modifyStar(star, pkt.modification);
+    if (star == null) {
+      log.warning("Cannot modify star %d, star not found.", pkt.star_id);
+      return;
+    }
+
+    // The modifications are made on behalf of this player's empire, whatever empire the client
+    // says they're for.
+    ArrayList<StarModification> modifications = new ArrayList<>();
+    for (StarModification modification : pkt.modification) {
+      modifications.add(modification.newBuilder().empire_id(empire.get().id).build());
+    }
+    StarManager.i.modifyStar(star, modifications);
   }
 }
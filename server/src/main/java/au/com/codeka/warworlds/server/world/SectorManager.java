@@ -1,13 +1,22 @@
 package au.com.codeka.warworlds.server.world;
 
-import com.google.common.base.Preconditions;
-
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
+import au.com.codeka.warworlds.common.Log;
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.Planet;
 import au.com.codeka.warworlds.common.proto.Sector;
 import au.com.codeka.warworlds.common.proto.SectorCoord;
 import au.com.codeka.warworlds.common.proto.Star;
@@ -16,56 +25,333 @@ import au.com.codeka.warworlds.server.world.generator.SectorGenerator;
 
 /**
  * Manages the sectors we have loaded.
+ *
+ * <p>We keep each loaded sector's stars up to date as they're updated (see
+ * {@link #onStarUpdated}), by replacing the star in place rather than rebuilding the sector. The
+ * {@link Sector} itself is only built when somebody asks for it, and then re-used until one of its
+ * stars is updated again.
+ *
+ * <p>Sectors that nobody is subscribed to (see {@link InterestManager}) are unloaded once they've
+ * been idle for a while, so we only keep the sectors that players are actually looking at. Loading
+ * a sector doesn't load its stars into the {@link StarManager}'s cache, either.
  */
 public class SectorManager {
+  private static final Log log = new Log("SectorManager");
   public static final SectorManager i = new SectorManager();
   public static final int SECTOR_SIZE = 1024;
 
-  private final HashMap<SectorCoord, WatchableObject<Sector>> sectors = new HashMap<>();
+  /** How long a sector nobody is subscribed to must be idle before we unload it. */
+  private static final long IDLE_TTL_MS = 15 * Time.MINUTE;
+
+  /** How often we sweep for idle sectors. */
+  private static final long SWEEP_INTERVAL_MS = Time.MINUTE;
+
+  /**
+   * The sectors we have loaded (or are currently loading). Each coordinate maps to a future that
+   * completes once the sector has been loaded (or generated), so that requests for different
+   * sectors can proceed in parallel, while concurrent requests for the same sector all wait for
+   * the same load.
+   */
+  private final ConcurrentHashMap<SectorCoord, CompletableFuture<LoadedSector>> sectors =
+      new ConcurrentHashMap<>();
+
+  private final SectorSource source;
+
+  private final AtomicBoolean sweeping = new AtomicBoolean(false);
+  private volatile long lastSweepTime = System.currentTimeMillis();
+
+  private SectorManager() {
+    this(new DataStoreSectorSource());
+  }
+
+  /** Constructs a {@link SectorManager} that loads its sectors from the given source. */
+  SectorManager(SectorSource source) {
+    this.source = source;
+  }
 
   /** Gets the sector with the given {@link SectorCoord}, creating a new one if necessary. */
-  public WatchableObject<Sector> getSector(@Nonnull SectorCoord coord) {
-    synchronized (sectors) {
-      WatchableObject<Sector> sector = sectors.get(coord);
-      if (sector == null) {
-        Sector s = DataStore.i.sectors().getSector(coord.x, coord.y);
-        if (s == null) {
-          s = new SectorGenerator().generate(coord.x, coord.y);
+  public Sector getSector(@Nonnull SectorCoord coord) {
+    CompletableFuture<LoadedSector> future = sectors.get(coord);
+    if (future == null) {
+      CompletableFuture<LoadedSector> newFuture = new CompletableFuture<>();
+      future = sectors.putIfAbsent(coord, newFuture);
+      if (future == null) {
+        // We're the first to ask for this sector, so we're responsible for loading it.
+        future = newFuture;
+        try {
+          newFuture.complete(loadSector(coord));
+        } catch (RuntimeException e) {
+          // Remove it so that the next request gets a chance to try again.
+          sectors.remove(coord, newFuture);
+          newFuture.completeExceptionally(e);
+          throw e;
         }
-        sector = new WatchableObject<>(s);
-        sectors.put(coord, sector);
-
-        // Watch all the stars so that we can update the sector when the star is updated.
-        WatchableObject.Watcher<Star> watcher = new StarWatcher(coord);
-        for (Star sectorStar : sector.get().stars) {
-          WatchableObject<Star> star = StarManager.i.getStar(sectorStar.id);
-          star.addWatcher(watcher);
+      }
+    }
+
+    Sector sector;
+    try {
+      sector = future.get().getSector();
+    } catch (InterruptedException | ExecutionException e) {
+      log.error("Error waiting for sector (%d, %d) to load.", coord.x, coord.y, e);
+      throw new RuntimeException(e);
+    }
+    maybeSweep();
+    return sector;
+  }
+
+  /**
+   * Gets all the sectors with the given {@link SectorCoord}s, creating any that don't exist yet.
+   * Sectors that aren't loaded yet are fetched from the data store in a single batch.
+   *
+   * @return The sectors, in the same order as the given coordinates.
+   */
+  public List<Sector> getSectors(@Nonnull List<SectorCoord> coords) {
+    ArrayList<CompletableFuture<LoadedSector>> futures = new ArrayList<>();
+    Map<SectorCoord, CompletableFuture<LoadedSector>> toLoad = new HashMap<>();
+    for (SectorCoord coord : coords) {
+      CompletableFuture<LoadedSector> future = sectors.get(coord);
+      if (future == null) {
+        CompletableFuture<LoadedSector> newFuture = new CompletableFuture<>();
+        future = sectors.putIfAbsent(coord, newFuture);
+        if (future == null) {
+          future = newFuture;
+          toLoad.put(coord, newFuture);
         }
       }
-      return sector;
+      futures.add(future);
+    }
+
+    if (!toLoad.isEmpty()) {
+      Map<SectorCoord, Sector> loaded;
+      try {
+        loaded = source.getSectors(toLoad.keySet());
+      } catch (RuntimeException e) {
+        for (Map.Entry<SectorCoord, CompletableFuture<LoadedSector>> entry
+            : toLoad.entrySet()) {
+          sectors.remove(entry.getKey(), entry.getValue());
+          entry.getValue().completeExceptionally(e);
+        }
+        throw e;
+      }
+
+      for (Map.Entry<SectorCoord, CompletableFuture<LoadedSector>> entry
+          : toLoad.entrySet()) {
+        try {
+          Sector s = loaded.get(entry.getKey());
+          if (s == null) {
+            s = source.generate(entry.getKey().x, entry.getKey().y);
+          }
+          entry.getValue().complete(new LoadedSector(s, source));
+        } catch (RuntimeException e) {
+          sectors.remove(entry.getKey(), entry.getValue());
+          entry.getValue().completeExceptionally(e);
+        }
+      }
+    }
+
+    ArrayList<Sector> result = new ArrayList<>();
+    for (int i = 0; i < coords.size(); i++) {
+      try {
+        result.add(futures.get(i).get().getSector());
+      } catch (InterruptedException | ExecutionException e) {
+        log.error("Error waiting for sector (%d, %d) to load.", coords.get(i).x, coords.get(i).y,
+            e);
+        throw new RuntimeException(e);
+      }
+    }
+    maybeSweep();
+    return result;
+  }
+
+  /** Gets the number of sectors we currently have loaded (or are loading). */
+  public int getNumLoadedSectors() {
+    return sectors.size();
+  }
+
+  /**
+   * Called by the {@link StarManager} whenever a star is updated, so that we can update the
+   * star's sector (if it's loaded). Must be called while holding the star's lock, so that we see
+   * each star's updates in order.
+   */
+  public void onStarUpdated(Star star) {
+    CompletableFuture<LoadedSector> future =
+        sectors.get(new SectorCoord.Builder().x(star.sector_x).y(star.sector_y).build());
+    if (future == null) {
+      // If it gets loaded later, it'll get this version of the star from the StarManager.
+      return;
+    }
+    LoadedSector sector = future.getNow(null);
+    if (sector != null) {
+      sector.update(star);
+    } else {
+      // It's still loading. It might or might not get this version of the star, but the sector
+      // won't replace a star with an older version.
+      future.thenAccept(loadedSector -> loadedSector.update(star));
+    }
+  }
+
+  /** Sweeps for idle sectors if it's been a while since the last sweep. */
+  private void maybeSweep() {
+    long now = System.currentTimeMillis();
+    if (now - lastSweepTime < SWEEP_INTERVAL_MS) {
+      return;
+    }
+    if (!sweeping.compareAndSet(false, true)) {
+      // Somebody else is already sweeping.
+      return;
+    }
+    try {
+      sweep(now);
+    } finally {
+      lastSweepTime = now;
+      sweeping.set(false);
+    }
+  }
+
+  /**
+   * Unloads the sectors that nobody is subscribed to, and which haven't been accessed for longer
+   * than {@link #IDLE_TTL_MS}. If one of them is wanted again later, it's loaded again.
+   */
+  void sweep(long now) {
+    int numUnloaded = 0;
+    for (Map.Entry<SectorCoord, CompletableFuture<LoadedSector>> entry : sectors.entrySet()) {
+      LoadedSector sector = entry.getValue().getNow(null);
+      if (sector == null) {
+        // Still loading.
+        continue;
+      }
+      SectorCoord coord = entry.getKey();
+      if (now - sector.lastAccessTime <= IDLE_TTL_MS
+          || InterestManager.i.hasSubscribers(coord.x, coord.y)) {
+        continue;
+      }
+      if (sectors.remove(coord, entry.getValue())) {
+        numUnloaded++;
+      }
     }
+    log.debug("Swept sectors, unloaded %d, %d remain.", numUnloaded, sectors.size());
   }
 
-  private class StarWatcher implements WatchableObject.Watcher<Star> {
-    private final SectorCoord coord;
+  private LoadedSector loadSector(SectorCoord coord) {
+    Sector s = source.getSector(coord.x, coord.y);
+    if (s == null) {
+      s = source.generate(coord.x, coord.y);
+    }
+    return new LoadedSector(s, source);
+  }
+
+  /**
+   * Where we get our sectors, and their stars, from. That's the data store (see
+   * {@link DataStoreSectorSource}), except in tests.
+   */
+  interface SectorSource {
+    /** Gets the stored sector at the given coordinates, or null if it hasn't been generated. */
+    @Nullable
+    Sector getSector(long x, long y);
+
+    /** Gets the stored sectors at the given coordinates. Ungenerated ones aren't in the map. */
+    Map<SectorCoord, Sector> getSectors(Collection<SectorCoord> coords);
+
+    /** Generates (and stores) the sector at the given coordinates. */
+    Sector generate(long x, long y);
+
+    /**
+     * Gets the current version of the given star, which might be newer than the stored one. This
+     * mustn't load the star into the {@link StarManager}'s cache.
+     */
+    Star getCurrentStar(Star star);
+  }
 
-    public StarWatcher(SectorCoord coord) {
-      this.coord = Preconditions.checkNotNull(coord);
+  private static class DataStoreSectorSource implements SectorSource {
+    @Override
+    public Sector getSector(long x, long y) {
+      return DataStore.i.sectors().getSector(x, y);
     }
 
     @Override
-    public void onUpdate(WatchableObject<Star> object) {
-      WatchableObject<Sector> sector = sectors.get(coord);
-      Sector.Builder newSector = sector.get().newBuilder();
-      for (int i = 0; i < newSector.stars.size(); i++) {
-        if (newSector.stars.get(i).id.equals(object.get().id)) {
-          newSector.stars.remove(i);
-          break;
-        }
+    public Map<SectorCoord, Sector> getSectors(Collection<SectorCoord> coords) {
+      return DataStore.i.sectors().getSectors(coords);
+    }
+
+    @Override
+    public Sector generate(long x, long y) {
+      return new SectorGenerator().generate(x, y);
+    }
+
+    @Override
+    public Star getCurrentStar(Star star) {
+      return StarManager.i.getCurrentStar(star);
+    }
+  }
+
+  /** A sector that we've loaded, which we keep up to date as its stars are updated. */
+  private static class LoadedSector {
+    /** The sector, without any stars. */
+    private final Sector emptySector;
+
+    /** The position in {@link #stars} of each star, by ID. Stars never come or go. */
+    private final Map<Long, Integer> positions = new HashMap<>();
+
+    /** The current version of each of the stars in the sector. */
+    private final Star[] stars;
+
+    /** The number of colonies in the sector. */
+    private int numColonies;
+
+    /** The sector we built last time we were asked, or null if a star's been updated since. */
+    private Sector sector;
+
+    /** The last time somebody asked for this sector. */
+    volatile long lastAccessTime = System.currentTimeMillis();
+
+    LoadedSector(Sector s, SectorSource source) {
+      emptySector = s.newBuilder().stars(new ArrayList<>()).build();
+      stars = new Star[s.stars.size()];
+      for (int i = 0; i < stars.length; i++) {
+        // If the star is already loaded, it might be newer than the version that was stored.
+        stars[i] = source.getCurrentStar(s.stars.get(i));
+        positions.put(stars[i].id, i);
+        numColonies += countColonies(stars[i]);
+      }
+    }
+
+    synchronized Sector getSector() {
+      lastAccessTime = System.currentTimeMillis();
+      if (sector == null) {
+        sector = emptySector.newBuilder()
+            .stars(Arrays.asList(stars))
+            .num_colonies(numColonies)
+            .build();
+      }
+      return sector;
+    }
+
+    synchronized void update(Star star) {
+      Integer position = positions.get(star.id);
+      if (position == null) {
+        log.warning("Star %d isn't in sector (%d, %d).",
+            star.id, emptySector.x, emptySector.y);
+        return;
       }
-      newSector.stars.add(object.get());
 
-      sector.set(newSector.build());
+      Star current = stars[position];
+      if (current.version != null && star.version != null && star.version < current.version) {
+        return;
+      }
+      numColonies += countColonies(star) - countColonies(current);
+      stars[position] = star;
+      sector = null;
+    }
+
+    private static int countColonies(Star star) {
+      int n = 0;
+      for (Planet planet : star.planets) {
+        if (planet.colony != null) {
+          n++;
+        }
+      }
+      return n;
     }
   }
 }
@@ -0,0 +1,92 @@
+package au.com.codeka.warworlds.server.world;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import javax.annotation.Nullable;
+
+import au.com.codeka.warworlds.server.store.StarQueueSecondaryStore.QueueEntry;
+
+/**
+ * An in-memory schedule of when each star next needs to be simulated, used by
+ * {@link StarSimulatorQueue}. This mirrors the stars_queue index in the data store (which is still
+ * the durable copy), but lets us find the next star to simulate, and reschedule a star, in
+ * O(log n) without touching the disk.
+ */
+public class SimulationSchedule {
+  /** The entries, ordered by time (and then star ID, to keep them unique). */
+  private final TreeSet<QueueEntry> entries = new TreeSet<>((lhs, rhs) -> {
+    int cmp = Long.compare(lhs.nextSimulation, rhs.nextSimulation);
+    return cmp != 0 ? cmp : Long.compare(lhs.starId, rhs.starId);
+  });
+
+  /** The entry for each star, so we can find it again to reschedule it. */
+  private final HashMap<Long, QueueEntry> entriesByStar = new HashMap<>();
+
+  /**
+   * Schedules the given star to be simulated at the given time, replacing whatever time it was
+   * scheduled for before.
+   *
+   * @param starId The ID of the star to schedule.
+   * @param nextSimulation The time to simulate the star, or null if it doesn't need simulating.
+   * @return true if the star is now the first one in the schedule, meaning whoever is waiting on
+   *     the schedule needs to wake up earlier than they'd planned.
+   */
+  public synchronized boolean schedule(long starId, @Nullable Long nextSimulation) {
+    QueueEntry existing = entriesByStar.remove(starId);
+    if (existing != null) {
+      entries.remove(existing);
+    }
+    if (nextSimulation == null) {
+      return false;
+    }
+
+    QueueEntry entry = new QueueEntry(starId, nextSimulation);
+    entriesByStar.put(starId, entry);
+    entries.add(entry);
+    return entries.first() == entry;
+  }
+
+  /**
+   * Schedules the given star to be simulated at the given time, but only if it's not already
+   * scheduled (in which case the existing time is assumed to be more up-to-date).
+   */
+  public synchronized void scheduleIfAbsent(long starId, long nextSimulation) {
+    if (!entriesByStar.containsKey(starId)) {
+      schedule(starId, nextSimulation);
+    }
+  }
+
+  /**
+   * Removes and returns the entries that are due before the given time, in order.
+   *
+   * @param before Only entries due before this time are returned.
+   * @param limit The maximum number of entries to return.
+   */
+  public synchronized List<QueueEntry> pollDue(long before, int limit) {
+    ArrayList<QueueEntry> due = new ArrayList<>();
+    while (!entries.isEmpty() && due.size() < limit) {
+      QueueEntry entry = entries.first();
+      if (entry.nextSimulation >= before) {
+        break;
+      }
+      entries.pollFirst();
+      entriesByStar.remove(entry.starId);
+      due.add(entry);
+    }
+    return due;
+  }
+
+  /** Gets the time of the first entry in the schedule, or null if the schedule is empty. */
+  @Nullable
+  public synchronized Long getNextSimulationTime() {
+    return entries.isEmpty() ? null : entries.first().nextSimulation;
+  }
+
+  /** Gets the number of stars in the schedule. */
+  public synchronized int size() {
+    return entries.size();
+  }
+}
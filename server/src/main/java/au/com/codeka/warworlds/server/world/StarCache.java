@@ -0,0 +1,354 @@
+package au.com.codeka.warworlds.server.world;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import au.com.codeka.warworlds.common.Log;
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.Star;
+
+/**
+ * A bounded cache of {@link WatchableObject}s for {@link Star}s, used by {@link StarManager}.
+ *
+ * <p>Stars that nobody is watching and which haven't been accessed for a while are evicted. Stars
+ * that are being watched (see {@link PinnedChecker}) are pinned in the cache. Concurrent loads of
+ * the same star are collapsed into a single load.
+ *
+ * <p>Anybody that's going to modify a star must {@link #acquire} it first, and {@link #release}
+ * it when they're done. A star is never evicted while it's acquired, so there's only ever one
+ * {@link WatchableObject} (and hence one lock) for a star that's being modified. Otherwise a star
+ * could be evicted and loaded again half-way through an update, and whoever updates the old
+ * object would be updating a copy that nobody else can see.
+ */
+public class StarCache {
+  private static final Log log = new Log("StarCache");
+
+  /** How often we'll sweep the cache for expired entries, even if it's not full. */
+  private static final long SWEEP_INTERVAL_MS = Time.MINUTE;
+
+  /** When we're over-size, don't sweep any more often than this. */
+  private static final long MIN_SWEEP_INTERVAL_MS = Time.SECOND;
+
+  /** Entries accessed more recently than this are never evicted, even if we're over size. */
+  private static final long MIN_IDLE_MS = 10 * Time.SECOND;
+
+  /** The interface for loading stars that aren't in the cache. */
+  public interface Loader {
+    @Nullable
+    WatchableObject<Star> load(long id);
+  }
+
+  /** The interface for determining whether a star is pinned (i.e. can't be evicted). */
+  public interface PinnedChecker {
+    boolean isPinned(WatchableObject<Star> star);
+  }
+
+  private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+  private final int maxSize;
+  private final long idleTtlMs;
+  private final Loader loader;
+  private final PinnedChecker pinnedChecker;
+
+  private final AtomicBoolean sweeping = new AtomicBoolean(false);
+  private volatile long lastSweepTime = System.currentTimeMillis();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong loadNanos = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Constructs a new {@link StarCache}.
+   *
+   * @param maxSize The number of stars we try to keep the cache under. We may go over if enough
+   *     stars are pinned.
+   * @param idleTtlMs The number of milliseconds a star must be idle (and un-pinned) before it's
+   *     evicted.
+   * @param loader The {@link Loader} used to load stars that aren't in the cache.
+   * @param pinnedChecker The {@link PinnedChecker} that determines which stars must stay cached.
+   */
+  public StarCache(int maxSize, long idleTtlMs, Loader loader, PinnedChecker pinnedChecker) {
+    this.maxSize = maxSize;
+    this.idleTtlMs = idleTtlMs;
+    this.loader = loader;
+    this.pinnedChecker = pinnedChecker;
+  }
+
+  /**
+   * Gets the star with the given ID, loading it if it's not already in the cache.
+   *
+   * @return The {@link WatchableObject} for the star, or null if there's no star with that ID.
+   */
+  @Nullable
+  public WatchableObject<Star> get(long id) {
+    return get(id, loader);
+  }
+
+  /**
+   * Gets the star with the given ID, using the given {@link Loader} to load it if it's not
+   * already in the cache.
+   */
+  @Nullable
+  public WatchableObject<Star> get(long id, Loader loader) {
+    Entry entry = findEntry(id, loader);
+    WatchableObject<Star> star = waitFor(entry);
+    maybeSweep();
+    return star;
+  }
+
+  /**
+   * Gets the star with the given ID if it's already in the cache, without loading it (or counting
+   * it as an access).
+   *
+   * @return The {@link WatchableObject} for the star, or null if it's not cached (or is still
+   *     loading).
+   */
+  @Nullable
+  public WatchableObject<Star> getIfCached(long id) {
+    Entry entry = entries.get(id);
+    return entry == null ? null : entry.future.getNow(null);
+  }
+
+  /**
+   * Gets the star with the given ID, loading it if it's not already in the cache, and makes sure
+   * it won't be evicted until you call {@link #release}. Every call to this that returns a star
+   * must be matched with a call to {@link #release}, in a finally block.
+   *
+   * @return The {@link WatchableObject} for the star, or null if there's no star with that ID (in
+   *     which case you mustn't release it).
+   */
+  @Nullable
+  public WatchableObject<Star> acquire(long id) {
+    while (true) {
+      Entry entry = findEntry(id, loader);
+      if (!entry.lease()) {
+        // It was evicted after we found it, find (or load) it again.
+        continue;
+      }
+
+      WatchableObject<Star> star = waitFor(entry);
+      if (star == null) {
+        entry.leases.decrementAndGet();
+      }
+      maybeSweep();
+      return star;
+    }
+  }
+
+  /** Releases a star you got from {@link #acquire}, so that it can be evicted again. */
+  public void release(WatchableObject<Star> star) {
+    Entry entry = entries.get(star.get().id);
+    if (entry == null || entry.future.getNow(null) != star) {
+      log.warning("Star #%d released, but it wasn't acquired.", star.get().id);
+      return;
+    }
+    entry.lastAccessTime = System.currentTimeMillis();
+    entry.leases.decrementAndGet();
+  }
+
+  /** Finds the entry for the given star, adding it (and loading the star) if it's not there. */
+  private Entry findEntry(long id, Loader loader) {
+    Entry entry = entries.get(id);
+    if (entry != null) {
+      hits.incrementAndGet();
+      return entry;
+    }
+
+    Entry newEntry = new Entry(id);
+    entry = entries.putIfAbsent(id, newEntry);
+    if (entry == null) {
+      // We're the one that gets to load it.
+      misses.incrementAndGet();
+      load(id, newEntry, loader);
+      return newEntry;
+    }
+    hits.incrementAndGet();
+    return entry;
+  }
+
+  /** Waits for the given entry's star to finish loading. */
+  @Nullable
+  private WatchableObject<Star> waitFor(Entry entry) {
+    WatchableObject<Star> star;
+    try {
+      star = entry.future.get();
+    } catch (InterruptedException | ExecutionException e) {
+      log.error("Error loading star %d", entry.id, e);
+      return null;
+    }
+    entry.lastAccessTime = System.currentTimeMillis();
+    return star;
+  }
+
+  /** Gets the number of stars currently in the cache. */
+  public int size() {
+    return entries.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  /** Gets the average time, in milliseconds, it takes to load a star that isn't cached. */
+  public double getAverageLoadTimeMs() {
+    long m = misses.get();
+    return m == 0 ? 0.0 : (loadNanos.get() / (double) m) / 1000000.0;
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  private void load(long id, Entry entry, Loader loader) {
+    long startTime = System.nanoTime();
+    try {
+      WatchableObject<Star> star = loader.load(id);
+      if (star == null) {
+        // Don't cache the fact that it doesn't exist, it might get created later.
+        entries.remove(id, entry);
+      }
+      entry.future.complete(star);
+    } catch (RuntimeException e) {
+      entries.remove(id, entry);
+      entry.future.completeExceptionally(e);
+    } finally {
+      loadNanos.addAndGet(System.nanoTime() - startTime);
+    }
+  }
+
+  /** Sweep the cache if it's over-size, or if it's been a while since the last sweep. */
+  private void maybeSweep() {
+    long now = System.currentTimeMillis();
+    long timeSinceSweep = now - lastSweepTime;
+    if (timeSinceSweep < MIN_SWEEP_INTERVAL_MS
+        || (entries.size() <= maxSize && timeSinceSweep < SWEEP_INTERVAL_MS)) {
+      return;
+    }
+    if (!sweeping.compareAndSet(false, true)) {
+      // Somebody else is already sweeping.
+      return;
+    }
+    try {
+      sweep(now);
+    } finally {
+      lastSweepTime = now;
+      sweeping.set(false);
+    }
+  }
+
+  /**
+   * Evicts the stars that have been idle for too long, and the least-recently used ones if we're
+   * over-size. Stars that are pinned or acquired are never evicted.
+   */
+  void sweep(long now) {
+    long startTime = System.nanoTime();
+    int numEvicted = 0;
+
+    // First, evict everything that's not pinned and has been idle for longer than our TTL. The
+    // rest of the un-pinned entries are candidates for eviction if we're still over-size.
+    ArrayList<Entry> candidates = new ArrayList<>();
+    for (Entry entry : entries.values()) {
+      if (!entry.future.isDone()) {
+        continue;
+      }
+      WatchableObject<Star> star = entry.future.getNow(null);
+      if (star == null || entry.leases.get() != 0 || pinnedChecker.isPinned(star)) {
+        continue;
+      }
+
+      entry.sweepAccessTime = entry.lastAccessTime;
+      long idleTime = now - entry.sweepAccessTime;
+      if (idleTime > idleTtlMs) {
+        if (evict(entry)) {
+          numEvicted++;
+        }
+      } else if (idleTime > MIN_IDLE_MS) {
+        candidates.add(entry);
+      }
+    }
+
+    if (entries.size() > maxSize) {
+      // Still too big, evict the least-recently used of the remaining candidates.
+      Collections.sort(candidates,
+          (lhs, rhs) -> Long.compare(lhs.sweepAccessTime, rhs.sweepAccessTime));
+      for (Entry entry : candidates) {
+        if (entries.size() <= maxSize) {
+          break;
+        }
+        if (evict(entry)) {
+          numEvicted++;
+        }
+      }
+
+      if (entries.size() > maxSize) {
+        log.warning("Star cache is over-size (%d > %d), too many stars are pinned.",
+            entries.size(), maxSize);
+      }
+    }
+
+    evictions.addAndGet(numEvicted);
+    log.debug("Swept star cache in %dms, evicted %d stars, %d remain.",
+        (System.nanoTime() - startTime) / 1000000L, numEvicted, entries.size());
+  }
+
+  /**
+   * Evicts the given entry, unless it's been acquired since we looked at it. Once an entry has been
+   * evicted it can't be acquired any more, whoever tries will load the star again instead.
+   */
+  private boolean evict(Entry entry) {
+    if (!entry.leases.compareAndSet(0, Entry.EVICTED)) {
+      return false;
+    }
+    return entries.remove(entry.id, entry);
+  }
+
+  private static class Entry {
+    /** The value of {@link #leases} once an entry has been evicted. */
+    static final int EVICTED = -1;
+
+    final long id;
+    final CompletableFuture<WatchableObject<Star>> future = new CompletableFuture<>();
+    volatile long lastAccessTime = System.currentTimeMillis();
+
+    /** The number of times this entry has been acquired and not released, or EVICTED. */
+    final AtomicInteger leases = new AtomicInteger();
+
+    /** A snapshot of lastAccessTime, taken (and only used) by the thread doing the sweep. */
+    long sweepAccessTime;
+
+    Entry(long id) {
+      this.id = id;
+    }
+
+    /** Acquires a lease on this entry, unless it's been evicted. */
+    boolean lease() {
+      while (true) {
+        int n = leases.get();
+        if (n == EVICTED) {
+          return false;
+        }
+        if (leases.compareAndSet(n, n + 1)) {
+          return true;
+        }
+      }
+    }
+  }
+}
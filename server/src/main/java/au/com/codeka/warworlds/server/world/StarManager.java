@@ -4,20 +4,26 @@ import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
+
+import javax.annotation.Nullable;
 
 import au.com.codeka.warworlds.common.Log;
+import au.com.codeka.warworlds.common.Time;
 import au.com.codeka.warworlds.common.proto.BuildRequest;
 import au.com.codeka.warworlds.common.proto.Design;
+import au.com.codeka.warworlds.common.proto.Fleet;
 import au.com.codeka.warworlds.common.proto.Planet;
 import au.com.codeka.warworlds.common.proto.Star;
 import au.com.codeka.warworlds.common.proto.StarModification;
 import au.com.codeka.warworlds.common.sim.DesignHelper;
+import au.com.codeka.warworlds.common.sim.Simulation;
 import au.com.codeka.warworlds.common.sim.StarModifier;
 import au.com.codeka.warworlds.server.store.DataStore;
 import au.com.codeka.warworlds.server.store.ProtobufStore;
 import au.com.codeka.warworlds.server.store.StarEmpireSecondaryStore;
 import au.com.codeka.warworlds.server.store.StarQueueSecondaryStore;
+import au.com.codeka.warworlds.server.store.WriteBehindQueue;
 
 /**
  * Manages stars and keeps the up-to-date in the data store.
@@ -26,48 +32,106 @@ public class StarManager {
   private static final Log log = new Log("StarManager");
   public static final StarManager i = new StarManager();
 
+  /**
+   * How long after a moving fleet's eta we'll simulate the star it's moving from, in case the
+   * {@link FleetMovementQueue} hasn't (i.e. because the server was restarted).
+   */
+  private static final long ARRIVAL_CHECK_DELAY_MS = Time.MINUTE;
+
   private final ProtobufStore<Star> store;
+  private final WriteBehindQueue<Star> writer;
   private final StarQueueSecondaryStore queue;
   private final StarEmpireSecondaryStore empireSecondaryStore;
-  private final HashMap<Long, WatchableObject<Star>> stars = new HashMap<>();
+  private final StarCache stars;
   private final StarModifier starModifier;
 
   private StarManager() {
     store = DataStore.i.stars();
+    writer = DataStore.i.starsWriter();
     queue = DataStore.i.starsQueue();
     empireSecondaryStore = DataStore.i.starEmpireSecondaryStore();
     starModifier = new StarModifier(store::nextIdentifier);
+    stars = new StarCache(
+        50000 /* maxSize */,
+        15 * Time.MINUTE /* idleTtlMs */,
+        this::loadStar,
+        // Keep the stars that players are watching, so that we don't have to load them again
+        // the next time they're updated.
+        star -> InterestManager.i.hasSubscribers(star.get().sector_x, star.get().sector_y));
   }
 
+  @Nullable
   public WatchableObject<Star> getStar(long id) {
-    WatchableObject<Star> watchableStar;
-    synchronized (stars) {
-      watchableStar = stars.get(id);
-      if (watchableStar == null) {
-        Star star = store.get(id);
-        if (star == null) {
-          return null;
-        }
+    return stars.get(id);
+  }
 
-        watchableStar = new WatchableObject<>(star);
-        watchableStar.addWatcher(starWatcher);
-        stars.put(star.id, watchableStar);
-      }
+  /**
+   * Gets the {@link WatchableObject} for the given {@link Star}. If the star isn't loaded yet, we
+   * use the given value rather than fetching it from the data store again. This is useful when
+   * you've just fetched a bunch of stars in bulk (e.g. all the stars in a sector). If a newer
+   * version of the star is still waiting to be written, we use that instead, so that a stale copy
+   * from the data store never ends up in the cache.
+   */
+  public WatchableObject<Star> getStar(Star star) {
+    return stars.get(star.id, id -> {
+      Star pending = writer.getPending(id);
+      return watchStar(pending == null ? star : pending);
+    });
+  }
+
+  /**
+   * Gets the current version of the given {@link Star}: the loaded one if it's in the cache, or
+   * the one waiting to be written if there is one, otherwise the given star itself. Unlike
+   * {@link #getStar(Star)}, this doesn't add the star to the cache, so it's what you want for
+   * stars you're just going to look at (e.g. the stars of a sector that's being scrolled over).
+   */
+  public Star getCurrentStar(Star star) {
+    WatchableObject<Star> cached = stars.getIfCached(star.id);
+    if (cached != null) {
+      return cached.get();
     }
+    Star pending = writer.getPending(star.id);
+    return pending == null ? star : pending;
+  }
 
-    return watchableStar;
+  /**
+   * Gets the star with the given ID, and makes sure it stays in the cache until you call
+   * {@link #releaseStar}. You must acquire a star like this if you're going to modify it (see
+   * {@link #completeActions}), and release it in a finally block once you're done.
+   *
+   * @return The {@link WatchableObject} for the star, or null if there's no star with that ID (in
+   *     which case there's nothing to release).
+   */
+  @Nullable
+  public WatchableObject<Star> acquireStar(long id) {
+    return stars.acquire(id);
   }
 
-  public ArrayList<WatchableObject<Star>> getStarsForEmpire(long empireId) {
-    ArrayList<WatchableObject<Star>> stars = new ArrayList<>();
-    try (StarEmpireSecondaryStore.StarIterable iter =
-             empireSecondaryStore.getStarsForEmpire(null, empireId)) {
-      if (iter == null) {
-        return stars;
-      }
+  /** Releases a star that you got from {@link #acquireStar}. */
+  public void releaseStar(WatchableObject<Star> star) {
+    stars.release(star);
+  }
+
+  /** Gets the {@link StarCache} that we keep our loaded stars in. */
+  public StarCache getCache() {
+    return stars;
+  }
 
-      for (Star star : iter) {
-        stars.add(getStar(star.id));
+  /**
+   * Gets a page of (up to limit) stars belonging to the given empire, starting from the star with
+   * the given ID. See {@link StarEmpireSecondaryStore#getStarsForEmpire} for how to page through
+   * all of an empire's stars.
+   *
+   * <p>The stars aren't added to the cache (call {@link #getStar(Star)} for the ones you want to
+   * watch). The index only has the stars that have been written to the data store, so we use the
+   * newer version of any that are still waiting to be written.
+   */
+  public List<Star> getStarsForEmpire(long empireId, long startStarId, int limit) {
+    List<Star> stars = empireSecondaryStore.getStarsForEmpire(null, empireId, startStarId, limit);
+    for (int i = 0; i < stars.size(); i++) {
+      Star pending = writer.getPending(stars.get(i).id);
+      if (pending != null) {
+        stars.set(i, pending);
       }
     }
     return stars;
@@ -78,18 +142,74 @@ public class StarManager {
   }
 
   public void modifyStar(WatchableObject<Star> star, Collection<StarModification> modifications) {
-    synchronized (star.lock) {
-      Star.Builder starBuilder = star.get().newBuilder();
-      for (StarModification modification : modifications) {
-        starModifier.modifyStar(starBuilder, modification);
+    // Fetch any other stars the modifications refer to before we lock this one.
+    ArrayList<Star> auxStars = null;
+    for (StarModification modification : modifications) {
+      if (modification.type == StarModification.MODIFICATION_TYPE.MOVE_FLEET
+          && modification.star_id != null) {
+        WatchableObject<Star> auxStar = getStar(modification.star_id);
+        if (auxStar != null) {
+          if (auxStars == null) {
+            auxStars = new ArrayList<>();
+          }
+          auxStars.add(auxStar.get());
+        }
       }
-      completeActions(star, starBuilder);
+    }
+
+    // The star we were given might have been evicted from the cache since it was fetched, so we
+    // modify the one that's in the cache now (and keep it there while we do).
+    star = acquireStar(star.get().id);
+    if (star == null) {
+      return;
+    }
+    try {
+      synchronized (star.lock) {
+        Star.Builder starBuilder = star.get().newBuilder();
+        for (StarModification modification : modifications) {
+          starModifier.modifyStar(starBuilder, Lists.newArrayList(modification), auxStars);
+        }
+        completeActions(star, starBuilder);
+      }
+    } finally {
+      releaseStar(star);
+    }
+  }
+
+  /**
+   * Called by the {@link FleetMovementQueue} when a fleet arrives at the given star. The star is
+   * brought up-to-date before the fleet is added, and then simulated again with the fleet there
+   * (so that any combat it starts is predicted).
+   */
+  public void arriveFleet(WatchableObject<Star> star, Fleet fleet) {
+    star = acquireStar(star.get().id);
+    if (star == null) {
+      return;
+    }
+    try {
+      synchronized (star.lock) {
+        Star.Builder starBuilder = star.get().newBuilder();
+        new Simulation(false).simulate(starBuilder);
+
+        starBuilder.fleets.add(fleet.newBuilder()
+            .state(Fleet.FLEET_STATE.IDLE)
+            .state_start_time(System.currentTimeMillis())
+            .destination_star_id(null)
+            .eta(null)
+            .build());
+        new Simulation().simulate(starBuilder);
+        completeActions(star, starBuilder);
+      }
+    } finally {
+      releaseStar(star);
     }
   }
 
   /**
    * Call this after simulating a star to complete the actions required (e.g. if a building has
-   * finished or a fleet has arrived) and also save the star to the data store.
+   * finished or a fleet has arrived) and also save the star to the data store. This also bumps
+   * the star's version. The caller must have {@link #acquireStar acquired} the star, and hold its
+   * lock.
    *
    * @param star The {@link WatchableObject<Star>} of the star that we'll update.
    * @param starBuilder A simulated star that we need to finish up.
@@ -120,6 +240,7 @@ public class StarManager {
           } else {
             starModifier.modifyStar(starBuilder, new StarModification.Builder()
                 .type(StarModification.MODIFICATION_TYPE.CREATE_FLEET)
+                .empire_id(planet.colony.empire_id)
                 .design_type(br.design_type)
                 .count(br.count)
                 .build());
@@ -140,18 +261,72 @@ public class StarManager {
       starBuilder.planets.set(i, planetBuilder.build());
     }
 
+    // Any fleets that were destroyed in combat can be removed, and if any are going to be
+    // destroyed in the future, we'll need to simulate the star again then. A fleet can't be removed
+    // until the star has been simulated past the time it's destroyed, which is the next step at the
+    // earliest (even if the time it's destroyed has already passed, otherwise we'd keep simulating
+    // the star over and over until then). Moving fleets are taken care of by the FleetMovementQueue
+    // when they arrive, but we schedule the star a little after that as well, in case the server
+    // is restarted before then.
+    for (int i = starBuilder.fleets.size() - 1; i >= 0; i--) {
+      Fleet fleet = starBuilder.fleets.get(i);
+      if (fleet.state == Fleet.FLEET_STATE.MOVING && fleet.eta != null) {
+        long arrivalCheckTime = fleet.eta + ARRIVAL_CHECK_DELAY_MS;
+        if (nextSimulateTime == null || nextSimulateTime > arrivalCheckTime) {
+          nextSimulateTime = arrivalCheckTime;
+        }
+      }
+      if (fleet.time_destroyed == null) {
+        continue;
+      }
+      if (starBuilder.last_simulation != null
+          && fleet.time_destroyed <= starBuilder.last_simulation) {
+        starBuilder.fleets.remove(i);
+        continue;
+      }
+      long removeTime = fleet.time_destroyed;
+      if (starBuilder.last_simulation != null) {
+        removeTime = Math.max(removeTime, starBuilder.last_simulation + Simulation.STEP_TIME);
+      }
+      if (nextSimulateTime == null || nextSimulateTime > removeTime) {
+        nextSimulateTime = removeTime;
+      }
+    }
+
     starBuilder.next_simulation(nextSimulateTime);
+    starBuilder.version(starBuilder.version == null ? 1 : starBuilder.version + 1);
     star.set(starBuilder.build());
 
-    // TODO: only ping if the next simulate time is in the next 10 minutes.
-    StarSimulatorQueue.i.ping();
+    StarSimulatorQueue.i.schedule(starBuilder.id, nextSimulateTime);
+    FleetMovementQueue.i.track(star.get());
+  }
+
+  @Nullable
+  private WatchableObject<Star> loadStar(long id) {
+    Star star = writer.get(id);
+    if (star == null) {
+      return null;
+    }
+    return watchStar(star);
   }
 
+  private WatchableObject<Star> watchStar(Star star) {
+    WatchableObject<Star> watchableStar = new WatchableObject<>(star);
+    watchableStar.addWatcher(starWatcher);
+    return watchableStar;
+  }
+
+  /**
+   * Saves stars when they're updated, and tells everybody who's interested. This is called while
+   * the star is locked (see {@link #completeActions}).
+   */
   private final WatchableObject.Watcher<Star> starWatcher = new WatchableObject.Watcher<Star>() {
     @Override
     public void onUpdate(WatchableObject<Star> star) {
-      log.debug("Saving star %d %s", star.get().id, star.get().name);
-      store.put(star.get().id, star.get());
+      log.debug("Queueing save of star %d %s", star.get().id, star.get().name);
+      writer.put(star.get().id, star.get());
+      SectorManager.i.onStarUpdated(star.get());
+      InterestManager.i.publish(star.get());
     }
   };
 }
@@ -1,101 +1,485 @@
 package au.com.codeka.warworlds.server.world;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
 import au.com.codeka.warworlds.common.Log;
-import au.com.codeka.warworlds.common.Time;
 import au.com.codeka.warworlds.common.proto.Star;
 import au.com.codeka.warworlds.common.sim.Simulation;
+import au.com.codeka.warworlds.common.sim.SimulationProfile;
+import au.com.codeka.warworlds.server.metrics.SimulationMetrics;
 import au.com.codeka.warworlds.server.store.DataStore;
 import au.com.codeka.warworlds.server.store.StarQueueSecondaryStore;
 
 /**
  * This class manages the star simulation queue, and schedules stars to be simulated at the
  * appropriate time.
+ *
+ * <p>We keep an in-memory {@link SimulationSchedule} of when each star is next due, which is built
+ * from the stars_queue index on startup and kept up-to-date by {@link #schedule} (called whenever a
+ * star's next_simulation time changes). The index remains the durable copy.
+ *
+ * <p>A single scheduler thread takes all of the stars that are due from the schedule (in batches),
+ * and hands them off to a pool of worker threads. Stars are partitioned between the workers by
+ * their ID, and we keep track of the stars that are in-flight, so a star is never simulated by two
+ * threads at once. Each worker has a bounded queue: if a worker falls behind, the scheduler stops
+ * giving it stars. The stars it couldn't take are handed back to the schedule as soon as the
+ * worker makes room for them, and a star that's due while it's still in-flight is handed back as
+ * soon as it finishes, so the scheduler never has to poll.
+ *
+ * <p>The number of workers defaults to the number of processors, and can be changed with the
+ * {@code warworlds.simulator.workers} system property. The empires of contested stars are
+ * simulated in parallel on a separate pool of the same size (see
+ * {@link Simulation#setEmpireExecutor}).
  */
 public class StarSimulatorQueue {
-  public static final StarSimulatorQueue i = new StarSimulatorQueue();
   private static final Log log = new Log("StarSimulatorQueue");
+  public static final StarSimulatorQueue i = new StarSimulatorQueue();
+
+  /** The maximum number of due stars we'll take from the schedule in one go. */
+  private static final int BATCH_SIZE = 500;
+
+  /** The number of overdue stars we load and simulate at once in {@link #catchUp}. */
+  private static final int CATCH_UP_BATCH_SIZE = 1000;
+
+  /** The maximum number of stars waiting for each worker. */
+  private static final int WORKER_QUEUE_SIZE = 100;
 
   private final Thread thread;
   private final StarQueueSecondaryStore queue;
-  private boolean running;
+  private final SimulationSchedule schedule = new SimulationSchedule();
+  private final Worker[] workers;
+
+  /** The pool we simulate the empires of contested stars on, shared by all the workers. */
+  private final ForkJoinPool empirePool;
+
+  private volatile boolean running;
   private final Object pinger = new Object();
 
+  /** The IDs of stars that have been handed to a worker, but not finished simulating yet. */
+  private final HashSet<Long> inFlight = new HashSet<>();
+
+  /**
+   * Stars that came due again while they were in-flight, which we'll put back in the schedule once
+   * they've finished. Guarded by {@link #inFlight}.
+   */
+  private final HashMap<Long, StarQueueSecondaryStore.QueueEntry> dueWhileInFlight =
+      new HashMap<>();
+
+  private final AtomicLong numSimulated = new AtomicLong();
+  private final AtomicLong numSkipped = new AtomicLong();
+  private final AtomicLong numDeferred = new AtomicLong();
+  private final AtomicLong totalSimulateNanos = new AtomicLong();
+  private final AtomicLong totalLagMs = new AtomicLong();
+  private final AtomicLong maxLagMs = new AtomicLong();
+  private volatile long currentLagMs;
+
   private StarSimulatorQueue() {
     queue = DataStore.i.starsQueue();
     thread = new Thread(this::run, "StarSimulateQueue");
+
+    int numWorkers = Integer.getInteger(
+        "warworlds.simulator.workers", Runtime.getRuntime().availableProcessors());
+    workers = new Worker[Math.max(1, numWorkers)];
+    for (int n = 0; n < workers.length; n++) {
+      workers[n] = new Worker(n);
+    }
+    empirePool = new ForkJoinPool(workers.length);
   }
 
   public void start() {
-    log.info("Starting star simulation queue.");
+    log.info("Starting star simulation queue with %d workers.", workers.length);
+    long startTime = System.nanoTime();
+    for (StarQueueSecondaryStore.QueueEntry entry
+        : queue.getDueStars(null, Long.MAX_VALUE, Integer.MAX_VALUE)) {
+      // Anything that's been scheduled already is more up-to-date than the index.
+      schedule.scheduleIfAbsent(entry.starId, entry.nextSimulation);
+    }
+    log.info("Loaded %d stars into the simulation schedule in %dms.",
+        schedule.size(), (System.nanoTime() - startTime) / 1000000L);
+
     running = true;
+    for (Worker worker : workers) {
+      worker.thread.start();
+    }
     thread.start();
   }
 
+  /**
+   * Brings every overdue star up-to-date, simulating them in parallel (on as many threads as we
+   * have workers) with {@link BatchSimulation#simulateAll}. This is meant to be called on startup,
+   * before {@link #start} and before players can connect, so that after some downtime we don't
+   * have to drain the backlog one star at a time.
+   */
+  public void catchUp() {
+    long now = System.currentTimeMillis();
+    long startTime = System.nanoTime();
+    List<StarQueueSecondaryStore.QueueEntry> due =
+        queue.getDueStars(null, now, Integer.MAX_VALUE);
+    if (due.isEmpty()) {
+      return;
+    }
+    log.info("Catching up %d overdue stars on %d threads.", due.size(), workers.length);
+
+    int numCaughtUp = 0;
+    ForkJoinPool pool = new ForkJoinPool(workers.length);
+    try {
+      for (int i = 0; i < due.size(); i += CATCH_UP_BATCH_SIZE) {
+        List<StarQueueSecondaryStore.QueueEntry> batch =
+            due.subList(i, Math.min(due.size(), i + CATCH_UP_BATCH_SIZE));
+        ArrayList<WatchableObject<Star>> stars = new ArrayList<>();
+        ArrayList<Star> originalStars = new ArrayList<>();
+        ArrayList<Star.Builder> starBuilders = new ArrayList<>();
+        try {
+          for (StarQueueSecondaryStore.QueueEntry entry : batch) {
+            WatchableObject<Star> star = StarManager.i.acquireStar(entry.starId);
+            if (star == null) {
+              continue;
+            }
+            stars.add(star);
+            originalStars.add(star.get());
+            starBuilders.add(star.get().newBuilder());
+          }
+
+          BatchSimulation.simulateAll(pool, starBuilders, now);
+
+          for (int j = 0; j < stars.size(); j++) {
+            WatchableObject<Star> star = stars.get(j);
+            synchronized (star.lock) {
+              if (star.get() != originalStars.get(j)) {
+                // Somebody modified it while we were simulating, leave it to the workers.
+                continue;
+              }
+              StarManager.i.completeActions(star, starBuilders.get(j));
+              numCaughtUp++;
+            }
+          }
+        } finally {
+          for (WatchableObject<Star> star : stars) {
+            StarManager.i.releaseStar(star);
+          }
+        }
+        log.info("Caught up %d of %d stars.", Math.min(due.size(), i + batch.size()), due.size());
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    log.info("Caught up %d stars in %dms.",
+        numCaughtUp, (System.nanoTime() - startTime) / 1000000L);
+  }
+
   public void stop() {
     running = false;
     ping();
     try {
       thread.join();
+      for (Worker worker : workers) {
+        worker.thread.join();
+      }
+    } catch (InterruptedException e) {
+      // Ignore.
+    }
+
+    // The workers are the only ones that hand anything to the empire pool, so once they've all
+    // stopped, there's nothing left for it to do.
+    empirePool.shutdown();
+    try {
+      empirePool.awaitTermination(5, TimeUnit.SECONDS);
     } catch (InterruptedException e) {
       // Ignore.
     }
   }
 
-  public void ping() {
+  /**
+   * Schedules the given star to be simulated at the given time. This must be called whenever a
+   * star's next_simulation changes.
+   *
+   * @param starId The ID of the star.
+   * @param nextSimulation The star's new next_simulation time, or null if it doesn't need to be
+   *     simulated.
+   */
+  public void schedule(long starId, @Nullable Long nextSimulation) {
+    if (schedule.schedule(starId, nextSimulation)) {
+      // It's the first star in the schedule now, so we might need to wake up earlier.
+      ping();
+    }
+  }
+
+  private void ping() {
     synchronized (pinger) {
       pinger.notify();
     }
   }
 
+  /** The number of worker threads we're simulating stars on. */
+  public int getNumWorkers() {
+    return workers.length;
+  }
+
+  /** The number of stars we've simulated. */
+  public long getNumSimulated() {
+    return numSimulated.get();
+  }
+
+  /**
+   * The number of stars we took from the queue but didn't need to simulate, because they'd
+   * already been simulated and the queue hadn't caught up yet.
+   */
+  public long getNumSkipped() {
+    return numSkipped.get();
+  }
+
+  /** The number of times we couldn't hand a due star to its worker because it was full. */
+  public long getNumDeferred() {
+    return numDeferred.get();
+  }
+
+  /** The number of stars in the schedule. */
+  public int getNumScheduled() {
+    return schedule.size();
+  }
+
+  /** The number of stars waiting to be simulated, or being simulated, by the workers. */
+  public int getNumInFlight() {
+    synchronized (inFlight) {
+      return inFlight.size();
+    }
+  }
+
+  public double getAverageSimulateTimeMs() {
+    long n = numSimulated.get();
+    return n == 0 ? 0.0 : (totalSimulateNanos.get() / (double) n) / 1000000.0;
+  }
+
+  /** The average time, in milliseconds, between a star being due and us simulating it. */
+  public double getAverageLagMs() {
+    long n = numSimulated.get();
+    return n == 0 ? 0.0 : totalLagMs.get() / (double) n;
+  }
+
+  /** The longest time, in milliseconds, between a star being due and us simulating it. */
+  public long getMaxLagMs() {
+    return maxLagMs.get();
+  }
+
+  /**
+   * How far behind we are right now: the time, in milliseconds, since the earliest star in the
+   * schedule was due. Zero if nothing is overdue.
+   */
+  public long getCurrentLagMs() {
+    return currentLagMs;
+  }
+
   private void run() {
     log.info("Star simulator queue starting up.");
     while (running) {
-      Star star = queue.next(null);
-
-      long waitTime;
-      if (star == null) {
-        log.warning("No stars to simulate, sleeping for a bit.");
-        waitTime = 10 * Time.MINUTE;
-      } else {
-        if (star.next_simulation == null) {
-          log.warning("Star #%d (%s) next_simulation is null.", star.id, star.name);
-          waitTime = 0;
-        } else {
-          waitTime = star.next_simulation - System.currentTimeMillis();
-        }
-      }
+      long now = System.currentTimeMillis();
+      List<StarQueueSecondaryStore.QueueEntry> due = schedule.pollDue(now, BATCH_SIZE);
+      currentLagMs = due.isEmpty() ? 0 : now - due.get(0).nextSimulation;
 
-      if (waitTime <= 0) {
-        waitTime = 1; // 1 millisecond to ensure that we actually sleep at least a litte.
+      for (StarQueueSecondaryStore.QueueEntry entry : due) {
+        dispatch(entry);
       }
 
-      // Don't sleep for more than 10 minutes, we'll just loop around and check again.
-      if (waitTime > 10 * Time.MINUTE) {
-        waitTime = 10 * Time.MINUTE;
+      if (due.size() >= BATCH_SIZE) {
+        // There's probably more due, go back around and get them straight away.
+        continue;
       }
 
-      log.debug("Star simulator sleeping for %d ms.", waitTime);
       try {
         synchronized (pinger) {
-          pinger.wait(waitTime);
+          // We check the schedule while holding the pinger lock, so that a star scheduled after
+          // this point is guaranteed to wake us up.
+          Long nextSimulation = schedule.getNextSimulationTime();
+          if (nextSimulation == null) {
+            log.debug("No stars to simulate, waiting until one is scheduled.");
+            pinger.wait();
+          } else {
+            long waitTime = nextSimulation - System.currentTimeMillis();
+            if (waitTime > 0) {
+              log.debug("Star simulator sleeping for %d ms.", waitTime);
+              pinger.wait(waitTime);
+            }
+          }
         }
       } catch (InterruptedException e) {
         // Ignore.
       }
+    }
 
-      if (star != null) {
-        long startTime = System.nanoTime();
-        WatchableObject<Star> watchableStar = StarManager.i.getStar(star.id);
-        Star.Builder starBuilder = watchableStar.get().newBuilder();
-        new Simulation().simulate(starBuilder);
-        StarManager.i.completeActions(watchableStar, starBuilder);
-        long endTime = System.nanoTime();
+    log.info("Star simulator queue shut down.");
+  }
 
-        log.info("Star #%d (%s) simulated in %dms",
-            star.id, star.name, (endTime - startTime) / 1000000L);
+  /**
+   * Hands the given entry off to the worker for its star. If the star is already in-flight, it's
+   * put back in the schedule once it's finished. If the worker is full, it's put back in the
+   * schedule once the worker has room for it.
+   */
+  private void dispatch(StarQueueSecondaryStore.QueueEntry entry) {
+    synchronized (inFlight) {
+      if (!inFlight.add(entry.starId)) {
+        StarQueueSecondaryStore.QueueEntry existing = dueWhileInFlight.get(entry.starId);
+        if (existing == null || existing.nextSimulation > entry.nextSimulation) {
+          dueWhileInFlight.put(entry.starId, entry);
+        }
+        return;
       }
     }
 
-    log.info("Star simulator queue shut down.");
+    Worker worker = workers[(int) Math.floorMod(entry.starId, (long) workers.length)];
+    if (!worker.queue.offer(entry)) {
+      synchronized (inFlight) {
+        inFlight.remove(entry.starId);
+      }
+      worker.defer(entry);
+      numDeferred.incrementAndGet();
+    }
+  }
+
+  /**
+   * Puts the given entry back in the schedule (unless the star's been rescheduled in the
+   * meantime), for entries that we took from the schedule but couldn't simulate yet.
+   */
+  private void reschedule(StarQueueSecondaryStore.QueueEntry entry) {
+    schedule.scheduleIfAbsent(entry.starId, entry.nextSimulation);
+    ping();
+  }
+
+  private void simulate(StarQueueSecondaryStore.QueueEntry entry, SimulationProfile profile) {
+    WatchableObject<Star> star = StarManager.i.acquireStar(entry.starId);
+    if (star == null) {
+      log.warning("Star #%d is in the queue, but doesn't exist.", entry.starId);
+      return;
+    }
+    try {
+      simulate(star, entry, profile);
+    } finally {
+      StarManager.i.releaseStar(star);
+    }
+  }
+
+  private void simulate(
+      WatchableObject<Star> star, StarQueueSecondaryStore.QueueEntry entry,
+      SimulationProfile profile) {
+    long startTime = System.nanoTime();
+    synchronized (star.lock) {
+      // Make sure it actually still needs simulating, in case it was simulated by someone else
+      // (e.g. when it was modified) after it was taken from the schedule.
+      Long nextSimulation = star.get().next_simulation;
+      if (nextSimulation == null || nextSimulation > System.currentTimeMillis()) {
+        numSkipped.incrementAndGet();
+        return;
+      }
+
+      long lagMs = System.currentTimeMillis() - nextSimulation;
+      long allocatedBytes = SimulationMetrics.i.getAllocatedBytes();
+      Star.Builder starBuilder = star.get().newBuilder();
+      Simulation simulation = new Simulation();
+      simulation.setProfile(profile);
+      simulation.setEmpireExecutor(empirePool);
+      simulation.simulate(starBuilder);
+      long completeActionsStartTime = System.nanoTime();
+      StarManager.i.completeActions(star, starBuilder);
+      profile.addTime(SimulationProfile.Phase.COMPLETE_ACTIONS,
+          System.nanoTime() - completeActionsStartTime);
+      if (allocatedBytes >= 0) {
+        allocatedBytes = SimulationMetrics.i.getAllocatedBytes() - allocatedBytes;
+      }
+      SimulationMetrics.i.record(profile, allocatedBytes);
+
+      totalLagMs.addAndGet(lagMs);
+      long max = maxLagMs.get();
+      while (lagMs > max && !maxLagMs.compareAndSet(max, lagMs)) {
+        max = maxLagMs.get();
+      }
+    }
+    long elapsed = System.nanoTime() - startTime;
+    numSimulated.incrementAndGet();
+    totalSimulateNanos.addAndGet(elapsed);
+
+    log.info("Star #%d (%s) simulated in %dms",
+        star.get().id, star.get().name, elapsed / 1000000L);
+  }
+
+  /** A worker thread, which simulates the stars that are handed to it one at a time. */
+  private class Worker {
+    private final Thread thread;
+    private final BlockingQueue<StarQueueSecondaryStore.QueueEntry> queue =
+        new ArrayBlockingQueue<>(WORKER_QUEUE_SIZE);
+    private final SimulationProfile profile = new SimulationProfile();
+
+    /** Entries we didn't have room for in our queue, guarded by itself. */
+    private final ArrayList<StarQueueSecondaryStore.QueueEntry> deferred = new ArrayList<>();
+
+    Worker(int index) {
+      thread = new Thread(this::run, "StarSimulator #" + index);
+    }
+
+    private void run() {
+      while (running) {
+        StarQueueSecondaryStore.QueueEntry entry;
+        try {
+          entry = queue.poll(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          continue;
+        }
+        if (entry == null) {
+          continue;
+        }
+        undefer();
+
+        StarQueueSecondaryStore.QueueEntry dueAgain;
+        try {
+          simulate(entry, profile);
+        } catch (Exception e) {
+          log.error("Error simulating star #%d.", entry.starId, e);
+        } finally {
+          synchronized (inFlight) {
+            inFlight.remove(entry.starId);
+            dueAgain = dueWhileInFlight.remove(entry.starId);
+          }
+          if (dueAgain != null) {
+            reschedule(dueAgain);
+          }
+        }
+      }
+    }
+
+    /** Remembers an entry that we didn't have room for, until we do. */
+    private void defer(StarQueueSecondaryStore.QueueEntry entry) {
+      synchronized (deferred) {
+        deferred.add(entry);
+      }
+    }
+
+    /**
+     * We've just made room in our queue, put any entries we deferred back in the schedule. We wait
+     * until the queue is half empty, so that we're not handed them back one at a time.
+     */
+    private void undefer() {
+      if (queue.remainingCapacity() < WORKER_QUEUE_SIZE / 2) {
+        return;
+      }
+      synchronized (deferred) {
+        if (deferred.isEmpty()) {
+          return;
+        }
+        for (StarQueueSecondaryStore.QueueEntry entry : deferred) {
+          schedule.scheduleIfAbsent(entry.starId, entry.nextSimulation);
+        }
+        deferred.clear();
+      }
+      ping();
+    }
   }
 }
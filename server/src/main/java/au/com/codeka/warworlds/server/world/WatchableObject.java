@@ -3,7 +3,7 @@ package au.com.codeka.warworlds.server.world;
 import com.google.api.client.repackaged.com.google.common.base.Preconditions;
 import com.squareup.wire.Message;
 
-import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.Nonnull;
 
@@ -11,6 +11,10 @@ import javax.annotation.Nonnull;
  * A watchable object is any object that's encapsulated in a protocol buffer, which listeners can
  * register to get change notifications for. When we update the underlying object, the listeners
  * are all notified and can act accordingly.
+ *
+ * <p>Watchers are called on the thread that updates the object, without holding any lock of ours
+ * (they're kept in a copy-on-write list), so they should be quick. To follow the stars in a
+ * sector, subscribe to the {@link InterestManager} rather than watching each star.
  */
 public class WatchableObject<T extends Message> {
   /** The interface you implement when you want to watch for changes to this object. */
@@ -18,7 +22,7 @@ public class WatchableObject<T extends Message> {
     void onUpdate(WatchableObject<T> object);
   }
 
-  private final ArrayList<Watcher<T>> watchers = new ArrayList<>();
+  private final CopyOnWriteArrayList<Watcher<T>> watchers = new CopyOnWriteArrayList<>();
   private T object;
 
   /**
@@ -38,22 +42,21 @@ public class WatchableObject<T extends Message> {
 
   public void set(T obj) {
     this.object = obj;
-    synchronized (watchers) {
-      for (Watcher<T> watcher : watchers) {
-        watcher.onUpdate(this);
-      }
+    for (Watcher<T> watcher : watchers) {
+      watcher.onUpdate(this);
     }
   }
 
   public void addWatcher(Watcher<T> watcher) {
-    synchronized (watchers) {
-      watchers.add(watcher);
-    }
+    watchers.add(watcher);
   }
 
   public void removeWatcher(Watcher<T> watcher) {
-    synchronized (watchers) {
-      watchers.remove(watcher);
-    }
+    watchers.remove(watcher);
+  }
+
+  /** Gets the number of {@link Watcher}s currently watching this object. */
+  public int getNumWatchers() {
+    return watchers.size();
   }
 }
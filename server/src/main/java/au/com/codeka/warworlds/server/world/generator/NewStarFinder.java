@@ -10,7 +10,6 @@ import au.com.codeka.warworlds.common.proto.SectorCoord;
 import au.com.codeka.warworlds.common.proto.Star;
 import au.com.codeka.warworlds.server.store.DataStore;
 import au.com.codeka.warworlds.server.world.SectorManager;
-import au.com.codeka.warworlds.server.world.WatchableObject;
 
 /**
  * Find a star which is suitable for a new empire.
@@ -122,8 +121,8 @@ public class NewStarFinder {
       return false;
     }
 
-    WatchableObject<Sector> sector = SectorManager.i.getSector(coord);
-    Star star = findHighestScoreStar(sector.get());
+    Sector sector = SectorManager.i.getSector(coord);
+    Star star = findHighestScoreStar(sector);
     if (star == null) {
       log.debug("No stars found.");
       return false;
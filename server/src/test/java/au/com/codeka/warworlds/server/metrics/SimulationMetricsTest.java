@@ -0,0 +1,137 @@
+package au.com.codeka.warworlds.server.metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.BuildRequest;
+import au.com.codeka.warworlds.common.proto.Colony;
+import au.com.codeka.warworlds.common.proto.ColonyFocus;
+import au.com.codeka.warworlds.common.proto.Design;
+import au.com.codeka.warworlds.common.proto.EmpireStorage;
+import au.com.codeka.warworlds.common.proto.Fleet;
+import au.com.codeka.warworlds.common.proto.Planet;
+import au.com.codeka.warworlds.common.proto.Star;
+import au.com.codeka.warworlds.common.sim.Simulation;
+import au.com.codeka.warworlds.common.sim.SimulationProfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/** Tests for {@link SimulationMetrics}, and the allocations it measures. */
+public class SimulationMetricsTest {
+  private static final int NUM_PLANETS = 6;
+  private static final int NUM_EMPIRES = 3;
+  private static final int NUM_BUILD_REQUESTS = 20;
+
+  /** The number of extra steps we simulate to find out how much each step allocates. */
+  private static final int NUM_EXTRA_STEPS = 500;
+
+  @Test
+  public void simulationStepsDontAllocate() {
+    assumeTrue(SimulationMetrics.i.getAllocatedBytes() >= 0);
+    long now = System.currentTimeMillis();
+
+    // Warm up, so that we're measuring compiled code.
+    for (int i = 0; i < 200; i++) {
+      allocatedBytes(now, 1);
+      allocatedBytes(now, 1 + NUM_EXTRA_STEPS);
+    }
+
+    // Loading and saving the star allocates the same amount however many steps we simulate, so
+    // the difference is what the steps themselves allocate. Take the smallest difference of a few
+    // runs, in case something else (e.g. the JIT) allocates on our thread during one of them.
+    long minBytes = Long.MAX_VALUE;
+    for (int i = 0; i < 10; i++) {
+      minBytes = Math.min(minBytes,
+          allocatedBytes(now, 1 + NUM_EXTRA_STEPS) - allocatedBytes(now, 1));
+    }
+    assertTrue(NUM_EXTRA_STEPS + " extra steps allocated " + minBytes + " bytes",
+        minBytes < NUM_EXTRA_STEPS);
+  }
+
+  @Test
+  public void recordsAllocations() {
+    SimulationProfile profile = new SimulationProfile();
+    long before = SimulationMetrics.i.getSnapshots().get("allocated_bytes").count;
+    SimulationMetrics.i.record(profile, 1000);
+    SimulationMetrics.i.record(profile, -1);
+    assertEquals(before + 1, SimulationMetrics.i.getSnapshots().get("allocated_bytes").count);
+  }
+
+  /**
+   * Simulates our test star, last simulated the given number of steps before now, and returns
+   * the number of bytes that allocated.
+   */
+  private static long allocatedBytes(long now, int numSteps) {
+    Star.Builder star = makeStar(now - numSteps * Simulation.STEP_TIME).newBuilder();
+    Simulation simulation = new Simulation(now, false /* predict */, null);
+    simulation.setFastForward(false);
+    long allocatedBytes = SimulationMetrics.i.getAllocatedBytes();
+    simulation.simulate(star);
+    return SimulationMetrics.i.getAllocatedBytes() - allocatedBytes;
+  }
+
+  /** Makes a star with six planets, colonized by three empires with twenty build requests. */
+  private static Star makeStar(long lastSimulation) {
+    List<Planet> planets = new ArrayList<>();
+    List<EmpireStorage> stores = new ArrayList<>();
+    for (int i = 0; i < NUM_PLANETS; i++) {
+      long empireId = 1 + i % NUM_EMPIRES;
+      List<BuildRequest> buildRequests = new ArrayList<>();
+      for (int j = i; j < NUM_BUILD_REQUESTS; j += NUM_PLANETS) {
+        buildRequests.add(new BuildRequest.Builder()
+            .id(i * 100L + j)
+            .design_type(j % 2 == 0 ? Design.DesignType.FIGHTER : Design.DesignType.SCOUT)
+            .count(1000)
+            .start_time(lastSimulation - Time.HOUR)
+            .end_time(lastSimulation + Time.DAY)
+            .progress(0.0f)
+            .build());
+      }
+      planets.add(new Planet.Builder()
+          .index(i)
+          .planet_type(Planet.PLANET_TYPE.TERRAN)
+          .population_congeniality(500 + 100 * i)
+          .farming_congeniality(30 + 10 * i)
+          .mining_congeniality(60 - 5 * i)
+          .energy_congeniality(40 + 5 * i)
+          .colony(new Colony.Builder()
+              .id(10L + i)
+              .empire_id(empireId)
+              .population(100.0f + 10 * i)
+              .focus(new ColonyFocus.Builder()
+                  .construction(0.4f)
+                  .farming(0.2f)
+                  .mining(0.2f)
+                  .energy(0.2f)
+                  .build())
+              .defence_bonus(1.0f)
+              .build_requests(buildRequests)
+              .build())
+          .build());
+      if (i < NUM_EMPIRES) {
+        stores.add(new EmpireStorage.Builder()
+            .empire_id(empireId)
+            .total_goods(100.0f)
+            .total_minerals(100000.0f)
+            .total_energy(100.0f)
+            .max_goods(1000.0f)
+            .max_minerals(1000000.0f)
+            .max_energy(1000.0f)
+            .build());
+      }
+    }
+    return new Star.Builder()
+        .id(1L)
+        .name("Test star")
+        .planets(planets)
+        .empire_stores(stores)
+        .fleets(new ArrayList<Fleet>())
+        .last_simulation(lastSimulation)
+        .build();
+  }
+}
@@ -0,0 +1,183 @@
+package au.com.codeka.warworlds.server.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import au.com.codeka.warworlds.common.net.PacketCompressor;
+import au.com.codeka.warworlds.common.net.PacketEncoder;
+import au.com.codeka.warworlds.common.proto.Packet;
+import au.com.codeka.warworlds.common.proto.RequestStarsPacket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link GameChannel}'s parsing of frames. We feed it what a {@link PacketEncoder}
+ * wrote, in all sorts of chunks, the way reads from a socket could come back.
+ */
+public class GameChannelTest {
+  private final List<Packet> received = new ArrayList<>();
+  private final List<Integer> receivedSizes = new ArrayList<>();
+  private boolean closed;
+
+  private SocketChannel socketChannel;
+  private GameChannel channel;
+
+  @Before
+  public void setUp() throws IOException {
+    // The packets are dispatched on the parsing thread, so they're all handled by the time parse
+    // returns.
+    socketChannel = SocketChannel.open();
+    channel = new GameChannel(socketChannel, null, Runnable::run,
+        new GameChannel.PacketHandler() {
+          @Override
+          public void onPacket(GameChannel channel, Packet pkt, int encodedSize) {
+            received.add(pkt);
+            receivedSizes.add(encodedSize);
+          }
+
+          @Override
+          public void onClose(GameChannel channel) {
+            closed = true;
+          }
+        });
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    socketChannel.close();
+  }
+
+  @Test
+  public void oneByteAtATime() throws IOException {
+    List<Packet> packets = makePackets(10);
+    byte[] bytes = encode(packets, PacketCompressor.Mode.GZIP);
+    for (byte b : bytes) {
+      channel.parse(ByteBuffer.wrap(new byte[] {b}));
+    }
+    assertEquals(packets, received);
+  }
+
+  @Test
+  public void splitHeaders() throws IOException {
+    // Split every frame at every possible point in its header (and the first byte of its payload).
+    List<Packet> packets = makePackets(3);
+    for (int split = 1; split <= 8; split++) {
+      received.clear();
+      for (Packet packet : packets) {
+        byte[] bytes = encode(packet);
+        int numReceived = received.size();
+        channel.parse(ByteBuffer.wrap(bytes, 0, split));
+        assertEquals(numReceived, received.size());
+        channel.parse(ByteBuffer.wrap(bytes, split, bytes.length - split));
+      }
+      assertEquals(packets, received);
+    }
+  }
+
+  @Test
+  public void manyFramesInOneRead() throws IOException {
+    List<Packet> packets = makePackets(50);
+    byte[] bytes = encode(packets, PacketCompressor.Mode.GZIP);
+    channel.parse(ByteBuffer.wrap(bytes));
+    assertEquals(packets, received);
+    assertFrameSizes(bytes);
+  }
+
+  @Test
+  public void randomChunks() throws IOException {
+    Random random = new Random(1234);
+    for (PacketCompressor.Mode mode : PacketCompressor.Mode.values()) {
+      // A new channel for each mode, since a streaming decompressor has to start at the start.
+      tearDown();
+      setUp();
+      received.clear();
+      receivedSizes.clear();
+
+      List<Packet> packets = makePackets(100);
+      byte[] bytes = encode(packets, mode);
+
+      // Most reads end partway through a frame, some take in several of them.
+      int offset = 0;
+      while (offset < bytes.length) {
+        int maxLen = random.nextBoolean() ? 16 : 2048;
+        int len = Math.min(bytes.length - offset, 1 + random.nextInt(maxLen));
+        channel.parse(ByteBuffer.wrap(bytes, offset, len));
+        offset += len;
+      }
+      assertEquals(mode.toString(), packets, received);
+      assertFrameSizes(bytes);
+      assertFalse(closed);
+    }
+  }
+
+  @Test
+  public void tooBigFrameCloses() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(Integer.MAX_VALUE).putInt(0).flip();
+    channel.parse(header);
+    assertTrue(closed);
+    assertTrue(channel.isClosed());
+    assertTrue(received.isEmpty());
+  }
+
+  /** Checks that each packet we received was the size its frame says. */
+  private void assertFrameSizes(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    List<Integer> sizes = new ArrayList<>();
+    while (buffer.hasRemaining()) {
+      int size = buffer.getInt();
+      buffer.getInt();
+      buffer.position(buffer.position() + size);
+      sizes.add(size);
+    }
+    assertEquals(sizes, receivedSizes);
+  }
+
+  /**
+   * Makes the given number of packets, of lots of different sizes: some too small to compress and
+   * some big enough to be compressed in every mode.
+   */
+  private static List<Packet> makePackets(int n) {
+    List<Packet> packets = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      List<Long> starIds = new ArrayList<>();
+      for (int j = 0; j < (i * 37) % 200; j++) {
+        starIds.add(i * 1000L + j);
+      }
+      packets.add(new Packet.Builder()
+          .request_stars(new RequestStarsPacket.Builder().star_ids(starIds).build())
+          .build());
+    }
+    return packets;
+  }
+
+  private static byte[] encode(List<Packet> packets, PacketCompressor.Mode mode)
+      throws IOException {
+    ByteArrayOutputStream outs = new ByteArrayOutputStream();
+    PacketEncoder encoder = new PacketEncoder(outs);
+    encoder.setCompressor(new PacketCompressor(mode));
+    for (Packet packet : packets) {
+      encoder.send(packet);
+    }
+    encoder.close();
+    return outs.toByteArray();
+  }
+
+  private static byte[] encode(Packet packet) throws IOException {
+    List<Packet> packets = new ArrayList<>();
+    packets.add(packet);
+    return encode(packets, PacketCompressor.Mode.GZIP);
+  }
+}
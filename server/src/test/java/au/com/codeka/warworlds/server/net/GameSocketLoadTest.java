@@ -0,0 +1,287 @@
+package au.com.codeka.warworlds.server.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import au.com.codeka.warworlds.common.net.PacketEncoder;
+import au.com.codeka.warworlds.common.proto.Packet;
+import au.com.codeka.warworlds.common.proto.RequestStarsPacket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A load generator for the game socket: it opens lots of simulated clients against the same
+ * {@link SelectorThread}s and {@link GameChannel}s that {@link ServerSocketManager} uses, and
+ * measures the threads and memory they cost us, and the latency of a packet there and back.
+ *
+ * <p>The server side just echoes every packet back with a {@link PacketEncoder}, so there's no
+ * 'hello' (and no players, empires or stars) involved. The clients are non-blocking sockets on a
+ * single selector, driven by the test's thread, so they don't add any threads of their own.
+ *
+ * <p>By default there are {@link #DEFAULT_NUM_CLIENTS} clients, so that the test is quick. Set the
+ * {@code warworlds.load_test.clients} system property for more, e.g. 10000. Each client costs two
+ * file descriptors (one for each end), so you might need to raise the process's limit as well.
+ */
+public class GameSocketLoadTest {
+  private static final int DEFAULT_NUM_CLIENTS = 1000;
+
+  /** The number of packets each client sends (one at a time, waiting for each echo). */
+  private static final int NUM_ROUNDS = 5;
+
+  private static final int NUM_SELECTORS = 2;
+  private static final int NUM_WORKERS = 4;
+
+  /** How long we'll wait for everybody to connect, and then for all of the echoes. */
+  private static final long TIMEOUT_MS = 120 * 1000L;
+
+  /**
+   * The most threads the server can start, whatever the number of clients: the selectors, the
+   * workers and the accept thread, with a bit of slack for whatever the JVM starts on its own.
+   */
+  private static final int MAX_NEW_THREADS = NUM_SELECTORS + NUM_WORKERS + 1 + 10;
+
+  private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+  private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+
+  private int numThreadsBefore;
+  private long heapBytesBefore;
+
+  private ServerSocketChannel serverSocketChannel;
+  private Thread acceptThread;
+  private volatile IOException acceptError;
+  private SelectorThread[] selectorThreads;
+  private ExecutorService executor;
+  private Selector clientSelector;
+  private final List<SocketChannel> clients = new ArrayList<>();
+
+  @Before
+  public void setUp() throws IOException {
+    numThreadsBefore = threadBean.getThreadCount();
+    heapBytesBefore = getUsedHeapBytes();
+
+    executor = Executors.newFixedThreadPool(NUM_WORKERS);
+    selectorThreads = new SelectorThread[NUM_SELECTORS];
+    for (int n = 0; n < NUM_SELECTORS; n++) {
+      // The clients never say 'hello', so the handshake timeout has to outlast the test.
+      selectorThreads[n] = new SelectorThread(n, executor, TIMEOUT_MS * 2, 0);
+      selectorThreads[n].start();
+    }
+
+    serverSocketChannel = ServerSocketChannel.open();
+    serverSocketChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+    acceptThread = new Thread(this::acceptThreadProc, "GameSocketLoadTest accept");
+    acceptThread.start();
+
+    clientSelector = Selector.open();
+  }
+
+  @After
+  public void tearDown() throws IOException, InterruptedException {
+    for (SocketChannel client : clients) {
+      client.close();
+    }
+    clientSelector.close();
+    serverSocketChannel.close();
+    acceptThread.join();
+    for (SelectorThread selectorThread : selectorThreads) {
+      selectorThread.stop();
+    }
+    executor.shutdown();
+    executor.awaitTermination(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void manyClients() throws IOException {
+    int numClients = Integer.getInteger("warworlds.load_test.clients", DEFAULT_NUM_CLIENTS);
+    byte[] request = makeRequest();
+
+    long startTime = System.nanoTime();
+    InetSocketAddress address = (InetSocketAddress) serverSocketChannel.getLocalAddress();
+    for (int i = 0; i < numClients; i++) {
+      SocketChannel client = SocketChannel.open(address);
+      client.configureBlocking(false);
+      client.socket().setTcpNoDelay(true);
+      client.register(clientSelector, SelectionKey.OP_READ, i);
+      clients.add(client);
+    }
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (getNumServerChannels() < numClients) {
+      if (acceptError != null) {
+        // Probably too many open files.
+        throw new AssertionError("Error accepting client", acceptError);
+      }
+      assertTrue("Only " + getNumServerChannels() + " of " + numClients + " clients accepted",
+          System.currentTimeMillis() < deadline);
+      sleep(10);
+    }
+    long connectNanos = System.nanoTime() - startTime;
+
+    long bytesPerClient = (getUsedHeapBytes() - heapBytesBefore) / numClients;
+
+    // Every client sends its request, and sends the next one as soon as it's got the echo of the
+    // last. The echo is exactly the same bytes as the request.
+    long[] sendTimes = new long[numClients];
+    int[] numReceived = new int[numClients];
+    int[] numRounds = new int[numClients];
+    long[] latencies = new long[numClients * NUM_ROUNDS];
+    int numLatencies = 0;
+    ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    for (int i = 0; i < numClients; i++) {
+      sendTimes[i] = System.nanoTime();
+      write(clients.get(i), request);
+    }
+    deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (numLatencies < latencies.length) {
+      assertTrue("Only " + numLatencies + " of " + latencies.length + " echoes received",
+          System.currentTimeMillis() < deadline);
+      clientSelector.select(1000);
+      Iterator<SelectionKey> it = clientSelector.selectedKeys().iterator();
+      while (it.hasNext()) {
+        SelectionKey key = it.next();
+        it.remove();
+        int i = (Integer) key.attachment();
+        SocketChannel client = (SocketChannel) key.channel();
+        readBuffer.clear();
+        int numBytes = client.read(readBuffer);
+        assertTrue("Client #" + i + " was closed", numBytes >= 0);
+        numReceived[i] += numBytes;
+        if (numReceived[i] >= request.length) {
+          assertEquals(request.length, numReceived[i]);
+          latencies[numLatencies++] = System.nanoTime() - sendTimes[i];
+          numReceived[i] = 0;
+          if (++numRounds[i] < NUM_ROUNDS) {
+            sendTimes[i] = System.nanoTime();
+            write(client, request);
+          }
+        }
+      }
+    }
+
+    // By now, the workers have all been busy as well.
+    int numNewThreads = threadBean.getThreadCount() - numThreadsBefore;
+    Arrays.sort(latencies);
+    System.out.println(String.format(
+        "%d clients connected in %dms, costing %d new threads and %d bytes of heap each (for"
+            + " both ends of the socket). Echo latency over %d packets: p50=%.2fms p99=%.2fms"
+            + " max=%.2fms",
+        numClients, connectNanos / 1000000L, numNewThreads, bytesPerClient, latencies.length,
+        percentile(latencies, 0.5) / 1000000.0, percentile(latencies, 0.99) / 1000000.0,
+        latencies[latencies.length - 1] / 1000000.0));
+    assertTrue("Started " + numNewThreads + " threads for " + numClients + " clients",
+        numNewThreads <= MAX_NEW_THREADS);
+  }
+
+  /** Echoes every packet it gets back to the client. */
+  private static class EchoHandler implements GameChannel.PacketHandler {
+    private PacketEncoder encoder;
+
+    @Override
+    public void onPacket(GameChannel channel, Packet pkt, int encodedSize) {
+      // Packets are handled one at a time, so we don't need to worry about making two encoders.
+      if (encoder == null) {
+        encoder = new PacketEncoder(channel.getOutputStream());
+      }
+      try {
+        encoder.send(pkt);
+      } catch (IOException e) {
+        channel.close();
+      }
+    }
+
+    @Override
+    public void onClose(GameChannel channel) {
+    }
+  }
+
+  private void acceptThreadProc() {
+    int nextSelectorThread = 0;
+    while (true) {
+      try {
+        SocketChannel socketChannel = serverSocketChannel.accept();
+        selectorThreads[nextSelectorThread].addChannel(socketChannel, new EchoHandler());
+        nextSelectorThread = (nextSelectorThread + 1) % selectorThreads.length;
+      } catch (ClosedChannelException e) {
+        return;
+      } catch (IOException e) {
+        acceptError = e;
+        return;
+      }
+    }
+  }
+
+  private int getNumServerChannels() {
+    int numChannels = 0;
+    for (SelectorThread selectorThread : selectorThreads) {
+      numChannels += selectorThread.getNumChannels();
+    }
+    return numChannels;
+  }
+
+  /** Makes the request the clients send: small enough that it won't be compressed. */
+  private static byte[] makeRequest() throws IOException {
+    List<Long> starIds = new ArrayList<>();
+    for (long i = 0; i < 10; i++) {
+      starIds.add(i);
+    }
+    ByteArrayOutputStream outs = new ByteArrayOutputStream();
+    PacketEncoder encoder = new PacketEncoder(outs);
+    encoder.send(new Packet.Builder()
+        .request_stars(new RequestStarsPacket.Builder().star_ids(starIds).build())
+        .build());
+    encoder.close();
+    return outs.toByteArray();
+  }
+
+  /** Writes all of the given bytes. They're small enough that it shouldn't have to wait long. */
+  private static void write(SocketChannel client, byte[] bytes) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      if (client.write(buffer) == 0) {
+        Thread.yield();
+      }
+    }
+  }
+
+  private long getUsedHeapBytes() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return memoryBean.getHeapMemoryUsage().getUsed();
+  }
+
+  private static long percentile(long[] sorted, double p) {
+    int index = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+
+  private static void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package au.com.codeka.warworlds.server.store;
+
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.utilint.Pair;
+import com.sun.management.ThreadMXBean;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+
+import au.com.codeka.warworlds.common.proto.Star;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/** Tests for {@link ProtobufStore}. */
+public class ProtobufStoreTest {
+  @Rule
+  public final TempEnvironment env = new TempEnvironment();
+
+  private ProtobufStore<Star> store;
+
+  @Before
+  public void setUp() {
+    store = new ProtobufStore<>(env.openDatabase("stars"), Star.class);
+  }
+
+  @Test
+  public void getAll() {
+    for (long id = 100; id < 200; id += 2) {
+      store.put(id, makeStar(id));
+    }
+
+    // Out of order, with duplicates, with IDs that don't exist (including between, before and
+    // after the ones that do).
+    Map<Long, Star> stars =
+        store.getAll(Lists.newArrayList(150L, 102L, 103L, 150L, 1L, 104L, 198L, 500L, 151L));
+    assertEquals(4, stars.size());
+    for (long id : new long[] {102L, 104L, 150L, 198L}) {
+      assertEquals(makeStar(id), stars.get(id));
+    }
+    for (long id : new long[] {1L, 103L, 151L, 500L}) {
+      assertFalse(stars.containsKey(id));
+    }
+  }
+
+  @Test
+  public void getAllMatchesGet() {
+    ArrayList<Long> ids = new ArrayList<>();
+    for (long id = 1; id < 1000; id++) {
+      if (id % 3 != 0) {
+        store.put(id, makeStar(id));
+      }
+      if (id % 2 == 0) {
+        ids.add(id);
+      }
+    }
+
+    Map<Long, Star> stars = store.getAll(ids);
+    for (long id : ids) {
+      Star star = store.get(id);
+      if (star == null) {
+        assertFalse(stars.containsKey(id));
+      } else {
+        assertEquals(star, stars.get(id));
+      }
+    }
+  }
+
+  @Test
+  public void getAllEmpty() {
+    assertTrue(store.getAll(new ArrayList<Long>()).isEmpty());
+    assertTrue(store.getAll(Lists.newArrayList(1L, 2L)).isEmpty());
+  }
+
+  @Test
+  public void keyRoundTrip() {
+    long[] ids = {1L, 100L, 1L << 40, Long.MAX_VALUE};
+    for (long id : ids) {
+      store.put(id, makeStar(id));
+    }
+    for (long id : ids) {
+      assertEquals(makeStar(id), store.get(id));
+    }
+
+    // The cursor decodes the keys again, and they come back in order.
+    ArrayList<Long> found = new ArrayList<>();
+    try (BaseStore<Long, Star>.StoreCursor cursor = store.search()) {
+      for (Pair<Long, Star> pair = cursor.first(); pair != null; pair = cursor.next()) {
+        assertEquals(pair.first(), pair.second().id);
+        found.add(pair.first());
+      }
+    }
+    assertEquals(Longs.asList(ids), found);
+  }
+
+  @Test
+  public void getAfterBiggerValue() {
+    // Gets on the same thread reuse the key entry, make sure a small value read after a bigger one
+    // doesn't pick up any of the bigger one's bytes.
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      name.append("Big star ");
+    }
+    Star big = makeStar(1).newBuilder().name(name.toString()).build();
+    store.put(1L, big);
+    store.put(2L, makeStar(2));
+
+    assertEquals(big, store.get(1L));
+    assertEquals(makeStar(2), store.get(2L));
+    assertEquals(big, store.get(1L));
+  }
+
+  @Test
+  public void encodeKeyIntoReusedEntryDoesNotAllocate() {
+    ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    final int numKeys = 100000;
+    Long[] ids = new Long[numKeys];
+    for (int i = 0; i < numKeys; i++) {
+      ids[i] = (long) i << 20;
+    }
+    DatabaseEntry entry = new DatabaseEntry();
+    for (int i = 0; i < numKeys; i++) {
+      // Warm up, and give the entry its buffer.
+      store.encodeKey(ids[i], entry);
+      store.encodeKey(ids[i]);
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long start = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < numKeys; i++) {
+      store.encodeKey(ids[i], entry);
+    }
+    long reusedBytes = threads.getThreadAllocatedBytes(threadId) - start;
+
+    start = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < numKeys; i++) {
+      store.encodeKey(ids[i]);
+    }
+    long freshBytes = threads.getThreadAllocatedBytes(threadId) - start;
+
+    // A new entry and its 9-byte key is at least 40 bytes, so the fresh keys are a few MB. The
+    // reused entry should cost nothing per key (we allow a little for the measurement itself).
+    assertTrue("fresh keys allocated " + freshBytes, freshBytes >= 40L * numKeys);
+    assertTrue("reused keys allocated " + reusedBytes, reusedBytes < 1024);
+  }
+
+  static Star makeStar(long id) {
+    return new Star.Builder().id(id).name("Star " + id).build();
+  }
+}
@@ -0,0 +1,249 @@
+package au.com.codeka.warworlds.server.store;
+
+import com.google.common.collect.Lists;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.OperationStatus;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.IdentifierArray;
+import au.com.codeka.warworlds.common.proto.Sector;
+import au.com.codeka.warworlds.common.proto.SectorCoord;
+import au.com.codeka.warworlds.common.proto.SectorCoordArray;
+import au.com.codeka.warworlds.common.proto.Star;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link SectorsStore}. */
+public class SectorsStoreTest {
+  @Rule
+  public final TempEnvironment env = new TempEnvironment();
+
+  /** The number of stars in each sector in {@link #getSectorsBenchmark}. */
+  private static final int BENCHMARK_STARS_PER_SECTOR = 20;
+
+  /** The number of times we fetch the sectors each way in {@link #getSectorsBenchmark}. */
+  private static final int BENCHMARK_ITERATIONS = 50;
+
+  private ProtobufStore<Star> stars;
+  private WriteBehindQueue<Star> starsWriter;
+
+  @Before
+  public void setUp() {
+    stars = new ProtobufStore<>(env.openDatabase("stars"), Star.class);
+    // Not started, so puts write straight through to the store.
+    starsWriter = new WriteBehindQueue<>(stars, "StarsWriter", 0, 100, 100, Time.SECOND);
+  }
+
+  @Test
+  public void concurrentSectorGeneration() throws Exception {
+    final SectorsStore store =
+        new SectorsStore(env.openDatabase("sectors"), stars, starsWriter);
+
+    // Expand the universe to cover all the sectors we'll generate, the expansions the threads do
+    // below will only add sectors further out.
+    final int numThreads = 8;
+    final int sectorsPerThread = 10;
+    final int numUngenerated = store.getUngeneratedSectors(400).size();
+
+    // Each thread generates its own sectors, while also fetching the ungenerated sectors (which
+    // expands the universe when there aren't enough), like the SectorManager does when different
+    // players load different sectors at once.
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    List<Future<List<SectorCoord>>> futures = new ArrayList<>();
+    for (int t = 0; t < numThreads; t++) {
+      final long x = t - numThreads / 2;
+      futures.add(executor.submit(new Callable<List<SectorCoord>>() {
+        @Override
+        public List<SectorCoord> call() {
+          ArrayList<SectorCoord> generated = new ArrayList<>();
+          for (int i = 0; i < sectorsPerThread; i++) {
+            store.getUngeneratedSectors(
+                numUngenerated + (int) (x + numThreads) * sectorsPerThread + i);
+            SectorCoord coord = new SectorCoord.Builder().x(x).y((long) i).build();
+            store.createSector(makeSector(coord, 1000L * (x + numThreads) + i));
+            generated.add(coord);
+          }
+          return generated;
+        }
+      }));
+    }
+
+    HashSet<SectorCoord> generated = new HashSet<>();
+    for (Future<List<SectorCoord>> future : futures) {
+      generated.addAll(future.get());
+    }
+    executor.shutdown();
+
+    // Every sector we generated is stored, is no longer ungenerated, and is empty.
+    for (SectorCoord coord : generated) {
+      Sector sector = store.getSector(coord.x, coord.y);
+      assertNotNull(sector);
+      assertEquals(1, sector.stars.size());
+    }
+    for (SectorCoord coord : store.getUngeneratedSectors(2000)) {
+      assertFalse(generated.contains(coord));
+      assertNull(store.getSector(coord.x, coord.y));
+    }
+    HashSet<SectorCoord> empty = new HashSet<>();
+    for (SectorCoord coord = store.getEmptySector(); coord != null;
+        coord = store.getEmptySector()) {
+      assertTrue(empty.add(coord));
+      store.removeEmptySector(coord);
+    }
+    assertEquals(generated, empty);
+  }
+
+  @Test
+  public void getSectors() {
+    SectorsStore store = new SectorsStore(env.openDatabase("sectors"), stars, starsWriter);
+    ArrayList<SectorCoord> coords = new ArrayList<>();
+    for (long x = -2; x <= 2; x++) {
+      for (long y = -2; y <= 2; y++) {
+        SectorCoord coord = new SectorCoord.Builder().x(x).y(y).build();
+        coords.add(coord);
+        if ((x + y) % 2 == 0) {
+          store.createSector(new Sector.Builder()
+              .x(x)
+              .y(y)
+              .stars(makeStars(coord, 100 * (x + 10) + 10 * (y + 10), 3))
+              .build());
+        }
+      }
+    }
+
+    Map<SectorCoord, Sector> sectors = store.getSectors(coords);
+    assertEquals(13, sectors.size());
+    for (SectorCoord coord : coords) {
+      Sector sector = store.getSector(coord.x, coord.y);
+      assertEquals(sector, sectors.get(coord));
+      if (sector != null) {
+        assertEquals(3, sector.stars.size());
+      }
+    }
+  }
+
+  @Test
+  public void getSectorsBenchmark() {
+    // A 5x5 watch rectangle, like a player watching the sectors around them, compared with
+    // fetching each sector (and each of its stars) one at a time.
+    SectorsStore store = new SectorsStore(env.openDatabase("sectors"), stars, starsWriter);
+    ArrayList<SectorCoord> coords = new ArrayList<>();
+    for (long y = 0; y < 5; y++) {
+      for (long x = 0; x < 5; x++) {
+        SectorCoord coord = new SectorCoord.Builder().x(x).y(y).build();
+        coords.add(coord);
+        store.createSector(new Sector.Builder()
+            .x(x)
+            .y(y)
+            .stars(makeStars(coord, 1000 * coords.size(), BENCHMARK_STARS_PER_SECTOR))
+            .build());
+      }
+    }
+
+    long oneByOneNanos = Long.MAX_VALUE;
+    long batchNanos = Long.MAX_VALUE;
+    for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+      long startTime = System.nanoTime();
+      ArrayList<Sector> oneByOne = new ArrayList<>();
+      for (SectorCoord coord : coords) {
+        oneByOne.add(store.getSector(coord.x, coord.y));
+      }
+      oneByOneNanos = Math.min(oneByOneNanos, System.nanoTime() - startTime);
+
+      startTime = System.nanoTime();
+      Map<SectorCoord, Sector> batch = store.getSectors(coords);
+      batchNanos = Math.min(batchNanos, System.nanoTime() - startTime);
+
+      for (int j = 0; j < coords.size(); j++) {
+        assertEquals(oneByOne.get(j), batch.get(coords.get(j)));
+      }
+    }
+
+    String result = String.format(Locale.ENGLISH,
+        "5x5 sectors, %d stars each: one by one %.3fms, getSectors %.3fms",
+        BENCHMARK_STARS_PER_SECTOR, oneByOneNanos / 1000000.0, batchNanos / 1000000.0);
+    System.out.println(result);
+    // Generous, so that a busy test machine doesn't fail it, but it shouldn't be slower.
+    assertTrue(result, batchNanos < oneByOneNanos * 2);
+  }
+
+  @Test
+  public void migratesOldSectorKeys() {
+    // Store a couple of sectors the way we used to: under "sector:x,y" string keys, with the empty
+    // sectors in a single list.
+    Database db = env.openDatabase("sectors");
+    ArrayList<SectorCoord> coords = Lists.newArrayList(
+        new SectorCoord.Builder().x(1L).y(2L).build(),
+        new SectorCoord.Builder().x(-3L).y(0L).build());
+    for (SectorCoord coord : coords) {
+      List<Star> sectorStars = makeStars(coord, 100 * (coord.x + 10), 2);
+      ArrayList<Long> ids = new ArrayList<>();
+      for (Star star : sectorStars) {
+        stars.put(star.id, star);
+        ids.add(star.id);
+      }
+      db.put(null,
+          new DatabaseEntry(String.format("sector:%d,%d", coord.x, coord.y).getBytes()),
+          new DatabaseEntry(new IdentifierArray.Builder().ids(ids).build().encode()));
+    }
+    db.put(null,
+        new DatabaseEntry("empty-sectors".getBytes()),
+        new DatabaseEntry(new SectorCoordArray.Builder().coords(coords).build().encode()));
+
+    SectorsStore store = new SectorsStore(db, stars, starsWriter);
+    for (SectorCoord coord : coords) {
+      Sector sector = store.getSector(coord.x, coord.y);
+      assertNotNull(sector);
+      assertEquals(makeStars(coord, 100 * (coord.x + 10), 2), sector.stars);
+    }
+
+    // The old keys are gone, and the empty sectors come back closest first.
+    assertEquals(OperationStatus.NOTFOUND,
+        db.get(null, new DatabaseEntry("sector:1,2".getBytes()), new DatabaseEntry(), null));
+    assertEquals(coords.get(0), store.getEmptySector());
+    store.removeEmptySector(coords.get(0));
+    assertEquals(coords.get(1), store.getEmptySector());
+    store.removeEmptySector(coords.get(1));
+    assertNull(store.getEmptySector());
+  }
+
+  private static Sector makeSector(SectorCoord coord, long starId) {
+    return new Sector.Builder()
+        .x(coord.x)
+        .y(coord.y)
+        .stars(makeStars(coord, starId, 1))
+        .build();
+  }
+
+  private static List<Star> makeStars(SectorCoord coord, long firstStarId, int numStars) {
+    ArrayList<Star> stars = new ArrayList<>();
+    for (int i = 0; i < numStars; i++) {
+      stars.add(new Star.Builder()
+          .id(firstStarId + i)
+          .sector_x(coord.x)
+          .sector_y(coord.y)
+          .name("Star " + (firstStarId + i))
+          .build());
+    }
+    return stars;
+  }
+}
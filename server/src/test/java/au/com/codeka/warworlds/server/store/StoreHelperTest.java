@@ -0,0 +1,33 @@
+package au.com.codeka.warworlds.server.store;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** Tests for {@link StoreHelper}. */
+public class StoreHelperTest {
+  private static final long[] VALUES = {
+      0L, 1L, -1L, 255L, 256L, 0x0102030405060708L, Long.MAX_VALUE, Long.MIN_VALUE};
+
+  @Test
+  public void longRoundTrip() {
+    byte[] buffer = new byte[10];
+    for (long value : VALUES) {
+      StoreHelper.putLong(buffer, 1, value);
+      assertEquals(value, StoreHelper.getLong(buffer, 1));
+    }
+  }
+
+  @Test
+  public void longIsBigEndian() {
+    // The keys have to sort the same way as the ByteBuffer-encoded keys we used to use.
+    for (long value : VALUES) {
+      byte[] buffer = new byte[8];
+      StoreHelper.putLong(buffer, 0, value);
+      assertArrayEquals(ByteBuffer.allocate(8).putLong(value).array(), buffer);
+    }
+  }
+}
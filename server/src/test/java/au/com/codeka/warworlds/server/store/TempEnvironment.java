@@ -0,0 +1,54 @@
+package au.com.codeka.warworlds.server.store;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+
+/**
+ * A JUnit rule that opens a transactional {@link Environment} in a temporary directory before each
+ * test, and closes it (and any databases opened from it) afterwards.
+ */
+public class TempEnvironment extends ExternalResource {
+  private final TemporaryFolder folder = new TemporaryFolder();
+  private final ArrayList<Database> databases = new ArrayList<>();
+  private Environment env;
+
+  @Override
+  protected void before() throws Throwable {
+    folder.create();
+    EnvironmentConfig envConfig = new EnvironmentConfig();
+    envConfig.setAllowCreate(true);
+    envConfig.setTransactional(true);
+    env = new Environment(folder.getRoot(), envConfig);
+  }
+
+  @Override
+  protected void after() {
+    for (Database db : databases) {
+      db.close();
+    }
+    databases.clear();
+    env.close();
+    folder.delete();
+  }
+
+  public Environment getEnvironment() {
+    return env;
+  }
+
+  /** Opens (creating if needed) the database with the given name. */
+  public Database openDatabase(String name) {
+    DatabaseConfig dbConfig = new DatabaseConfig();
+    dbConfig.setAllowCreate(true);
+    dbConfig.setTransactional(true);
+    Database db = env.openDatabase(null, name, dbConfig);
+    databases.add(db);
+    return db;
+  }
+}
@@ -0,0 +1,166 @@
+package au.com.codeka.warworlds.server.store;
+
+import com.google.common.collect.Lists;
+import com.sleepycat.je.Transaction;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.Star;
+
+import static au.com.codeka.warworlds.server.store.ProtobufStoreTest.makeStar;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests for {@link WriteBehindQueue}. */
+public class WriteBehindQueueTest {
+  @Rule
+  public final TempEnvironment env = new TempEnvironment();
+
+  private ProtobufStore<Star> store;
+
+  @Before
+  public void setUp() {
+    store = new ProtobufStore<>(env.openDatabase("stars"), Star.class);
+  }
+
+  @Test
+  public void getAllSeesPendingValues() {
+    store.put(1L, makeStar(1));
+    store.put(2L, makeStar(2));
+
+    // A long window, so nothing is written until we stop.
+    WriteBehindQueue<Star> writer = new WriteBehindQueue<>(store, "Test", Time.HOUR, 100, 100, Time.SECOND);
+    writer.start();
+    try {
+      Star updated = makeStar(2).newBuilder().name("Updated").build();
+      writer.put(2L, updated);
+      writer.put(3L, makeStar(3));
+      assertEquals(2, writer.getNumPending());
+      assertNull(store.get(3L));
+
+      Map<Long, Star> stars = writer.getAll(Lists.newArrayList(1L, 2L, 3L, 4L));
+      assertEquals(3, stars.size());
+      assertEquals(makeStar(1), stars.get(1L));
+      assertEquals(updated, stars.get(2L));
+      assertEquals(makeStar(3), stars.get(3L));
+    } finally {
+      writer.stop();
+    }
+
+    assertEquals(0, writer.getNumPending());
+    assertEquals("Updated", store.get(2L).name);
+    assertEquals(makeStar(3), store.get(3L));
+  }
+
+  @Test
+  public void stopRetriesFailedWrites() {
+    FailingStore failingStore = new FailingStore();
+    WriteBehindQueue<Star> writer =
+        new WriteBehindQueue<>(failingStore, "Test", Time.HOUR, 100, 100, Time.SECOND);
+    writer.start();
+    writer.put(1L, makeStar(1));
+    writer.put(2L, makeStar(2));
+
+    // The first write (from stop's flush) fails, the retry should still get everything written.
+    failingStore.failuresRemaining = 1;
+    writer.stop();
+
+    assertEquals(0, failingStore.failuresRemaining);
+    assertEquals(0, writer.getNumPending());
+    assertEquals(makeStar(1), store.get(1L));
+    assertEquals(makeStar(2), store.get(2L));
+  }
+
+  @Test
+  public void stopFailsRatherThanDroppingValues() {
+    FailingStore failingStore = new FailingStore();
+    WriteBehindQueue<Star> writer =
+        new WriteBehindQueue<>(failingStore, "Test", Time.HOUR, 100, 100, Time.SECOND);
+    writer.start();
+    writer.put(1L, makeStar(1));
+
+    failingStore.failuresRemaining = Integer.MAX_VALUE;
+    try {
+      writer.stop();
+      fail("Expected stop to fail.");
+    } catch (RuntimeException e) {
+      // Expected.
+    }
+
+    // It's still there to be written once the store is working again.
+    assertEquals(1, writer.getNumPending());
+    failingStore.failuresRemaining = 0;
+    writer.flush();
+    assertEquals(0, writer.getNumPending());
+    assertEquals(makeStar(1), store.get(1L));
+  }
+
+  @Test
+  public void putDoesntWaitForeverForAStuckWriter() throws Exception {
+    FailingStore failingStore = new FailingStore();
+    failingStore.blockedKey = 1L;
+    WriteBehindQueue<Star> writer =
+        new WriteBehindQueue<>(failingStore, "Test", Time.HOUR, 100, 1, 50);
+    writer.start();
+    try {
+      // The writer takes star 1 straight away (we're at the limit), and gets stuck writing it.
+      writer.put(1L, makeStar(1));
+      assertTrue(failingStore.blocked.await(10, TimeUnit.SECONDS));
+
+      // Star 2 fills the queue up again, so star 3 has to wait for room, which never comes. It
+      // gives up waiting and writes the batch itself.
+      writer.put(2L, makeStar(2));
+      writer.put(3L, makeStar(3));
+      assertEquals(makeStar(2), store.get(2L));
+      assertEquals(makeStar(3), store.get(3L));
+      assertNull(store.get(1L));
+    } finally {
+      failingStore.unblock.countDown();
+      writer.stop();
+    }
+    assertEquals(makeStar(1), store.get(1L));
+  }
+
+  /**
+   * A {@link ProtobufStore} that throws from {@link #put} a given number of times, and can block
+   * writes of a given key until it's told to unblock.
+   */
+  private class FailingStore extends ProtobufStore<Star> {
+    volatile int failuresRemaining;
+    volatile long blockedKey = -1;
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch unblock = new CountDownLatch(1);
+
+    FailingStore() {
+      super(store.db, Star.class);
+    }
+
+    @Override
+    public void put(@Nullable Transaction trans, Long key, Star value) {
+      if (key == blockedKey) {
+        blocked.countDown();
+        try {
+          unblock.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      if (failuresRemaining > 0) {
+        failuresRemaining--;
+        throw new RuntimeException("Simulated failure writing " + key);
+      }
+      super.put(trans, key, value);
+    }
+  }
+}
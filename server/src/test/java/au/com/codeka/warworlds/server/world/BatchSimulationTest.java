@@ -0,0 +1,100 @@
+package au.com.codeka.warworlds.server.world;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.Colony;
+import au.com.codeka.warworlds.common.proto.ColonyFocus;
+import au.com.codeka.warworlds.common.proto.EmpireStorage;
+import au.com.codeka.warworlds.common.proto.Fleet;
+import au.com.codeka.warworlds.common.proto.Planet;
+import au.com.codeka.warworlds.common.proto.Star;
+import au.com.codeka.warworlds.common.sim.Simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/** Tests for {@link BatchSimulation}. */
+public class BatchSimulationTest {
+  @Test
+  public void sameAsSimulatingOneByOne() {
+    long now = System.currentTimeMillis();
+    ArrayList<Star> stars = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      // Every fifth star is contested, so its empires are simulated in parallel as well.
+      stars.add(makeStar(i, now - (i + 1) * Time.HOUR, i % 5 == 0));
+    }
+
+    ArrayList<Star.Builder> batch = new ArrayList<>();
+    for (Star star : stars) {
+      batch.add(star.newBuilder());
+    }
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      BatchSimulation.simulateAll(pool, batch, now);
+    } finally {
+      pool.shutdown();
+    }
+
+    for (int i = 0; i < stars.size(); i++) {
+      Star.Builder expected = stars.get(i).newBuilder();
+      new Simulation(now, true, null).simulate(expected);
+      assertNotEquals(stars.get(i), batch.get(i).build());
+      assertEquals(expected.build(), batch.get(i).build());
+    }
+  }
+
+  /**
+   * Makes a star with three planets. If it's contested, each planet is colonized by a different
+   * empire, otherwise two of them are colonized by the same empire.
+   */
+  private static Star makeStar(long id, long lastSimulation, boolean contested) {
+    ArrayList<Planet> planets = new ArrayList<>();
+    ArrayList<EmpireStorage> storages = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      Long empireId = contested ? Long.valueOf(i + 1) : (id % 3 == 0 ? null : id % 3);
+      planets.add(new Planet.Builder()
+          .index(i)
+          .planet_type(Planet.PLANET_TYPE.TERRAN)
+          .population_congeniality(500 + 100 * i)
+          .farming_congeniality(30 + 10 * i)
+          .mining_congeniality(60 - 5 * i)
+          .energy_congeniality(40 + 5 * i)
+          .colony(i == 1 && !contested ? null : new Colony.Builder()
+              .id(id * 10 + i)
+              .empire_id(empireId)
+              .population(10.0f * (i + 1))
+              .focus(new ColonyFocus.Builder()
+                  .construction(0.1f)
+                  .farming(0.3f)
+                  .mining(0.3f)
+                  .energy(0.3f)
+                  .build())
+              .defence_bonus(1.0f)
+              .build())
+          .build());
+      if (contested || i == 0) {
+        storages.add(new EmpireStorage.Builder()
+            .empire_id(empireId)
+            .total_goods(100.0f)
+            .total_minerals(100.0f)
+            .total_energy(100.0f)
+            .max_goods(1000.0f)
+            .max_minerals(1000.0f)
+            .max_energy(1000.0f)
+            .build());
+      }
+    }
+    return new Star.Builder()
+        .id(id)
+        .name("Star " + id)
+        .planets(planets)
+        .empire_stores(storages)
+        .fleets(new ArrayList<Fleet>())
+        .last_simulation(lastSimulation)
+        .build();
+  }
+}
@@ -0,0 +1,359 @@
+package au.com.codeka.warworlds.server.world;
+
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.Sector;
+import au.com.codeka.warworlds.common.proto.SectorCoord;
+import au.com.codeka.warworlds.common.proto.Star;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests for {@link SectorManager}'s loading of sectors, with lots of concurrent watchers. */
+public class SectorManagerTest {
+  private static final int NUM_THREADS = 16;
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void sameSectorIsLoadedOnce() throws Exception {
+    TestSource source = new TestSource();
+    source.stored.put(coord(1, 2), makeSector(1, 2));
+    source.loadDelayMs = 50;
+    SectorManager sectorManager = new SectorManager(source);
+
+    List<Sector> sectors = getConcurrently(sectorManager, repeat(coord(1, 2), NUM_THREADS * 4));
+    assertEquals(1, source.numLoads.get());
+    for (Sector sector : sectors) {
+      assertSame(sectors.get(0), sector);
+    }
+  }
+
+  @Test
+  public void sameSectorIsGeneratedOnce() throws Exception {
+    TestSource source = new TestSource();
+    source.loadDelayMs = 50;
+    SectorManager sectorManager = new SectorManager(source);
+
+    List<Sector> sectors = getConcurrently(sectorManager, repeat(coord(5, 5), NUM_THREADS * 4));
+    assertEquals(1, source.numGenerated.get());
+    assertEquals(1, source.numLoads.get());
+    for (Sector sector : sectors) {
+      assertSame(sectors.get(0), sector);
+    }
+  }
+
+  @Test
+  public void differentSectorsLoadInParallel() throws Exception {
+    // Each load waits until every thread is loading a sector, which only happens if none of them
+    // are waiting for the others.
+    TestSource source = new TestSource();
+    List<SectorCoord> coords = new ArrayList<>();
+    for (int i = 0; i < NUM_THREADS; i++) {
+      coords.add(coord(i, -i));
+      source.stored.put(coords.get(i), makeSector(i, -i));
+    }
+    source.allLoading = new CountDownLatch(NUM_THREADS);
+    SectorManager sectorManager = new SectorManager(source);
+
+    List<Sector> sectors = getConcurrently(sectorManager, coords);
+    assertEquals(NUM_THREADS, source.numLoads.get());
+    for (int i = 0; i < NUM_THREADS; i++) {
+      assertEquals(coords.get(i).x, sectors.get(i).x);
+      assertEquals(coords.get(i).y, sectors.get(i).y);
+    }
+  }
+
+  @Test
+  public void getSectorsSharesLoadsWithGetSector() throws Exception {
+    TestSource source = new TestSource();
+    source.loadDelayMs = 20;
+    SectorManager sectorManager = new SectorManager(source);
+
+    // Half the threads ask for the sectors one at a time, the other half in batches, all for the
+    // same few sectors. Each sector should still only be generated once.
+    List<SectorCoord> coords = Lists.newArrayList(coord(0, 0), coord(0, 1), coord(1, 0));
+    List<Future<List<Sector>>> futures = new ArrayList<>();
+    CountDownLatch start = new CountDownLatch(1);
+    for (int i = 0; i < NUM_THREADS; i++) {
+      boolean batch = (i % 2 == 0);
+      futures.add(executor.submit(() -> {
+        start.await();
+        if (batch) {
+          return sectorManager.getSectors(coords);
+        }
+        List<Sector> sectors = new ArrayList<>();
+        for (SectorCoord coord : Lists.reverse(coords)) {
+          sectors.add(0, sectorManager.getSector(coord));
+        }
+        return sectors;
+      }));
+    }
+    start.countDown();
+
+    List<Sector> expected = null;
+    for (Future<List<Sector>> future : futures) {
+      List<Sector> sectors = future.get(10, TimeUnit.SECONDS);
+      if (expected == null) {
+        expected = sectors;
+      }
+      for (int i = 0; i < coords.size(); i++) {
+        assertSame(expected.get(i), sectors.get(i));
+      }
+    }
+    assertEquals(coords.size(), source.numGenerated.get());
+  }
+
+  @Test
+  public void failedLoadIsRetried() {
+    TestSource source = new TestSource();
+    source.stored.put(coord(3, 3), makeSector(3, 3));
+    source.numFailures.set(1);
+    SectorManager sectorManager = new SectorManager(source);
+
+    try {
+      sectorManager.getSector(coord(3, 3));
+      fail("Expected the first load to fail.");
+    } catch (RuntimeException e) {
+      // Expected.
+    }
+    assertEquals(3L, (long) sectorManager.getSector(coord(3, 3)).x);
+    assertEquals(2, source.numLoads.get());
+  }
+
+  @Test
+  public void usesCurrentStars() {
+    TestSource source = new TestSource();
+    Sector stored = makeSector(4, 4);
+    source.stored.put(coord(4, 4), stored);
+    Star updated = stored.stars.get(1).newBuilder().version(10L).name("Updated").build();
+    source.currentStars.put(updated.id, updated);
+    SectorManager sectorManager = new SectorManager(source);
+
+    Sector sector = sectorManager.getSector(coord(4, 4));
+    assertEquals(stored.stars.get(0), sector.stars.get(0));
+    assertEquals(updated, sector.stars.get(1));
+
+    // Updates are applied in place, and older versions are ignored.
+    Star newer = updated.newBuilder().version(11L).name("Newer").build();
+    sectorManager.onStarUpdated(newer);
+    sectorManager.onStarUpdated(updated);
+    assertEquals(newer, sectorManager.getSector(coord(4, 4)).stars.get(1));
+  }
+
+  @Test
+  public void unwatchedSectorsAreUnloaded() throws Exception {
+    TestSource source = new TestSource();
+    source.stored.put(coord(6, 6), makeSector(6, 6));
+    source.copyStars = true;
+    SectorManager sectorManager = new SectorManager(source);
+
+    List<WeakReference<Object>> refs = getWeakly(sectorManager, coord(6, 6));
+    assertEquals(1, sectorManager.getNumLoadedSectors());
+
+    // It's not idle yet, so a sweep now keeps it.
+    sectorManager.sweep(System.currentTimeMillis());
+    assertEquals(1, sectorManager.getNumLoadedSectors());
+
+    sectorManager.sweep(System.currentTimeMillis() + Time.HOUR);
+    assertEquals(0, sectorManager.getNumLoadedSectors());
+
+    // Nothing else refers to the sector or its stars, so they should be collected now.
+    for (int i = 0; i < 50 && !allCleared(refs); i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertTrue("The unloaded sector (or its stars) are still in memory.", allCleared(refs));
+
+    // And it's loaded again the next time it's wanted.
+    assertEquals(6L, (long) sectorManager.getSector(coord(6, 6)).x);
+    assertEquals(2, source.numLoads.get());
+  }
+
+  @Test
+  public void watchedSectorsAreKept() {
+    TestSource source = new TestSource();
+    source.stored.put(coord(7, 7), makeSector(7, 7));
+    SectorManager sectorManager = new SectorManager(source);
+    Sector sector = sectorManager.getSector(coord(7, 7));
+
+    InterestManager.Subscriber subscriber = star -> {};
+    InterestManager.i.subscribe(7, 7, subscriber);
+    try {
+      sectorManager.sweep(System.currentTimeMillis() + Time.HOUR);
+      assertSame(sector, sectorManager.getSector(coord(7, 7)));
+    } finally {
+      InterestManager.i.unsubscribe(7, 7, subscriber);
+    }
+
+    sectorManager.sweep(System.currentTimeMillis() + Time.HOUR);
+    assertNotSame(sector, sectorManager.getSector(coord(7, 7)));
+    assertEquals(2, source.numLoads.get());
+  }
+
+  /**
+   * Gets the sector at the given coordinates, and returns weak references to it and its stars. We
+   * do it here so that the caller doesn't end up with any strong references.
+   */
+  private static List<WeakReference<Object>> getWeakly(
+      SectorManager sectorManager, SectorCoord coord) {
+    Sector sector = sectorManager.getSector(coord);
+    List<WeakReference<Object>> refs = new ArrayList<>();
+    refs.add(new WeakReference<>(sector));
+    for (Star star : sector.stars) {
+      refs.add(new WeakReference<>(star));
+    }
+    return refs;
+  }
+
+  private static boolean allCleared(List<WeakReference<Object>> refs) {
+    for (WeakReference<Object> ref : refs) {
+      if (ref.get() != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Calls getSector for each of the given coordinates on its own thread, all at once. */
+  private List<Sector> getConcurrently(SectorManager sectorManager, List<SectorCoord> coords)
+      throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Sector>> futures = new ArrayList<>();
+    for (SectorCoord coord : coords) {
+      futures.add(executor.submit(() -> {
+        start.await();
+        return sectorManager.getSector(coord);
+      }));
+    }
+    start.countDown();
+
+    List<Sector> sectors = new ArrayList<>();
+    for (Future<Sector> future : futures) {
+      sectors.add(future.get(10, TimeUnit.SECONDS));
+    }
+    return sectors;
+  }
+
+  private static List<SectorCoord> repeat(SectorCoord coord, int n) {
+    List<SectorCoord> coords = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      coords.add(coord);
+    }
+    return coords;
+  }
+
+  private static SectorCoord coord(long x, long y) {
+    return new SectorCoord.Builder().x(x).y(y).build();
+  }
+
+  private static Sector makeSector(long x, long y) {
+    List<Star> stars = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      long id = (x * 1000 + y) * 10 + i;
+      stars.add(new Star.Builder()
+          .id(id)
+          .name("Star " + id)
+          .sector_x(x)
+          .sector_y(y)
+          .version(1L)
+          .build());
+    }
+    return new Sector.Builder().x(x).y(y).stars(stars).build();
+  }
+
+  /** A {@link SectorManager.SectorSource} that counts what it's asked to do. */
+  private static class TestSource implements SectorManager.SectorSource {
+    final Map<SectorCoord, Sector> stored = new ConcurrentHashMap<>();
+    final Map<Long, Star> currentStars = new ConcurrentHashMap<>();
+    final AtomicInteger numLoads = new AtomicInteger();
+    final AtomicInteger numGenerated = new AtomicInteger();
+    final AtomicInteger numFailures = new AtomicInteger();
+    volatile long loadDelayMs;
+
+    /**
+     * If true, {@link #getCurrentStar} returns a copy of the stored star, so that the stars of a
+     * loaded sector aren't also referenced from {@link #stored}.
+     */
+    volatile boolean copyStars;
+    volatile CountDownLatch allLoading;
+
+    @Override
+    public Sector getSector(long x, long y) {
+      load(1);
+      return stored.get(coord(x, y));
+    }
+
+    @Override
+    public Map<SectorCoord, Sector> getSectors(Collection<SectorCoord> coords) {
+      load(coords.size());
+      Map<SectorCoord, Sector> sectors = new HashMap<>();
+      for (SectorCoord coord : coords) {
+        if (stored.containsKey(coord)) {
+          sectors.put(coord, stored.get(coord));
+        }
+      }
+      return sectors;
+    }
+
+    @Override
+    public Sector generate(long x, long y) {
+      numGenerated.incrementAndGet();
+      Sector sector = makeSector(x, y);
+      stored.put(coord(x, y), sector);
+      return sector;
+    }
+
+    @Override
+    public Star getCurrentStar(Star star) {
+      Star current = currentStars.get(star.id);
+      if (current != null) {
+        return current;
+      }
+      return copyStars ? star.newBuilder().build() : star;
+    }
+
+    private void load(int n) {
+      numLoads.addAndGet(n);
+      if (numFailures.getAndDecrement() > 0) {
+        throw new RuntimeException("Failed to load.");
+      }
+      try {
+        if (allLoading != null) {
+          allLoading.countDown();
+          assertTrue("Sectors weren't loaded in parallel.",
+              allLoading.await(10, TimeUnit.SECONDS));
+        }
+        Thread.sleep(loadDelayMs);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
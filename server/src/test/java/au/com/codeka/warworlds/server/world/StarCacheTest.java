@@ -0,0 +1,127 @@
+package au.com.codeka.warworlds.server.world;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import au.com.codeka.warworlds.common.Time;
+import au.com.codeka.warworlds.common.proto.Star;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/** Tests for {@link StarCache}. */
+public class StarCacheTest {
+  private static final long TTL_MS = Time.MINUTE;
+
+  private final AtomicInteger numLoads = new AtomicInteger();
+
+  private final StarCache.Loader loader = new StarCache.Loader() {
+    @Override
+    public WatchableObject<Star> load(long id) {
+      numLoads.incrementAndGet();
+      if (id < 0) {
+        return null;
+      }
+      return new WatchableObject<>(new Star.Builder().id(id).name("Star " + id).build());
+    }
+  };
+
+  private final StarCache.PinnedChecker notPinned = new StarCache.PinnedChecker() {
+    @Override
+    public boolean isPinned(WatchableObject<Star> star) {
+      return false;
+    }
+  };
+
+  @Test
+  public void getLoadsOnce() {
+    StarCache cache = new StarCache(10, TTL_MS, loader, notPinned);
+    WatchableObject<Star> star = cache.get(1);
+    assertSame(star, cache.get(1));
+    assertEquals(1, numLoads.get());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void getIfCachedDoesntLoad() {
+    StarCache cache = new StarCache(10, TTL_MS, loader, notPinned);
+    assertNull(cache.getIfCached(1));
+    assertEquals(0, numLoads.get());
+    assertEquals(0, cache.size());
+
+    WatchableObject<Star> star = cache.get(1);
+    assertSame(star, cache.getIfCached(1));
+    assertEquals(1, numLoads.get());
+  }
+
+  @Test
+  public void missingStarsArentCached() {
+    StarCache cache = new StarCache(10, TTL_MS, loader, notPinned);
+    assertNull(cache.get(-1));
+    assertNull(cache.acquire(-1));
+    assertEquals(2, numLoads.get());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void idleStarsAreEvicted() {
+    StarCache cache = new StarCache(10, TTL_MS, loader, notPinned);
+    WatchableObject<Star> star = cache.get(1);
+    cache.sweep(System.currentTimeMillis() + TTL_MS + 1);
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.getEvictions());
+    assertNotSame(star, cache.get(1));
+  }
+
+  @Test
+  public void pinnedStarsAreNotEvicted() {
+    StarCache cache = new StarCache(10, TTL_MS, loader, new StarCache.PinnedChecker() {
+      @Override
+      public boolean isPinned(WatchableObject<Star> star) {
+        return true;
+      }
+    });
+    WatchableObject<Star> star = cache.get(1);
+    cache.sweep(System.currentTimeMillis() + TTL_MS + 1);
+    assertSame(star, cache.get(1));
+  }
+
+  @Test
+  public void acquiredStarsAreNotEvicted() {
+    StarCache cache = new StarCache(10, TTL_MS, loader, notPinned);
+    WatchableObject<Star> star = cache.acquire(1);
+    cache.sweep(System.currentTimeMillis() + TTL_MS + 1);
+    assertEquals(1, cache.size());
+    assertSame(star, cache.get(1));
+
+    // Acquired twice, it's not evictable until both are released.
+    assertSame(star, cache.acquire(1));
+    cache.release(star);
+    cache.sweep(System.currentTimeMillis() + TTL_MS + 1);
+    assertSame(star, cache.get(1));
+
+    cache.release(star);
+    cache.sweep(System.currentTimeMillis() + TTL_MS + 1);
+    assertEquals(0, cache.size());
+    assertNotSame(star, cache.acquire(1));
+  }
+
+  @Test
+  public void overSizeEvictsLeastRecentlyUsed() {
+    StarCache cache = new StarCache(2, TTL_MS, loader, notPinned);
+    for (long id = 1; id <= 4; id++) {
+      cache.get(id);
+    }
+    WatchableObject<Star> acquired = cache.acquire(1);
+
+    // Everything's been idle long enough to be a candidate, but not long enough to expire.
+    cache.sweep(System.currentTimeMillis() + TTL_MS / 2);
+    assertEquals(2, cache.size());
+    assertSame(acquired, cache.get(1));
+    cache.release(acquired);
+  }
+}